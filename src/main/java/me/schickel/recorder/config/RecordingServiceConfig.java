@@ -3,10 +3,192 @@ package me.schickel.recorder.config;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 @Data
 @Component
 @ConfigurationProperties("recorder")
 public class RecordingServiceConfig {
     private String recordingFolderPrefix;
+    // Write the MKV during the recording next to the TS, instead of remuxing the TS afterwards
+    private boolean liveMkv = false;
+    private List<Provider> providers = new ArrayList<>();
+    private Watchdog watchdog = new Watchdog();
+    private PostProcessing postProcessing = new PostProcessing();
+    private HttpRecorder httpRecorder = new HttpRecorder();
+    private Hls hls = new Hls();
+    private Warmup warmup = new Warmup();
+    private ProbeCache probeCache = new ProbeCache();
+    private Hedging hedging = new Hedging();
+    private Failover failover = new Failover();
+    private RollingBuffer rollingBuffer = new RollingBuffer();
+    private Segments segments = new Segments();
+    private Pipe pipe = new Pipe();
+
+    /**
+     * An IPTV provider account with its own connection budget. Stream URLs starting with one of the
+     * {@code urlPrefixes} belong to this provider.
+     */
+    @Data
+    public static class Provider {
+        private String name;
+        private List<String> urlPrefixes = new ArrayList<>();
+        // Falls back to allowed.simultaneous.streams when not set
+        private Integer maxStreams;
+    }
+
+    /**
+     * Probing streams ahead of their start, see {@code StreamWarmupService}.
+     */
+    @Data
+    public static class Warmup {
+        // How long before the start the stream is probed, zero probes at the start time
+        private Duration leadTime = Duration.ofSeconds(60);
+        // Wait between two probes of a stream that could not be probed
+        private Duration retryInterval = Duration.ofSeconds(15);
+        // Older probe results are not trusted at the start time, e.g. after a restart of the application
+        private Duration maxAge = Duration.ofMinutes(15);
+    }
+
+    /**
+     * Reusing ffprobe results across the recordings of a channel, see {@code StreamProbeCache}.
+     */
+    @Data
+    public static class ProbeCache {
+        // Channels keep their stream layout for a long time, a recording that fails with it drops it earlier
+        private Duration ttl = Duration.ofDays(7);
+        private int maxEntries = 500;
+        // How long ffmpeg analyzes a stream whose layout is known, instead of its default of 10 seconds
+        private Duration analyzeDuration = Duration.ofSeconds(1);
+    }
+
+    /**
+     * Racing several connections at the start of a segment against slow first responses of the provider,
+     * see {@code FfmpegService}.
+     */
+    @Data
+    public static class Hedging {
+        private boolean enabled = false;
+        // Wait for output before connecting once more
+        private Duration delay = Duration.ofMillis(300);
+        // Connections racing at most, every one after the first needs a spare stream slot of the provider
+        private int maxConnections = 2;
+    }
+
+    /**
+     * Switching to the fallback URLs of a channel while recording, see {@code FfmpegService}.
+     */
+    @Data
+    public static class Failover {
+        // Parts in a row that wrote nothing before the next URL is tried
+        private int maxFailures = 2;
+        // How long a recording with fallback URLs waits for the probe of its stream URL before it starts without
+        private Duration probeWait = Duration.ofSeconds(60);
+    }
+
+    /**
+     * Writing ffmpeg recordings as a series of short files with a manifest, see {@code SegmentedOutput}.
+     */
+    @Data
+    public static class Segments {
+        private boolean enabled = false;
+        // Length of each file, ffmpeg cuts at the first keyframe after it
+        private Duration duration = Duration.ofMinutes(5);
+    }
+
+    /**
+     * ffmpeg writing recordings to stdout and the recorder writing them to disk, see {@code PipedOutput}.
+     */
+    @Data
+    public static class Pipe {
+        private boolean enabled = false;
+        // Direct buffer per running ffmpeg, filled from the pipe before each write to the file
+        private int bufferSize = 1024 * 1024;
+        // How often the file is synced to disk while recording, zero leaves it to the OS until the end
+        private Duration syncInterval = Duration.ofSeconds(10);
+    }
+
+    /**
+     * Keeping the last minutes of pinned channels in memory, so that recordings can start in the past,
+     * see {@code RollingBufferService}.
+     */
+    @Data
+    public static class RollingBuffer {
+        private boolean enabled = false;
+        // Names of the channels to buffer, each one permanently holds a stream slot of its provider
+        private List<String> channels = new ArrayList<>();
+        // How far back a recording can start
+        private Duration duration = Duration.ofMinutes(5);
+        // Bits per second the buffers are sized for, a channel with a higher bit rate is buffered for less than the duration
+        private long bitRate = 8_000_000;
+        // Off-heap memory of all buffers together, the buffers are shrunk to fit
+        private DataSize maxMemory = DataSize.ofMegabytes(512);
+    }
+
+    /**
+     * Thresholds for restarting a recording whose stream stalled, see {@code RecordingWatchdog}.
+     */
+    @Data
+    public static class Watchdog {
+        private boolean enabled = true;
+        // Restart when the output file has not grown for this long
+        private Duration stallTimeout = Duration.ofSeconds(8);
+        // ffmpeg needs a while to probe the stream before it writes anything
+        private Duration startupGracePeriod = Duration.ofSeconds(30);
+        // Restart when less than minSpeed seconds of media per second arrived within speedWindow
+        private double minSpeed = 0.5;
+        private Duration speedWindow = Duration.ofSeconds(10);
+        // Connect a second ffmpeg while the stalled one is still running and switch over once it writes data.
+        // Needs a spare stream slot of the provider at that moment, otherwise the segment is restarted as usual.
+        private boolean makeBeforeBreak = false;
+        // Start the replacement connection when the output has not grown for this long
+        private Duration replacementAfter = Duration.ofSeconds(3);
+    }
+
+    /**
+     * Limits for the work done on finished recordings, see {@code PostProcessingQueue}.
+     */
+    @Data
+    public static class PostProcessing {
+        // Jobs handed to the post-processing pool at the same time
+        private int maxParallel = 1;
+        // nice level of the ffmpeg processes, 0 runs them at normal priority
+        private int niceness = 10;
+        // ionice class: 2 is best-effort, 3 only uses the disk when nobody else does, 0 leaves it unchanged
+        private int ioClass = 2;
+        // Priority within the best-effort class, 7 is the lowest
+        private int ioLevel = 7;
+    }
+
+    /**
+     * Connection settings of the recorder engine without ffmpeg, see {@code HttpTsRecorder}.
+     */
+    @Data
+    public static class HttpRecorder {
+        private Duration connectTimeout = Duration.ofSeconds(10);
+        // Reconnect when nothing arrived for this long, like ffmpeg's -rw_timeout
+        private Duration readTimeout = Duration.ofSeconds(15);
+        // Read buffer of each recording, reused for the whole recording
+        private int bufferSize = 256 * 1024;
+        // Some providers only serve the user agents of known players, this is the one ffmpeg sends
+        private String userAgent = "Lavf/61.7.100";
+    }
+
+    /**
+     * HLS recordings without ffmpeg, see {@code HlsRecorder}. Connect timeout and user agent are those of
+     * {@link HttpRecorder}.
+     */
+    @Data
+    public static class Hls {
+        // Segments downloaded at the same time, so that one slow segment does not hold up the next ones
+        private int parallelDownloads = 3;
+        // How far behind the live edge a recording starts, in segments
+        private int liveStartSegments = 3;
+        // A segment that takes longer is given up and counted as lost
+        private Duration segmentTimeout = Duration.ofSeconds(20);
+    }
 }
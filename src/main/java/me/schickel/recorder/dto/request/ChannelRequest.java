@@ -3,6 +3,9 @@ package me.schickel.recorder.dto.request;
 import jakarta.validation.constraints.NotBlank;
 import lombok.Data;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Data
 public class ChannelRequest {
     
@@ -11,4 +14,10 @@ public class ChannelRequest {
     
     @NotBlank(message = "M3U URL is required")
     private String m3uUrl;
+
+    // Tried in this order when m3uUrl keeps failing during a recording
+    private List<String> fallbackUrls = new ArrayList<>();
+
+    // E.g. program=1,audio=deu|eng,data=drop, every stream is recorded if not set
+    private String streamSelection;
 }
\ No newline at end of file
@@ -3,6 +3,10 @@ package me.schickel.recorder.dto.request;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.Pattern;
 import lombok.Data;
+import me.schickel.recorder.entity.RecordingSchedule;
+
+import java.util.ArrayList;
+import java.util.List;
 
 @Data
 @ChannelOrUrlRequired
@@ -17,6 +21,12 @@ public class RecordingScheduleRequest {
     private String endTime;
     
     private String m3uUrl;
+
+    // Taken from the channel when one is given
+    private List<String> fallbackUrls = new ArrayList<>();
+
+    // Taken from the channel when not set
+    private String streamSelection;
     
     private String channel;
     
@@ -26,4 +36,6 @@ public class RecordingScheduleRequest {
     private boolean remuxToMkv = false;
 
     private boolean keepOriginalTs = true;
+
+    private RecordingSchedule.Engine engine = RecordingSchedule.Engine.FFMPEG;
 }
\ No newline at end of file
@@ -2,9 +2,13 @@ package me.schickel.recorder.dto.response;
 
 import lombok.Data;
 
+import java.util.List;
+
 @Data
 public class ChannelResponse {
     private Long id;
     private String channelName;
     private String m3uUrl;
+    private List<String> fallbackUrls;
+    private String streamSelection;
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.time.LocalDateTime;
+import java.util.Map;
 
 @Getter
 @Setter
@@ -17,4 +18,6 @@ public class PastRecordingResponse {
     private String recordedAt;
     private boolean wasTriggered;
     private String completionStatus;
+    // Recorded parts and the URL each was recorded from, in recording order
+    private Map<String, String> partSources;
 }
\ No newline at end of file
@@ -1,6 +1,9 @@
 package me.schickel.recorder.dto.response;
 
 import lombok.Data;
+import me.schickel.recorder.entity.RecordingSchedule;
+
+import java.util.List;
 
 @Data
 public class RecordingScheduleResponse {
@@ -8,9 +11,12 @@ public class RecordingScheduleResponse {
     private String startTime;
     private String endTime;
     private String m3uUrl;
+    private List<String> fallbackUrls;
+    private String streamSelection;
     private String channel;
     private String fileName;
     private boolean triggered;
     private boolean remuxToMkv;
     private boolean keepOriginalTs;
+    private RecordingSchedule.Engine engine;
 }
\ No newline at end of file
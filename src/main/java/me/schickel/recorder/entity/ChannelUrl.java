@@ -19,4 +19,12 @@ public class ChannelUrl extends ChannelBody{
 
     @Column(name = "url", nullable = false)
     private String url;
+
+    // Backup servers or other variants of the channel, one URL per line in the order they are tried
+    @Column(name = "fallback_urls")
+    private String fallbackUrls;
+
+    // Streams recorded from the channel, see StreamSelection, all of them if not set
+    @Column(name = "stream_selection")
+    private String streamSelection;
 }
@@ -37,4 +37,8 @@ public class PastRecording {
     private boolean wasTriggered;
     @Column(name = "completion_status")
     private String completionStatus;
+
+    // JSON object of the recorded parts and the URL each was recorded from
+    @Column(name = "part_sources")
+    private String partSources;
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package me.schickel.recorder.entity;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Work left to do on the files of a finished recording. Jobs are kept in the database until they succeed,
+ * so a restart picks up where post-processing stopped.
+ */
+@Entity
+@Table(name = "post_processing_jobs", indexes = {
+    @Index(name = "idx_post_processing_jobs_status", columnList = "status, id")
+})
+@Getter
+@Setter
+public class PostProcessingJob {
+
+    public enum Type {
+        // Join the parts into one MKV, cutting overlaps on the way
+        REMUX_TO_MKV,
+        // Only cut overlaps, the parts stay TS files
+        TRIM_OVERLAPS,
+        // Remux one closed segment of a recording that is still running, see recorder.segments
+        REMUX_SEGMENT,
+        // Join the segments into one MKV, remuxing those that were not remuxed while recording
+        JOIN_SEGMENTS
+    }
+
+    public enum Status {
+        PENDING,
+        RUNNING,
+        FAILED
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "type", nullable = false)
+    private Type type;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", nullable = false)
+    private Status status;
+
+    // Name of the recording, for log messages
+    @Column(name = "file_name", nullable = false)
+    private String fileName;
+
+    // JSON list of the parts in recording order and how much of each to keep
+    @Column(name = "parts", nullable = false)
+    private String parts;
+
+    @Column(name = "keep_original_ts", nullable = false)
+    private boolean keepOriginalTs;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @Column(name = "started_at")
+    private LocalDateTime startedAt;
+
+    @Column(name = "attempts", nullable = false)
+    private int attempts;
+
+    @Column(name = "last_error")
+    private String lastError;
+}
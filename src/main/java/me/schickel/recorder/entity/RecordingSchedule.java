@@ -3,12 +3,28 @@ package me.schickel.recorder.entity;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
+import me.schickel.recorder.util.TimeUtils;
+import me.schickel.recorder.util.UrlList;
+
+import java.util.ArrayList;
+import java.util.List;
 
 @Entity
-@Table(name = "recording_schedules")
+@Table(name = "recording_schedules", indexes = {
+    @Index(name = "idx_recording_schedules_triggered_start", columnList = "triggered, start_epoch"),
+    @Index(name = "idx_recording_schedules_triggered_end", columnList = "triggered, end_epoch")
+})
 @Getter
 @Setter
 public class RecordingSchedule extends RecordingTask {
+
+    public enum Engine {
+        // ffmpeg, for every source it can open
+        FFMPEG,
+        // HttpTsRecorder, copies plain HTTP MPEG-TS streams without a child process. Other sources fall back to ffmpeg.
+        JAVA
+    }
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
@@ -19,12 +35,27 @@ public class RecordingSchedule extends RecordingTask {
     @Column(name = "end_time", nullable = false)
     private String endTime;
 
+    // Epoch seconds derived from startTime/endTime, so that range queries and sorting happen in SQLite
+    @Column(name = "start_epoch")
+    private Long startEpoch;
+
+    @Column(name = "end_epoch")
+    private Long endEpoch;
+
     @Column(name = "m3u_url", nullable = false)
     private String m3uUrl;
 
     @Column(name = "channel_name")
     private String channel;
 
+    // Copied from the channel like m3uUrl, one URL per line
+    @Column(name = "fallback_urls")
+    private String fallbackUrls;
+
+    // Taken from the channel unless set on the schedule, see StreamSelection
+    @Column(name = "stream_selection")
+    private String streamSelection;
+
     @Column(name = "file_name", nullable = false)
     private String fileName;
 
@@ -36,4 +67,42 @@ public class RecordingSchedule extends RecordingTask {
 
     @Column(name = "keep_original_ts", nullable = false)
     private boolean keepOriginalTs = true;
+
+    // The default lets the column be added to existing databases
+    @Enumerated(EnumType.STRING)
+    @Column(name = "engine", nullable = false, columnDefinition = "TEXT DEFAULT 'FFMPEG'")
+    private Engine engine = Engine.FFMPEG;
+
+    // Result of the warm-up probe before the start, the URL after redirects and the video codec ffprobe found
+    @Column(name = "resolved_url")
+    private String resolvedUrl;
+
+    @Column(name = "video_codec")
+    private String videoCodec;
+
+    @Column(name = "probed_epoch")
+    private Long probedEpoch;
+
+    // JSON object of the recorded parts and the URL each was recorded from
+    @Column(name = "part_sources")
+    private String partSources;
+
+    /**
+     * The stream URL followed by the fallback URLs, empty if the schedule has no URL at all.
+     */
+    public List<String> getSourceUrls() {
+        List<String> urls = new ArrayList<>();
+        if (m3uUrl != null && !m3uUrl.isBlank()) {
+            urls.add(m3uUrl);
+        }
+        UrlList.split(fallbackUrls).stream().filter(url -> !urls.contains(url)).forEach(urls::add);
+        return urls;
+    }
+
+    @PrePersist
+    @PreUpdate
+    public void updateEpochColumns() {
+        startEpoch = TimeUtils.toEpochSecond(startTime);
+        endEpoch = TimeUtils.toEpochSecond(endTime);
+    }
 }
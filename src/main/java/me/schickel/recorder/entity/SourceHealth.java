@@ -0,0 +1,32 @@
+package me.schickel.recorder.entity;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * How reliably a stream URL delivered data to the recordings that used it.
+ */
+@Entity
+@Table(name = "source_health")
+@Getter
+@Setter
+public class SourceHealth {
+
+    @Id
+    @Column(name = "url", nullable = false)
+    private String url;
+
+    // Between 0 and 1, recent parts weigh more than old ones
+    @Column(name = "score", nullable = false)
+    private double score;
+
+    @Column(name = "successes", nullable = false)
+    private long successes;
+
+    @Column(name = "failures", nullable = false)
+    private long failures;
+
+    @Column(name = "updated_epoch", nullable = false)
+    private long updatedEpoch;
+}
@@ -0,0 +1,49 @@
+package me.schickel.recorder.entity;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * The last ffprobe result of a channel, keyed by the stream URL of the channel. Kept in the database, so that
+ * recordings resumed after a restart can use it as well.
+ */
+@Entity
+@Table(name = "stream_probes", indexes = {
+    @Index(name = "idx_stream_probes_last_used", columnList = "last_used_epoch")
+})
+@Getter
+@Setter
+public class StreamProbe {
+
+    @Id
+    @Column(name = "url", nullable = false)
+    private String url;
+
+    // URL after redirects, only reused while it is recent, redirect targets often carry short-lived tokens
+    @Column(name = "resolved_url", nullable = false)
+    private String resolvedUrl;
+
+    @Column(name = "video_codec", nullable = false)
+    private String videoCodec;
+
+    @Column(name = "width")
+    private Integer width;
+
+    @Column(name = "height")
+    private Integer height;
+
+    // Overall bitrate of the stream in bits per second, as far as ffprobe could tell
+    @Column(name = "bit_rate")
+    private Long bitRate;
+
+    // Type and codec of every stream in index order, e.g. "video:h264,audio:aac"
+    @Column(name = "streams", nullable = false)
+    private String streams;
+
+    @Column(name = "probed_epoch", nullable = false)
+    private long probedEpoch;
+
+    @Column(name = "last_used_epoch", nullable = false)
+    private long lastUsedEpoch;
+}
@@ -3,6 +3,7 @@ package me.schickel.recorder.mapper;
 import me.schickel.recorder.dto.request.ChannelRequest;
 import me.schickel.recorder.dto.response.ChannelResponse;
 import me.schickel.recorder.entity.ChannelUrl;
+import me.schickel.recorder.util.UrlList;
 import org.mapstruct.Mapper;
 import org.mapstruct.Mapping;
 
@@ -21,4 +22,12 @@ public interface ChannelMapper {
     ChannelResponse toResponse(ChannelUrl entity);
     
     List<ChannelResponse> toResponseList(List<ChannelUrl> entities);
+
+    default String joinUrls(List<String> urls) {
+        return UrlList.join(urls);
+    }
+
+    default List<String> splitUrls(String urls) {
+        return UrlList.split(urls);
+    }
 }
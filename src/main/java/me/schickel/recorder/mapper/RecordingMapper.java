@@ -3,15 +3,30 @@ package me.schickel.recorder.mapper;
 import me.schickel.recorder.dto.request.RecordingScheduleRequest;
 import me.schickel.recorder.dto.response.RecordingScheduleResponse;
 import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.util.UrlList;
 import org.mapstruct.Mapper;
 import org.mapstruct.Mapping;
 
+import java.util.List;
+
 @Mapper(componentModel = "spring")
 public interface RecordingMapper {
     
     @Mapping(target = "triggered", ignore = true)
     @Mapping(target = "id", ignore = true)
+    @Mapping(target = "resolvedUrl", ignore = true)
+    @Mapping(target = "videoCodec", ignore = true)
+    @Mapping(target = "probedEpoch", ignore = true)
+    @Mapping(target = "partSources", ignore = true)
     RecordingSchedule toEntity(RecordingScheduleRequest request);
     
     RecordingScheduleResponse toResponse(RecordingSchedule entity);
+
+    default String joinUrls(List<String> urls) {
+        return UrlList.join(urls);
+    }
+
+    default List<String> splitUrls(String urls) {
+        return UrlList.split(urls);
+    }
 }
@@ -0,0 +1,49 @@
+package me.schickel.recorder.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.service.PostProcessingQueue;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the depth of the post-processing queue and how long jobs wait and run, read from
+ * {@link PostProcessingQueue} on every scrape.
+ */
+@Component
+@RequiredArgsConstructor
+public class PostProcessingMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final PostProcessingQueue postProcessingQueue;
+
+    @PostConstruct
+    public void register() {
+        Gauge.builder("recorder.postprocessing.queued", postProcessingQueue, PostProcessingQueue::pendingCount)
+             .description("Post-processing jobs waiting to be started")
+             .register(meterRegistry);
+        Gauge.builder("recorder.postprocessing.running", postProcessingQueue, queue -> queue.getStats().running())
+             .description("Post-processing jobs currently running")
+             .register(meterRegistry);
+        FunctionTimer.builder("recorder.postprocessing.wait", postProcessingQueue,
+                              queue -> queue.getStats().finished(),
+                              queue -> queue.getStats().totalWaitMillis(),
+                              TimeUnit.MILLISECONDS)
+                     .description("Time from queueing a post-processing job to starting it")
+                     .register(meterRegistry);
+        FunctionTimer.builder("recorder.postprocessing.duration", postProcessingQueue,
+                              queue -> queue.getStats().finished(),
+                              queue -> queue.getStats().totalRunMillis(),
+                              TimeUnit.MILLISECONDS)
+                     .description("Time post-processing jobs took to run")
+                     .register(meterRegistry);
+        FunctionCounter.builder("recorder.postprocessing.failed", postProcessingQueue, queue -> queue.getStats().failed())
+                       .description("Post-processing jobs that failed and were kept for inspection")
+                       .register(meterRegistry);
+    }
+}
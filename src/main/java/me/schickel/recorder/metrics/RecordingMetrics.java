@@ -0,0 +1,160 @@
+package me.schickel.recorder.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.process.FfmpegProgress;
+import me.schickel.recorder.service.RecordingWatchdog;
+import me.schickel.recorder.service.RecordingWatchdog.RecordingHealth;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Publishes the throughput of each running recording, read from the progress reports collected by
+ * {@link RecordingWatchdog}. The meters are tagged with the schedule and exist only while the recording runs,
+ * so finished recordings do not pile up as stale time series.
+ */
+@Component
+@RequiredArgsConstructor
+public class RecordingMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final RecordingWatchdog recordingWatchdog;
+    private final Map<Long, RecordingMeters> metersBySchedule = new ConcurrentHashMap<>();
+
+    public void register(Long scheduleId, String fileName) {
+        remove(scheduleId);
+        Tags tags = Tags.of("schedule", String.valueOf(scheduleId), "file", fileName);
+        Timer segments = Timer.builder("recorder.recording.segment")
+                              .description("Duration of the ffmpeg processes of the recording")
+                              .tags(tags)
+                              .register(meterRegistry);
+        List<Meter> meters = List.of(
+            segments,
+            Gauge.builder("recorder.recording.bitrate", () -> progressValue(scheduleId, FfmpegProgress::bitrateKbps))
+                 .description("Bitrate of the incoming stream as reported by ffmpeg")
+                 .baseUnit("kilobits.per.second")
+                 .tags(tags)
+                 .register(meterRegistry),
+            Gauge.builder("recorder.recording.speed", () -> progressValue(scheduleId, FfmpegProgress::speed))
+                 .description("Media time recorded per second of wall clock time, below 1 means falling behind")
+                 .tags(tags)
+                 .register(meterRegistry),
+            FunctionCounter.builder("recorder.recording.output", recordingWatchdog, healthValue(scheduleId, RecordingHealth::outputBytes))
+                           .description("Bytes written to the output files")
+                           .baseUnit("bytes")
+                           .tags(tags)
+                           .register(meterRegistry),
+            FunctionCounter.builder("recorder.recording.restarts", recordingWatchdog, healthValue(scheduleId, RecordingHealth::restarts))
+                           .description("Number of times ffmpeg was started again for the recording")
+                           .tags(tags)
+                           .register(meterRegistry),
+            FunctionCounter.builder("recorder.recording.stalls", recordingWatchdog, healthValue(scheduleId, RecordingHealth::stalls))
+                           .description("Number of segments stopped by the watchdog")
+                           .tags(tags)
+                           .register(meterRegistry),
+            FunctionCounter.builder("recorder.recording.gap", recordingWatchdog, healthValue(scheduleId, RecordingHealth::lostSeconds))
+                           .description("Time between the last output of a segment and the first output of the next")
+                           .baseUnit("seconds")
+                           .tags(tags)
+                           .register(meterRegistry));
+        metersBySchedule.put(scheduleId, new RecordingMeters(meters, segments));
+    }
+
+    public void recordSegment(Long scheduleId, Duration duration) {
+        RecordingMeters meters = metersBySchedule.get(scheduleId);
+        if (meters != null) {
+            meters.segments().record(duration);
+        }
+    }
+
+    /**
+     * Records how long a newly started segment took to write its first bytes. Not tagged with the schedule, so
+     * that the percentiles cover all recordings, with and without hedged connections.
+     */
+    public void recordTimeToFirstByte(boolean hedged, Duration duration) {
+        Timer.builder("recorder.recording.first.byte")
+             .description("Time from starting a segment until it writes its first bytes")
+             .tag("hedged", String.valueOf(hedged))
+             .publishPercentiles(0.5, 0.99)
+             .register(meterRegistry)
+             .record(duration);
+    }
+
+    /**
+     * Counts the bytes a stream selection kept out of a recording, estimated from the bitrates of the left out
+     * streams. Not tagged with the schedule, like the time to first byte.
+     */
+    public void recordSelectionSavings(long bytes) {
+        Counter.builder("recorder.selection.saved")
+               .description("Bytes of the left out streams of recordings with a stream selection")
+               .baseUnit("bytes")
+               .register(meterRegistry)
+               .increment(bytes);
+    }
+
+    /**
+     * Counts the bytes written from ffmpeg's stdout with {@code recorder.pipe} enabled, as they are written, so
+     * that their rate is the write throughput of all recordings. Not tagged with the schedule, like the time to
+     * first byte.
+     */
+    public void recordPipeWrite(long bytes) {
+        Counter.builder("recorder.pipe.written")
+               .description("Bytes written to recordings from the output of ffmpeg")
+               .baseUnit("bytes")
+               .register(meterRegistry)
+               .increment(bytes);
+    }
+
+    /**
+     * Records how long syncing a recording written from ffmpeg's stdout to disk took.
+     */
+    public void recordPipeSync(Duration duration) {
+        Timer.builder("recorder.pipe.sync")
+             .description("Time to sync a recording written from the output of ffmpeg to disk")
+             .publishPercentiles(0.5, 0.99)
+             .register(meterRegistry)
+             .record(duration);
+    }
+
+    /**
+     * Removes the meters of a finished recording.
+     */
+    public void remove(Long scheduleId) {
+        RecordingMeters meters = metersBySchedule.remove(scheduleId);
+        if (meters != null) {
+            meters.all().forEach(meterRegistry::remove);
+        }
+    }
+
+    int registeredRecordings() {
+        return metersBySchedule.size();
+    }
+
+    private double progressValue(Long scheduleId, ToDoubleFunction<FfmpegProgress> value) {
+        return recordingWatchdog.getHealth(scheduleId)
+                                .map(RecordingHealth::lastProgress)
+                                .map(value::applyAsDouble)
+                                // ffmpeg reports N/A as long as it cannot tell yet
+                                .filter(reported -> reported >= 0)
+                                .orElse(Double.NaN);
+    }
+
+    // The meters keep only a weak reference to their state object, the watchdog bean lives as long as the registry
+    private static ToDoubleFunction<RecordingWatchdog> healthValue(Long scheduleId, ToDoubleFunction<RecordingHealth> value) {
+        return watchdog -> watchdog.getHealth(scheduleId).map(value::applyAsDouble).orElse(0.0);
+    }
+
+    private record RecordingMeters(List<Meter> all, Timer segments) {
+    }
+}
@@ -0,0 +1,32 @@
+package me.schickel.recorder.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.service.RollingBufferService;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes the memory taken by the rolling buffers of the pinned channels and how far back they reach, read from
+ * {@link RollingBufferService} on every scrape.
+ */
+@Component
+@RequiredArgsConstructor
+public class RollingBufferMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final RollingBufferService rollingBufferService;
+
+    @PostConstruct
+    public void register() {
+        Gauge.builder("recorder.buffer.memory", rollingBufferService, RollingBufferService::getReservedBytes)
+             .description("Memory allocated for the rolling buffers, almost all of it off-heap")
+             .baseUnit("bytes")
+             .register(meterRegistry);
+        Gauge.builder("recorder.buffer.reach", rollingBufferService, service -> service.getShortestBufferedDuration().toMillis() / 1000.0)
+             .description("How far back recordings of every buffered channel can start")
+             .baseUnit("seconds")
+             .register(meterRegistry);
+    }
+}
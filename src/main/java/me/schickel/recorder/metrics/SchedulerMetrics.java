@@ -0,0 +1,82 @@
+package me.schickel.recorder.metrics;
+
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.service.RecordingTriggerService;
+import me.schickel.recorder.service.StreamSlotManager;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes how punctually recordings are triggered and how the stream slots of each provider are used.
+ * The values are read from {@link RecordingTriggerService#getStats()} and {@link StreamSlotManager} on every scrape.
+ */
+@Component
+@RequiredArgsConstructor
+public class SchedulerMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final RecordingTriggerService recordingTriggerService;
+    private final StreamSlotManager streamSlotManager;
+    private final Set<String> registeredProviders = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void register() {
+        FunctionTimer.builder("recorder.trigger.lateness", recordingTriggerService,
+                              service -> service.getStats().fired(),
+                              service -> service.getStats().totalLatenessMillis(),
+                              TimeUnit.MILLISECONDS)
+                     .description("Delay between the moment a recording became due and the moment it was triggered")
+                     .register(meterRegistry);
+        TimeGauge.builder("recorder.trigger.lateness.max", recordingTriggerService, TimeUnit.MILLISECONDS,
+                          service -> service.getStats().maxLatenessMillis())
+                 .description("Largest trigger delay since startup")
+                 .register(meterRegistry);
+        FunctionTimer.builder("recorder.scheduler.tick", recordingTriggerService,
+                              service -> service.getStats().ticks(),
+                              service -> service.getStats().totalTickNanos(),
+                              TimeUnit.NANOSECONDS)
+                     .description("Time the trigger dispatcher spent starting the recordings that became due together")
+                     .register(meterRegistry);
+        TimeGauge.builder("recorder.scheduler.tick.max", recordingTriggerService, TimeUnit.NANOSECONDS,
+                          service -> service.getStats().maxTickNanos())
+                 .description("Longest dispatcher tick since startup")
+                 .register(meterRegistry);
+        Gauge.builder("recorder.trigger.pending", recordingTriggerService, RecordingTriggerService::pendingCount)
+             .description("Recordings waiting for their start time")
+             .register(meterRegistry);
+        registerProviderGauges();
+    }
+
+    /**
+     * Slots are created per provider when the first recording of a provider asks for one, so new providers
+     * are picked up periodically. Providers are few and never removed, the gauges stay registered.
+     */
+    @Scheduled(fixedRate = 30000)
+    public void registerProviderGauges() {
+        for (String provider : streamSlotManager.getProviders()) {
+            if (registeredProviders.add(provider)) {
+                Gauge.builder("recorder.stream.slots.capacity", streamSlotManager, slots -> slots.getCapacity(provider))
+                     .description("Simultaneous streams allowed by the provider")
+                     .tag("provider", provider)
+                     .register(meterRegistry);
+                Gauge.builder("recorder.stream.slots.occupied", streamSlotManager, slots -> slots.getOccupied(provider))
+                     .description("Recordings currently holding a stream of the provider")
+                     .tag("provider", provider)
+                     .register(meterRegistry);
+                Gauge.builder("recorder.stream.slots.queued", streamSlotManager, slots -> slots.getQueued(provider))
+                     .description("Recordings waiting for a stream of the provider")
+                     .tag("provider", provider)
+                     .register(meterRegistry);
+            }
+        }
+    }
+}
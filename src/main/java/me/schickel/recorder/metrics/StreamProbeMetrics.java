@@ -0,0 +1,38 @@
+package me.schickel.recorder.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.service.StreamProbeCache;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes how often recordings could use a cached ffprobe result, read from {@link StreamProbeCache} on every scrape.
+ */
+@Component
+@RequiredArgsConstructor
+public class StreamProbeMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final StreamProbeCache streamProbeCache;
+
+    @PostConstruct
+    public void register() {
+        FunctionCounter.builder("recorder.probe.cache.requests", streamProbeCache, cache -> cache.getStats().hits())
+                       .description("Lookups of the probe cache before a stream is probed")
+                       .tag("result", "hit")
+                       .register(meterRegistry);
+        FunctionCounter.builder("recorder.probe.cache.requests", streamProbeCache, cache -> cache.getStats().misses())
+                       .description("Lookups of the probe cache before a stream is probed")
+                       .tag("result", "miss")
+                       .register(meterRegistry);
+        FunctionCounter.builder("recorder.probe.cache.invalidations", streamProbeCache, cache -> cache.getStats().invalidations())
+                       .description("Cached probes dropped because a recording failed with them")
+                       .register(meterRegistry);
+        Gauge.builder("recorder.probe.cache.size", streamProbeCache, StreamProbeCache::size)
+             .description("Channels with a cached probe")
+             .register(meterRegistry);
+    }
+}
@@ -0,0 +1,12 @@
+package me.schickel.recorder.process;
+
+/**
+ * One progress report written by ffmpeg with {@code -progress}.
+ * @param totalSizeBytes bytes written to the output so far
+ * @param outTimeMicros media time written to the output so far
+ * @param bitrateKbps output bitrate, or -1 if ffmpeg did not report one yet
+ * @param speed media time per wall clock time since ffmpeg started, or -1 if not reported yet
+ * @param ended true for the last report before ffmpeg exits
+ */
+public record FfmpegProgress(long totalSizeBytes, long outTimeMicros, double bitrateKbps, double speed, boolean ended) {
+}
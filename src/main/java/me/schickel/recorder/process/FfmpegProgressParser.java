@@ -0,0 +1,59 @@
+package me.schickel.recorder.process;
+
+import java.util.function.Consumer;
+
+/**
+ * Parses the {@code key=value} lines written by ffmpeg's {@code -progress} option. Every block of lines
+ * ends with {@code progress=continue} or {@code progress=end}, after which one {@link FfmpegProgress} is
+ * handed to the consumer. Not thread-safe, meant to be used as the stdout consumer of a single process.
+ */
+public class FfmpegProgressParser implements Consumer<String> {
+
+    private final Consumer<FfmpegProgress> progressConsumer;
+    private long totalSizeBytes;
+    private long outTimeMicros;
+    private double bitrateKbps = -1;
+    private double speed = -1;
+
+    public FfmpegProgressParser(Consumer<FfmpegProgress> progressConsumer) {
+        this.progressConsumer = progressConsumer;
+    }
+
+    @Override
+    public void accept(String line) {
+        int separator = line.indexOf('=');
+        if (separator <= 0) {
+            return;
+        }
+        String key = line.substring(0, separator).trim();
+        String value = line.substring(separator + 1).trim();
+        switch (key) {
+            case "total_size" -> totalSizeBytes = parseLong(value, totalSizeBytes);
+            // out_time_ms is in microseconds as well, older ffmpeg versions only write that one
+            case "out_time_us", "out_time_ms" -> outTimeMicros = parseLong(value, outTimeMicros);
+            case "bitrate" -> bitrateKbps = parseDouble(value.replace("kbits/s", ""), bitrateKbps);
+            case "speed" -> speed = parseDouble(value.replace("x", ""), speed);
+            case "progress" -> progressConsumer.accept(
+                new FfmpegProgress(totalSizeBytes, outTimeMicros, bitrateKbps, speed, "end".equals(value)));
+            default -> {
+                // frame, fps, dup_frames and friends are not needed
+            }
+        }
+    }
+
+    private static long parseLong(String value, long fallback) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return fallback; // N/A
+        }
+    }
+
+    private static double parseDouble(String value, double fallback) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package me.schickel.recorder.process;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A child process started by {@link ProcessLauncher}. Keeps the last lines of its error output, so that
+ * failures can be reported without logging every line.
+ */
+public class ManagedProcess implements Stoppable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ManagedProcess.class);
+    private static final int RECENT_ERROR_LINES = 20;
+
+    private final String name;
+    private final Process process;
+    private final CompletableFuture<Integer> exitCode;
+    private final Deque<String> recentErrorOutput = new ArrayDeque<>();
+    private volatile CompletableFuture<Void> outputDrained = CompletableFuture.completedFuture(null);
+
+    ManagedProcess(String name, Process process) {
+        this.name = name;
+        this.process = process;
+        this.exitCode = process.onExit().thenApply(Process::exitValue);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long pid() {
+        return process.pid();
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * The output of a process started with {@link ProcessLauncher#startPiped}, for the caller to read.
+     */
+    public InputStream getStdout() {
+        return process.getInputStream();
+    }
+
+    /**
+     * Completes with the exit code once the process has exited.
+     */
+    public CompletableFuture<Integer> onExit() {
+        return exitCode;
+    }
+
+    /**
+     * Completes once all output of the process was handed to its consumers, which can be shortly after the exit.
+     */
+    public CompletableFuture<Void> onOutputDrained() {
+        return outputDrained;
+    }
+
+    void setOutputDrained(CompletableFuture<Void> outputDrained) {
+        this.outputDrained = outputDrained;
+    }
+
+    /**
+     * Waits for the process to exit.
+     * @return the exit code, or null if the process is still running after {@code timeout}
+     */
+    public Integer waitFor(Duration timeout) throws InterruptedException {
+        return process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS) ? process.exitValue() : null;
+    }
+
+    /**
+     * Asks ffmpeg to finish by sending {@code q} on stdin, which lets it write the trailer of the output file.
+     */
+    public void stopGracefully() {
+        try {
+            OutputStream stdin = process.getOutputStream();
+            stdin.write("q".getBytes(StandardCharsets.US_ASCII));
+            stdin.flush();
+        } catch (IOException e) {
+            logger.debug("Could not send quit to {}: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Asks the process to finish with SIGTERM, on which ffmpeg writes the trailer of its output file as well.
+     * Unlike {@code q} on stdin, this also ends an ffmpeg that is waiting for input.
+     */
+    public void terminate() {
+        process.destroy();
+    }
+
+    public void forceStop() {
+        process.destroyForcibly();
+    }
+
+    /**
+     * Stops gracefully and kills the process if it has not exited after {@code gracePeriod}.
+     * @return true if the process exited on its own within the grace period
+     */
+    @Override
+    public boolean stop(Duration gracePeriod) {
+        if (!process.isAlive()) {
+            return true;
+        }
+        stopGracefully();
+        try {
+            if (process.waitFor(gracePeriod.toMillis(), TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("{} did not exit within {} ms, killing it", name, gracePeriod.toMillis());
+        forceStop();
+        return false;
+    }
+
+    public synchronized List<String> getRecentErrorOutput() {
+        return List.copyOf(recentErrorOutput);
+    }
+
+    synchronized void addErrorOutput(String line) {
+        if (recentErrorOutput.size() == RECENT_ERROR_LINES) {
+            recentErrorOutput.removeFirst();
+        }
+        recentErrorOutput.addLast(line);
+    }
+}
@@ -0,0 +1,110 @@
+package me.schickel.recorder.process;
+
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Starts ffmpeg and ffprobe processes. Their output is read by the shared {@link ProcessOutputPump} and
+ * their exit is observed through {@link Process#onExit()}, so no thread is dedicated to a single process.
+ */
+@Component
+@RequiredArgsConstructor
+public class ProcessLauncher {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessLauncher.class);
+    // ffmpeg's own output is logged under a separate name, so it can be tuned independently
+    private static final Logger processOutputLogger = LoggerFactory.getLogger("ffmpeg");
+    // Log lines always have spaces, progress lines like out_time_us=1200000 or progress=continue never do
+    private static final Pattern PROGRESS_LINE = Pattern.compile("[a-z0-9_]+=\\S*");
+
+    private final ProcessOutputPump processOutputPump;
+
+    /**
+     * Starts the command and logs its error output.
+     * @param name used in log messages, e.g. the file being recorded
+     * @param stdoutConsumer receives every line written to stdout; if null, stdout is discarded
+     */
+    public ManagedProcess start(String name, List<String> command, Consumer<String> stdoutConsumer) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        if (stdoutConsumer == null) {
+            builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        }
+        Process process = builder.start();
+        ManagedProcess managedProcess = new ManagedProcess(name, process);
+        logger.debug("Started {} (pid {}): {}", name, process.pid(), String.join(" ", command));
+
+        CompletableFuture<Void> drained = processOutputPump.register(process, process.getErrorStream(),
+                                                                     line -> logErrorOutput(managedProcess, line));
+        if (stdoutConsumer != null) {
+            drained = drained.thenCombine(processOutputPump.register(process, process.getInputStream(), stdoutConsumer),
+                                          (stderr, stdout) -> null);
+        }
+        managedProcess.setOutputDrained(drained);
+        return managedProcess;
+    }
+
+    /**
+     * Starts a command that writes a recording to stdout, which is left to the caller to read from
+     * {@link ManagedProcess#getStdout()}. ffmpeg then reports its progress on stderr ({@code -progress pipe:2}):
+     * those {@code key=value} lines go to {@code progressConsumer}, all other lines are logged as usual.
+     */
+    public ManagedProcess startPiped(String name, List<String> command, Consumer<String> progressConsumer) throws IOException {
+        Process process = new ProcessBuilder(command).start();
+        ManagedProcess managedProcess = new ManagedProcess(name, process);
+        logger.debug("Started {} (pid {}) writing to stdout: {}", name, process.pid(), String.join(" ", command));
+
+        managedProcess.setOutputDrained(processOutputPump.register(process, process.getErrorStream(), line -> {
+            if (PROGRESS_LINE.matcher(line).matches()) {
+                progressConsumer.accept(line);
+            } else {
+                logErrorOutput(managedProcess, line);
+            }
+        }));
+        return managedProcess;
+    }
+
+    private static void logErrorOutput(ManagedProcess managedProcess, String line) {
+        managedProcess.addErrorOutput(line);
+        processOutputLogger.info("[{}] {}", managedProcess.getName(), line);
+    }
+
+    /**
+     * Runs the command to completion and returns what it wrote to stdout, or null if it failed or did not
+     * finish within the timeout.
+     */
+    public String run(String name, List<String> command, Duration timeout) {
+        StringBuilder output = new StringBuilder();
+        try {
+            ManagedProcess process = start(name, command, line -> output.append(line).append('\n'));
+            Integer exitCode = process.waitFor(timeout);
+            if (exitCode == null) {
+                logger.warn("{} did not finish within {}s, killing it", name, timeout.toSeconds());
+                process.forceStop();
+                return null;
+            }
+            // Output is read on the pump thread, wait until the last lines are handed over
+            process.onOutputDrained().get(timeout.toSeconds(), TimeUnit.SECONDS);
+            if (exitCode != 0) {
+                logger.warn("{} exited with code {}: {}", name, exitCode, String.join(" | ", process.getRecentErrorOutput()));
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            logger.error("{} failed: {}", name, e.getMessage());
+            return null;
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,148 @@
+package me.schickel.recorder.process;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Reads the output of all child processes on one shared thread, so the number of threads does not grow with
+ * the number of running ffmpeg processes. Streams are polled with {@link InputStream#available()} and only
+ * read when data is waiting, which never blocks. Output is split into lines ({@code \n} or {@code \r}, as
+ * ffmpeg uses carriage returns for status updates) and handed to the registered consumer.
+ */
+@Component
+public class ProcessOutputPump {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessOutputPump.class);
+    private static final long IDLE_POLL_MILLIS = 50;
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private final List<Source> sources = new CopyOnWriteArrayList<>();
+    private final byte[] buffer = new byte[16384];
+    private Thread pumpThread;
+    private volatile boolean running = true;
+
+    /**
+     * Starts pumping the given stream until {@code process} has exited and the stream is drained.
+     * @return completes once the last line was handed to {@code lineConsumer}
+     */
+    public synchronized CompletableFuture<Void> register(Process process, InputStream stream, Consumer<String> lineConsumer) {
+        Source source = new Source(process, stream, lineConsumer);
+        sources.add(source);
+        if (pumpThread == null) {
+            pumpThread = Thread.ofPlatform().name("process-output-pump").daemon().start(this::pumpLoop);
+        }
+        notifyAll();
+        return source.drained;
+    }
+
+    public int registeredStreams() {
+        return sources.size();
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    private void pumpLoop() {
+        while (running) {
+            boolean readAnything = false;
+            for (Source source : sources) {
+                readAnything |= pump(source);
+            }
+            try {
+                synchronized (this) {
+                    if (sources.isEmpty() && running) {
+                        wait();
+                    } else if (!readAnything) {
+                        wait(IDLE_POLL_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private boolean pump(Source source) {
+        try {
+            int available = source.stream.available();
+            if (available > 0) {
+                int read = source.stream.read(buffer, 0, Math.min(available, buffer.length));
+                if (read > 0) {
+                    source.accept(buffer, read);
+                    return true;
+                }
+            }
+            if (!source.process.isAlive() && source.stream.available() == 0) {
+                close(source);
+            }
+        } catch (IOException e) {
+            // The stream is closed once the process is gone and its output was consumed
+            close(source);
+        }
+        return false;
+    }
+
+    private void close(Source source) {
+        sources.remove(source);
+        source.flush();
+        source.drained.complete(null);
+        try {
+            source.stream.close();
+        } catch (IOException e) {
+            logger.debug("Could not close process stream: {}", e.getMessage());
+        }
+    }
+
+    private static final class Source {
+        private final Process process;
+        private final InputStream stream;
+        private final Consumer<String> lineConsumer;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+        private Source(Process process, InputStream stream, Consumer<String> lineConsumer) {
+            this.process = process;
+            this.stream = stream;
+            this.lineConsumer = lineConsumer;
+        }
+
+        private void accept(byte[] data, int length) {
+            for (int i = 0; i < length; i++) {
+                byte b = data[i];
+                if (b == '\n' || b == '\r') {
+                    flush();
+                } else if (line.size() < MAX_LINE_LENGTH) {
+                    line.write(b);
+                }
+            }
+        }
+
+        private void flush() {
+            if (line.size() == 0) {
+                return;
+            }
+            String text = line.toString(StandardCharsets.UTF_8);
+            line.reset();
+            try {
+                lineConsumer.accept(text);
+            } catch (RuntimeException e) {
+                logger.warn("Process output consumer failed: {}", e.getMessage());
+            }
+        }
+    }
+}
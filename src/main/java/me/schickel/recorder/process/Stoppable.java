@@ -0,0 +1,15 @@
+package me.schickel.recorder.process;
+
+import java.time.Duration;
+
+/**
+ * The connection of a running recording segment, which the watchdog stops when its stream stalls.
+ */
+public interface Stoppable {
+
+    /**
+     * Stops gracefully and forces the stop if it has not happened after {@code gracePeriod}.
+     * @return true if the stop completed within the grace period
+     */
+    boolean stop(Duration gracePeriod);
+}
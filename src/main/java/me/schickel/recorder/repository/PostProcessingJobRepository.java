@@ -0,0 +1,18 @@
+package me.schickel.recorder.repository;
+
+import me.schickel.recorder.entity.PostProcessingJob;
+import me.schickel.recorder.entity.PostProcessingJob.Status;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface PostProcessingJobRepository extends CrudRepository<PostProcessingJob, Long> {
+    Optional<PostProcessingJob> findFirstByStatusOrderByIdAsc(Status status);
+    Optional<PostProcessingJob> findFirstByStatusAndFileNameNotInOrderByIdAsc(Status status, Collection<String> fileNames);
+    List<PostProcessingJob> findByStatus(Status status);
+    long countByStatus(Status status);
+}
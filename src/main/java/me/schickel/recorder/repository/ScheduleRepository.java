@@ -1,15 +1,42 @@
 package me.schickel.recorder.repository;
 
 import me.schickel.recorder.entity.RecordingSchedule;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 
+/**
+ * Time based queries take epoch seconds and are served by the (triggered, start_epoch) and
+ * (triggered, end_epoch) indexes.
+ */
 @Repository
 public interface ScheduleRepository extends CrudRepository<RecordingSchedule, Long> {
 
-    List<RecordingSchedule> findByTriggeredFalse();
-    List<RecordingSchedule> findByTriggeredTrue();
     List<RecordingSchedule> findByChannel(String channel);
-}
\ No newline at end of file
+    List<RecordingSchedule> findAllByOrderByStartEpochAsc();
+    List<RecordingSchedule> findByStartEpochIsNullOrEndEpochIsNull();
+
+    // Pending recordings that have not ended yet
+    List<RecordingSchedule> findByTriggeredFalseAndEndEpochGreaterThanOrderByStartEpochAsc(long now);
+
+    List<RecordingSchedule> findByTriggeredTrueAndEndEpochGreaterThan(long now);
+    List<RecordingSchedule> findByTriggeredTrueAndEndEpochLessThan(long cutoff);
+
+    // Only touches the probe columns, so that it cannot undo an edit of the schedule made during the probe
+    @Modifying
+    @Transactional
+    @Query("update RecordingSchedule s set s.resolvedUrl = :resolvedUrl, s.videoCodec = :videoCodec, s.probedEpoch = :probedEpoch "
+           + "where s.id = :id")
+    int saveProbeResult(@Param("id") Long id, @Param("resolvedUrl") String resolvedUrl, @Param("videoCodec") String videoCodec,
+                        @Param("probedEpoch") long probedEpoch);
+
+    @Modifying
+    @Transactional
+    @Query("update RecordingSchedule s set s.partSources = :partSources where s.id = :id")
+    int savePartSources(@Param("id") Long id, @Param("partSources") String partSources);
+}
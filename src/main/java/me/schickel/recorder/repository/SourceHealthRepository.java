@@ -0,0 +1,9 @@
+package me.schickel.recorder.repository;
+
+import me.schickel.recorder.entity.SourceHealth;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface SourceHealthRepository extends CrudRepository<SourceHealth, String> {
+}
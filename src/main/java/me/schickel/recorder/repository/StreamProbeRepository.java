@@ -0,0 +1,27 @@
+package me.schickel.recorder.repository;
+
+import me.schickel.recorder.entity.StreamProbe;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+@Repository
+public interface StreamProbeRepository extends CrudRepository<StreamProbe, String> {
+    List<StreamProbe> findByOrderByLastUsedEpochAsc(Pageable pageable);
+
+    @Modifying
+    @Transactional
+    @Query("update StreamProbe p set p.lastUsedEpoch = :lastUsedEpoch where p.url = :url")
+    int markUsed(@Param("url") String url, @Param("lastUsedEpoch") long lastUsedEpoch);
+
+    @Modifying
+    @Transactional
+    @Query("delete from StreamProbe p where p.probedEpoch < :epoch")
+    int deleteProbedBefore(@Param("epoch") long epoch);
+}
@@ -8,6 +8,7 @@ import me.schickel.recorder.entity.RecordingSchedule;
 import me.schickel.recorder.mapper.ChannelMapper;
 import me.schickel.recorder.repository.ChannelRepository;
 import me.schickel.recorder.repository.ScheduleRepository;
+import me.schickel.recorder.util.UrlList;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -20,13 +21,16 @@ public class ChannelManagementService {
     private final ChannelMapper channelMapper;
     private final ScheduleRepository scheduleRepository;
     private final PastRecordingService pastRecordingService;
+    private final ScheduleIntervalIndex scheduleIntervalIndex;
 
     public void createChannelLink(ChannelRequest request) {
+        validateStreamSelection(request);
         ChannelUrl entity = channelMapper.toEntity(request);
         channelRepository.save(entity);
     }
 
     public void createChannelLinks(List<ChannelRequest> requests) {
+        requests.forEach(ChannelManagementService::validateStreamSelection);
         List<ChannelUrl> entities = requests.stream()
                 .map(channelMapper::toEntity)
                 .toList();
@@ -48,12 +52,28 @@ public class ChannelManagementService {
             .getUrl();
     }
 
+    public List<String> getFallbackUrlsByName(String name) {
+        return channelRepository.findByName(name)
+            .map(channel -> UrlList.split(channel.getFallbackUrls()))
+            .orElseThrow(() -> new IllegalArgumentException("Channel not found: " + name));
+    }
+
+    /**
+     * @return null if the channel records every stream
+     */
+    public String getStreamSelectionByName(String name) {
+        return channelRepository.findByName(name)
+            .orElseThrow(() -> new IllegalArgumentException("Channel not found: " + name))
+            .getStreamSelection();
+    }
+
     public String deleteChannelLink(Long id) {
         return channelRepository.findById(id)
             .map(channel -> {
                 // Save associated recordings to history before deleting channel
                 List<RecordingSchedule> channelRecordings = scheduleRepository.findByChannel(channel.getName());
                 scheduleRepository.deleteAll(channelRecordings);
+                channelRecordings.forEach(recording -> scheduleIntervalIndex.remove(recording.getId()));
                 
                 channelRepository.deleteById(id);
                 return channel.getName();
@@ -62,8 +82,15 @@ public class ChannelManagementService {
     }
 
     public void updateChannelLink(Long id, ChannelRequest request) {
+        validateStreamSelection(request);
         ChannelUrl entity = channelMapper.toEntity(request);
         entity.setId(id);
         channelRepository.save(entity);
     }
+
+    private static void validateStreamSelection(ChannelRequest request) {
+        if (request.getStreamSelection() != null && !request.getStreamSelection().isBlank()) {
+            StreamSelection.parse(request.getStreamSelection());
+        }
+    }
 }
\ No newline at end of file
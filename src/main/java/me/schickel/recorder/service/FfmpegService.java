@@ -1,83 +1,358 @@
 package me.schickel.recorder.service;
 
-import com.github.kokorin.jaffree.LogLevel;
-import com.github.kokorin.jaffree.StreamType;
-import com.github.kokorin.jaffree.ffmpeg.*;
-import com.github.kokorin.jaffree.ffprobe.FFprobe;
-import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
-import lombok.extern.slf4j.Slf4j;
 import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.PostProcessingJob;
 import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.metrics.RecordingMetrics;
+import me.schickel.recorder.process.FfmpegProgress;
+import me.schickel.recorder.process.FfmpegProgressParser;
+import me.schickel.recorder.process.ManagedProcess;
+import me.schickel.recorder.process.ProcessLauncher;
 import me.schickel.recorder.repository.ScheduleRepository;
 import me.schickel.recorder.util.TimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
 
 @Service
-@Slf4j
 @RequiredArgsConstructor
 public class FfmpegService {
 
+    private static final Duration GRACEFUL_STOP_TIMEOUT = Duration.ofSeconds(3);
+    // The replaced connection is stalled, there is nothing left for it to write
+    private static final Duration REPLACED_STOP_TIMEOUT = Duration.ofSeconds(1);
+    // The live MKV outlasts stalls of its TS, the segment stops it at its end anyway
+    private static final Duration LIVE_MKV_FOLLOW_TIMEOUT = Duration.ofMinutes(5);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    // ffmpeg's own default, for streams whose layout is not known
+    static final Duration DEFAULT_ANALYZE_DURATION = Duration.ofSeconds(10);
+
     private final ScheduleRepository scheduleRepository;
     private final TimeUtils timeUtils;
     private final RecordingServiceConfig config;
+    private final PostProcessingQueue postProcessingQueue;
+    private final ProcessLauncher processLauncher;
+    private final RecordingWatchdog recordingWatchdog;
+    private final RecordingMetrics recordingMetrics;
+    private final StreamSlotManager streamSlotManager;
+    private final ProviderResolver providerResolver;
+    private final HttpTsRecorder httpTsRecorder;
+    private final HlsRecorder hlsRecorder;
+    private final StreamWarmupService streamWarmupService;
+    private final StreamProbeCache streamProbeCache;
+    private final SourceHealthService sourceHealthService;
+    private final ApplicationEventPublisher eventPublisher;
     private static final Logger logger = LoggerFactory.getLogger(FfmpegService.class);
-    private final ConcurrentMap<Long, FFmpegResultFuture> activeRecordings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, ManagedProcess> activeRecordings = new ConcurrentHashMap<>();
     private final ConcurrentMap<Long, Boolean> stoppedSchedules = new ConcurrentHashMap<>();
+    // Connections started by make-before-break that the recording loop has not taken over yet
+    private final ConcurrentMap<Long, RecordingSegment> replacements = new ConcurrentHashMap<>();
+    // URL each running recording currently records from, the stream URL or one of its fallbacks
+    private final ConcurrentMap<Long, String> currentSources = new ConcurrentHashMap<>();
+    // -map options of the recordings with a stream selection, they apply to the stream URL only
+    private final ConcurrentMap<Long, List<String>> selectedStreams = new ConcurrentHashMap<>();
+    // Manifests of the running recordings with recorder.segments enabled
+    private final ConcurrentMap<Long, SegmentManifest> manifests = new ConcurrentHashMap<>();
 
     public String recordingHandler(RecordingSchedule recordingSchedule) {
+        int firstCounter = 1;
+        if (recordingSchedule.getEngine() == RecordingSchedule.Engine.JAVA) {
+            String result = recordWithoutFfmpeg(recordingSchedule);
+            if (result != null) {
+                return result;
+            }
+            // ffmpeg and its fallback URLs need a connection of their own, the shared one stays with the other recordings
+            Duration untilEnd = Duration.between(LocalDateTime.now(), timeUtils.parseStringToLocalDateTime(recordingSchedule.getEndTime()));
+            if (!streamSlotManager.acquireOwn(recordingSchedule.getId(), untilEnd)) {
+                if (stoppedSchedules.remove(recordingSchedule.getId()) != null || !scheduleRepository.existsById(recordingSchedule.getId())) {
+                    return "COMPLETED";
+                }
+                logger.warn("No stream slot became free for {} to record it with ffmpeg", recordingSchedule.getFileName());
+                return "SKIPPED_NO_STREAM_SLOT";
+            }
+            // Whatever the recorder wrote before it gave up stays the first part, ffmpeg continues with the next one
+            firstCounter = hasData(Paths.get(decideFileName(recordingSchedule.getFileName(), 1))) ? 2 : 1;
+        }
+        Long scheduleId = recordingSchedule.getId();
         String m3uUrl = recordingSchedule.getM3uUrl();
-        String streamCodec = getStreamCodec(m3uUrl);
-        if (streamCodec == null) {
-            logger.error("Could not determine codec for {}, aborting recording", recordingSchedule.getFileName());
-            return "FAILED_CODEC_DETECTION";
+        List<String> sources = sourceHealthService.rank(recordingSchedule.getSourceUrls());
+        if (sources.isEmpty()) {
+            logger.error("{} has no stream URL, aborting recording", recordingSchedule.getFileName());
+            return "FAILED_NO_SOURCE";
+        }
+        // The slot was taken for the stream URL, the healthiest URL may belong to a provider without a free slot
+        int firstSource = nextSource(recordingSchedule, sources, 0, sources.indexOf(m3uUrl));
+        if (firstSource > 0) {
+            sources = new ArrayList<>(sources);
+            sources.addFirst(sources.remove(firstSource));
         }
         LocalDateTime endTime = timeUtils.parseStringToLocalDateTime(recordingSchedule.getEndTime());
         LocalDateTime stopTime = endTime.plusSeconds(20);
+        StreamWarmupService.ProbedStream stream = null;
+        if (sources.get(0).equals(m3uUrl)) {
+            // Usually probed before the start already, otherwise this waits until the stream can be probed.
+            // With fallback URLs there is no point in waiting long, the recording can start from another URL.
+            LocalDateTime giveUpAt = endTime.minusSeconds(30);
+            if (sources.size() > 1 && LocalDateTime.now().plus(config.getFailover().getProbeWait()).isBefore(giveUpAt)) {
+                giveUpAt = LocalDateTime.now().plus(config.getFailover().getProbeWait());
+            }
+            stream = streamWarmupService.awaitStream(
+                recordingSchedule, giveUpAt,
+                () -> !stoppedSchedules.containsKey(scheduleId) && scheduleRepository.existsById(scheduleId));
+        } else {
+            // Only the stream URL is probed ahead, its fallback is analyzed by ffmpeg
+            streamWarmupService.cancel(scheduleId);
+            logger.info("Starting {} with fallback URL {} of {}, the healthiest", recordingSchedule.getFileName(),
+                        recordingSchedule.getSourceUrls().indexOf(sources.get(0)), sources.size() - 1);
+        }
+        if (stream == null) {
+            if (stoppedSchedules.remove(scheduleId) != null || !scheduleRepository.existsById(scheduleId)) {
+                return "COMPLETED";
+            }
+            if (sources.size() == 1) {
+                logger.error("Could not determine codec for {} before its end, aborting recording", recordingSchedule.getFileName());
+                return "FAILED_CODEC_DETECTION";
+            }
+            if (sources.get(0).equals(m3uUrl)) {
+                logger.warn("Could not probe the stream of {}, recording without the probe", recordingSchedule.getFileName());
+            }
+        }
+
+        List<String> streamMaps = stream == null ? List.of() : selectStreams(recordingSchedule, stream.layout());
+        long droppedBitRate = streamMaps.isEmpty() ? 0 : StreamSelection.parse(recordingSchedule.getStreamSelection())
+                                                                        .droppedBitRate(stream.layout());
+        long savedBytes = 0;
+        if (!streamMaps.isEmpty()) {
+            selectedStreams.put(scheduleId, streamMaps);
+        }
 
-        int counter = 1;
+        int counter = firstCounter;
+        int sourceIndex = 0;
+        int failuresInRow = 0;
         List<Path> recordedFiles = new ArrayList<>();
+        Map<Path, Duration> overlappingFiles = new LinkedHashMap<>();
+        Map<String, String> partSources = new LinkedHashMap<>();
+        if (firstCounter > 1) {
+            Path firstPart = Paths.get(decideFileName(recordingSchedule.getFileName(), 1));
+            recordedFiles.add(firstPart);
+            partSources.put(firstPart.getFileName().toString(), m3uUrl);
+        }
+        currentSources.put(scheduleId, sources.get(0));
+        SegmentManifest manifest = null;
+        if (config.getSegments().isEnabled()) {
+            manifest = new SegmentManifest(Paths.get(decideFileName(recordingSchedule.getFileName(), 1)), recordingSchedule.getFileName());
+            manifests.put(scheduleId, manifest);
+        }
 
+        recordingMetrics.register(recordingSchedule.getId(), recordingSchedule.getFileName());
         while (timeUtils.parseStringToLocalDateTime(recordingSchedule.getEndTime())
                         .isAfter(LocalDateTime.now().plusSeconds(30))
                 && !stoppedSchedules.containsKey(recordingSchedule.getId())
                 && scheduleRepository.existsById(recordingSchedule.getId())) {
+            String source = sources.get(sourceIndex);
             String timeToRecord = timeUtils.calculateTimeToRecord(stopTime);
             Path outputPath = Paths.get(decideFileName(recordingSchedule.getFileName(), counter));
             logger.info("Loop iteration {} for {}: timeToRecord={}s, outputPath={}", counter, recordingSchedule.getFileName(), timeToRecord, outputPath);
-            startRecording(recordingSchedule, m3uUrl, timeToRecord, outputPath);
+            // The redirects were resolved shortly before the start, later connections start over from the original URL.
+            // A known layout only has to be confirmed by ffmpeg, which takes much less than analyzing an unknown stream.
+            boolean probed = counter == firstCounter && stream != null && source.equals(m3uUrl);
+            boolean knownLayout = probed && stream.layout().isComplete();
+            // The streams were selected by their ids in the stream URL, a fallback URL is recorded as it is
+            List<String> segmentMaps = source.equals(m3uUrl) ? streamMaps : List.of();
+            long segmentStartedAt = System.nanoTime();
+            RecordingSegment segment = startRecording(recordingSchedule, probed ? stream.url() : source,
+                                                      knownLayout ? config.getProbeCache().getAnalyzeDuration() : DEFAULT_ANALYZE_DURATION,
+                                                      timeToRecord, outputPath, counter, segmentMaps);
             logger.info("startRecording returned for iteration {} of {}", counter, recordingSchedule.getFileName());
-            if (Files.exists(outputPath)) {
+            boolean delivered = segment != null && segment.getSegmentedOutput() != null
+                                ? segment.getSegmentedOutput().hasData() : hasData(outputPath);
+            if (delivered && !segmentMaps.isEmpty()) {
+                savedBytes += savedBytes(droppedBitRate, Duration.ofNanos(System.nanoTime() - segmentStartedAt));
+            }
+            if (!stoppedSchedules.containsKey(scheduleId)) {
+                if (knownLayout && !delivered) {
+                    // Either the channel changed or ffmpeg needs longer to analyze it, the next recording probes it again
+                    if (streamProbeCache.invalidate(m3uUrl)) {
+                        logger.warn("No output from {} with the probed stream layout, dropped the cached probe", outputPath.getFileName());
+                    }
+                }
+                sourceHealthService.recordOutcome(source, delivered);
+            }
+            if (segment != null && segment.getSegmentedOutput() != null) {
+                addSegments(segment, manifest, source, recordedFiles, overlappingFiles, partSources);
+            } else if (hasData(outputPath)) {
                 recordedFiles.add(outputPath);
+                partSources.put(outputPath.getFileName().toString(), source);
+                Duration withoutOverlap = segment == null ? null : segment.lengthWithoutOverlap();
+                if (withoutOverlap != null) {
+                    overlappingFiles.put(outputPath, withoutOverlap);
+                }
+            } else {
+                // A failed connect leaves an empty part behind, in pipe mode always, which would break the join
+                deleteSegmentFiles(outputPath);
+            }
+            failuresInRow = delivered ? 0 : failuresInRow + 1;
+            if (failuresInRow >= config.getFailover().getMaxFailures() && sources.size() > 1) {
+                int previousIndex = sourceIndex;
+                sourceIndex = nextSource(recordingSchedule, sources, sourceIndex + 1, sourceIndex);
+                failuresInRow = 0;
+                if (sourceIndex != previousIndex) {
+                    currentSources.put(scheduleId, sources.get(sourceIndex));
+                    logger.warn("No data from {} for {} parts in a row, switching to URL {} of {}", recordingSchedule.getFileName(),
+                                config.getFailover().getMaxFailures(), sourceIndex + 1, sources.size());
+                }
             }
             counter++;
         }
         logger.info("Exited recording loop for {} after {} iterations. stopped={}, exists={}",
-            recordingSchedule.getFileName(), counter - 1,
+            recordingSchedule.getFileName(), counter - firstCounter,
             stoppedSchedules.containsKey(recordingSchedule.getId()),
             scheduleRepository.existsById(recordingSchedule.getId()));
+        RecordingSegment leftover = discardReplacement(recordingSchedule.getId());
+        if (leftover != null && leftover.getSegmentedOutput() != null) {
+            addSegments(leftover, manifest, currentSources.get(scheduleId), recordedFiles, overlappingFiles, partSources);
+        } else if (leftover != null && hasData(leftover.getOutputPath())) {
+            recordedFiles.add(leftover.getOutputPath());
+            partSources.put(leftover.getOutputPath().getFileName().toString(), currentSources.get(scheduleId));
+        }
+        currentSources.remove(scheduleId);
+        if (manifest != null) {
+            manifests.remove(scheduleId);
+            manifest.complete();
+        }
+        selectedStreams.remove(scheduleId);
+        if (savedBytes > 0) {
+            logger.info("Stream selection of {} left out about {} MB", recordingSchedule.getFileName(), savedBytes / 1_000_000);
+            recordingMetrics.recordSelectionSavings(savedBytes);
+        }
+        savePartSources(recordingSchedule, partSources);
         stoppedSchedules.remove(recordingSchedule.getId());
+        // Before finishing the watchdog, so the counters never read as reset
+        recordingMetrics.remove(recordingSchedule.getId());
+        recordingWatchdog.finish(recordingSchedule.getId());
+
+        // Only queued here, so the recording's stream slot is released without waiting for post-processing
+        if (recordingSchedule.isRemuxToMkv() && !recordedFiles.isEmpty()) {
+            // The segments were remuxed one by one while recording, only the last ones are left to do
+            postProcessingQueue.enqueue(manifest != null ? PostProcessingJob.Type.JOIN_SEGMENTS : PostProcessingJob.Type.REMUX_TO_MKV,
+                                        recordingSchedule.getFileName(), recordedFiles, overlappingFiles,
+                                        recordingSchedule.isKeepOriginalTs());
+        } else if (!overlappingFiles.isEmpty()) {
+            postProcessingQueue.enqueue(PostProcessingJob.Type.TRIM_OVERLAPS, recordingSchedule.getFileName(), recordedFiles,
+                                        overlappingFiles, true);
+        }
+
+        return "COMPLETED";
+    }
+
+    /**
+     * Finds the first of the sources from {@code from} on, wrapping around, whose provider the recording can take
+     * a stream slot of, and moves its slot there. Every URL counts against the budget of its own provider.
+     * @return the index of that source, or {@code fallback} if no provider has a slot free
+     */
+    private int nextSource(RecordingSchedule recordingSchedule, List<String> sources, int from, int fallback) {
+        for (int step = 0; step < sources.size(); step++) {
+            int index = (from + step) % sources.size();
+            if (streamSlotManager.tryMove(recordingSchedule.getId(), providerResolver.resolve(sources.get(index)))) {
+                return index;
+            }
+            logger.warn("No stream slot free at the provider of URL {} of {} for {}, skipping it", index + 1, sources.size(),
+                        recordingSchedule.getFileName());
+        }
+        return Math.max(fallback, 0);
+    }
 
-        if (recordingSchedule.isRemuxToMkv()) {
-            remuxToMkv(recordedFiles, recordingSchedule.isKeepOriginalTs());
+    /**
+     * Records with {@link HlsRecorder} for {@code .m3u8} URLs and with {@link HttpTsRecorder} otherwise, into a
+     * single file, reconnects do not start a new part.
+     * @return null if the source cannot be recorded without ffmpeg and has to be recorded with ffmpeg after all
+     */
+    private String recordWithoutFfmpeg(RecordingSchedule recordingSchedule) {
+        Long scheduleId = recordingSchedule.getId();
+        LocalDateTime stopTime = timeUtils.parseStringToLocalDateTime(recordingSchedule.getEndTime()).plusSeconds(20);
+        Path outputPath = Paths.get(decideFileName(recordingSchedule.getFileName(), 1));
+        boolean wroteData = false;
+        logger.info("Starting recording for schedule with filename {} without ffmpeg, output={}", recordingSchedule.getFileName(), outputPath);
+        recordingMetrics.register(scheduleId, recordingSchedule.getFileName());
+        try {
+            BooleanSupplier keepRecording = () -> !stoppedSchedules.containsKey(scheduleId) && scheduleRepository.existsById(scheduleId);
+            wroteData = isHlsPlaylist(recordingSchedule.getM3uUrl())
+                        ? hlsRecorder.record(scheduleId, recordingSchedule.getM3uUrl(), outputPath, stopTime, keepRecording)
+                        : httpTsRecorder.record(scheduleId, recordingSchedule.getM3uUrl(), outputPath,
+                                                timeUtils.parseStringToLocalDateTime(recordingSchedule.getStartTime()), stopTime, keepRecording);
+        } catch (IllegalStateException e) {
+            logger.warn("{}, recording {} with ffmpeg instead", e.getMessage(), recordingSchedule.getFileName());
+            recordingMetrics.remove(scheduleId);
+            recordingWatchdog.finish(scheduleId);
+            return null;
+        } catch (IOException e) {
+            logger.error("Error recording {}: {}", recordingSchedule.getFileName(), e.getMessage());
         }
+        logger.info("Recording complete. Output file: {}", outputPath.toAbsolutePath());
+        stoppedSchedules.remove(scheduleId);
+        recordingMetrics.remove(scheduleId);
+        recordingWatchdog.finish(scheduleId);
 
+        if (recordingSchedule.isRemuxToMkv() && wroteData) {
+            postProcessingQueue.enqueue(PostProcessingJob.Type.REMUX_TO_MKV, recordingSchedule.getFileName(), List.of(outputPath),
+                                        Map.of(), recordingSchedule.isKeepOriginalTs());
+        }
         return "COMPLETED";
     }
 
-    private void startRecording(RecordingSchedule recordingSchedule, String m3uUrl, String timeToRecord, Path outputPath) {
-        int counter = extractCounter(outputPath);
+    /**
+     * Keeps which URL each part was recorded from on the schedule, from where it goes into the recording history.
+     */
+    private void savePartSources(RecordingSchedule recordingSchedule, Map<String, String> partSources) {
+        if (partSources.isEmpty()) {
+            return;
+        }
+        try {
+            String json = objectMapper.writeValueAsString(partSources);
+            recordingSchedule.setPartSources(json);
+            scheduleRepository.savePartSources(recordingSchedule.getId(), json);
+        } catch (Exception e) {
+            logger.warn("Could not save the sources of the parts of {}: {}", recordingSchedule.getFileName(), e.getMessage());
+        }
+    }
+
+    static boolean isHlsPlaylist(String url) {
+        try {
+            String path = URI.create(url).getPath();
+            return path != null && path.toLowerCase(Locale.ROOT).endsWith(".m3u8");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private RecordingSegment startRecording(RecordingSchedule recordingSchedule, String m3uUrl, Duration analyzeDuration,
+                                            String timeToRecord, Path outputPath, int counter, List<String> streamMaps) {
         if (counter == 1) {
             logger.info("Starting recording for schedule with filename {} (duration: {}s)", recordingSchedule.getFileName(), timeToRecord);
         } else {
@@ -85,26 +360,13 @@ public class FfmpegService {
         }
 
         try {
-            executeRecording(recordingSchedule.getId(), m3uUrl, timeToRecord, outputPath);
+            return executeRecording(recordingSchedule, m3uUrl, analyzeDuration, timeToRecord, outputPath, counter, streamMaps);
         } catch (Exception e) {
             logger.error("Error recording M3U stream {}: {}", recordingSchedule.getFileName(), e.getMessage());
+            return null;
         }
     }
 
-    private int extractCounter(Path outputPath) {
-        String name = outputPath.getFileName().toString();
-        String nameWithoutExt = name.substring(0, name.lastIndexOf('.'));
-        int underscoreIdx = nameWithoutExt.lastIndexOf('_');
-        if (underscoreIdx > 0) {
-            try {
-                return Integer.parseInt(nameWithoutExt.substring(underscoreIdx + 1));
-            } catch (NumberFormatException e) {
-                return 1;
-            }
-        }
-        return 1;
-    }
-
     private String decideFileName(String fileName, int counter) {
         if (counter == 1) {
             return config.getRecordingFolderPrefix() + fileName;
@@ -115,113 +377,548 @@ public class FfmpegService {
         }
     }
 
-    private String getStreamCodec(String m3uUrl) {
-        FFprobe probe = FFprobe.atPath();
-        FFprobeResult result = probe.setShowStreams(true).setInput(m3uUrl).setLogLevel(LogLevel.WARNING).execute();
+    static String parseVideoCodec(String ffprobeJson) {
+        StreamLayout layout = parseStreamLayout(ffprobeJson);
+        return layout == null ? null : layout.videoCodec();
+    }
 
-        for (com.github.kokorin.jaffree.ffprobe.Stream stream : result.getStreams()) {
-            if (stream.getCodecType() == StreamType.VIDEO) {
-                String codec = stream.getCodecName();
-                log.info("Found video stream with codec: {}", codec);
-                return codec;
+    /**
+     * Reads the output of {@code ffprobe -print_format json -show_streams -show_programs -show_format}.
+     * @return null if the output has no video stream
+     */
+    static StreamLayout parseStreamLayout(String ffprobeJson) {
+        try {
+            JsonNode root = objectMapper.readTree(ffprobeJson);
+            Map<Integer, Integer> programByIndex = new HashMap<>();
+            for (JsonNode program : root.path("programs")) {
+                for (JsonNode stream : program.path("streams")) {
+                    programByIndex.putIfAbsent(stream.path("index").asInt(), program.path("program_id").asInt());
+                }
+            }
+            JsonNode video = null;
+            List<String> streams = new ArrayList<>();
+            long streamBitRates = 0;
+            for (JsonNode stream : root.path("streams")) {
+                String type = stream.path("codec_type").asText("unknown");
+                String language = stream.path("tags").path("language").asText(null);
+                long streamBitRate = stream.path("bit_rate").asLong(0);
+                streams.add(new StreamLayout.Stream(type, stream.path("codec_name").asText("unknown"), stream.path("id").asText(null),
+                                                    "und".equals(language) ? null : language,
+                                                    programByIndex.get(stream.path("index").asInt(streams.size())),
+                                                    streamBitRate > 0 ? streamBitRate : null).toString());
+                streamBitRates += streamBitRate;
+                if (video == null && type.equals("video")) {
+                    video = stream;
+                }
+            }
+            if (video == null) {
+                return null;
             }
+            String codec = video.path("codec_name").asText(null);
+            logger.info("Found video stream with codec: {}", codec);
+            // Live streams often only have bitrates per stream, if any
+            long bitRate = root.path("format").path("bit_rate").asLong(streamBitRates);
+            return new StreamLayout(codec,
+                                    video.has("width") ? video.path("width").asInt() : null,
+                                    video.has("height") ? video.path("height").asInt() : null,
+                                    bitRate > 0 ? bitRate : null,
+                                    streams);
+        } catch (Exception e) {
+            logger.warn("Could not parse ffprobe output: {}", e.getMessage());
         }
-
         return null;
     }
 
-    private void executeRecording(Long scheduleId, String m3uUrl, String timeToRecord, Path outputPath) {
-        FFmpegResultFuture future;
+    /**
+     * @param analyzeDuration how long ffmpeg reads the stream to find the parameters of its streams
+     */
+    static List<String> buildRecordingCommand(String m3uUrl, Duration analyzeDuration, String timeToRecord, Path outputPath) {
+        return buildRecordingCommand(m3uUrl, analyzeDuration, timeToRecord, outputPath, List.of());
+    }
+
+    /**
+     * @param streamMaps {@code -map} options of the streams to record, see {@link StreamSelection}, empty for
+     *                   ffmpeg's default selection
+     */
+    static List<String> buildRecordingCommand(String m3uUrl, Duration analyzeDuration, String timeToRecord, Path outputPath,
+                                              List<String> streamMaps) {
+        return buildRecordingCommand(m3uUrl, analyzeDuration, timeToRecord, "pipe:1", List.of("-y", outputPath.toString()), streamMaps);
+    }
+
+    /**
+     * Records into the segments of {@code segmentedOutput} instead of a single file.
+     */
+    static List<String> buildSegmentedRecordingCommand(String m3uUrl, Duration analyzeDuration, String timeToRecord,
+                                                       SegmentedOutput segmentedOutput, Duration segmentDuration,
+                                                       List<String> streamMaps) {
+        return buildRecordingCommand(m3uUrl, analyzeDuration, timeToRecord, "pipe:1", segmentedOutput.outputArguments(segmentDuration),
+                                     streamMaps);
+    }
+
+    /**
+     * Writes the TS to stdout for {@link PipedOutput} instead of a file, the progress goes to stderr then.
+     */
+    static List<String> buildPipedRecordingCommand(String m3uUrl, Duration analyzeDuration, String timeToRecord,
+                                                   List<String> streamMaps) {
+        return buildRecordingCommand(m3uUrl, analyzeDuration, timeToRecord, "pipe:2", List.of("-f", "mpegts", "pipe:1"), streamMaps);
+    }
+
+    /**
+     * Copies the TS into the live MKV while the recording writes it, see {@link LiveMkv}. ffmpeg waits at the end
+     * of the file for more, until nothing was added for {@link #LIVE_MKV_FOLLOW_TIMEOUT}. The TS only holds the
+     * recorded streams already, data streams are left out because Matroska cannot hold most of them.
+     */
+    static List<String> buildLiveMkvCommand(Path tsPath, Path liveMkvPath) {
+        return List.of("ffmpeg", "-hide_banner", "-nostats", "-loglevel", "warning", "-progress", "pipe:1",
+                       "-follow", "1",
+                       "-rw_timeout", String.valueOf(LIVE_MKV_FOLLOW_TIMEOUT.toNanos() / 1000),
+                       "-fflags", "+genpts+igndts",
+                       "-i", "file:" + tsPath,
+                       "-map", "0", "-dn",
+                       "-c", "copy",
+                       "-y", liveMkvPath.toString());
+    }
+
+    /**
+     * @param progress where ffmpeg writes its progress reports
+     * @param output   the options that name the output, its file last
+     */
+    private static List<String> buildRecordingCommand(String m3uUrl, Duration analyzeDuration, String timeToRecord, String progress,
+                                                      List<String> output, List<String> streamMaps) {
+        List<String> command = new ArrayList<>(List.of("ffmpeg", "-hide_banner", "-nostats", "-loglevel", "info", "-progress", progress,
+                                                       "-reconnect", "1",
+                                                       "-reconnect_streamed", "1",
+                                                       "-reconnect_delay_max", "5",
+                                                       "-reconnect_on_network_error", "1",
+                                                       "-rw_timeout", "15000000",
+                                                       "-fflags", "+genpts+igndts",
+                                                       "-analyzeduration", String.valueOf(analyzeDuration.toNanos() / 1000),
+                                                       "-probesize", "10000000",
+                                                       "-i", m3uUrl));
+        command.addAll(streamMaps);
+        command.addAll(List.of("-t", timeToRecord, "-c", "copy"));
+        command.addAll(output);
+        return command;
+    }
+
+    private RecordingSegment executeRecording(RecordingSchedule recordingSchedule, String m3uUrl, Duration analyzeDuration,
+                                              String timeToRecord, Path outputPath, int counter, List<String> streamMaps) {
+        Long scheduleId = recordingSchedule.getId();
+        String name = outputPath.getFileName().toString();
+        long startedAt = System.nanoTime();
+        RecordingSegment segment = replacements.remove(scheduleId);
         try {
-            logger.info("Launching ffmpeg for scheduleId={}, duration={}s, output={}", scheduleId, timeToRecord, outputPath);
-            future = FFmpeg.atPath()
-                           .addInput(UrlInput.fromUrl(m3uUrl)
-                               .addArguments("-reconnect", "1")
-                               .addArguments("-reconnect_streamed", "1")
-                               .addArguments("-reconnect_delay_max", "5")
-                               .addArguments("-reconnect_on_network_error", "1")
-                               .addArguments("-rw_timeout", "15000000")
-                               .addArguments("-fflags", "+genpts+igndts")
-                               .addArguments("-analyzeduration", "10000000")
-                               .addArguments("-probesize", "10000000"))
-                           .addArguments("-t", timeToRecord)
-                           .addArguments("-c", "copy")
-                           .addOutput(UrlOutput.toPath(outputPath))
-                           .setLogLevel(LogLevel.INFO)
-                           .setProgressListener(_ -> {})
-                           .executeAsync();
-
-            activeRecordings.put(scheduleId, future);
-            logger.info("ffmpeg process started for scheduleId={}, waiting for completion...", scheduleId);
-            future.toCompletableFuture().join();
+            if (segment != null && segment.getOutputPath().equals(outputPath)) {
+                logger.info("Continuing {} with the replacement connection that is already running", name);
+            } else {
+                logger.info("Launching ffmpeg for scheduleId={}, duration={}s, output={}", scheduleId, timeToRecord, outputPath);
+                segment = launchHedged(recordingSchedule, m3uUrl, analyzeDuration, timeToRecord, outputPath, counter, streamMaps);
+                boolean hedged = config.getHedging().isEnabled() && segment.getSegmentedOutput() == null;
+                segment.onFirstOutput().thenRun(() -> recordingMetrics.recordTimeToFirstByte(hedged, Duration.ofNanos(System.nanoTime() - startedAt)));
+            }
+            startLiveMkv(recordingSchedule, segment);
+            ManagedProcess process = segment.getProcess();
+            activeRecordings.put(scheduleId, process);
+            RecordingSegment current = segment;
+            recordingWatchdog.watch(scheduleId, name, process,
+                                    config.getWatchdog().isMakeBeforeBreak() ? () -> startReplacement(recordingSchedule, current, counter + 1) : null);
+            segment.attach((progress, at) -> recordingWatchdog.onProgress(scheduleId, progress, at));
+            logger.info("ffmpeg process {} started for scheduleId={}, waiting for completion...", process.pid(), scheduleId);
+            int exitCode = process.onExit().join();
+            segment.awaitOutput();
+            if (exitCode != 0 && !stoppedSchedules.containsKey(scheduleId)) {
+                logger.warn("ffmpeg exited with code {} for {}: {}", exitCode, outputPath.getFileName(),
+                            String.join(" | ", process.getRecentErrorOutput()));
+            }
             logger.info("Recording complete. Output file: {}", outputPath.toAbsolutePath());
         } catch (Exception e) {
             logger.error("FFmpeg execution failed for {}: {}", outputPath.getFileName(), e.getMessage(), e);
         } finally {
             activeRecordings.remove(scheduleId);
+            recordingWatchdog.endSegment(scheduleId);
+            recordingMetrics.recordSegment(scheduleId, Duration.ofNanos(System.nanoTime() - startedAt));
             logger.info("executeRecording exiting for scheduleId={}, file={}", scheduleId, outputPath.getFileName());
         }
+        return segment;
     }
 
-    private void remuxToMkv(List<Path> tsFiles, boolean keepOriginalTs) {
-        for (Path tsFile : tsFiles) {
-            if (!Files.exists(tsFile)) {
-                continue;
+    /**
+     * @param writePath       where ffmpeg writes the segment, a hedged connection is moved to {@code outputPath} once it won
+     * @param segmentedOutput written in place of {@code writePath} if set. Otherwise, with {@code recorder.pipe} enabled,
+     *                        ffmpeg writes to stdout and {@link PipedOutput} writes {@code writePath}.
+     */
+    private RecordingSegment launchSegment(String m3uUrl, Duration analyzeDuration, String timeToRecord, Path outputPath,
+                                           Path writePath, List<String> streamMaps, SegmentedOutput segmentedOutput) throws IOException {
+        RecordingSegment segment = new RecordingSegment(outputPath);
+        if (segmentedOutput == null && config.getPipe().isEnabled()) {
+            RecordingServiceConfig.Pipe pipe = config.getPipe();
+            PipedOutput pipedOutput = new PipedOutput(writePath, pipe.getBufferSize(), pipe.getSyncInterval(), recordingMetrics);
+            ManagedProcess process = processLauncher.startPiped(
+                writePath.getFileName().toString(),
+                buildPipedRecordingCommand(m3uUrl, analyzeDuration, timeToRecord, streamMaps),
+                new FfmpegProgressParser(progress -> {
+                    // ffmpeg counts what it wrote to the pipe, the watchdog goes by what is in the file
+                    segment.onProgress(new FfmpegProgress(pipedOutput.writtenBytes(), progress.outTimeMicros(), progress.bitrateKbps(),
+                                                          progress.speed(), progress.ended()));
+                }));
+            segment.setProcess(process);
+            try {
+                pipedOutput.start(process.getStdout());
+            } catch (IOException e) {
+                process.forceStop();
+                throw e;
             }
-            String tsFileName = tsFile.getFileName().toString();
-            String mkvFileName = tsFileName.substring(0, tsFileName.lastIndexOf('.')) + ".mkv";
-            Path mkvPath = tsFile.getParent().resolve(mkvFileName);
+            segment.setPipedOutput(pipedOutput);
+            return segment;
+        }
+        if (segmentedOutput == null) {
+            segment.setProcess(processLauncher.start(writePath.getFileName().toString(),
+                                                     buildRecordingCommand(m3uUrl, analyzeDuration, timeToRecord, writePath, streamMaps),
+                                                     new FfmpegProgressParser(segment::onProgress)));
+            return segment;
+        }
+        segment.setSegmentedOutput(segmentedOutput);
+        ManagedProcess process = processLauncher.start(
+            writePath.getFileName().toString(),
+            buildSegmentedRecordingCommand(m3uUrl, analyzeDuration, timeToRecord, segmentedOutput, config.getSegments().getDuration(), streamMaps),
+            new FfmpegProgressParser(progress -> {
+                // Every report checks for closed segments and carries the size of all of them, the watchdog goes by it.
+                // The check runs off the output pump, which the other ffmpeg processes share.
+                segmentedOutput.pollAsync();
+                segment.onProgress(new FfmpegProgress(segmentedOutput.writtenBytes(), progress.outTimeMicros(), progress.bitrateKbps(),
+                                                      progress.speed(), progress.ended()));
+            }));
+        segment.setProcess(process);
+        process.onExit().thenRun(segmentedOutput::finish);
+        return segment;
+    }
 
-            try {
-                logger.info("Remuxing {} to {}", tsFileName, mkvFileName);
-                FFmpeg.atPath()
-                      .addInput(UrlInput.fromPath(tsFile))
-                      .addArguments("-c", "copy")
-                      .addOutput(UrlOutput.toPath(mkvPath))
-                      .setLogLevel(LogLevel.WARNING)
-                      .setOverwriteOutput(true)
-                      .execute();
-                logger.info("Remux complete: {}", mkvPath.toAbsolutePath());
-
-                if (!keepOriginalTs) {
-                    Files.deleteIfExists(tsFile);
-                    logger.info("Deleted original TS file: {}", tsFile.toAbsolutePath());
+    /**
+     * The segments of a part with {@code recorder.segments} enabled, each one listed in the manifest and
+     * published as a {@link SegmentClosedEvent} as soon as ffmpeg closed it.
+     * @return null if the recording is not segmented
+     */
+    private SegmentedOutput segmentedOutput(RecordingSchedule recordingSchedule, Path outputPath, int part) {
+        Long scheduleId = recordingSchedule.getId();
+        SegmentManifest manifest = manifests.get(scheduleId);
+        if (manifest == null) {
+            return null;
+        }
+        String source = currentSources.getOrDefault(scheduleId, recordingSchedule.getM3uUrl());
+        return new SegmentedOutput(outputPath, closed -> {
+            // ffmpeg opens the next segment before it has anything to write to it
+            if (closed.bytes() == 0) {
+                return;
+            }
+            manifest.add(part, closed, source);
+            logger.info("Closed segment {} of {} ({} bytes)", closed.file().getFileName(), recordingSchedule.getFileName(), closed.bytes());
+            eventPublisher.publishEvent(new SegmentClosedEvent(scheduleId, recordingSchedule.getFileName(), closed.file(), part,
+                                                               closed.index(), closed.duration(), closed.bytes(),
+                                                               recordingSchedule.isRemuxToMkv()));
+        });
+    }
+
+    /**
+     * Adds the segments of a finished part to the files of the recording. Segments that only hold what a
+     * replacement connection recorded as well are deleted, the one the replacement took over in is cut.
+     */
+    private static void addSegments(RecordingSegment segment, SegmentManifest manifest, String source, List<Path> recordedFiles,
+                                    Map<Path, Duration> overlappingFiles, Map<String, String> partSources) {
+        List<SegmentedOutput.Segment> segments = segment.getSegmentedOutput().finish();
+        Duration withoutOverlap = segment.lengthWithoutOverlap();
+        Double partStart = segments.isEmpty() ? null : segments.get(0).start();
+        for (SegmentedOutput.Segment closed : segments) {
+            if (closed.bytes() == 0) {
+                deleteSegmentFiles(closed.file());
+                continue;
+            }
+            if (withoutOverlap != null && partStart != null && closed.start() != null) {
+                Duration offset = Duration.ofMillis(Math.round((closed.start() - partStart) * 1000));
+                if (offset.compareTo(withoutOverlap) >= 0) {
+                    if (manifest != null) {
+                        manifest.remove(closed.file());
+                    }
+                    deleteSegmentFiles(closed.file());
+                    continue;
+                }
+                Duration duration = closed.duration();
+                if (duration == null || offset.plus(duration).compareTo(withoutOverlap) > 0) {
+                    overlappingFiles.put(closed.file(), withoutOverlap.minus(offset));
                 }
-            } catch (Exception e) {
-                logger.error("Remux failed for {}: {}", tsFileName, e.getMessage());
             }
+            recordedFiles.add(closed.file());
+            partSources.put(closed.file().getFileName().toString(), source);
         }
     }
 
     /**
-     * Gracefully stops an active recording by its schedule ID.
-     * Attempts graceStop first, then forceStop if needed.
-     * @return true if a recording was found and stopped, false if no active recording for this ID
+     * Starts a segment and, with {@code recorder.hedging} enabled, races further connections against a slow
+     * first response of the provider: whenever nothing was written for {@code delay}, another ffmpeg connects,
+     * up to {@code max-connections}, each on a spare stream slot of the provider. The first connection to write
+     * data is kept and the others are stopped, so the extra slots are only held until then. A hedged connection
+     * writes next to the output file and is moved into its place once it won and the others, the first one writing
+     * the output file among them, exited. ffmpeg keeps writing to the moved file. Without a winner within the
+     * startup grace period of the watchdog, the first connection is kept.
      */
-    public boolean stopRecording(Long scheduleId) {
-        stoppedSchedules.put(scheduleId, Boolean.TRUE);
-        FFmpegResultFuture future = activeRecordings.remove(scheduleId);
-        if (future == null) {
-            return false;
+    private RecordingSegment launchHedged(RecordingSchedule recordingSchedule, String m3uUrl, Duration analyzeDuration,
+                                          String timeToRecord, Path outputPath, int part, List<String> streamMaps) throws IOException {
+        Long scheduleId = recordingSchedule.getId();
+        RecordingServiceConfig.Hedging hedging = config.getHedging();
+        SegmentedOutput segmentedOutput = segmentedOutput(recordingSchedule, outputPath, part);
+        RecordingSegment first = launchSegment(m3uUrl, analyzeDuration, timeToRecord, outputPath, outputPath, streamMaps, segmentedOutput);
+        // Segments cannot be moved into place while ffmpeg keeps opening new ones
+        if (!hedging.isEnabled() || hedging.getMaxConnections() < 2 || segmentedOutput != null) {
+            return first;
         }
+        List<RecordingSegment> racing = new ArrayList<>(List.of(first));
+        Map<RecordingSegment, Path> hedgePaths = new HashMap<>();
+        CompletableFuture<RecordingSegment> winner = new CompletableFuture<>();
+        first.onFirstOutput().thenRun(() -> winner.complete(first));
+        long deadline = System.nanoTime() + config.getWatchdog().getStartupGracePeriod().toNanos();
+        RecordingSegment won = null;
         try {
-            logger.info("Gracefully stopping recording for schedule {}", scheduleId);
-            future.graceStop();
-            if (!future.toCompletableFuture().isDone()) {
-                Thread.sleep(3000);
+            while (true) {
+                try {
+                    won = winner.get(hedging.getDelay().toMillis(), TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    if (stoppedSchedules.containsKey(scheduleId) || System.nanoTime() >= deadline
+                            || racing.stream().allMatch(segment -> segment.getProcess().onExit().isDone())) {
+                        break;
+                    }
+                }
+                if (racing.size() < hedging.getMaxConnections()
+                        && streamSlotManager.tryAcquireExtra(scheduleId, hedging.getMaxConnections() - 1)) {
+                    Path hedgePath = hedgePathFor(outputPath, racing.size() + 1);
+                    try {
+                        RecordingSegment hedge = launchSegment(m3uUrl, analyzeDuration, timeToRecord, outputPath, hedgePath, streamMaps, null);
+                        racing.add(hedge);
+                        hedgePaths.put(hedge, hedgePath);
+                        hedge.onFirstOutput().thenRun(() -> winner.complete(hedge));
+                        logger.info("No output from {} yet, racing connection {}", outputPath.getFileName(), racing.size());
+                    } catch (IOException e) {
+                        streamSlotManager.releaseExtra(scheduleId);
+                        logger.warn("Could not start a hedged connection for {}: {}", outputPath.getFileName(), e.getMessage());
+                    }
+                }
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-        } catch (Exception e) {
-            logger.warn("Grace stop failed for schedule {}, forcing stop", scheduleId);
+        } catch (ExecutionException e) {
+            // The future is only ever completed normally
         }
-        if (!future.toCompletableFuture().isDone()) {
+        // Without a winner the first connection is left to the watchdog
+        RecordingSegment kept = won != null ? won : first;
+        List<RecordingSegment> losers = racing.stream().filter(segment -> segment != kept).toList();
+        Path keptPath = hedgePaths.get(kept);
+        if (keptPath != null) {
+            logger.info("Hedged connection {} of {} wrote first, keeping it", racing.indexOf(kept) + 1, outputPath.getFileName());
+            // The first connection writes the output file, it has to be gone before the hedged one takes its place
+            stopLosers(scheduleId, losers, hedgePaths);
             try {
-                logger.info("Force stopping recording for schedule {}", scheduleId);
-                future.forceStop();
-            } catch (Exception e) {
-                logger.error("Force stop also failed for schedule {}: {}", scheduleId, e.getMessage());
+                deleteSegmentFiles(outputPath);
+                Files.move(keptPath, outputPath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                kept.getProcess().stop(GRACEFUL_STOP_TIMEOUT);
+                throw new IOException("Could not move hedged connection " + keptPath + " into place: " + e.getMessage(), e);
+            }
+        } else if (!losers.isEmpty()) {
+            // The kept connection goes on recording meanwhile
+            Thread.ofVirtual().name("hedge-" + scheduleId).start(() -> stopLosers(scheduleId, losers, hedgePaths));
+        }
+        if (stoppedSchedules.containsKey(scheduleId)) {
+            // Stopped while racing, before the connection was registered as the active one
+            kept.getProcess().stop(GRACEFUL_STOP_TIMEOUT);
+        }
+        return kept;
+    }
+
+    /**
+     * Stops the connections that lost the race, all at the same time, deletes what the hedged ones wrote and returns
+     * their stream slots. Returns once all of them exited.
+     */
+    private void stopLosers(Long scheduleId, List<RecordingSegment> losers, Map<RecordingSegment, Path> hedgePaths) {
+        List<Thread> stopping = losers.stream()
+                                      .map(loser -> Thread.ofVirtual().name("hedge-" + scheduleId).start(() -> {
+                                          loser.getProcess().stop(REPLACED_STOP_TIMEOUT);
+                                          streamSlotManager.releaseExtra(scheduleId);
+                                          Path hedgePath = hedgePaths.get(loser);
+                                          if (hedgePath != null) {
+                                              deleteSegmentFiles(hedgePath);
+                                          }
+                                      }))
+                                      .toList();
+        for (Thread thread : stopping) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static Path hedgePathFor(Path outputPath, int connection) {
+        String fileName = outputPath.getFileName().toString();
+        int extension = fileName.lastIndexOf('.');
+        return outputPath.resolveSibling(fileName.substring(0, extension) + ".hedge" + connection + fileName.substring(extension));
+    }
+
+    private static void deleteSegmentFiles(Path writePath) {
+        try {
+            Files.deleteIfExists(writePath);
+            Files.deleteIfExists(PostProcessingService.liveMkvFor(writePath));
+        } catch (IOException e) {
+            logger.warn("Could not delete unused file {}: {}", writePath, e.getMessage());
+        }
+    }
+
+    private static boolean hasData(Path outputPath) {
+        try {
+            return Files.exists(outputPath) && Files.size(outputPath) > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The {@code -map} options of the stream selection of the schedule for the probed layout.
+     * @return empty if the schedule records every stream or its selection does not fit the layout
+     */
+    private List<String> selectStreams(RecordingSchedule recordingSchedule, StreamLayout layout) {
+        String rule = recordingSchedule.getStreamSelection();
+        if (rule == null || rule.isBlank()) {
+            return List.of();
+        }
+        List<String> streamMaps;
+        try {
+            streamMaps = StreamSelection.parse(rule).mapArguments(layout);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Ignoring the stream selection of {}: {}", recordingSchedule.getFileName(), e.getMessage());
+            return List.of();
+        }
+        if (streamMaps.isEmpty()) {
+            logger.warn("Stream selection '{}' does not fit the streams of {} ({}), recording the default streams", rule,
+                        recordingSchedule.getFileName(), String.join(", ", layout.streams()));
+        } else {
+            logger.info("Recording {} with stream selection '{}': {}", recordingSchedule.getFileName(), rule, String.join(" ", streamMaps));
+        }
+        return streamMaps;
+    }
+
+    /**
+     * Estimated from the bitrates ffprobe reported for the left out streams.
+     */
+    static long savedBytes(long droppedBitRate, Duration recorded) {
+        return droppedBitRate / 8 * recorded.toMillis() / 1000;
+    }
+
+    /**
+     * Starts the live MKV of the segment once the segment wrote its first bytes, see {@link LiveMkv}. The segment
+     * finishes it when its output is complete.
+     */
+    private void startLiveMkv(RecordingSchedule recordingSchedule, RecordingSegment segment) {
+        // Segments are remuxed one by one as they are closed instead
+        if (!config.isLiveMkv() || !recordingSchedule.isRemuxToMkv() || segment.getSegmentedOutput() != null) {
+            return;
+        }
+        LiveMkv liveMkv = new LiveMkv(processLauncher, segment.getOutputPath(), PostProcessingService.liveMkvFor(segment.getOutputPath()));
+        segment.setLiveMkv(liveMkv);
+        // The first output is reported on the output pump, which must not wait for a process to start
+        segment.onFirstOutput().thenRunAsync(liveMkv::start, task -> Thread.ofVirtual().name("live-mkv").start(task));
+    }
+
+    /**
+     * Connects the next segment while the current one is stalling and stops the current one as soon as the
+     * new connection writes data. If the new connection does not get there first, the watchdog stops the
+     * current segment as usual and the recording loop continues with the connection started here.
+     */
+    private void startReplacement(RecordingSchedule recordingSchedule, RecordingSegment current, int nextCounter) {
+        Long scheduleId = recordingSchedule.getId();
+        // The recording loop must still be running when the stalled segment exits, otherwise nobody takes over
+        Duration takeOverMargin = Duration.ofSeconds(30).plus(config.getWatchdog().getStallTimeout())
+                                          .plus(config.getWatchdog().getStartupGracePeriod());
+        if (stoppedSchedules.containsKey(scheduleId)
+                || !timeUtils.parseStringToLocalDateTime(recordingSchedule.getEndTime()).isAfter(LocalDateTime.now().plus(takeOverMargin))) {
+            return;
+        }
+        if (!streamSlotManager.tryAcquireExtra(scheduleId)) {
+            logger.info("No spare stream slot for a replacement connection of {}", recordingSchedule.getFileName());
+            return;
+        }
+        LocalDateTime stopTime = timeUtils.parseStringToLocalDateTime(recordingSchedule.getEndTime()).plusSeconds(20);
+        Path outputPath = Paths.get(decideFileName(recordingSchedule.getFileName(), nextCounter));
+        String source = currentSources.getOrDefault(scheduleId, recordingSchedule.getM3uUrl());
+        List<String> streamMaps = source.equals(recordingSchedule.getM3uUrl()) ? selectedStreams.getOrDefault(scheduleId, List.of()) : List.of();
+        RecordingSegment replacement;
+        try {
+            replacement = launchSegment(source, DEFAULT_ANALYZE_DURATION, timeUtils.calculateTimeToRecord(stopTime), outputPath, outputPath,
+                                        streamMaps, segmentedOutput(recordingSchedule, outputPath, nextCounter));
+        } catch (IOException e) {
+            streamSlotManager.releaseExtra(scheduleId);
+            logger.error("Could not start a replacement connection for {}: {}", recordingSchedule.getFileName(), e.getMessage());
+            return;
+        }
+        replacements.put(scheduleId, replacement);
+        ManagedProcess stalled = current.getProcess();
+        ManagedProcess connecting = replacement.getProcess();
+        // Only one of the two connections is left once either exits
+        CompletableFuture.anyOf(stalled.onExit(), connecting.onExit())
+                         .thenRun(() -> streamSlotManager.releaseExtra(scheduleId));
+        connecting.onExit().thenRun(() -> {
+            if (!replacement.hasOutput() && replacements.remove(scheduleId, replacement)) {
+                logger.info("Replacement connection for {} ended without data", recordingSchedule.getFileName());
             }
+        });
+        replacement.onFirstOutput().thenRun(() -> {
+            current.markHandedOver();
+            logger.info("Replacement connection for {} is writing {}, stopping the previous one",
+                        recordingSchedule.getFileName(), outputPath.getFileName());
+            // Called on the output pump thread, which must not wait for the process
+            Thread.ofVirtual().name("replace-" + scheduleId).start(() -> stalled.stop(REPLACED_STOP_TIMEOUT));
+        });
+    }
+
+    /**
+     * Stops a replacement connection the recording loop did not take over, e.g. because the recording was stopped.
+     * @return the replacement if it wrote data, which is kept
+     */
+    private RecordingSegment discardReplacement(Long scheduleId) {
+        RecordingSegment replacement = replacements.remove(scheduleId);
+        if (replacement == null) {
+            return null;
+        }
+        replacement.getProcess().stop(GRACEFUL_STOP_TIMEOUT);
+        replacement.awaitOutput();
+        if (replacement.hasOutput()) {
+            return replacement;
+        }
+        if (replacement.getSegmentedOutput() != null) {
+            replacement.getSegmentedOutput().finish().forEach(segment -> deleteSegmentFiles(segment.file()));
+        }
+        deleteSegmentFiles(replacement.getOutputPath());
+        return null;
+    }
+
+    /**
+     * Gracefully stops an active recording by its schedule ID.
+     * Sends quit to ffmpeg first and kills it if it has not exited after a few seconds.
+     * @return true if a recording was found and stopped, false if no active recording for this ID
+     */
+    public boolean stopRecording(Long scheduleId) {
+        stoppedSchedules.put(scheduleId, Boolean.TRUE);
+        RecordingSegment replacement = replacements.remove(scheduleId);
+        if (replacement != null) {
+            replacement.getProcess().stop(GRACEFUL_STOP_TIMEOUT);
+        }
+        ManagedProcess process = activeRecordings.remove(scheduleId);
+        if (process == null) {
+            // Recordings without ffmpeg end once their open connection is closed
+            return httpTsRecorder.stop(scheduleId) || hlsRecorder.stop(scheduleId);
+        }
+        logger.info("Gracefully stopping recording for schedule {}", scheduleId);
+        if (!process.stop(GRACEFUL_STOP_TIMEOUT)) {
+            logger.info("Force stopped recording for schedule {}", scheduleId);
         }
         return true;
     }
@@ -0,0 +1,98 @@
+package me.schickel.recorder.service;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of an HLS playlist that {@link HlsRecorder} needs. A master playlist only has variants, a media
+ * playlist only segments. Encrypted and fMP4 playlists are refused, their segments cannot be appended to a TS file.
+ */
+record HlsPlaylist(List<Variant> variants, List<Segment> segments, Duration targetDuration, boolean endList) {
+
+    private static final Pattern BANDWIDTH = Pattern.compile("(?:^|,)BANDWIDTH=(\\d+)");
+    private static final Pattern KEY_METHOD = Pattern.compile("(?:^|,)METHOD=([A-Z0-9-]+)");
+
+    /**
+     * @param sequence media sequence number, which identifies the segment across playlist reloads
+     */
+    record Segment(long sequence, URI uri, Duration duration) {
+    }
+
+    record Variant(URI uri, long bandwidth) {
+    }
+
+    boolean isMaster() {
+        return !variants.isEmpty();
+    }
+
+    /**
+     * The variant with the highest bandwidth, which is the one ffmpeg would record.
+     */
+    Variant bestVariant() {
+        return variants.stream().max((first, second) -> Long.compare(first.bandwidth(), second.bandwidth())).orElseThrow();
+    }
+
+    static HlsPlaylist parse(URI base, String text) {
+        String[] lines = text.split("\\R");
+        if (lines.length == 0 || !lines[0].strip().startsWith("#EXTM3U")) {
+            throw new IllegalStateException("Not an HLS playlist");
+        }
+        List<Variant> variants = new ArrayList<>();
+        List<Segment> segments = new ArrayList<>();
+        Duration targetDuration = null;
+        boolean endList = false;
+        long sequence = 0;
+        Duration segmentDuration = null;
+        Long variantBandwidth = null;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].strip();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith("#EXT-X-TARGETDURATION:")) {
+                targetDuration = seconds(value(line));
+            } else if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                sequence = Long.parseLong(value(line));
+            } else if (line.startsWith("#EXTINF:")) {
+                segmentDuration = seconds(value(line).split(",", 2)[0]);
+            } else if (line.startsWith("#EXT-X-STREAM-INF:")) {
+                Matcher bandwidth = BANDWIDTH.matcher(value(line));
+                variantBandwidth = bandwidth.find() ? Long.parseLong(bandwidth.group(1)) : 0L;
+            } else if (line.startsWith("#EXT-X-KEY:")) {
+                Matcher method = KEY_METHOD.matcher(value(line));
+                if (method.find() && !method.group(1).equals("NONE")) {
+                    throw new IllegalStateException("Encrypted HLS playlist (" + method.group(1) + ")");
+                }
+            } else if (line.startsWith("#EXT-X-MAP:")) {
+                throw new IllegalStateException("HLS playlist with fMP4 segments");
+            } else if (line.equals("#EXT-X-ENDLIST")) {
+                endList = true;
+            } else if (!line.startsWith("#")) {
+                URI uri = base.resolve(line);
+                if (variantBandwidth != null) {
+                    variants.add(new Variant(uri, variantBandwidth));
+                    variantBandwidth = null;
+                } else {
+                    segments.add(new Segment(sequence++, uri, segmentDuration == null ? Duration.ZERO : segmentDuration));
+                    segmentDuration = null;
+                }
+            }
+        }
+        if (variants.isEmpty() && targetDuration == null) {
+            throw new IllegalStateException("HLS media playlist without #EXT-X-TARGETDURATION");
+        }
+        return new HlsPlaylist(List.copyOf(variants), List.copyOf(segments), targetDuration, endList);
+    }
+
+    private static String value(String line) {
+        return line.substring(line.indexOf(':') + 1).strip();
+    }
+
+    private static Duration seconds(String value) {
+        return Duration.ofMillis(Math.round(Double.parseDouble(value) * 1000));
+    }
+}
@@ -0,0 +1,460 @@
+package me.schickel.recorder.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.metrics.RecordingMetrics;
+import me.schickel.recorder.process.FfmpegProgress;
+import me.schickel.recorder.process.Stoppable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Records HLS streams without ffmpeg: the media playlist is reloaded as the live edge moves and the new segments
+ * are downloaded several at a time over the client's keep-alive connections, so that one slow segment does not
+ * hold up the next ones. Downloaded segments are appended to the output file in media sequence order. Segments
+ * that left the playlist before they were downloaded, or whose download failed, are reported to the watchdog as
+ * lost time. Every session, from loading the playlist until it fails or is stopped, is a segment for the watchdog.
+ */
+@Service
+@RequiredArgsConstructor
+public class HlsRecorder {
+
+    private static final Logger logger = LoggerFactory.getLogger(HlsRecorder.class);
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration MAX_RECONNECT_DELAY = Duration.ofSeconds(5);
+
+    private final RecordingServiceConfig config;
+    private final RecordingWatchdog recordingWatchdog;
+    private final RecordingMetrics recordingMetrics;
+    private final ConcurrentMap<Long, Session> activeSessions = new ConcurrentHashMap<>();
+    private HttpClient httpClient;
+
+    @PostConstruct
+    public void start() {
+        httpClient = HttpClient.newBuilder()
+                               .version(HttpClient.Version.HTTP_1_1)
+                               .followRedirects(HttpClient.Redirect.NORMAL)
+                               .connectTimeout(config.getHttpRecorder().getConnectTimeout())
+                               .executor(Executors.newVirtualThreadPerTaskExecutor())
+                               .build();
+    }
+
+    /**
+     * Records the HLS stream at {@code url}, a master or media playlist, into {@code outputPath} until
+     * {@code stopTime}, the end of the playlist, or until {@code keepRecording} turns false, which is checked
+     * before every session. {@link #stop} ends the current session.
+     * @return true if any data was written
+     * @throws IllegalStateException if the playlist cannot be recorded without ffmpeg, e.g. because it is encrypted
+     */
+    public boolean record(Long scheduleId, String url, Path outputPath, LocalDateTime stopTime, BooleanSupplier keepRecording)
+            throws IOException {
+        String name = outputPath.getFileName().toString();
+        long deadline = System.nanoTime() + Duration.between(LocalDateTime.now(), stopTime).toNanos();
+        Position position = new Position();
+        int failedSessions = 0;
+        try (FileChannel file = FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                if (failedSessions > 0) {
+                    sleep(Duration.ofSeconds(failedSessions).compareTo(MAX_RECONNECT_DELAY) < 0
+                          ? Duration.ofSeconds(failedSessions) : MAX_RECONNECT_DELAY);
+                }
+                Session session = new Session(scheduleId, name, file, position);
+                activeSessions.put(scheduleId, session);
+                // Checked after registering the session, so that a stop in between ends it
+                if (!keepRecording.getAsBoolean()) {
+                    activeSessions.remove(scheduleId, session);
+                    break;
+                }
+                boolean playlistEnded = false;
+                try {
+                    playlistEnded = record(session, URI.create(url), deadline);
+                } catch (IOException e) {
+                    if (!session.isStopped()) {
+                        logger.warn("HLS session of {} failed after {} bytes: {}", name, session.bytes, e.getMessage());
+                    }
+                } catch (IllegalStateException e) {
+                    if (!position.wroteData) {
+                        throw e;
+                    }
+                    // The playlist was fine until now, so it is treated like any other failure of the source
+                    logger.warn("HLS session of {} failed after {} bytes: {}", name, session.bytes, e.getMessage());
+                } finally {
+                    activeSessions.remove(scheduleId, session);
+                    session.close();
+                }
+                if (playlistEnded) {
+                    break;
+                }
+                failedSessions = session.bytes > 0 ? 0 : failedSessions + 1;
+            }
+        }
+        return position.wroteData;
+    }
+
+    /**
+     * Runs one session: loads the playlist, then downloads and writes segments until the session fails, is
+     * stopped, the deadline passes or the playlist ended.
+     * @return true if the playlist ended and all of its segments were written
+     */
+    private boolean record(Session session, URI url, long deadline) throws IOException {
+        HlsPlaylist playlist = session.loadMediaPlaylist(url);
+        long startedAt = System.nanoTime();
+        recordingWatchdog.watch(session.scheduleId, session.name, session, playlist.targetDuration());
+        try {
+            return session.run(playlist, deadline);
+        } finally {
+            session.close();
+            session.reportProgress(true);
+            recordingWatchdog.endSegment(session.scheduleId);
+            recordingMetrics.recordSegment(session.scheduleId, Duration.ofNanos(System.nanoTime() - startedAt));
+        }
+    }
+
+    /**
+     * Ends the current session of a recording. The recording starts a new one, continuing after the last
+     * written segment, unless its {@code keepRecording} turned false.
+     * @return true if the recording had a session
+     */
+    public boolean stop(Long scheduleId) {
+        Session session = activeSessions.remove(scheduleId);
+        if (session == null) {
+            return false;
+        }
+        session.stop(Duration.ZERO);
+        return true;
+    }
+
+    private HttpRequest request(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                          .header("User-Agent", config.getHttpRecorder().getUserAgent())
+                          .GET()
+                          .build();
+    }
+
+    private static void sleep(Duration delay) {
+        try {
+            Thread.sleep(delay.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String message(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+    }
+
+    /**
+     * Where a recording is in the stream, kept across its sessions.
+     */
+    private static final class Position {
+        // Media sequence number of the next segment to write, null until the first segment was chosen
+        private Long nextSequence;
+        // When a playlist was last loaded, which bounds the time that can have been lost since
+        private Long lastPlaylistAt;
+        private boolean wroteData;
+    }
+
+    private record Download(HlsPlaylist.Segment segment, CompletableFuture<HttpResponse<byte[]>> exchange, long startedAt) {
+    }
+
+    /**
+     * One session of a recording, run by the recording's thread. Stopping it cancels its requests and wakes
+     * up the recording thread.
+     */
+    private final class Session implements Stoppable {
+        private final Long scheduleId;
+        private final String name;
+        private final FileChannel file;
+        private final Position position;
+        private final long startedAt = System.nanoTime();
+        // Segments that are downloading or wait for the ones before them to be written, by media sequence number
+        private final NavigableMap<Long, Download> downloads = new ConcurrentSkipListMap<>();
+        private final Deque<HlsPlaylist.Segment> queued = new ArrayDeque<>();
+        // Released whenever a download completes or the session is stopped
+        private final Semaphore changes = new Semaphore(0);
+        private volatile CompletableFuture<? extends HttpResponse<?>> playlistRequest;
+        private volatile boolean stopped;
+        private URI mediaPlaylist;
+        private Duration targetDuration;
+        private boolean playlistEnded;
+        private Long lastQueued;
+        private long bytes;
+        private long mediaMicros;
+
+        private Session(Long scheduleId, String name, FileChannel file, Position position) {
+            this.scheduleId = scheduleId;
+            this.name = name;
+            this.file = file;
+            this.position = position;
+            this.lastQueued = position.nextSequence != null ? position.nextSequence - 1 : null;
+        }
+
+        private HlsPlaylist loadMediaPlaylist(URI url) throws IOException {
+            HlsPlaylist playlist = load(url);
+            mediaPlaylist = url;
+            if (playlist.isMaster()) {
+                mediaPlaylist = playlist.bestVariant().uri();
+                playlist = load(mediaPlaylist);
+                if (playlist.isMaster()) {
+                    throw new IllegalStateException("HLS master playlist refers to another master playlist");
+                }
+            }
+            return playlist;
+        }
+
+        private boolean run(HlsPlaylist playlist, long deadline) throws IOException {
+            RecordingServiceConfig.Hls settings = config.getHls();
+            long reloadAt = queue(playlist, settings);
+            long lastReportAt = startedAt;
+            while (!stopped) {
+                long now = System.nanoTime();
+                if (now >= deadline) {
+                    return false;
+                }
+                if (now >= reloadAt) {
+                    HlsPlaylist reloaded = null;
+                    try {
+                        reloaded = load(mediaPlaylist);
+                    } catch (IOException e) {
+                        if (stopped) {
+                            return false;
+                        }
+                        // Segments that are already known keep downloading, the watchdog notices if nothing comes
+                        logger.warn("Reloading the playlist of {} failed: {}", name, e.getMessage());
+                    }
+                    reloadAt = reloaded != null ? queue(reloaded, settings) : now + targetDuration.dividedBy(2).toNanos();
+                }
+                cancelOverdue(settings.getSegmentTimeout());
+                writeCompleted(settings.getSegmentTimeout());
+                startDownloads(settings.getParallelDownloads());
+                if (playlistEnded && queued.isEmpty() && downloads.isEmpty()) {
+                    return true;
+                }
+                if (now - lastReportAt >= PROGRESS_INTERVAL.toNanos()) {
+                    reportProgress(false);
+                    lastReportAt = now;
+                }
+                awaitChange(Math.min(Math.min(reloadAt, deadline), nextTimeout(settings.getSegmentTimeout())));
+            }
+            return false;
+        }
+
+        /**
+         * Queues the segments of a freshly loaded playlist that were not queued before. A live recording
+         * starts {@code live-start-segments} before the end of the playlist, a finished playlist at its start.
+         * @return when to reload the playlist, after the target duration if it had new segments, after half
+         * of it otherwise (RFC 8216, section 6.3.4)
+         */
+        private long queue(HlsPlaylist playlist, RecordingServiceConfig.Hls settings) throws IOException {
+            long now = System.nanoTime();
+            List<HlsPlaylist.Segment> segments = playlist.segments();
+            targetDuration = playlist.targetDuration();
+            playlistEnded = playlist.endList();
+            if (lastQueued == null && !segments.isEmpty()) {
+                int start = playlist.endList() ? 0 : Math.max(0, segments.size() - settings.getLiveStartSegments());
+                lastQueued = segments.get(start).sequence() - 1;
+            } else if (lastQueued != null && !segments.isEmpty() && segments.getLast().sequence() < lastQueued - segments.size()) {
+                // The provider restarted the stream, the next session starts again at its live edge
+                position.nextSequence = null;
+                throw new IOException("Media sequence restarted at " + segments.getFirst().sequence());
+            }
+            long missed = 0;
+            int added = 0;
+            for (HlsPlaylist.Segment segment : segments) {
+                if (lastQueued == null || segment.sequence() <= lastQueued) {
+                    continue;
+                }
+                missed += segment.sequence() - lastQueued - 1;
+                queued.addLast(segment);
+                lastQueued = segment.sequence();
+                added++;
+            }
+            if (missed > 0) {
+                reportMissed(missed, now);
+            }
+            position.lastPlaylistAt = now;
+            return now + (added > 0 ? targetDuration : targetDuration.dividedBy(2)).toNanos();
+        }
+
+        private void reportMissed(long missed, long now) {
+            Duration lost = targetDuration.multipliedBy(missed);
+            if (position.lastPlaylistAt != null && lost.toNanos() > now - position.lastPlaylistAt) {
+                // A jump in the sequence numbers cannot have cost more time than has passed
+                lost = Duration.ofNanos(now - position.lastPlaylistAt);
+            }
+            logger.warn("{} missed {} segments ({}s), they left the playlist before they were downloaded",
+                        name, missed, lost.toSeconds());
+            recordingWatchdog.reportLoss(scheduleId, lost);
+        }
+
+        private void startDownloads(int parallelDownloads) {
+            long running = downloads.values().stream().filter(download -> !download.exchange().isDone()).count();
+            while (running < parallelDownloads && !queued.isEmpty() && !stopped) {
+                HlsPlaylist.Segment segment = queued.removeFirst();
+                CompletableFuture<HttpResponse<byte[]>> exchange = httpClient.sendAsync(request(segment.uri()),
+                                                                                        HttpResponse.BodyHandlers.ofByteArray());
+                exchange.whenComplete((response, e) -> changes.release());
+                downloads.put(segment.sequence(), new Download(segment, exchange, System.nanoTime()));
+                running++;
+            }
+        }
+
+        private void cancelOverdue(Duration segmentTimeout) {
+            long now = System.nanoTime();
+            for (Download download : downloads.values()) {
+                if (!download.exchange().isDone() && now - download.startedAt() >= segmentTimeout.toNanos()) {
+                    download.exchange().cancel(true);
+                }
+            }
+        }
+
+        private long nextTimeout(Duration segmentTimeout) {
+            return downloads.values().stream()
+                            .filter(download -> !download.exchange().isDone())
+                            .mapToLong(download -> download.startedAt() + segmentTimeout.toNanos())
+                            .min()
+                            .orElse(Long.MAX_VALUE);
+        }
+
+        /**
+         * Appends the downloaded segments at the head of the sequence, skipping failed ones.
+         */
+        private void writeCompleted(Duration segmentTimeout) throws IOException {
+            Map.Entry<Long, Download> head;
+            while (!stopped && (head = downloads.firstEntry()) != null && head.getValue().exchange().isDone()) {
+                downloads.remove(head.getKey());
+                HlsPlaylist.Segment segment = head.getValue().segment();
+                byte[] body;
+                try {
+                    HttpResponse<byte[]> response = head.getValue().exchange().join();
+                    if (response.statusCode() != 200) {
+                        throw new IOException("HTTP " + response.statusCode());
+                    }
+                    body = response.body();
+                } catch (IOException | CompletionException | CancellationException e) {
+                    if (stopped) {
+                        return;
+                    }
+                    String reason = System.nanoTime() - head.getValue().startedAt() >= segmentTimeout.toNanos()
+                                    ? "not downloaded within " + segmentTimeout.toSeconds() + "s" : message(e);
+                    logger.warn("Segment {} of {} lost ({}s): {}", segment.sequence(), name,
+                                String.format("%.2f", segment.duration().toMillis() / 1000.0), reason);
+                    recordingWatchdog.reportLoss(scheduleId, segment.duration());
+                    position.nextSequence = segment.sequence() + 1;
+                    continue;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+                bytes += body.length;
+                mediaMicros += segment.duration().toNanos() / 1000;
+                position.nextSequence = segment.sequence() + 1;
+                position.wroteData |= body.length > 0;
+            }
+        }
+
+        private void awaitChange(long until) throws IOException {
+            long wait = until - System.nanoTime();
+            try {
+                if (wait > 0) {
+                    changes.tryAcquire(wait, TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading");
+            }
+            // Everything that changed is looked at in the next round anyway
+            changes.drainPermits();
+        }
+
+        private HlsPlaylist load(URI uri) throws IOException {
+            CompletableFuture<HttpResponse<String>> exchange = httpClient.sendAsync(request(uri), HttpResponse.BodyHandlers.ofString());
+            playlistRequest = exchange;
+            if (stopped) {
+                exchange.cancel(true);
+            }
+            Duration timeout = config.getHls().getSegmentTimeout();
+            try {
+                HttpResponse<String> response = exchange.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+                if (response.statusCode() != 200) {
+                    throw new IOException("HTTP " + response.statusCode());
+                }
+                return HlsPlaylist.parse(response.uri(), response.body());
+            } catch (TimeoutException e) {
+                exchange.cancel(true);
+                throw new IOException("No playlist within " + timeout.toSeconds() + "s");
+            } catch (ExecutionException e) {
+                throw new IOException(message(e.getCause()), e.getCause());
+            } catch (CancellationException e) {
+                throw new IOException("Playlist request cancelled");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading the playlist");
+            }
+        }
+
+        private void reportProgress(boolean ended) {
+            double wallSeconds = (System.nanoTime() - startedAt) / 1e9;
+            double mediaSeconds = mediaMicros / 1e6;
+            double bitrateKbps = mediaSeconds > 0 ? bytes * 8 / 1000.0 / mediaSeconds : -1;
+            double speed = wallSeconds > 0 ? mediaSeconds / wallSeconds : -1;
+            recordingWatchdog.onProgress(scheduleId, new FfmpegProgress(bytes, mediaMicros, bitrateKbps, speed, ended));
+        }
+
+        private boolean isStopped() {
+            return stopped;
+        }
+
+        @Override
+        public boolean stop(Duration gracePeriod) {
+            stopped = true;
+            close();
+            return true;
+        }
+
+        private void close() {
+            CompletableFuture<? extends HttpResponse<?>> pending = playlistRequest;
+            if (pending != null) {
+                pending.cancel(true);
+            }
+            for (Download download : downloads.values()) {
+                download.exchange().cancel(true);
+            }
+            changes.release();
+        }
+    }
+}
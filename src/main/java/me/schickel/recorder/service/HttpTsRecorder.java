@@ -0,0 +1,176 @@
+package me.schickel.recorder.service;
+
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.metrics.RecordingMetrics;
+import me.schickel.recorder.process.FfmpegProgress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Records plain HTTP MPEG-TS streams without ffmpeg: the response body is copied into the output file by the
+ * recording's own thread, in whole TS packets. When a connection ends, fails or is stopped by the watchdog,
+ * the recorder connects again and appends to the same file, starting at the next packet boundary of the new
+ * connection. Every connection is a segment for the watchdog, with the media time taken from the PCR.
+ * Recordings of the same URL receive it over one connection of {@link StreamIngest}. A recording of a pinned
+ * channel that starts in the past begins with the buffered stream of {@link RollingBufferService}.
+ */
+@Service
+@RequiredArgsConstructor
+public class HttpTsRecorder {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpTsRecorder.class);
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration MAX_RECONNECT_DELAY = Duration.ofSeconds(5);
+    // Without a packet boundary in this many bytes, the source does not serve MPEG-TS
+    private static final long MAX_UNALIGNED_BYTES = 1024 * 1024;
+
+    private final RecordingServiceConfig config;
+    private final RecordingWatchdog recordingWatchdog;
+    private final RecordingMetrics recordingMetrics;
+    private final StreamIngest streamIngest;
+    private final RollingBufferService rollingBufferService;
+    private final ConcurrentMap<Long, StreamFeed> activeConnections = new ConcurrentHashMap<>();
+
+    /**
+     * Records {@code url} into {@code outputPath} until {@code stopTime}, or until {@code keepRecording} turns
+     * false, which is checked before every connection. {@link #stop} ends the current connection.
+     * @return true if any data was written
+     * @throws IllegalStateException if the source is not a plain MPEG-TS stream, e.g. an HLS playlist, before any
+     *                               data was written
+     */
+    public boolean record(Long scheduleId, String url, Path outputPath, LocalDateTime stopTime, BooleanSupplier keepRecording)
+            throws IOException {
+        return record(scheduleId, url, outputPath, null, stopTime, keepRecording);
+    }
+
+    /**
+     * Like {@link #record(Long, String, Path, LocalDateTime, BooleanSupplier)}, but starts at {@code startTime} if
+     * that is in the past and the channel is buffered, as far back as the buffer reaches.
+     */
+    public boolean record(Long scheduleId, String url, Path outputPath, LocalDateTime startTime, LocalDateTime stopTime,
+                          BooleanSupplier keepRecording) throws IOException {
+        String name = outputPath.getFileName().toString();
+        RecordingServiceConfig.HttpRecorder settings = config.getHttpRecorder();
+        long deadline = System.nanoTime() + Duration.between(LocalDateTime.now(), stopTime).toNanos();
+        boolean wroteData = false;
+        int failedConnections = 0;
+        try (FileChannel file = FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            TsPacketWriter writer = new TsPacketWriter(file, settings.getBufferSize());
+            // Only the first connection starts in the past, the following ones are live
+            StreamFeed buffered = rollingBufferService.open(url, startTime, name).orElse(null);
+            while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                if (failedConnections > 0) {
+                    sleep(Duration.ofSeconds(failedConnections).compareTo(MAX_RECONNECT_DELAY) < 0
+                          ? Duration.ofSeconds(failedConnections) : MAX_RECONNECT_DELAY);
+                }
+                StreamFeed connection = buffered != null ? buffered : streamIngest.subscriber(url, name);
+                buffered = null;
+                activeConnections.put(scheduleId, connection);
+                // Checked after registering the connection, so that a stop in between closes it
+                if (!keepRecording.getAsBoolean()) {
+                    activeConnections.remove(scheduleId, connection);
+                    break;
+                }
+                writer.startConnection();
+                long startedAt = System.nanoTime();
+                recordingWatchdog.watch(scheduleId, name, connection);
+                try {
+                    connection.connect();
+                    copy(scheduleId, connection, writer, settings.getReadTimeout(), startedAt, deadline);
+                } catch (IOException e) {
+                    if (!connection.isClosed()) {
+                        logger.warn("Connection of {} failed after {} bytes: {}", name, writer.getConnectionBytes(), e.getMessage());
+                    }
+                } catch (IllegalStateException e) {
+                    if (!wroteData) {
+                        throw e;
+                    }
+                    // The source was fine until now, so it is treated like any other failure of the connection
+                    logger.warn("Connection of {} failed after {} bytes: {}", name, writer.getConnectionBytes(), e.getMessage());
+                } finally {
+                    activeConnections.remove(scheduleId, connection);
+                    connection.close();
+                    reportProgress(scheduleId, writer, startedAt, true);
+                    recordingWatchdog.endSegment(scheduleId);
+                    recordingMetrics.recordSegment(scheduleId, Duration.ofNanos(System.nanoTime() - startedAt));
+                }
+                if (writer.getConnectionBytes() > 0) {
+                    wroteData = true;
+                    failedConnections = 0;
+                } else if (!wroteData && writer.getDiscardedBytes() >= MAX_UNALIGNED_BYTES) {
+                    throw new IllegalStateException("Source is not an MPEG-TS stream, no packet boundary in "
+                                                    + writer.getDiscardedBytes() + " bytes");
+                } else {
+                    failedConnections++;
+                }
+            }
+        }
+        return wroteData;
+    }
+
+    private void copy(Long scheduleId, StreamFeed connection, TsPacketWriter writer, Duration readTimeout,
+                      long startedAt, long deadline) throws IOException {
+        long lastReportAt = startedAt;
+        List<ByteBuffer> received;
+        while ((received = connection.next(readTimeout)) != null) {
+            for (ByteBuffer buffer : received) {
+                writer.transfer(buffer);
+            }
+            long now = System.nanoTime();
+            if (now - lastReportAt >= PROGRESS_INTERVAL.toNanos()) {
+                reportProgress(scheduleId, writer, startedAt, false);
+                lastReportAt = now;
+            }
+            if (now >= deadline) {
+                return;
+            }
+        }
+    }
+
+    private void reportProgress(Long scheduleId, TsPacketWriter writer, long startedAt, boolean ended) {
+        double wallSeconds = (System.nanoTime() - startedAt) / 1e9;
+        // Without a PCR the speed check cannot tell, so the media time keeps up with the clock
+        long mediaMicros = writer.hasMediaTime() ? writer.getMediaTimeMicros() : (long) (wallSeconds * 1_000_000);
+        double mediaSeconds = mediaMicros / 1e6;
+        double bitrateKbps = mediaSeconds > 0 ? writer.getConnectionBytes() * 8 / 1000.0 / mediaSeconds : -1;
+        double speed = writer.hasMediaTime() && wallSeconds > 0 ? mediaSeconds / wallSeconds : -1;
+        recordingWatchdog.onProgress(scheduleId, new FfmpegProgress(writer.getConnectionBytes(), mediaMicros, bitrateKbps, speed, ended));
+    }
+
+    /**
+     * Closes the current connection of a recording, or leaves it to the other recordings of the same URL. The
+     * recording connects again unless its {@code keepRecording} turned false.
+     * @return true if the recording had an open connection
+     */
+    public boolean stop(Long scheduleId) {
+        StreamFeed connection = activeConnections.remove(scheduleId);
+        if (connection == null) {
+            return false;
+        }
+        connection.close();
+        return true;
+    }
+
+    private static void sleep(Duration delay) {
+        try {
+            Thread.sleep(delay.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.process.FfmpegProgress;
+import me.schickel.recorder.process.FfmpegProgressParser;
+import me.schickel.recorder.process.ManagedProcess;
+import me.schickel.recorder.process.ProcessLauncher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * The live MKV of one part with {@code recorder.live-mkv} enabled. An ffmpeg process of its own follows the TS
+ * file while the recording writes it and copies it into the MKV, so that a muxing error of the MKV only ends
+ * this process and never the recording. A live MKV that is missing or shorter than its TS is replaced by a
+ * remux of the TS after the recording, see {@link PostProcessingService#finishMkv}.
+ */
+class LiveMkv {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveMkv.class);
+    // Once the TS is complete, the follower has caught up when its output did not grow for this long
+    private static final Duration CAUGHT_UP_AFTER = Duration.ofSeconds(1);
+    private static final Duration MAX_CATCH_UP = Duration.ofSeconds(10);
+    private static final Duration STOP_TIMEOUT = Duration.ofSeconds(3);
+
+    private final ProcessLauncher processLauncher;
+    private final Path tsPath;
+    private final Path mkvPath;
+    private ManagedProcess process;
+    private boolean finished;
+    private volatile long writtenBytes = -1;
+    private volatile long grewAt = System.nanoTime();
+
+    LiveMkv(ProcessLauncher processLauncher, Path tsPath, Path mkvPath) {
+        this.processLauncher = processLauncher;
+        this.tsPath = tsPath;
+        this.mkvPath = mkvPath;
+    }
+
+    /**
+     * Starts following the TS, unless the part already finished.
+     */
+    synchronized void start() {
+        if (finished || process != null) {
+            return;
+        }
+        try {
+            process = processLauncher.start(mkvPath.getFileName().toString(), FfmpegService.buildLiveMkvCommand(tsPath, mkvPath),
+                                            new FfmpegProgressParser(this::onProgress));
+        } catch (IOException e) {
+            logger.warn("Could not start the live MKV of {}, the TS is remuxed after the recording: {}", tsPath.getFileName(), e.getMessage());
+            return;
+        }
+        ManagedProcess started = process;
+        started.onExit().thenAccept(exitCode -> {
+            if (exitCode != 0 && !isFinished()) {
+                logger.warn("Live MKV of {} failed with code {}, the TS is remuxed after the recording: {}", tsPath.getFileName(), exitCode,
+                            String.join(" | ", started.getRecentErrorOutput()));
+            }
+        });
+    }
+
+    private void onProgress(FfmpegProgress progress) {
+        if (progress.totalSizeBytes() != writtenBytes) {
+            writtenBytes = progress.totalSizeBytes();
+            grewAt = System.nanoTime();
+        }
+    }
+
+    private synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Lets the follower copy the rest of the complete TS, then stops it, which writes the index of the MKV.
+     * A follower that did not start yet never will.
+     */
+    void finish() {
+        ManagedProcess follower;
+        synchronized (this) {
+            finished = true;
+            follower = process;
+        }
+        if (follower == null) {
+            return;
+        }
+        long deadline = System.nanoTime() + MAX_CATCH_UP.toNanos();
+        try {
+            while (follower.isAlive() && System.nanoTime() - grewAt < CAUGHT_UP_AFTER.toNanos() && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            if (!follower.isAlive()) {
+                return;
+            }
+            // ffmpeg waits for the TS to grow and does not read q on stdin meanwhile
+            follower.terminate();
+            if (follower.waitFor(STOP_TIMEOUT) == null) {
+                logger.warn("Live MKV of {} did not finish within {} ms, killing it", tsPath.getFileName(), STOP_TIMEOUT.toMillis());
+                follower.forceStop();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            follower.forceStop();
+        }
+    }
+}
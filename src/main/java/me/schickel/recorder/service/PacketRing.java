@@ -0,0 +1,196 @@
+package me.schickel.recorder.service;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The last packets of a stream in a fixed block of off-heap memory, allocated once and overwritten from the
+ * oldest packet on. Every packet has a sequence number counting from the first packet ever written, and the time
+ * it was received is known to within {@link #MARK_INTERVAL_MILLIS}, so readers can start at a point in time
+ * and follow the stream from there. Packets older than the retention are not handed out even if they still fit.
+ * Written by a {@link TsPacketWriter}, which only writes whole packets.
+ */
+class PacketRing implements WritableByteChannel {
+
+    static final long MARK_INTERVAL_MILLIS = 500;
+    private static final int PACKET_SIZE = TsPacketWriter.PACKET_SIZE;
+    // A direct buffer is indexed by int
+    static final int MAX_CAPACITY = Integer.MAX_VALUE / PACKET_SIZE;
+
+    private final ByteBuffer packets;
+    private final int capacity;
+    private final long retentionMillis;
+    private final LongSupplier clock;
+    // Ring of (sequence, time) pairs, the first packet written at or after each time
+    private final long[] markSequences;
+    private final long[] markTimes;
+    private long marks;
+    private long written;
+    private boolean open = true;
+
+    PacketRing(int capacity, Duration retention) {
+        this(capacity, retention, System::currentTimeMillis);
+    }
+
+    PacketRing(int capacity, Duration retention, LongSupplier clock) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("A ring holds 1 to " + MAX_CAPACITY + " packets, not " + capacity);
+        }
+        this.capacity = capacity;
+        this.retentionMillis = retention.toMillis();
+        this.clock = clock;
+        this.packets = ByteBuffer.allocateDirect(capacity * PACKET_SIZE);
+        int markCount = markCount(retention);
+        this.markSequences = new long[markCount];
+        this.markTimes = new long[markCount];
+    }
+
+    /**
+     * Memory taken by a ring of the given size, the packets off-heap and the marks on the heap.
+     */
+    static long memoryBytes(int capacity, Duration retention) {
+        return (long) capacity * PACKET_SIZE + markCount(retention) * 2L * Long.BYTES;
+    }
+
+    private static int markCount(Duration retention) {
+        return (int) (retention.toMillis() / MARK_INTERVAL_MILLIS) + 2;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer source) {
+        int length = source.remaining();
+        if (length % PACKET_SIZE != 0) {
+            throw new IllegalArgumentException("Only whole packets can be buffered, got " + length + " bytes");
+        }
+        long now = clock.getAsLong();
+        if (marks == 0 || now - markTimes[(int) ((marks - 1) % markTimes.length)] >= MARK_INTERVAL_MILLIS) {
+            markSequences[(int) (marks % markSequences.length)] = written;
+            markTimes[(int) (marks % markTimes.length)] = now;
+            marks++;
+        }
+        int surplus = length - packets.capacity();
+        if (surplus > 0) {
+            // Would be overwritten by the rest of the same write
+            source.position(source.position() + surplus);
+            written += surplus / PACKET_SIZE;
+        }
+        while (source.hasRemaining()) {
+            int offset = (int) (written % capacity) * PACKET_SIZE;
+            int chunk = Math.min(source.remaining(), packets.capacity() - offset);
+            packets.put(offset, source, source.position(), chunk);
+            source.position(source.position() + chunk);
+            written += chunk / PACKET_SIZE;
+        }
+        notifyAll();
+        return length;
+    }
+
+    /**
+     * @return the sequence of the first packet received about {@code epochMillis} or later, at most one mark
+     * interval early, or the oldest packet still held if that is later
+     */
+    synchronized long sequenceAt(long epochMillis) {
+        long oldest = oldest();
+        long sequence = written;
+        for (long mark = marks - 1; mark >= Math.max(0, marks - markTimes.length); mark--) {
+            int index = (int) (mark % markTimes.length);
+            sequence = markSequences[index];
+            if (markTimes[index] <= epochMillis) {
+                break;
+            }
+        }
+        return Math.max(sequence, oldest);
+    }
+
+    /**
+     * Copies whole packets from {@code sequence} on into {@code target}, waiting up to {@code timeoutMillis} for
+     * the first one. A sequence that was overwritten already or is past the retention starts at the oldest packet.
+     * @param cancelled checked whenever the wait is woken up, see {@link #wakeUp}
+     * @return the sequence of the first copied packet, nothing was copied if the position of {@code target} did
+     * not move
+     */
+    synchronized long read(long sequence, ByteBuffer target, long timeoutMillis, BooleanSupplier cancelled)
+            throws InterruptedException {
+        long waitUntil = System.nanoTime() + timeoutMillis * 1_000_000;
+        long start = Math.max(sequence, oldest());
+        while (start >= written && open && !cancelled.getAsBoolean()) {
+            long remainingMillis = (waitUntil - System.nanoTime()) / 1_000_000;
+            if (remainingMillis <= 0) {
+                return start;
+            }
+            wait(remainingMillis);
+            start = Math.max(sequence, oldest());
+        }
+        int count = (int) Math.min(written - start, target.remaining() / PACKET_SIZE);
+        for (long next = start; next < start + count; ) {
+            int index = (int) (next % capacity);
+            int run = (int) Math.min(start + count - next, capacity - index);
+            target.put(target.position(), packets, index * PACKET_SIZE, run * PACKET_SIZE);
+            target.position(target.position() + run * PACKET_SIZE);
+            next += run;
+        }
+        return start;
+    }
+
+    /**
+     * Sequence of the next packet to be written.
+     */
+    synchronized long written() {
+        return written;
+    }
+
+    /**
+     * How far back the held packets reach, judged by the marks.
+     */
+    synchronized Duration bufferedDuration() {
+        long oldest = oldest();
+        if (oldest >= written) {
+            return Duration.ZERO;
+        }
+        for (long mark = Math.max(0, marks - markTimes.length); mark < marks; mark++) {
+            int index = (int) (mark % markTimes.length);
+            if (markSequences[index] >= oldest) {
+                return Duration.ofMillis(Math.max(0, clock.getAsLong() - markTimes[index]));
+            }
+        }
+        return Duration.ZERO;
+    }
+
+    /**
+     * Wakes up the readers waiting for packets, so that they check whether they were cancelled.
+     */
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private long oldest() {
+        long oldest = Math.max(0, written - capacity);
+        long cutoff = clock.getAsLong() - retentionMillis;
+        // The first mark within the retention, the marks before it only cover older packets
+        for (long mark = Math.max(0, marks - markTimes.length); mark < marks; mark++) {
+            int index = (int) (mark % markTimes.length);
+            if (markTimes[index] >= cutoff) {
+                return Math.max(oldest, markSequences[index]);
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        notifyAll();
+    }
+}
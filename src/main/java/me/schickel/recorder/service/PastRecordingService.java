@@ -1,5 +1,7 @@
 package me.schickel.recorder.service;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import me.schickel.recorder.dto.response.PastRecordingResponse;
 import me.schickel.recorder.entity.PastRecording;
@@ -11,13 +13,16 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @Service
 @RequiredArgsConstructor
 public class PastRecordingService {
 
     private static final Logger logger = LoggerFactory.getLogger(PastRecordingService.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
     private final PastRecordingRepository pastRecordingRepository;
     private final TimeUtils timeUtils;
 
@@ -31,6 +36,7 @@ public class PastRecordingService {
         pastRecording.setRecordedAt(LocalDateTime.now());
         pastRecording.setWasTriggered(recording.isTriggered());
         pastRecording.setCompletionStatus(completionStatus != null ? completionStatus : "COMPLETED");
+        pastRecording.setPartSources(recording.getPartSources());
         
         pastRecordingRepository.save(pastRecording);
         String sanitizedFileName = recording.getFileName() != null ? 
@@ -68,6 +74,19 @@ public class PastRecordingService {
         response.setRecordedAt(timeUtils.parseLocalDateTimeToString(entity.getRecordedAt()));
         response.setWasTriggered(entity.isWasTriggered());
         response.setCompletionStatus(entity.getCompletionStatus());
+        response.setPartSources(parsePartSources(entity.getPartSources()));
         return response;
     }
+
+    private static Map<String, String> parsePartSources(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(json, new TypeReference<LinkedHashMap<String, String>>() { });
+        } catch (Exception e) {
+            logger.warn("Could not read the part sources of a past recording: {}", e.getMessage());
+            return null;
+        }
+    }
 }
\ No newline at end of file
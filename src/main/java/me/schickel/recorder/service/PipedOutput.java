@@ -0,0 +1,135 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.metrics.RecordingMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+/**
+ * The file of an ffmpeg process that writes its recording to stdout ({@code -f mpegts pipe:1}) with
+ * {@code recorder.pipe} enabled. A virtual thread drains the pipe into a direct buffer and writes it once the
+ * buffer is full or the pipe has nothing more to read right away, so the file gets few large writes. On the way
+ * the bytes are counted for the metrics and the watchdog, a CRC-32C of the file is kept, and the file is synced
+ * to disk every sync interval and when ffmpeg ends.
+ */
+class PipedOutput {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipedOutput.class);
+
+    private final Path file;
+    private final ByteBuffer buffer;
+    private final long syncIntervalNanos;
+    private final RecordingMetrics recordingMetrics;
+    private final CRC32C checksum = new CRC32C();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private volatile long writtenBytes;
+    private volatile long checksumValue;
+
+    /**
+     * @param syncInterval zero to sync only at the end
+     */
+    PipedOutput(Path file, int bufferSize, Duration syncInterval, RecordingMetrics recordingMetrics) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Pipe buffer size must be positive, got " + bufferSize);
+        }
+        this.file = file;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.syncIntervalNanos = syncInterval.toNanos();
+        this.recordingMetrics = recordingMetrics;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Creates or replaces the file and writes everything read from {@code stdout} to it until the process closes it.
+     * @throws IOException if the file cannot be opened, nothing is read then
+     */
+    void start(InputStream stdout) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+        Thread.ofVirtual().name("pipe-" + file.getFileName()).start(() -> drain(stdout, channel));
+    }
+
+    private void drain(InputStream stdout, FileChannel channel) {
+        long lastSync = System.nanoTime();
+        // Closing the pipe early makes ffmpeg fail on its next write instead of blocking on a full pipe
+        try (ReadableByteChannel pipe = Channels.newChannel(stdout); channel) {
+            while (true) {
+                boolean ended = pipe.read(buffer) < 0;
+                if (!ended && buffer.hasRemaining() && stdout.available() > 0) {
+                    continue;
+                }
+                write(channel);
+                if (ended) {
+                    break;
+                }
+                if (syncIntervalNanos > 0 && System.nanoTime() - lastSync >= syncIntervalNanos) {
+                    sync(channel);
+                    lastSync = System.nanoTime();
+                }
+            }
+            sync(channel);
+            logger.info("Wrote {} bytes of ffmpeg's output to {}, CRC-32C {}", writtenBytes, file.getFileName(), checksum());
+        } catch (IOException e) {
+            logger.error("Writing ffmpeg's output to {} failed after {} bytes: {}", file.getFileName(), writtenBytes, e.getMessage());
+        } finally {
+            closed.complete(null);
+        }
+    }
+
+    private void write(FileChannel channel) throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        checksum.update(buffer.slice());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        if (length > 0) {
+            checksumValue = checksum.getValue();
+            writtenBytes += length;
+            recordingMetrics.recordPipeWrite(length);
+        }
+    }
+
+    private void sync(FileChannel channel) throws IOException {
+        long startedAt = System.nanoTime();
+        channel.force(false);
+        recordingMetrics.recordPipeSync(Duration.ofNanos(System.nanoTime() - startedAt));
+    }
+
+    /**
+     * Bytes written to the file so far.
+     */
+    long writtenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * CRC-32C of the bytes written so far, as 8 hex digits.
+     */
+    String checksum() {
+        return String.format(Locale.ROOT, "%08x", checksumValue);
+    }
+
+    /**
+     * Waits until everything ffmpeg wrote to the pipe is in the file, which can be shortly after it exited.
+     */
+    void awaitClosed() {
+        closed.join();
+    }
+}
@@ -0,0 +1,233 @@
+package me.schickel.recorder.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.PostProcessingJob;
+import me.schickel.recorder.entity.PostProcessingJob.Status;
+import me.schickel.recorder.entity.PostProcessingJob.Type;
+import me.schickel.recorder.repository.PostProcessingJobRepository;
+import me.schickel.recorder.util.ExecutorConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent queue of post-processing jobs. A finished recording only inserts a row and returns, the jobs are
+ * handed to the post-processing pool in the order they were queued, at most
+ * {@code recorder.post-processing.max-parallel} at a time. The jobs of one recording run one after the other, so
+ * that e.g. the join of a segmented recording only starts once the remuxes of its segments are done. Jobs that were
+ * running when the application stopped are started again on the next startup.
+ */
+@Service
+@RequiredArgsConstructor
+public class PostProcessingQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(PostProcessingQueue.class);
+    // A job interrupted this often probably takes the application down with it
+    private static final int MAX_ATTEMPTS = 3;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final PostProcessingJobRepository jobRepository;
+    private final PostProcessingService postProcessingService;
+    private final ExecutorConfig executorConfig;
+    private final RecordingServiceConfig config;
+
+    private final Object dispatchLock = new Object();
+    // Recordings with a running job, guarded by dispatchLock
+    private final Set<String> runningFiles = new HashSet<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong finishedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong totalRunMillis = new AtomicLong();
+
+    // Jobs queued before startup are only persisted, so resuming cannot mistake them for interrupted ones
+    private volatile boolean started;
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void start() {
+        List<PostProcessingJob> interrupted = jobRepository.findByStatus(Status.RUNNING);
+        for (PostProcessingJob job : interrupted) {
+            if (job.getAttempts() >= MAX_ATTEMPTS) {
+                logger.error("Giving up post-processing of {} after {} interrupted attempts", job.getFileName(), job.getAttempts());
+                job.setStatus(Status.FAILED);
+                job.setLastError("Interrupted " + job.getAttempts() + " times");
+            } else {
+                job.setStatus(Status.PENDING);
+            }
+        }
+        jobRepository.saveAll(interrupted);
+        logger.info("Loaded {} pending post-processing jobs", jobRepository.countByStatus(Status.PENDING));
+        started = true;
+        dispatch();
+    }
+
+    /**
+     * Queues work on the files of a finished recording. Never blocks on running jobs.
+     * @param overlaps parts to cut and how much of them to keep
+     */
+    public void enqueue(Type type, String fileName, List<Path> files, Map<Path, Duration> overlaps, boolean keepOriginalTs) {
+        PostProcessingJob job = new PostProcessingJob();
+        job.setType(type);
+        job.setStatus(Status.PENDING);
+        job.setFileName(fileName);
+        job.setKeepOriginalTs(keepOriginalTs);
+        job.setCreatedAt(LocalDateTime.now());
+        try {
+            job.setParts(encodeParts(files, overlaps));
+            jobRepository.save(job);
+        } catch (Exception e) {
+            logger.error("Could not queue post-processing of {}, the files are left as recorded: {}", fileName, e.getMessage());
+            return;
+        }
+        logger.info("Queued {} of {}", type, fileName);
+        dispatch();
+    }
+
+    /**
+     * Queues the remux of a closed segment of a recording that goes on, so that only the last segments are left
+     * to remux when it ends.
+     */
+    @EventListener
+    public void onSegmentClosed(SegmentClosedEvent event) {
+        if (event.remuxToMkv()) {
+            enqueue(Type.REMUX_SEGMENT, event.fileName(), List.of(event.segment()), Map.of(), true);
+        }
+    }
+
+    /**
+     * Hands pending jobs to the post-processing pool until max-parallel jobs are running.
+     */
+    void dispatch() {
+        if (!started) {
+            return;
+        }
+        synchronized (dispatchLock) {
+            while (running.get() < config.getPostProcessing().getMaxParallel()) {
+                Optional<PostProcessingJob> next = runningFiles.isEmpty()
+                                                   ? jobRepository.findFirstByStatusOrderByIdAsc(Status.PENDING)
+                                                   : jobRepository.findFirstByStatusAndFileNameNotInOrderByIdAsc(Status.PENDING,
+                                                                                                                   List.copyOf(runningFiles));
+                if (next.isEmpty()) {
+                    return;
+                }
+                PostProcessingJob job = next.get();
+                job.setStatus(Status.RUNNING);
+                job.setStartedAt(LocalDateTime.now());
+                job.setAttempts(job.getAttempts() + 1);
+                jobRepository.save(job);
+                running.incrementAndGet();
+                runningFiles.add(job.getFileName());
+                try {
+                    executorConfig.postProcessingExecutor().execute(() -> run(job));
+                } catch (RejectedExecutionException e) {
+                    // Shutting down, the job is resumed on the next startup
+                    running.decrementAndGet();
+                    runningFiles.remove(job.getFileName());
+                    job.setStatus(Status.PENDING);
+                    jobRepository.save(job);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void run(PostProcessingJob job) {
+        long startedAt = System.nanoTime();
+        boolean succeeded = false;
+        String error = "ffmpeg failed, see the log";
+        try {
+            logger.info("Starting {} of {} after waiting {}s", job.getType(), job.getFileName(),
+                        Duration.between(job.getCreatedAt(), job.getStartedAt()).toSeconds());
+            succeeded = execute(job);
+        } catch (Exception e) {
+            logger.error("Post-processing of {} failed: {}", job.getFileName(), e.getMessage());
+            error = e.getMessage();
+        } finally {
+            finishedCount.incrementAndGet();
+            totalWaitMillis.addAndGet(Duration.between(job.getCreatedAt(), job.getStartedAt()).toMillis());
+            totalRunMillis.addAndGet(Duration.ofNanos(System.nanoTime() - startedAt).toMillis());
+            try {
+                if (succeeded) {
+                    jobRepository.delete(job);
+                } else {
+                    failedCount.incrementAndGet();
+                    job.setStatus(Status.FAILED);
+                    job.setLastError(error);
+                    jobRepository.save(job);
+                }
+            } finally {
+                synchronized (dispatchLock) {
+                    runningFiles.remove(job.getFileName());
+                }
+                running.decrementAndGet();
+            }
+            dispatch();
+        }
+    }
+
+    private boolean execute(PostProcessingJob job) throws Exception {
+        List<Path> files = new ArrayList<>();
+        Map<Path, Duration> overlaps = new LinkedHashMap<>();
+        for (JobPart part : objectMapper.readValue(job.getParts(), new TypeReference<List<JobPart>>() { })) {
+            Path file = Path.of(part.path());
+            files.add(file);
+            if (part.keepMillis() != null) {
+                overlaps.put(file, Duration.ofMillis(part.keepMillis()));
+            }
+        }
+        return switch (job.getType()) {
+            case REMUX_TO_MKV -> postProcessingService.finishMkv(files, overlaps, job.isKeepOriginalTs());
+            case TRIM_OVERLAPS -> postProcessingService.trimOverlaps(overlaps);
+            case REMUX_SEGMENT -> postProcessingService.remuxSegment(files.get(0));
+            case JOIN_SEGMENTS -> postProcessingService.joinSegments(files, overlaps, job.isKeepOriginalTs());
+        };
+    }
+
+    static String encodeParts(List<Path> files, Map<Path, Duration> overlaps) throws JsonProcessingException {
+        List<JobPart> parts = files.stream()
+                                   .map(file -> new JobPart(file.toString(),
+                                                            overlaps.containsKey(file) ? overlaps.get(file).toMillis() : null))
+                                   .toList();
+        return objectMapper.writeValueAsString(parts);
+    }
+
+    public long pendingCount() {
+        return jobRepository.countByStatus(Status.PENDING);
+    }
+
+    public QueueStats getStats() {
+        return new QueueStats(running.get(), finishedCount.get(), failedCount.get(), totalWaitMillis.get(), totalRunMillis.get());
+    }
+
+    /**
+     * Counters since startup. Wait is the time from queueing a job to starting it, run the time it took.
+     */
+    public record QueueStats(int running, long finished, long failed, long totalWaitMillis, long totalRunMillis) {
+    }
+
+    record JobPart(String path, Long keepMillis) {
+    }
+}
@@ -0,0 +1,419 @@
+package me.schickel.recorder.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.process.ProcessLauncher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Runs the ffmpeg work on the files of a finished recording. The processes run under nice and ionice where
+ * available, so post-processing yields CPU and disk to recordings that are still running.
+ * Jobs are scheduled by {@link PostProcessingQueue}.
+ */
+@Service
+@RequiredArgsConstructor
+public class PostProcessingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PostProcessingService.class);
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(30);
+    // The muxers end the last frame differently, a live MKV this much shorter than its TS still counts as complete
+    private static final Duration LIVE_MKV_TOLERANCE = Duration.ofSeconds(2);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Map<String, Boolean> toolsOnPath = new ConcurrentHashMap<>();
+
+    private final ProcessLauncher processLauncher;
+    private final RecordingServiceConfig config;
+
+    /**
+     * Cuts the end of every segment that was still written after its replacement took over.
+     * @return false if any of the files could not be trimmed
+     */
+    boolean trimOverlaps(Map<Path, Duration> overlaps) {
+        boolean trimmedAll = true;
+        for (Map.Entry<Path, Duration> overlap : overlaps.entrySet()) {
+            trimmedAll &= trimOverlap(overlap.getKey(), overlap.getValue());
+        }
+        return trimmedAll;
+    }
+
+    private boolean trimOverlap(Path tsFile, Duration keep) {
+        String fileName = tsFile.getFileName().toString();
+        if (!Files.exists(tsFile)) {
+            logger.warn("Cannot trim {}, the file is gone", fileName);
+            return false;
+        }
+        Path trimmed = tsFile.resolveSibling(fileName.substring(0, fileName.lastIndexOf('.')) + ".trimmed"
+                                             + fileName.substring(fileName.lastIndexOf('.')));
+        List<String> command = List.of("ffmpeg", "-hide_banner", "-nostats", "-loglevel", "warning",
+                                       "-i", tsFile.toString(), "-map", "0", "-t", String.format(Locale.ROOT, "%.3f", keep.toMillis() / 1000.0),
+                                       "-c", "copy", "-y", trimmed.toString());
+        try {
+            int exitCode = processLauncher.start(fileName, withLowPriority(command), null).onExit().join();
+            if (exitCode != 0) {
+                logger.error("Could not trim the overlap of {}: ffmpeg exited with code {}", fileName, exitCode);
+                Files.deleteIfExists(trimmed);
+                return false;
+            }
+            Files.move(trimmed, tsFile, StandardCopyOption.REPLACE_EXISTING);
+            logger.info("Trimmed {} to {}s where the next segment takes over", fileName, keep.toSeconds());
+            return true;
+        } catch (Exception e) {
+            logger.error("Could not trim the overlap of {}: {}", fileName, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Produces the MKV of a recording. Uses the MKV files written during the recording if all of them are
+     * complete, so the TS files are not read again. Otherwise, e.g. when an upstream glitch made ffmpeg give up
+     * on a live MKV, the TS files are remuxed.
+     * @return false if the recording could not be remuxed
+     */
+    boolean finishMkv(List<Path> tsFiles, Map<Path, Duration> overlaps, boolean keepOriginalTs) {
+        List<Path> tsParts = tsFiles.stream().filter(Files::exists).toList();
+        List<Path> liveParts = tsParts.stream().map(PostProcessingService::liveMkvFor).toList();
+        if (tsParts.isEmpty() || !liveParts.stream().allMatch(Files::exists)) {
+            deleteAll(liveParts.stream().filter(Files::exists).toList());
+            return concatToMkv(tsFiles, overlaps, keepOriginalTs);
+        }
+        Path mkvPath = mkvFor(tsFiles.get(0));
+        for (Path tsPart : tsParts) {
+            if (!isLiveMkvComplete(tsPart)) {
+                logger.warn("The MKV written during the recording of {} is incomplete, remuxing the TS files instead",
+                            tsPart.getFileName());
+                deleteAll(liveParts);
+                return concatToMkv(tsFiles, overlaps, keepOriginalTs);
+            }
+        }
+
+        try {
+            if (liveParts.size() == 1 && overlaps.isEmpty()) {
+                Files.move(liveParts.get(0), mkvPath, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Map<Path, Duration> liveOverlaps = new LinkedHashMap<>();
+                overlaps.forEach((tsPart, keep) -> liveOverlaps.put(liveMkvFor(tsPart), keep));
+                logger.info("Joining {} live MKV parts into {}", liveParts.size(), mkvPath.getFileName());
+                if (!join(liveParts, liveOverlaps, mkvPath)) {
+                    logger.error("Joining the live MKV parts of {} failed, remuxing the TS files instead", mkvPath.getFileName());
+                    Files.deleteIfExists(mkvPath);
+                    deleteAll(liveParts);
+                    return concatToMkv(tsFiles, overlaps, keepOriginalTs);
+                }
+                deleteAll(liveParts);
+            }
+        } catch (IOException e) {
+            logger.error("Could not keep the live MKV of {}: {}", mkvPath.getFileName(), e.getMessage());
+            return false;
+        }
+        logger.info("Kept the MKV written during the recording: {}", mkvPath.toAbsolutePath());
+        return keepOriginalTs || deleteAll(tsParts);
+    }
+
+    /**
+     * Joins the parts of a recording into one MKV in a single pass with the concat demuxer, which shifts the
+     * timestamps of every part to continue where the previous one ended. Overlaps left by make-before-break are
+     * cut with outpoints on the way. Falls back to remuxing the parts one by one if joining fails.
+     * @return false if the recording could not be remuxed
+     */
+    boolean concatToMkv(List<Path> tsFiles, Map<Path, Duration> overlaps, boolean keepOriginalTs) {
+        List<Path> parts = tsFiles.stream().filter(Files::exists).toList();
+        if (tsFiles.isEmpty()) {
+            return true;
+        }
+        Path mkvPath = mkvFor(tsFiles.get(0));
+        if (parts.size() < tsFiles.size() && Files.exists(mkvPath)) {
+            // Interrupted by a restart while the parts were being deleted
+            logger.info("{} was already joined, removing the remaining parts", mkvPath.getFileName());
+            return keepOriginalTs || deleteAll(parts);
+        }
+        if (parts.size() < 2) {
+            trimOverlaps(overlaps);
+            return remuxToMkv(parts, keepOriginalTs);
+        }
+
+        logger.info("Joining {} parts into {}", parts.size(), mkvPath.getFileName());
+        if (!join(parts, overlaps, mkvPath)) {
+            logger.error("Joining the parts of {} failed, remuxing them one by one", mkvPath.getFileName());
+            try {
+                Files.deleteIfExists(mkvPath);
+            } catch (IOException e) {
+                logger.warn("Could not delete {}: {}", mkvPath, e.getMessage());
+            }
+            trimOverlaps(overlaps);
+            return remuxToMkv(parts, keepOriginalTs);
+        }
+        logger.info("Remux complete: {}", mkvPath.toAbsolutePath());
+        return keepOriginalTs || deleteAll(parts);
+    }
+
+    /**
+     * Remuxes a closed segment of a running recording into the MKV it is joined from at the end, see
+     * {@link #joinSegments}. The MKV only takes its place once it is complete.
+     * @return false if the segment could not be remuxed
+     */
+    boolean remuxSegment(Path segment) {
+        if (!Files.exists(segment)) {
+            // Joined and deleted already
+            return true;
+        }
+        String fileName = segment.getFileName().toString();
+        Path liveMkv = liveMkvFor(segment);
+        Path partial = segment.resolveSibling(fileName.substring(0, fileName.lastIndexOf('.')) + ".partial.mkv");
+        List<String> command = List.of("ffmpeg", "-hide_banner", "-nostats", "-loglevel", "warning",
+                                       "-i", segment.toString(), "-map", "0", "-dn", "-c", "copy", "-y", partial.toString());
+        try {
+            int exitCode = processLauncher.start(fileName, withLowPriority(command), null).onExit().join();
+            if (exitCode != 0) {
+                logger.error("Remux failed for segment {}: ffmpeg exited with code {}", fileName, exitCode);
+                Files.deleteIfExists(partial);
+                return false;
+            }
+            Files.move(partial, liveMkv, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Remuxed segment {}", fileName);
+            return true;
+        } catch (Exception e) {
+            logger.error("Remux failed for segment {}: {}", fileName, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Joins the segments of a recording into one MKV. The segments were remuxed one by one while recording, so
+     * usually only the last of them is remuxed here before the MKV segments are joined in a single pass. If that
+     * fails, the TS segments are joined instead.
+     * @return false if the recording could not be remuxed
+     */
+    boolean joinSegments(List<Path> segments, Map<Path, Duration> overlaps, boolean keepOriginalTs) {
+        if (segments.isEmpty()) {
+            return true;
+        }
+        List<Path> tsSegments = segments.stream().filter(Files::exists).toList();
+        List<Path> liveParts = tsSegments.stream().map(PostProcessingService::liveMkvFor).toList();
+        Path recordingPath = SegmentedOutput.partOf(segments.get(0));
+        Path mkvPath = mkvFor(recordingPath);
+        if (tsSegments.size() < segments.size() && Files.exists(mkvPath)) {
+            logger.info("{} was already joined, removing the remaining segments", mkvPath.getFileName());
+            deleteAll(liveParts.stream().filter(Files::exists).toList());
+            return keepOriginalTs || deleteAll(tsSegments);
+        }
+        boolean remuxed = true;
+        for (Path tsSegment : tsSegments) {
+            if (!Files.exists(liveMkvFor(tsSegment))) {
+                remuxed &= remuxSegment(tsSegment);
+            }
+        }
+        Map<Path, Duration> liveOverlaps = new LinkedHashMap<>();
+        overlaps.forEach((tsSegment, keep) -> liveOverlaps.put(liveMkvFor(tsSegment), keep));
+        logger.info("Joining {} segments into {}", tsSegments.size(), mkvPath.getFileName());
+        if (!remuxed || !join(liveParts, liveOverlaps, mkvPath)) {
+            logger.error("Joining the remuxed segments of {} failed, joining the TS segments instead", mkvPath.getFileName());
+            if (!join(tsSegments, overlaps, mkvPath)) {
+                try {
+                    Files.deleteIfExists(mkvPath);
+                } catch (IOException e) {
+                    logger.warn("Could not delete {}: {}", mkvPath, e.getMessage());
+                }
+                return false;
+            }
+        }
+        logger.info("Remux complete: {}", mkvPath.toAbsolutePath());
+        boolean deletedAll = deleteAll(liveParts.stream().filter(Files::exists).toList());
+        if (keepOriginalTs) {
+            return deletedAll;
+        }
+        // Without the segments there is nothing left to list
+        return deleteAll(tsSegments) && deleteAll(List.of(SegmentManifest.pathFor(recordingPath))) && deletedAll;
+    }
+
+    private boolean join(List<Path> parts, Map<Path, Duration> overlaps, Path output) {
+        String outputName = output.getFileName().toString();
+        Path listFile = output.resolveSibling(outputName.substring(0, outputName.lastIndexOf('.')) + ".concat.txt");
+        try {
+            // Outpoints are timestamps of the part itself, which start wherever the stream happened to be
+            Map<Path, Duration> outpoints = new LinkedHashMap<>();
+            overlaps.forEach((part, keep) -> {
+                Duration startTime = probeFormatTime(part, "start_time");
+                if (startTime == null) {
+                    logger.warn("Could not read the start time of {}, keeping its overlap", part.getFileName());
+                } else {
+                    outpoints.put(part, startTime.plus(keep));
+                }
+            });
+            Files.writeString(listFile, buildConcatList(parts, outpoints));
+            int exitCode = processLauncher.start(outputName, withLowPriority(buildConcatCommand(listFile, output)), null)
+                                          .onExit().join();
+            if (exitCode != 0) {
+                logger.error("Joining into {} failed: ffmpeg exited with code {}", outputName, exitCode);
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("Joining into {} failed: {}", outputName, e.getMessage());
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(listFile);
+            } catch (IOException e) {
+                logger.warn("Could not delete concat list {}: {}", listFile, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The MKV that is written next to a TS part while recording, see {@code recorder.live-mkv}.
+     */
+    static Path liveMkvFor(Path tsFile) {
+        String fileName = tsFile.getFileName().toString();
+        return tsFile.resolveSibling(fileName.substring(0, fileName.lastIndexOf('.')) + ".live.mkv");
+    }
+
+    private static Path mkvFor(Path tsFile) {
+        String fileName = tsFile.getFileName().toString();
+        return tsFile.resolveSibling(fileName.substring(0, fileName.lastIndexOf('.')) + ".mkv");
+    }
+
+    /**
+     * A live MKV is complete if it is as long as its TS. It is shorter if ffmpeg stopped writing it after a
+     * muxing error, and has no duration at all if ffmpeg was killed before finishing it.
+     */
+    private boolean isLiveMkvComplete(Path tsFile) {
+        Duration tsDuration = probeFormatTime(tsFile, "duration");
+        Duration mkvDuration = probeFormatTime(liveMkvFor(tsFile), "duration");
+        return tsDuration != null && mkvDuration != null
+               && mkvDuration.compareTo(tsDuration.minus(LIVE_MKV_TOLERANCE)) >= 0;
+    }
+
+    static String buildConcatList(List<Path> parts, Map<Path, Duration> outpoints) {
+        StringBuilder list = new StringBuilder("ffconcat version 1.0\n");
+        for (Path part : parts) {
+            // Quotes cannot be escaped inside a quoted string, close it, escape the quote and reopen it
+            list.append("file '").append(part.toAbsolutePath().toString().replace("'", "'\\''")).append("'\n");
+            Duration outpoint = outpoints.get(part);
+            if (outpoint != null) {
+                list.append(String.format(Locale.ROOT, "outpoint %.3f\n", outpoint.toMillis() / 1000.0));
+            }
+        }
+        return list.toString();
+    }
+
+    /**
+     * Copies every stream of the parts except data streams, e.g. teletext or SCTE-35, which Matroska cannot hold.
+     */
+    static List<String> buildConcatCommand(Path listFile, Path mkvPath) {
+        return List.of("ffmpeg", "-hide_banner", "-nostats", "-loglevel", "warning",
+                       "-f", "concat", "-safe", "0", "-i", listFile.toString(),
+                       "-map", "0", "-dn", "-c", "copy", "-avoid_negative_ts", "make_zero", "-y", mkvPath.toString());
+    }
+
+    private Duration probeFormatTime(Path file, String entry) {
+        String output = processLauncher.run("ffprobe", List.of("ffprobe", "-v", "warning", "-print_format", "json",
+                                                               "-show_entries", "format=" + entry, file.toString()),
+                                            PROBE_TIMEOUT);
+        return output == null ? null : parseFormatTime(output, entry);
+    }
+
+    static Duration parseFormatTime(String ffprobeJson, String entry) {
+        try {
+            JsonNode seconds = objectMapper.readTree(ffprobeJson).path("format").path(entry);
+            if (seconds.isMissingNode() || !seconds.isValueNode() || seconds.asText().equals("N/A")) {
+                return null;
+            }
+            return Duration.ofNanos(Math.round(seconds.asDouble() * 1_000_000_000));
+        } catch (Exception e) {
+            logger.warn("Could not parse ffprobe output: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean remuxToMkv(List<Path> tsFiles, boolean keepOriginalTs) {
+        boolean remuxedAll = true;
+        for (Path tsFile : tsFiles) {
+            if (!Files.exists(tsFile)) {
+                continue;
+            }
+            String tsFileName = tsFile.getFileName().toString();
+            String mkvFileName = tsFileName.substring(0, tsFileName.lastIndexOf('.')) + ".mkv";
+            Path mkvPath = tsFile.getParent().resolve(mkvFileName);
+
+            try {
+                logger.info("Remuxing {} to {}", tsFileName, mkvFileName);
+                List<String> command = List.of("ffmpeg", "-hide_banner", "-nostats", "-loglevel", "warning",
+                                               "-i", tsFile.toString(), "-c", "copy", "-y", mkvPath.toString());
+                int exitCode = processLauncher.start(mkvFileName, withLowPriority(command), null).onExit().join();
+                if (exitCode != 0) {
+                    logger.error("Remux failed for {}: ffmpeg exited with code {}", tsFileName, exitCode);
+                    remuxedAll = false;
+                    continue;
+                }
+                logger.info("Remux complete: {}", mkvPath.toAbsolutePath());
+
+                if (!keepOriginalTs) {
+                    Files.deleteIfExists(tsFile);
+                    logger.info("Deleted original TS file: {}", tsFile.toAbsolutePath());
+                }
+            } catch (Exception e) {
+                logger.error("Remux failed for {}: {}", tsFileName, e.getMessage());
+                remuxedAll = false;
+            }
+        }
+        return remuxedAll;
+    }
+
+    private static boolean deleteAll(List<Path> files) {
+        boolean deletedAll = true;
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+                logger.info("Deleted {}", file.toAbsolutePath());
+            } catch (IOException e) {
+                logger.error("Could not delete {}: {}", file, e.getMessage());
+                deletedAll = false;
+            }
+        }
+        return deletedAll;
+    }
+
+    /**
+     * Prefixes the command with nice and ionice as configured, leaving out whichever is not installed.
+     */
+    List<String> withLowPriority(List<String> command) {
+        RecordingServiceConfig.PostProcessing settings = config.getPostProcessing();
+        List<String> prioritized = new ArrayList<>();
+        if (settings.getNiceness() > 0 && isOnPath("nice")) {
+            prioritized.addAll(List.of("nice", "-n", String.valueOf(settings.getNiceness())));
+        }
+        if (settings.getIoClass() > 0 && isOnPath("ionice")) {
+            prioritized.addAll(List.of("ionice", "-c", String.valueOf(settings.getIoClass())));
+            // Only the best-effort class has levels
+            if (settings.getIoClass() == 2) {
+                prioritized.addAll(List.of("-n", String.valueOf(settings.getIoLevel())));
+            }
+        }
+        prioritized.addAll(command);
+        return prioritized;
+    }
+
+    static boolean isOnPath(String tool) {
+        return toolsOnPath.computeIfAbsent(tool, name -> Stream.of(System.getenv().getOrDefault("PATH", "").split(File.pathSeparator))
+                                                               .filter(directory -> !directory.isEmpty())
+                                                               .anyMatch(directory -> Files.isExecutable(Path.of(directory, name))));
+    }
+}
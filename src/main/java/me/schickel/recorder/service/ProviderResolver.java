@@ -0,0 +1,102 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.config.RecordingServiceConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Groups stream URLs into providers, each with its own connection budget. URLs matching a configured
+ * {@code recorder.providers} entry belong to that provider. All other URLs are grouped by host and, for
+ * Xtream Codes style URLs, the account name in the URL, so that two accounts on the same server get
+ * separate budgets.
+ */
+@Service
+public class ProviderResolver {
+
+    static final String UNKNOWN_PROVIDER = "unknown";
+
+    // First path segments of Xtream Codes style URLs, e.g. /live/{user}/{password}/{stream}.ts
+    private static final Set<String> STREAM_TYPE_SEGMENTS = Set.of("live", "movie", "series", "timeshift");
+    // Last path segment of Xtream Codes style URLs, the numeric stream id with an optional media extension
+    private static final Pattern STREAM_ID_SEGMENT = Pattern.compile("\\d+(\\.(ts|m3u8|mp4|mkv|avi|flv))?", Pattern.CASE_INSENSITIVE);
+
+    private final int defaultMaxStreams;
+    private final List<RecordingServiceConfig.Provider> providers;
+
+    public ProviderResolver(@Value("${allowed.simultaneous.streams}") int defaultMaxStreams,
+                            RecordingServiceConfig recordingServiceConfig) {
+        this.defaultMaxStreams = defaultMaxStreams;
+        this.providers = recordingServiceConfig.getProviders();
+    }
+
+    /**
+     * Returns the provider key of the given stream URL. Configured providers are keyed by their name,
+     * all others by {@code host[:port][/user]}. Passwords never end up in the key.
+     */
+    public String resolve(String streamUrl) {
+        if (streamUrl == null || streamUrl.isBlank()) {
+            return UNKNOWN_PROVIDER;
+        }
+        for (RecordingServiceConfig.Provider provider : providers) {
+            if (provider.getUrlPrefixes().stream().anyMatch(streamUrl::startsWith)) {
+                return provider.getName();
+            }
+        }
+
+        URI uri;
+        try {
+            uri = URI.create(streamUrl);
+        } catch (IllegalArgumentException e) {
+            return UNKNOWN_PROVIDER;
+        }
+        if (uri.getHost() == null) {
+            return UNKNOWN_PROVIDER;
+        }
+        String key = uri.getHost().toLowerCase(Locale.ROOT) + (uri.getPort() != -1 ? ":" + uri.getPort() : "");
+        String user = findUser(uri);
+        return user != null ? key + "/" + user : key;
+    }
+
+    public int getMaxStreams(String providerKey) {
+        return providers.stream()
+                        .filter(provider -> provider.getName().equals(providerKey) && provider.getMaxStreams() != null)
+                        .map(RecordingServiceConfig.Provider::getMaxStreams)
+                        .findFirst()
+                        .orElse(defaultMaxStreams);
+    }
+
+    private String findUser(URI uri) {
+        if (uri.getQuery() != null) {
+            for (String parameter : uri.getQuery().split("&")) {
+                if (parameter.startsWith("username=") && parameter.length() > "username=".length()) {
+                    return parameter.substring("username=".length());
+                }
+            }
+        }
+        if (uri.getPath() == null) {
+            return null;
+        }
+        List<String> segments = Arrays.stream(uri.getPath().split("/"))
+                                      .filter(segment -> !segment.isEmpty())
+                                      .toList();
+        // Other paths, e.g. /hls/{channel}/index.m3u8, carry no account and share the budget of the host
+        if (segments.size() < 3 || !STREAM_ID_SEGMENT.matcher(segments.getLast()).matches()) {
+            return null;
+        }
+        if (segments.size() >= 4 && STREAM_TYPE_SEGMENTS.contains(segments.get(0))) {
+            return segments.get(1);
+        }
+        // {user}/{password}/{stream}
+        if (segments.size() == 3) {
+            return segments.get(0);
+        }
+        return null;
+    }
+}
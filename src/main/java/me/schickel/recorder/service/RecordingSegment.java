@@ -0,0 +1,161 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.process.FfmpegProgress;
+import me.schickel.recorder.process.ManagedProcess;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * One ffmpeg process of a recording and the progress it reported. Progress is kept until the segment is
+ * attached to the watchdog, so a replacement that connected while the previous segment was still running
+ * reports its first output with the time it really arrived.
+ */
+class RecordingSegment {
+
+    // Less overlap than this is not worth rewriting the file for
+    private static final long MIN_OVERLAP_MICROS = 500_000;
+
+    private final Path outputPath;
+    private final CompletableFuture<Void> firstOutput = new CompletableFuture<>();
+    private ManagedProcess process;
+    // Files written in place of the output path with recorder.segments enabled, null otherwise
+    private SegmentedOutput segmentedOutput;
+    // File written from ffmpeg's stdout with recorder.pipe enabled, null otherwise
+    private PipedOutput pipedOutput;
+    // Copy of the file into an MKV with recorder.live-mkv enabled, null otherwise
+    private LiveMkv liveMkv;
+    private FfmpegProgress firstProgress;
+    private Instant firstOutputAt;
+    private FfmpegProgress lastProgress;
+    private Instant lastProgressAt;
+    private BiConsumer<FfmpegProgress, Instant> progressListener;
+    // Media position at which the replacement took over, everything written after it is in the next segment too
+    private long handedOverAtMicros = -1;
+
+    RecordingSegment(Path outputPath) {
+        this.outputPath = outputPath;
+    }
+
+    Path getOutputPath() {
+        return outputPath;
+    }
+
+    synchronized ManagedProcess getProcess() {
+        return process;
+    }
+
+    synchronized void setProcess(ManagedProcess process) {
+        this.process = process;
+    }
+
+    synchronized SegmentedOutput getSegmentedOutput() {
+        return segmentedOutput;
+    }
+
+    synchronized void setSegmentedOutput(SegmentedOutput segmentedOutput) {
+        this.segmentedOutput = segmentedOutput;
+    }
+
+    synchronized PipedOutput getPipedOutput() {
+        return pipedOutput;
+    }
+
+    synchronized void setPipedOutput(PipedOutput pipedOutput) {
+        this.pipedOutput = pipedOutput;
+    }
+
+    synchronized LiveMkv getLiveMkv() {
+        return liveMkv;
+    }
+
+    synchronized void setLiveMkv(LiveMkv liveMkv) {
+        this.liveMkv = liveMkv;
+    }
+
+    /**
+     * Waits until the output is complete on disk once the process exited. ffmpeg writes its file itself, but
+     * what it wrote to the pipe last may still be on the way. The live MKV is finished once the file is complete.
+     */
+    void awaitOutput() {
+        PipedOutput piped = getPipedOutput();
+        if (piped != null) {
+            piped.awaitClosed();
+        }
+        LiveMkv live = getLiveMkv();
+        if (live != null) {
+            live.finish();
+        }
+    }
+
+    /**
+     * Completes when the segment writes its first bytes.
+     */
+    CompletableFuture<Void> onFirstOutput() {
+        return firstOutput;
+    }
+
+    boolean hasOutput() {
+        return firstOutput.isDone();
+    }
+
+    void onProgress(FfmpegProgress progress) {
+        onProgress(progress, Instant.now());
+    }
+
+    void onProgress(FfmpegProgress progress, Instant now) {
+        boolean first;
+        synchronized (this) {
+            first = firstProgress == null && progress.totalSizeBytes() > 0;
+            if (first) {
+                firstProgress = progress;
+                firstOutputAt = now;
+            }
+            lastProgress = progress;
+            lastProgressAt = now;
+            if (progressListener != null) {
+                progressListener.accept(progress, now);
+            }
+        }
+        if (first) {
+            // Outside the lock, the callbacks stop the previous segment
+            firstOutput.complete(null);
+        }
+    }
+
+    /**
+     * Forwards all further progress to the listener, after replaying the first output and the latest report
+     * received so far.
+     */
+    synchronized void attach(BiConsumer<FfmpegProgress, Instant> listener) {
+        if (firstProgress != null) {
+            listener.accept(firstProgress, firstOutputAt);
+            if (lastProgress != firstProgress) {
+                listener.accept(lastProgress, lastProgressAt);
+            }
+        }
+        progressListener = listener;
+    }
+
+    /**
+     * Remembers the current media position as the point where the replacement took over.
+     */
+    synchronized void markHandedOver() {
+        handedOverAtMicros = lastProgress == null ? 0 : lastProgress.outTimeMicros();
+    }
+
+    /**
+     * Returns how much of this segment to keep so that it does not overlap the next one, or null if the whole
+     * segment is kept.
+     */
+    synchronized Duration lengthWithoutOverlap() {
+        if (handedOverAtMicros < 0 || lastProgress == null
+                || lastProgress.outTimeMicros() - handedOverAtMicros < MIN_OVERLAP_MICROS) {
+            return null;
+        }
+        return Duration.ofNanos(handedOverAtMicros * 1000);
+    }
+}
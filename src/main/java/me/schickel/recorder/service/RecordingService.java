@@ -7,117 +7,112 @@ import me.schickel.recorder.util.ExecutorConfig;
 import me.schickel.recorder.util.TimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.time.LocalDateTime;
-import java.util.ArrayList;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 
 @Service
 @RequiredArgsConstructor
 public class RecordingService {
 
-    @Value("${allowed.simultaneous.streams}")
-    private int allowedSimultaneousStreams;
-
     private final ScheduleRepository scheduleRepository;
     private final ExecutorConfig executorConfig;
-    private final TimeUtils timeUtils;
     private final FfmpegService ffmpegService;
     private final PastRecordingService pastRecordingService;
+    private final ScheduleIntervalIndex scheduleIntervalIndex;
+    private final StreamSlotManager streamSlotManager;
+    private final ProviderResolver providerResolver;
     private static final Logger logger = LoggerFactory.getLogger(RecordingService.class);
 
     @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.LOWEST_PRECEDENCE)
     public void resumeOngoingRecordings() {
         logger.info("Application started - checking for ongoing recordings to resume");
-        List<RecordingSchedule> triggeredRecordings = scheduleRepository.findByTriggeredTrue();
-        LocalDateTime now = LocalDateTime.now();
-        
-        for (RecordingSchedule recording : triggeredRecordings) {
-            LocalDateTime endTime = timeUtils.parseStringToLocalDateTime(recording.getEndTime());
-            if (now.isBefore(endTime)) {
-                logger.info("Resuming ongoing recording: {}", recording.getFileName());
-                executorConfig.executorService().submit(() -> {
-                    String status = ffmpegService.recordingHandler(recording);
-                    if (!"COMPLETED".equals(status)) {
-                        pastRecordingService.saveRecordingHistory(recording, status);
-                        scheduleRepository.deleteById(recording.getId());
-                    }
-                });
-            }
+        long now = Instant.now().getEpochSecond();
+        List<RecordingSchedule> ongoingRecordings = scheduleRepository.findByTriggeredTrueAndEndEpochGreaterThan(now);
+
+        for (RecordingSchedule recording : ongoingRecordings) {
+            logger.info("Resuming ongoing recording: {}", recording.getFileName());
+            executorConfig.executorService().submit(() -> runRecording(recording));
         }
     }
 
-    @Scheduled(fixedRate = 30000)
-    public void triggerUpcomingRecordings() {
-        List<RecordingSchedule> allRecordingsToBeExecuted = new ArrayList<>();
-        List<RecordingSchedule> scheduledRecordings = scheduleRepository.findByTriggeredFalse();
-
-        if (!scheduledRecordings.isEmpty()){
-            List<RecordingSchedule> ongoingRecordings = findOngoingNonTriggeredRecordings(scheduledRecordings);
-            List<RecordingSchedule> upcomingRecordings = findNonTriggeredRecordingsStartingSoon(scheduledRecordings);
-
-            allRecordingsToBeExecuted.addAll(ongoingRecordings);
-            allRecordingsToBeExecuted.addAll(upcomingRecordings);
-            if (allRecordingsToBeExecuted.size() > 1) {
-                allRecordingsToBeExecuted = allRecordingsToBeExecuted.stream()
-                                                                     .distinct()
-                                                                     .toList();
-            }
+    /**
+     * Marks the given recordings as triggered and starts them. Recordings beyond the connection budget of
+     * their provider wait for a free slot. Called by {@link RecordingTriggerService} when recordings are due.
+     */
+    public void triggerRecordings(List<RecordingSchedule> recordings) {
+        if (recordings.isEmpty()) {
+            return;
+        }
+        List<RecordingSchedule> allRecordingsToBeExecuted = recordings.stream()
+                                                                      .distinct()
+                                                                      .toList();
 
-            if (allRecordingsToBeExecuted.size() > allowedSimultaneousStreams) {
-                int numToReduce = allRecordingsToBeExecuted.size() - allowedSimultaneousStreams;
-                List<String> skippedRecordings =
-                    allRecordingsToBeExecuted.subList(allowedSimultaneousStreams, allRecordingsToBeExecuted.size()).stream()
-                                             .map(RecordingSchedule::getFileName) // Get filenames of skipped recordings
-                                             .toList();
-
-                if (!skippedRecordings.isEmpty()) {
-                    logger.info("Skipping {} recordings due to exceeding allowed parallel streams: {}",
-                                numToReduce, String.join(", ", skippedRecordings));
-                }
-                // Reduce list to allowedSimultaneousStreams size
-                allRecordingsToBeExecuted = allRecordingsToBeExecuted.subList(0, allowedSimultaneousStreams);
-            }
+        // Batch update all recordings
+        allRecordingsToBeExecuted.forEach(recording -> recording.setTriggered(true));
+        scheduleRepository.saveAll(allRecordingsToBeExecuted);
 
-            // Batch update all recordings
-            allRecordingsToBeExecuted.forEach(recording -> recording.setTriggered(true));
-            scheduleRepository.saveAll(allRecordingsToBeExecuted);
-            
-            for (RecordingSchedule recording : allRecordingsToBeExecuted) {
-                logger.info("Triggering recording {}", recording.getFileName());
-                executorConfig.executorService().submit(() -> {
-                    String status = ffmpegService.recordingHandler(recording);
-                    if (!"COMPLETED".equals(status)) {
-                        pastRecordingService.saveRecordingHistory(recording, status);
-                        scheduleRepository.deleteById(recording.getId());
-                    }
-                });
+        for (RecordingSchedule recording : allRecordingsToBeExecuted) {
+            logger.info("Triggering recording {}", recording.getFileName());
+            executorConfig.executorService().submit(() -> runRecording(recording));
+        }
+        logger.info("Triggered {} recordings ({} stream slots in use, {} waiting)",
+                    allRecordingsToBeExecuted.size(), streamSlotManager.getOccupied(), streamSlotManager.getQueued());
+    }
+
+    private void runRecording(RecordingSchedule recording) {
+        Duration untilEnd = Duration.ofSeconds(TimeUtils.toEpochSecond(recording.getEndTime()) - Instant.now().getEpochSecond());
+        String provider = providerResolver.resolve(recording.getM3uUrl());
+        // Recordings of the same URL without ffmpeg share one connection, and so one slot
+        String shareKey = StreamIngest.shareKey(recording);
+        boolean acquired = shareKey != null
+                           ? streamSlotManager.acquireShared(provider, shareKey, recording.getId(), untilEnd)
+                           : streamSlotManager.acquire(provider, recording.getId(), untilEnd);
+        if (!acquired) {
+            if (scheduleRepository.existsById(recording.getId())) {
+                logger.warn("No stream slot of {} became free for {} before its end time", provider, recording.getFileName());
+                finishWithStatus(recording, "SKIPPED_NO_STREAM_SLOT");
+            }
+            return;
+        }
+        try {
+            if (!scheduleRepository.existsById(recording.getId())) {
+                return; // deleted or stopped while waiting for a slot
+            }
+            String status = ffmpegService.recordingHandler(recording);
+            if (!"COMPLETED".equals(status)) {
+                finishWithStatus(recording, status);
             }
-            if (!allRecordingsToBeExecuted.isEmpty())
-                logger.info("Triggered {} recordings", allRecordingsToBeExecuted.size());
+        } finally {
+            streamSlotManager.release(recording.getId());
         }
     }
 
+    private void finishWithStatus(RecordingSchedule recording, String status) {
+        pastRecordingService.saveRecordingHistory(recording, status);
+        scheduleRepository.deleteById(recording.getId());
+        scheduleIntervalIndex.remove(recording.getId());
+    }
+
     @Scheduled(fixedRate = 600000)
     public void removeTriggeredRecordings(){
-        List<RecordingSchedule> allRecordings = scheduleRepository.findByTriggeredTrue();
-        List<RecordingSchedule> recordingsToDelete = new ArrayList<>();
-        LocalDateTime now = LocalDateTime.now();
-        
-        for (RecordingSchedule recording : allRecordings) {
-            LocalDateTime endTime = timeUtils.parseStringToLocalDateTime(recording.getEndTime());
-            if (now.isAfter(endTime)) {
-                logger.info("Removing triggered recording {}", recording.getFileName());
-                pastRecordingService.saveRecordingHistory(recording, "COMPLETED");
-                recordingsToDelete.add(recording);
-            }
+        long now = Instant.now().getEpochSecond();
+        List<RecordingSchedule> recordingsToDelete = scheduleRepository.findByTriggeredTrueAndEndEpochLessThan(now);
+
+        for (RecordingSchedule recording : recordingsToDelete) {
+            logger.info("Removing triggered recording {}", recording.getFileName());
+            pastRecordingService.saveRecordingHistory(recording, "COMPLETED");
+            scheduleIntervalIndex.remove(recording.getId());
         }
-        
+
         if (!recordingsToDelete.isEmpty()) {
             scheduleRepository.deleteAll(recordingsToDelete);
         }
@@ -131,6 +126,8 @@ public class RecordingService {
             throw new IllegalStateException("Schedule " + id + " is not currently recording");
         }
 
+        // The slot is released by the recording thread once it has closed its connections
+        streamSlotManager.cancel(id);
         boolean stopped = ffmpegService.stopRecording(id);
         if (!stopped) {
             logger.warn("No active ffmpeg process found for schedule {}, but it was marked as triggered", id);
@@ -138,45 +135,7 @@ public class RecordingService {
 
         pastRecordingService.saveRecordingHistory(schedule, "STOPPED_BY_USER");
         scheduleRepository.deleteById(id);
+        scheduleIntervalIndex.remove(id);
         logger.info("Force stopped and removed recording schedule {}: {}", id, schedule.getFileName());
     }
-
-    private List<RecordingSchedule> findNonTriggeredRecordingsStartingSoon(List<RecordingSchedule> allRecordings) {
-        LocalDateTime now = LocalDateTime.now();
-        LocalDateTime thirtySecondsFromNow = now.plusSeconds(30);
-
-        List<RecordingSchedule> soonToBeTriggeredRecordings = new ArrayList<>();
-
-        for (RecordingSchedule recording : allRecordings) {
-            LocalDateTime startTime = timeUtils.parseStringToLocalDateTime(recording.getStartTime());
-            if (startTime.isAfter(now) && startTime.isBefore(thirtySecondsFromNow)) {
-                soonToBeTriggeredRecordings.add(recording);
-            }
-        }
-        if (soonToBeTriggeredRecordings.size() > 1) {
-            logger.info("Found {} recordings starting soon: {}",
-                        soonToBeTriggeredRecordings.size(),
-                        soonToBeTriggeredRecordings.stream().map(RecordingSchedule::getFileName).toList());
-        }
-        return soonToBeTriggeredRecordings;
-    }
-
-    private List<RecordingSchedule> findOngoingNonTriggeredRecordings(List<RecordingSchedule> allRecordings) {
-        LocalDateTime now = LocalDateTime.now();
-        List<RecordingSchedule> ongoingRecordings = new ArrayList<>();
-
-        for (RecordingSchedule recording : allRecordings) {
-            LocalDateTime startTime = timeUtils.parseStringToLocalDateTime(recording.getStartTime());
-            LocalDateTime endTime = timeUtils.parseStringToLocalDateTime(recording.getEndTime());
-            if (now.isAfter(startTime) && now.isBefore(endTime)) {
-                ongoingRecordings.add(recording);
-            }
-        }
-        if (ongoingRecordings.size() > 1) {
-            logger.info("Found {} ongoing recordings: {}",
-                        ongoingRecordings.size(),
-                        ongoingRecordings.stream().map(RecordingSchedule::getFileName).toList());
-        }
-        return ongoingRecordings;
-    }
 }
@@ -0,0 +1,290 @@
+package me.schickel.recorder.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.repository.ScheduleRepository;
+import me.schickel.recorder.util.TimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fires recordings at their exact start time from an in-memory, time-ordered queue.
+ * The queue is loaded from the database on startup and kept current by {@link ScheduleManagementService}.
+ * A single dispatcher thread sleeps until the earliest pending start time, or until the queue changes.
+ * Fired recordings wait for a stream slot in {@link RecordingService} instead of being skipped, so nothing has to
+ * poll for recordings that became due but were not started.
+ * The same thread starts the warm-up of each recording its lead time before the start, see {@link StreamWarmupService}.
+ */
+@Service
+@RequiredArgsConstructor
+public class RecordingTriggerService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordingTriggerService.class);
+
+    private final ScheduleRepository scheduleRepository;
+    private final RecordingService recordingService;
+    private final TimeUtils timeUtils;
+    private final StreamWarmupService streamWarmupService;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queueChanged = lock.newCondition();
+    private final NavigableSet<PendingTrigger> queue = new TreeSet<>(
+        Comparator.comparing(PendingTrigger::startTime).thenComparingLong(PendingTrigger::scheduleId));
+    private final Map<Long, PendingTrigger> pendingById = new HashMap<>();
+    // Same as the triggers, but due at the start time minus the warm-up lead time
+    private final NavigableSet<PendingTrigger> warmupQueue = new TreeSet<>(
+        Comparator.comparing(PendingTrigger::startTime).thenComparingLong(PendingTrigger::scheduleId));
+    private final Map<Long, PendingTrigger> warmupsById = new HashMap<>();
+
+    private final AtomicLong firedCount = new AtomicLong();
+    private final AtomicLong totalLatenessMillis = new AtomicLong();
+    private final AtomicLong maxLatenessMillis = new AtomicLong();
+    private final AtomicLong lastLatenessMillis = new AtomicLong();
+    private final AtomicLong tickCount = new AtomicLong();
+    private final AtomicLong totalTickNanos = new AtomicLong();
+    private final AtomicLong maxTickNanos = new AtomicLong();
+
+    private Thread dispatcher;
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.LOWEST_PRECEDENCE)
+    public void start() {
+        long now = Instant.now().getEpochSecond();
+        List<RecordingSchedule> pending = scheduleRepository.findByTriggeredFalseAndEndEpochGreaterThanOrderByStartEpochAsc(now);
+        pending.forEach(this::schedule);
+        logger.info("Loaded {} pending recordings into the trigger queue", pendingCount());
+        dispatcher = Thread.ofPlatform().name("recording-trigger").daemon().start(this::dispatchLoop);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+    }
+
+    /**
+     * Adds or replaces the trigger for the given schedule. Schedules that are already triggered,
+     * already over or not yet persisted are removed from the queue instead.
+     */
+    public void schedule(RecordingSchedule schedule) {
+        if (schedule.getId() == null) {
+            return;
+        }
+        LocalDateTime startTime = timeUtils.parseStringToLocalDateTime(schedule.getStartTime());
+        LocalDateTime endTime = timeUtils.parseStringToLocalDateTime(schedule.getEndTime());
+        if (schedule.isTriggered() || !endTime.isAfter(LocalDateTime.now())) {
+            cancel(schedule.getId());
+            return;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        PendingTrigger trigger = new PendingTrigger(schedule.getId(), startTime, now);
+        LocalDateTime warmupTime = startTime.minus(streamWarmupService.getLeadTime());
+        boolean warmUpNow = false;
+        lock.lock();
+        try {
+            put(queue, pendingById, trigger);
+            if (warmupTime.isAfter(now)) {
+                put(warmupQueue, warmupsById, new PendingTrigger(schedule.getId(), warmupTime, now));
+            } else {
+                remove(warmupQueue, warmupsById, schedule.getId());
+                // Within the lead time already, a recording that is due right away is probed at its start
+                warmUpNow = startTime.isAfter(now);
+            }
+            queueChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (warmUpNow) {
+            streamWarmupService.warmUp(schedule);
+        }
+    }
+
+    public void cancel(Long scheduleId) {
+        lock.lock();
+        try {
+            if (remove(queue, pendingById, scheduleId) | remove(warmupQueue, warmupsById, scheduleId)) {
+                queueChanged.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        streamWarmupService.cancel(scheduleId);
+    }
+
+    private static void put(NavigableSet<PendingTrigger> queue, Map<Long, PendingTrigger> byId, PendingTrigger trigger) {
+        PendingTrigger previous = byId.put(trigger.scheduleId(), trigger);
+        if (previous != null) {
+            queue.remove(previous);
+        }
+        queue.add(trigger);
+    }
+
+    private static boolean remove(NavigableSet<PendingTrigger> queue, Map<Long, PendingTrigger> byId, Long scheduleId) {
+        PendingTrigger previous = byId.remove(scheduleId);
+        return previous != null && queue.remove(previous);
+    }
+
+    public int pendingCount() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public TriggerStats getStats() {
+        long fired = firedCount.get();
+        return new TriggerStats(fired,
+                                lastLatenessMillis.get(),
+                                maxLatenessMillis.get(),
+                                fired == 0 ? 0 : (double) totalLatenessMillis.get() / fired,
+                                totalLatenessMillis.get(),
+                                tickCount.get(),
+                                totalTickNanos.get(),
+                                maxTickNanos.get());
+    }
+
+    void dispatchLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<PendingTrigger> due;
+            List<PendingTrigger> dueWarmups;
+            lock.lock();
+            try {
+                LocalDateTime next = nextWakeUp();
+                if (next == null) {
+                    queueChanged.await();
+                    continue;
+                }
+                long waitNanos = Duration.between(LocalDateTime.now(), next).toNanos();
+                if (waitNanos > 0) {
+                    queueChanged.awaitNanos(waitNanos);
+                    continue;
+                }
+                LocalDateTime now = LocalDateTime.now();
+                due = pollDue(queue, pendingById, now);
+                dueWarmups = pollDue(warmupQueue, warmupsById, now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            if (!dueWarmups.isEmpty()) {
+                warmUp(dueWarmups);
+            }
+            if (due.isEmpty()) {
+                continue;
+            }
+            long tickStart = System.nanoTime();
+            try {
+                fire(due);
+            } catch (RuntimeException e) {
+                logger.error("Failed to trigger {} recordings: {}", due.size(), e.getMessage(), e);
+            } finally {
+                recordTick(System.nanoTime() - tickStart);
+            }
+        }
+    }
+
+    private LocalDateTime nextWakeUp() {
+        if (queue.isEmpty()) {
+            return warmupQueue.isEmpty() ? null : warmupQueue.first().startTime();
+        }
+        if (warmupQueue.isEmpty() || queue.first().startTime().isBefore(warmupQueue.first().startTime())) {
+            return queue.first().startTime();
+        }
+        return warmupQueue.first().startTime();
+    }
+
+    private static List<PendingTrigger> pollDue(NavigableSet<PendingTrigger> queue, Map<Long, PendingTrigger> byId, LocalDateTime now) {
+        List<PendingTrigger> due = new ArrayList<>();
+        while (!queue.isEmpty() && !queue.first().startTime().isAfter(now)) {
+            PendingTrigger trigger = queue.pollFirst();
+            byId.remove(trigger.scheduleId());
+            due.add(trigger);
+        }
+        return due;
+    }
+
+    private void warmUp(List<PendingTrigger> due) {
+        for (PendingTrigger trigger : due) {
+            try {
+                scheduleRepository.findById(trigger.scheduleId())
+                                  .filter(recording -> !recording.isTriggered())
+                                  .ifPresent(streamWarmupService::warmUp);
+            } catch (RuntimeException e) {
+                logger.error("Failed to start the warm-up of schedule {}: {}", trigger.scheduleId(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private void fire(List<PendingTrigger> due) {
+        LocalDateTime firedAt = LocalDateTime.now();
+        List<RecordingSchedule> recordings = new ArrayList<>();
+        for (PendingTrigger trigger : due) {
+            long latenessMillis = Math.max(0, Duration.between(trigger.dueAt(), firedAt).toMillis());
+            recordLateness(latenessMillis);
+            scheduleRepository.findById(trigger.scheduleId())
+                              .filter(recording -> !recording.isTriggered())
+                              .ifPresent(recording -> {
+                                  logger.info("Recording {} is due, firing {}ms after its start time",
+                                              recording.getFileName(), latenessMillis);
+                                  recordings.add(recording);
+                              });
+        }
+        recordingService.triggerRecordings(recordings);
+    }
+
+    private void recordLateness(long latenessMillis) {
+        firedCount.incrementAndGet();
+        totalLatenessMillis.addAndGet(latenessMillis);
+        lastLatenessMillis.set(latenessMillis);
+        maxLatenessMillis.accumulateAndGet(latenessMillis, Math::max);
+    }
+
+    private void recordTick(long durationNanos) {
+        tickCount.incrementAndGet();
+        totalTickNanos.addAndGet(durationNanos);
+        maxTickNanos.accumulateAndGet(durationNanos, Math::max);
+    }
+
+    record PendingTrigger(long scheduleId, LocalDateTime startTime, LocalDateTime queuedAt) {
+
+        // Recordings queued after their start time are due immediately, not late
+        LocalDateTime dueAt() {
+            return startTime.isAfter(queuedAt) ? startTime : queuedAt;
+        }
+    }
+
+    /**
+     * Lateness of fired triggers, measured from the moment a trigger became due to the moment it fired,
+     * and the time the dispatcher spent starting the recordings of each tick.
+     */
+    public record TriggerStats(long fired, long lastLatenessMillis, long maxLatenessMillis, double averageLatenessMillis,
+                               long totalLatenessMillis, long ticks, long totalTickNanos, long maxTickNanos) {
+    }
+}
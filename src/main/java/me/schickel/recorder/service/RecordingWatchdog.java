@@ -0,0 +1,368 @@
+package me.schickel.recorder.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.process.FfmpegProgress;
+import me.schickel.recorder.process.Stoppable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the ffmpeg progress reports of running recordings and stops a segment as soon as its stream stalls,
+ * instead of waiting for ffmpeg's own network timeout. The recording loop in {@link FfmpegService} then
+ * continues with the next segment. A stall is a flat output size for {@code stall-timeout}, or less media
+ * time than {@code min-speed} per second of wall clock time within {@code speed-window}.
+ * <p>
+ * The gap between the last output of one segment and the first output of the next is reported as lost
+ * recording time, whether the segment was stopped by the watchdog or ended on its own.
+ * <p>
+ * With {@code make-before-break}, a segment whose output has been flat for {@code replacement-after} is
+ * handed to its replacement callback, which connects the next segment while this one still runs.
+ */
+@Service
+@RequiredArgsConstructor
+public class RecordingWatchdog {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordingWatchdog.class);
+    private static final Duration CHECK_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration STOP_GRACE_PERIOD = Duration.ofSeconds(1);
+
+    private final RecordingServiceConfig config;
+    private final Map<Long, WatchedRecording> recordings = new ConcurrentHashMap<>();
+    private ScheduledExecutorService checker;
+
+    @PostConstruct
+    public void start() {
+        if (!config.getWatchdog().isEnabled()) {
+            logger.info("Recording watchdog is disabled");
+            return;
+        }
+        checker = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("recording-watchdog").daemon().factory());
+        checker.scheduleWithFixedDelay(() -> check(Instant.now()), CHECK_INTERVAL.toMillis(), CHECK_INTERVAL.toMillis(),
+                                       TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts watching a new segment of the given recording.
+     */
+    public void watch(Long scheduleId, String name, Stoppable process) {
+        watch(scheduleId, name, process, null, Instant.now());
+    }
+
+    /**
+     * Starts watching a new segment, {@code startReplacement} is called at most once if the segment starts to stall.
+     */
+    public void watch(Long scheduleId, String name, Stoppable process, Runnable startReplacement) {
+        watch(scheduleId, name, process, startReplacement, Instant.now());
+    }
+
+    /**
+     * Starts watching a new segment whose output only grows every {@code outputInterval}, like an HLS recording
+     * that writes one media segment at a time. The stall timeout and speed window are stretched accordingly.
+     */
+    public void watch(Long scheduleId, String name, Stoppable process, Duration outputInterval) {
+        watch(scheduleId, name, process, null, outputInterval, Instant.now());
+    }
+
+    void watch(Long scheduleId, String name, Stoppable process, Instant now) {
+        watch(scheduleId, name, process, null, now);
+    }
+
+    void watch(Long scheduleId, String name, Stoppable process, Runnable startReplacement, Instant now) {
+        watch(scheduleId, name, process, startReplacement, Duration.ZERO, now);
+    }
+
+    void watch(Long scheduleId, String name, Stoppable process, Runnable startReplacement, Duration outputInterval, Instant now) {
+        recordings.computeIfAbsent(scheduleId, id -> new WatchedRecording(name))
+                  .startSegment(process, startReplacement, outputInterval, now);
+    }
+
+    /**
+     * Counts media the recording knows it missed, e.g. HLS segments that left the playlist before they were
+     * fetched, as lost time in addition to the gaps between segments.
+     */
+    public void reportLoss(Long scheduleId, Duration lost) {
+        WatchedRecording recording = recordings.get(scheduleId);
+        if (recording != null) {
+            recording.reportLoss(lost);
+        }
+    }
+
+    public void onProgress(Long scheduleId, FfmpegProgress progress) {
+        onProgress(scheduleId, progress, Instant.now());
+    }
+
+    void onProgress(Long scheduleId, FfmpegProgress progress, Instant now) {
+        WatchedRecording recording = recordings.get(scheduleId);
+        if (recording != null) {
+            recording.onProgress(progress, now, config.getWatchdog());
+        }
+    }
+
+    /**
+     * Called when the ffmpeg process of the current segment has exited.
+     */
+    public void endSegment(Long scheduleId) {
+        WatchedRecording recording = recordings.get(scheduleId);
+        if (recording != null) {
+            recording.endSegment();
+        }
+    }
+
+    /**
+     * Stops watching the recording and returns its final health.
+     */
+    public RecordingHealth finish(Long scheduleId) {
+        return finish(scheduleId, Instant.now());
+    }
+
+    RecordingHealth finish(Long scheduleId, Instant now) {
+        WatchedRecording recording = recordings.remove(scheduleId);
+        if (recording == null) {
+            return new RecordingHealth(0, 0, 0, List.of(), 0, null);
+        }
+        RecordingHealth health = recording.finish(now);
+        if (health.restarts() > 0) {
+            logger.info("Recording {} finished after {} restarts ({} stalls detected), {} seconds lost",
+                        recording.name, health.restarts(), health.stalls(), String.format("%.1f", health.lostSeconds()));
+        }
+        return health;
+    }
+
+    public Optional<RecordingHealth> getHealth(Long scheduleId) {
+        return Optional.ofNullable(recordings.get(scheduleId)).map(WatchedRecording::health);
+    }
+
+    int bufferedSamples(Long scheduleId) {
+        WatchedRecording recording = recordings.get(scheduleId);
+        return recording == null ? 0 : recording.bufferedSamples();
+    }
+
+    void check(Instant now) {
+        RecordingServiceConfig.Watchdog thresholds = config.getWatchdog();
+        recordings.forEach((scheduleId, recording) -> {
+            String reason = recording.detectStall(now, thresholds);
+            if (reason != null) {
+                Stoppable process = recording.markStalled();
+                logger.warn("Stream of {} stalled ({}), restarting the segment", recording.name, reason);
+                // Stopping waits for the process, keep the checker free for the other recordings
+                Thread.ofVirtual().name("watchdog-stop-" + scheduleId).start(() -> process.stop(STOP_GRACE_PERIOD));
+                return;
+            }
+            Runnable startReplacement = recording.claimReplacement(now, thresholds);
+            if (startReplacement != null) {
+                logger.info("Output of {} is flat, connecting a replacement before stopping it", recording.name);
+                Thread.ofVirtual().name("watchdog-replace-" + scheduleId).start(startReplacement);
+            }
+        });
+    }
+
+    /**
+     * @param segments number of ffmpeg processes or connections started for the recording so far
+     * @param stalls number of segments stopped by the watchdog
+     * @param lostSeconds wall clock time between the last output of a segment and the first output of the next
+     * @param gapSeconds the individual gaps that make up {@code lostSeconds}, zero where segments overlapped
+     * @param outputBytes bytes written by all segments so far
+     * @param lastProgress most recent progress report, null if there was none yet
+     */
+    public record RecordingHealth(int segments, int stalls, double lostSeconds, List<Double> gapSeconds, long outputBytes,
+                                  FfmpegProgress lastProgress) {
+
+        public int restarts() {
+            return Math.max(0, segments - 1);
+        }
+    }
+
+    private record Sample(Instant at, long outTimeMicros) {
+    }
+
+    private static final class WatchedRecording {
+        private final String name;
+        private final Deque<Sample> samples = new ArrayDeque<>();
+        private Stoppable process;
+        private Runnable startReplacement;
+        // Expected time between two writes of the current segment, zero for a continuous stream
+        private Duration outputInterval = Duration.ZERO;
+        private Instant segmentStartedAt;
+        private long lastSize;
+        // Output of the finished segments, ffmpeg reports the size of the current segment only
+        private long completedBytes;
+        private Instant lastGrowthAt;
+        // Last output of the previous segments, the gap until the next output counts as lost time
+        private Instant previousOutputAt;
+        private boolean stalledInSegment;
+        // The last segment was stalled or wrote nothing, so the recording is missing data since previousOutputAt
+        private boolean gapOpen;
+        private FfmpegProgress lastProgress;
+        private int segments;
+        private int stalls;
+        private long lostMillis;
+        private final List<Double> gapSeconds = new ArrayList<>();
+
+        private WatchedRecording(String name) {
+            this.name = name;
+        }
+
+        private synchronized void startSegment(Stoppable process, Runnable startReplacement, Duration outputInterval, Instant now) {
+            this.process = process;
+            this.startReplacement = startReplacement;
+            this.outputInterval = outputInterval;
+            segmentStartedAt = now;
+            completedBytes += lastSize;
+            lastSize = 0;
+            lastGrowthAt = null;
+            stalledInSegment = false;
+            samples.clear();
+            segments++;
+        }
+
+        private synchronized void onProgress(FfmpegProgress progress, Instant now, RecordingServiceConfig.Watchdog thresholds) {
+            lastProgress = progress;
+            if (progress.totalSizeBytes() > lastSize) {
+                if (lastGrowthAt == null && previousOutputAt != null) {
+                    // A replacement started before the previous segment was retired can overlap it
+                    long gap = Math.max(0, Duration.between(previousOutputAt, now).toMillis());
+                    addGap(gap);
+                    logger.info("{} is receiving data again after {} seconds", name, String.format("%.1f", gap / 1000.0));
+                    previousOutputAt = null;
+                    gapOpen = false;
+                }
+                lastSize = progress.totalSizeBytes();
+                lastGrowthAt = now;
+            }
+            samples.addLast(new Sample(now, progress.outTimeMicros()));
+            // Bounded here too, the stall check does not look at samples while a stall is handled
+            trimSamples(now.minus(speedWindow(thresholds)));
+        }
+
+        private synchronized void endSegment() {
+            process = null;
+            startReplacement = null;
+            gapOpen = stalledInSegment || lastGrowthAt == null;
+            if (lastGrowthAt != null) {
+                previousOutputAt = lastGrowthAt;
+            } else if (previousOutputAt == null) {
+                previousOutputAt = segmentStartedAt;
+            }
+        }
+
+        private synchronized String detectStall(Instant now, RecordingServiceConfig.Watchdog thresholds) {
+            if (process == null || stalledInSegment) {
+                return null;
+            }
+            if (lastGrowthAt == null) {
+                Duration waiting = Duration.between(segmentStartedAt, now);
+                return waiting.compareTo(thresholds.getStartupGracePeriod()) > 0
+                    ? "no output after " + waiting.toSeconds() + "s" : null;
+            }
+            Duration flat = Duration.between(lastGrowthAt, now);
+            if (flat.compareTo(thresholds.getStallTimeout().plus(outputInterval)) > 0) {
+                return "output size flat for " + flat.toSeconds() + "s";
+            }
+
+            Instant windowStart = now.minus(speedWindow(thresholds));
+            trimSamples(windowStart);
+            Sample oldest = samples.peekFirst();
+            Sample newest = samples.peekLast();
+            if (oldest == null || oldest.at().isAfter(windowStart)) {
+                return null; // not enough history yet
+            }
+            double wallSeconds = Duration.between(oldest.at(), now).toMillis() / 1000.0;
+            double mediaSeconds = (newest.outTimeMicros() - oldest.outTimeMicros()) / 1_000_000.0;
+            double speed = mediaSeconds / wallSeconds;
+            return speed < thresholds.getMinSpeed() ? String.format("speed %.2fx over the last %.0fs", speed, wallSeconds) : null;
+        }
+
+        private synchronized int bufferedSamples() {
+            return samples.size();
+        }
+
+        private Duration speedWindow(RecordingServiceConfig.Watchdog thresholds) {
+            // The window has to span a few writes, otherwise it sees no media between two of them
+            return thresholds.getSpeedWindow().compareTo(outputInterval.multipliedBy(3)) >= 0
+                   ? thresholds.getSpeedWindow() : outputInterval.multipliedBy(3);
+        }
+
+        // Keeps exactly one sample at or before the window start as the reference point
+        private void trimSamples(Instant windowStart) {
+            while (samples.size() > 1) {
+                Sample first = samples.removeFirst();
+                if (samples.peekFirst().at().isAfter(windowStart)) {
+                    samples.addFirst(first);
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Returns the replacement callback once the output of the current segment has been flat for
+         * {@code replacement-after}, and null otherwise or if it was already handed out.
+         */
+        private synchronized Runnable claimReplacement(Instant now, RecordingServiceConfig.Watchdog thresholds) {
+            if (startReplacement == null || process == null || stalledInSegment || lastGrowthAt == null) {
+                return null;
+            }
+            if (Duration.between(lastGrowthAt, now).compareTo(thresholds.getReplacementAfter()) <= 0) {
+                return null;
+            }
+            Runnable claimed = startReplacement;
+            startReplacement = null;
+            return claimed;
+        }
+
+        private synchronized Stoppable markStalled() {
+            stalledInSegment = true;
+            stalls++;
+            return process;
+        }
+
+        private synchronized RecordingHealth finish(Instant now) {
+            if (process != null) {
+                endSegment();
+            }
+            if (gapOpen && previousOutputAt != null) {
+                // Never recovered before the end of the recording
+                addGap(Duration.between(previousOutputAt, now).toMillis());
+                gapOpen = false;
+            }
+            return health();
+        }
+
+        private synchronized void reportLoss(Duration lost) {
+            addGap(lost.toMillis());
+        }
+
+        private void addGap(long millis) {
+            lostMillis += millis;
+            gapSeconds.add(millis / 1000.0);
+        }
+
+        private synchronized RecordingHealth health() {
+            return new RecordingHealth(segments, stalls, lostMillis / 1000.0, List.copyOf(gapSeconds), completedBytes + lastSize,
+                                       lastProgress);
+        }
+    }
+}
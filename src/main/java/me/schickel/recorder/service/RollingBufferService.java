@@ -0,0 +1,335 @@
+package me.schickel.recorder.service;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.RecordingSchedule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the last minutes of the pinned channels in memory, so that a recording of one of them can start in the
+ * past, e.g. when it was scheduled after the show began. Each pinned channel is received all the time as one more
+ * subscriber of {@link StreamIngest}, so recordings of it share that connection and its stream slot, and its
+ * packets are kept in a {@link PacketRing}. The rings are allocated once at startup from a fixed budget of
+ * off-heap memory, which is also capped by what the JVM allows for direct buffers, and never grow.
+ */
+@Service
+@RequiredArgsConstructor
+public class RollingBufferService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollingBufferService.class);
+    // Left of the direct memory limit for the HTTP client and the file channels
+    static final long DIRECT_MEMORY_RESERVE = 64L * 1024 * 1024;
+    private static final Duration SLOT_WAIT = Duration.ofMinutes(1);
+    private static final Duration MAX_RECONNECT_DELAY = Duration.ofSeconds(30);
+
+    private final RecordingServiceConfig config;
+    private final StreamIngest streamIngest;
+    private final ChannelManagementService channelManagementService;
+    private final StreamSlotManager streamSlotManager;
+    private final ProviderResolver providerResolver;
+    // By stream URL
+    private final Map<String, PinnedChannel> channels = new ConcurrentHashMap<>();
+    private volatile boolean running;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        RecordingServiceConfig.RollingBuffer settings = config.getRollingBuffer();
+        if (!settings.isEnabled() || settings.getChannels().isEmpty()) {
+            return;
+        }
+        // Channel names by stream URL, a URL is only buffered once
+        Map<String, String> pinned = new LinkedHashMap<>();
+        for (String channel : settings.getChannels()) {
+            String url;
+            try {
+                url = channelManagementService.getUrlByName(channel);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Not buffering {}: {}", channel, e.getMessage());
+                continue;
+            }
+            // Only streams that can be shared without ffmpeg can be buffered
+            if (StreamIngest.shareKey(RecordingSchedule.Engine.JAVA, url) == null) {
+                logger.warn("Not buffering {}, only plain HTTP MPEG-TS streams can be buffered", channel);
+            } else {
+                pinned.putIfAbsent(url, channel);
+            }
+        }
+        if (pinned.isEmpty()) {
+            return;
+        }
+        int capacity = capacityPerChannel(settings, pinned.size(), directMemoryAvailable());
+        if (capacity < 1) {
+            logger.error("Not buffering any channel, the memory budget of {} MB does not fit one packet per channel",
+                         settings.getMaxMemory().toMegabytes());
+            return;
+        }
+        running = true;
+        pinned.forEach((url, channel) -> {
+            PacketRing ring;
+            try {
+                ring = new PacketRing(capacity, settings.getDuration());
+            } catch (OutOfMemoryError e) {
+                logger.error("Not buffering {}, its buffer does not fit into the direct memory: {}", channel, e.getMessage());
+                return;
+            }
+            PinnedChannel pinnedChannel = new PinnedChannel(channel, url, -(channels.size() + 1L), providerResolver.resolve(url), ring);
+            channels.put(url, pinnedChannel);
+            pinnedChannel.thread = Thread.ofVirtual().name("buffer-" + channel).start(() -> ingest(pinnedChannel));
+        });
+        logger.info("Buffering the last {} of {} channels in {} MB of off-heap memory, {} packets each",
+                    settings.getDuration(), channels.size(), getReservedBytes() / (1024 * 1024), capacity);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        for (PinnedChannel channel : channels.values()) {
+            streamSlotManager.cancel(channel.slotId);
+            StreamIngest.Subscriber subscriber = channel.subscriber;
+            if (subscriber != null) {
+                subscriber.close();
+            }
+            channel.ring.close();
+            if (channel.thread != null) {
+                channel.thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Packets per channel: enough for the configured duration at the configured bit rate, but all rings together
+     * stay within the memory budget and the available direct memory.
+     */
+    static int capacityPerChannel(RecordingServiceConfig.RollingBuffer settings, int channelCount, long directMemoryAvailable) {
+        long bytesForDuration = settings.getDuration().toMillis() * settings.getBitRate() / 8 / 1000;
+        long wanted = (bytesForDuration + TsPacketWriter.PACKET_SIZE - 1) / TsPacketWriter.PACKET_SIZE;
+        long budget = Math.min(settings.getMaxMemory().toBytes(), directMemoryAvailable) / channelCount
+                      - PacketRing.memoryBytes(0, settings.getDuration());
+        long fits = Math.max(0, budget / TsPacketWriter.PACKET_SIZE);
+        return (int) Math.min(Math.min(wanted, fits), PacketRing.MAX_CAPACITY);
+    }
+
+    /**
+     * Direct memory the JVM still allows beyond what is in use and the reserve, see {@code -XX:MaxDirectMemorySize}.
+     * Without that option the limit is the maximum heap size.
+     */
+    static long directMemoryAvailable() {
+        HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        long configured = hotSpot == null ? 0 : Long.parseLong(hotSpot.getVMOption("MaxDirectMemorySize").getValue());
+        long limit = configured > 0 ? configured : Runtime.getRuntime().maxMemory();
+        long used = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                                     .filter(pool -> pool.getName().equals("direct"))
+                                     .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                                     .sum();
+        return Math.max(0, limit - used - DIRECT_MEMORY_RESERVE);
+    }
+
+    /**
+     * Opens the buffered stream of a pinned channel at {@code from}, or at its oldest buffered packet if that is
+     * later. The feed continues with the live stream once it caught up.
+     * @param name of the recording, for the log
+     * @return empty if the URL is not buffered, nothing was buffered yet or {@code from} is not in the past
+     */
+    public Optional<StreamFeed> open(String url, LocalDateTime from, String name) {
+        PinnedChannel channel = url == null ? null : channels.get(url);
+        if (channel == null || from == null) {
+            return Optional.empty();
+        }
+        long fromMillis = from.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long now = System.currentTimeMillis();
+        if (fromMillis >= now || channel.ring.written() == 0) {
+            return Optional.empty();
+        }
+        long sequence = channel.ring.sequenceAt(fromMillis);
+        logger.info("{} starts {}s in the past from the buffer of {}, which reaches back {}s", name,
+                    (now - fromMillis) / 1000, channel.name, channel.ring.bufferedDuration().toSeconds());
+        return Optional.of(new BufferedFeed(channel.ring, name, sequence, config.getHttpRecorder().getBufferSize()));
+    }
+
+    /**
+     * Stream slots of the provider that the buffers hold all the time, except the one of {@code shareKey}, which a
+     * recording of that URL would share.
+     */
+    public int getPinnedSlots(String provider, String shareKey) {
+        return (int) channels.values().stream()
+                             .filter(channel -> channel.provider.equals(provider) && !channel.url.equals(shareKey))
+                             .count();
+    }
+
+    /**
+     * Memory taken by all buffers, almost all of it off-heap.
+     */
+    public long getReservedBytes() {
+        return channels.values().stream()
+                       .mapToLong(channel -> PacketRing.memoryBytes(channel.ring.capacity(), config.getRollingBuffer().getDuration()))
+                       .sum();
+    }
+
+    /**
+     * How far back every buffered channel can be recorded, zero without buffers.
+     */
+    public Duration getShortestBufferedDuration() {
+        return channels.values().stream()
+                       .map(channel -> channel.ring.bufferedDuration())
+                       .min(Duration::compareTo)
+                       .orElse(Duration.ZERO);
+    }
+
+    /**
+     * Receives the channel for as long as the application runs. Its stream slot is taken once and kept, the
+     * connection is opened again whenever it ends.
+     */
+    private void ingest(PinnedChannel channel) {
+        while (running && !streamSlotManager.acquireShared(channel.provider, channel.url, channel.slotId, SLOT_WAIT)) {
+            logger.info("No stream slot of {} free for the buffer of {} yet", channel.provider, channel.name);
+        }
+        RecordingServiceConfig.HttpRecorder settings = config.getHttpRecorder();
+        TsPacketWriter writer = new TsPacketWriter(channel.ring, settings.getBufferSize());
+        int failedConnections = 0;
+        try {
+            while (running) {
+                if (failedConnections > 0) {
+                    Duration delay = Duration.ofSeconds(failedConnections);
+                    Thread.sleep((delay.compareTo(MAX_RECONNECT_DELAY) < 0 ? delay : MAX_RECONNECT_DELAY).toMillis());
+                }
+                StreamIngest.Subscriber subscriber = streamIngest.subscriber(channel.url, "buffer of " + channel.name);
+                channel.subscriber = subscriber;
+                if (!running) {
+                    break;
+                }
+                writer.startConnection();
+                try {
+                    subscriber.connect();
+                    List<ByteBuffer> received;
+                    while ((received = subscriber.next(settings.getReadTimeout())) != null) {
+                        for (ByteBuffer buffer : received) {
+                            writer.transfer(buffer);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!subscriber.isClosed()) {
+                        logger.warn("Connection of the buffer of {} failed after {} bytes: {}", channel.name,
+                                    writer.getConnectionBytes(), e.getMessage());
+                    }
+                } finally {
+                    subscriber.close();
+                }
+                failedConnections = writer.getConnectionBytes() > 0 ? 0 : failedConnections + 1;
+            }
+        } catch (IllegalStateException e) {
+            logger.error("Stopped buffering {}: {}", channel.name, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            streamSlotManager.release(channel.slotId);
+        }
+    }
+
+    private static final class PinnedChannel {
+
+        private final String name;
+        private final String url;
+        // Negative, so it never collides with the id of a schedule
+        private final Long slotId;
+        private final String provider;
+        private final PacketRing ring;
+        private volatile StreamIngest.Subscriber subscriber;
+        private volatile Thread thread;
+
+        private PinnedChannel(String name, String url, Long slotId, String provider, PacketRing ring) {
+            this.name = name;
+            this.url = url;
+            this.slotId = slotId;
+            this.provider = provider;
+            this.ring = ring;
+        }
+    }
+
+    /**
+     * A recording's read position in the buffer of a pinned channel. A recording that falls so far behind that its
+     * packets were overwritten skips ahead to the oldest packet. Stopping it, e.g. by the watchdog, lets the
+     * recording connect to the live stream instead.
+     */
+    private static final class BufferedFeed implements StreamFeed {
+
+        private final PacketRing ring;
+        private final String name;
+        private final ByteBuffer chunk;
+        private long sequence;
+        private volatile boolean closed;
+
+        private BufferedFeed(PacketRing ring, String name, long sequence, int bufferSize) {
+            this.ring = ring;
+            this.name = name;
+            this.sequence = sequence;
+            this.chunk = ByteBuffer.allocate(Math.max(1, bufferSize / TsPacketWriter.PACKET_SIZE) * TsPacketWriter.PACKET_SIZE);
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public List<ByteBuffer> next(Duration timeout) throws IOException {
+            if (closed) {
+                return null;
+            }
+            chunk.clear();
+            long start;
+            try {
+                start = ring.read(sequence, chunk, timeout.toMillis(), () -> closed);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading");
+            }
+            if (chunk.position() == 0) {
+                if (closed || !ring.isOpen()) {
+                    return null;
+                }
+                throw new IOException("No data for " + timeout.toSeconds() + "s");
+            }
+            if (start > sequence) {
+                logger.warn("{} fell behind the buffer, skipped {} packets", name, start - sequence);
+            }
+            sequence = start + chunk.position() / TsPacketWriter.PACKET_SIZE;
+            chunk.flip();
+            return List.of(chunk);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            ring.wakeUp();
+        }
+
+        @Override
+        public boolean stop(Duration gracePeriod) {
+            close();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package me.schickel.recorder.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.repository.ScheduleRepository;
+import me.schickel.recorder.util.IntervalTree;
+import me.schickel.recorder.util.TimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of the time intervals of all stored schedules, used to check new and patched
+ * schedules for overlaps without reading the schedule table. Schedules are grouped by the provider of
+ * their stream URL, since each provider has its own connection budget. Overlapping schedules that share a
+ * connection of {@link StreamIngest} count as one stream. Kept in sync by every code path that saves or
+ * deletes schedules.
+ */
+@Service
+@RequiredArgsConstructor
+public class ScheduleIntervalIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScheduleIntervalIndex.class);
+
+    private final ScheduleRepository scheduleRepository;
+    private final ProviderResolver providerResolver;
+    private final Map<String, IntervalTree<String>> intervalsByProvider = new HashMap<>();
+    private final Map<Long, String> providerById = new HashMap<>();
+    private final Map<Long, String> shareKeyById = new HashMap<>();
+
+    @PostConstruct
+    public synchronized void load() {
+        intervalsByProvider.clear();
+        providerById.clear();
+        shareKeyById.clear();
+        scheduleRepository.findAll().forEach(this::put);
+        logger.info("Indexed {} schedule intervals of {} providers", providerById.size(), intervalsByProvider.size());
+    }
+
+    public synchronized void put(RecordingSchedule schedule) {
+        if (schedule.getId() == null) {
+            return;
+        }
+        remove(schedule.getId());
+        String provider = providerResolver.resolve(schedule.getM3uUrl());
+        intervalsByProvider.computeIfAbsent(provider, key -> new IntervalTree<>())
+                           .put(schedule.getId(),
+                                TimeUtils.toEpochSecond(schedule.getStartTime()),
+                                TimeUtils.toEpochSecond(schedule.getEndTime()),
+                                schedule.getFileName());
+        providerById.put(schedule.getId(), provider);
+        String shareKey = StreamIngest.shareKey(schedule);
+        if (shareKey != null) {
+            shareKeyById.put(schedule.getId(), shareKey);
+        }
+    }
+
+    public synchronized void remove(Long scheduleId) {
+        shareKeyById.remove(scheduleId);
+        String provider = providerById.remove(scheduleId);
+        if (provider != null) {
+            IntervalTree<String> intervals = intervalsByProvider.get(provider);
+            intervals.remove(scheduleId);
+            if (intervals.size() == 0) {
+                intervalsByProvider.remove(provider);
+            }
+        }
+    }
+
+    /**
+     * Returns the schedules of the given provider overlapping the half-open interval {@code [start, end)}
+     * in epoch seconds, ordered by start. The value of each interval is the schedule's file name.
+     * @param excludeId schedule to ignore, e.g. the one being patched; may be null
+     */
+    public synchronized List<IntervalTree.Interval<String>> findOverlapping(String provider, long start, long end, Long excludeId) {
+        IntervalTree<String> intervals = intervalsByProvider.get(provider);
+        if (intervals == null) {
+            return List.of();
+        }
+        return intervals.findOverlapping(start, end).stream()
+                        .filter(interval -> excludeId == null || interval.id() != excludeId)
+                        .toList();
+    }
+
+    /**
+     * Sweeps over the schedules of the given provider overlapping {@code [start, end)} and returns the windows
+     * in which adding a schedule for that interval would exceed {@code capacity} concurrent recordings,
+     * ordered by start.
+     * @param excludeId schedule to ignore, e.g. the one being patched; may be null
+     */
+    public List<Window> findOversubscribedWindows(String provider, long start, long end, Long excludeId, int capacity) {
+        return findOversubscribedWindows(provider, start, end, excludeId, capacity, null);
+    }
+
+    /**
+     * Like {@link #findOversubscribedWindows(String, long, long, Long, int)}, counting schedules with the same
+     * share key as one stream while they overlap.
+     * @param shareKey of the requested schedule as given by {@link StreamIngest#shareKey}; may be null
+     */
+    public synchronized List<Window> findOversubscribedWindows(String provider, long start, long end, Long excludeId, int capacity,
+                                                               String shareKey) {
+        List<IntervalTree.Interval<String>> overlapping = findOverlapping(provider, start, end, excludeId);
+        if (overlapping.size() + 1 <= capacity) {
+            return List.of();
+        }
+
+        // +1 when an existing schedule starts inside the interval, -1 when it ends; ends sort first (half-open).
+        // The third element is the index of the schedule in overlapping.
+        List<long[]> events = new ArrayList<>(overlapping.size() * 2);
+        for (int index = 0; index < overlapping.size(); index++) {
+            IntervalTree.Interval<String> interval = overlapping.get(index);
+            events.add(new long[]{Math.max(interval.start(), start), 1, index});
+            events.add(new long[]{Math.min(interval.end(), end), -1, index});
+        }
+        events.sort(Comparator.<long[]>comparingLong(event -> event[0]).thenComparingLong(event -> event[1]));
+        // Running schedules per share key, only the first of each counts
+        Map<String, Integer> sharing = new HashMap<>();
+
+        List<Window> windows = new ArrayList<>();
+        int concurrent = 1; // the requested schedule itself
+        int peak = 0;
+        long windowStart = -1;
+        int i = 0;
+        while (i < events.size()) {
+            long time = events.get(i)[0];
+            while (i < events.size() && events.get(i)[0] == time) {
+                long[] event = events.get(i);
+                String key = shareKeyById.get(overlapping.get((int) event[2]).id());
+                if (key == null) {
+                    concurrent += (int) event[1];
+                } else if (!key.equals(shareKey)) {
+                    int running = sharing.merge(key, (int) event[1], Integer::sum);
+                    if (running == (event[1] > 0 ? 1 : 0)) {
+                        concurrent += (int) event[1];
+                    }
+                }
+                // else it shares the connection of the requested schedule and adds no stream
+                i++;
+            }
+            if (concurrent > capacity) {
+                if (windowStart < 0) {
+                    windowStart = time;
+                    peak = 0;
+                }
+                peak = Math.max(peak, concurrent);
+            } else if (windowStart >= 0) {
+                windows.add(toWindow(windowStart, time, peak, overlapping));
+                windowStart = -1;
+            }
+        }
+        if (windowStart >= 0) {
+            windows.add(toWindow(windowStart, end, peak, overlapping));
+        }
+        return windows;
+    }
+
+    private Window toWindow(long start, long end, int peak, List<IntervalTree.Interval<String>> overlapping) {
+        List<String> fileNames = overlapping.stream()
+                                            .filter(interval -> interval.start() < end && start < interval.end())
+                                            .map(IntervalTree.Interval::value)
+                                            .toList();
+        return new Window(start, end, peak, fileNames);
+    }
+
+    public synchronized int size() {
+        return providerById.size();
+    }
+
+    /**
+     * A half-open window {@code [start, end)} in epoch seconds in which {@code peakConcurrency} recordings,
+     * including the requested one, would run at the same time alongside the listed schedules.
+     */
+    public record Window(long start, long end, int peakConcurrency, List<String> fileNames) {
+    }
+}
@@ -8,11 +8,17 @@ import me.schickel.recorder.mapper.RecordingMapper;
 import me.schickel.recorder.repository.ScheduleRepository;
 import me.schickel.recorder.util.MiscUtils;
 import me.schickel.recorder.util.TimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
-import java.time.LocalDateTime;
 import java.util.List;
+import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
@@ -24,16 +30,39 @@ public class ScheduleManagementService {
     private final ChannelManagementService channelManagementService;
     private final MiscUtils miscUtils;
     private final PastRecordingService pastRecordingService;
+    private final RecordingTriggerService recordingTriggerService;
+    private final ScheduleIntervalIndex scheduleIntervalIndex;
+    private final ProviderResolver providerResolver;
+    private final RollingBufferService rollingBufferService;
+    private final StreamSlotManager streamSlotManager;
+    private static final Logger logger = LoggerFactory.getLogger(ScheduleManagementService.class);
 
     public void saveSchedule(RecordingScheduleRequest request) {
         validateAndProcessRequest(request, null);
         RecordingSchedule entity = recordingMapper.toEntity(request);
         scheduleRepository.save(entity);
+        scheduleIntervalIndex.put(entity);
+        recordingTriggerService.schedule(entity);
+    }
+
+    /**
+     * Fills the epoch columns of schedules created before they existed. Hibernate adds the columns and their
+     * indexes to existing databases, this fills them. Runs before the trigger queue and the resume logic read
+     * schedules by their epoch columns.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void backfillEpochColumns() {
+        List<RecordingSchedule> schedules = scheduleRepository.findByStartEpochIsNullOrEndEpochIsNull();
+        if (!schedules.isEmpty()) {
+            schedules.forEach(RecordingSchedule::updateEpochColumns);
+            scheduleRepository.saveAll(schedules);
+            logger.info("Backfilled epoch columns for {} schedules", schedules.size());
+        }
     }
 
     public List<RecordingScheduleResponse> getAllSchedules() {
-        List<RecordingSchedule> allSchedules = (List<RecordingSchedule>) scheduleRepository.findAll();
-        allSchedules.sort(timeUtils);
+        List<RecordingSchedule> allSchedules = scheduleRepository.findAllByOrderByStartEpochAsc();
         return allSchedules.stream()
                 .map(recordingMapper::toResponse)
                 .toList();
@@ -45,6 +74,12 @@ public class ScheduleManagementService {
         
         pastRecordingService.saveRecordingHistory(schedule, "DELETED_BY_USER");
         scheduleRepository.deleteById(id);
+        scheduleIntervalIndex.remove(id);
+        recordingTriggerService.cancel(id);
+        if (schedule.isTriggered()) {
+            // Stops a recording that still waits for a stream slot from taking one
+            streamSlotManager.cancel(id);
+        }
     }
 
     public void patchSchedule(Long id, RecordingScheduleRequest request) {
@@ -55,6 +90,8 @@ public class ScheduleManagementService {
         RecordingSchedule entity = recordingMapper.toEntity(request);
         entity.setId(id);
         scheduleRepository.save(entity);
+        scheduleIntervalIndex.put(entity);
+        recordingTriggerService.schedule(entity);
     }
 
     private void validateAndProcessRequest(RecordingScheduleRequest request, Long excludeId) {
@@ -72,6 +109,10 @@ public class ScheduleManagementService {
             if (channelManagementService.existsInChannelLinks(request.getChannel())) {
                 String channelUrl = channelManagementService.getUrlByName(request.getChannel());
                 request.setM3uUrl(channelUrl);
+                request.setFallbackUrls(channelManagementService.getFallbackUrlsByName(request.getChannel()));
+                if (request.getStreamSelection() == null || request.getStreamSelection().isBlank()) {
+                    request.setStreamSelection(channelManagementService.getStreamSelectionByName(request.getChannel()));
+                }
             } else if (miscUtils.isValidUrl(request.getChannel())) {
                 request.setM3uUrl(request.getChannel());
                 request.setChannel(null);
@@ -82,32 +123,41 @@ public class ScheduleManagementService {
             throw new IllegalArgumentException("M3U URL is required!");
         }
         
+        if (request.getFallbackUrls() != null && !request.getFallbackUrls().stream().allMatch(miscUtils::isValidUrl)) {
+            throw new IllegalArgumentException("Invalid fallback URL!");
+        }
+        if (request.getStreamSelection() != null && !request.getStreamSelection().isBlank()) {
+            StreamSelection.parse(request.getStreamSelection());
+        }
+
         // Validate and fix filename
         if (!isValidFilename(request.getFileName())) {
             throw new IllegalArgumentException("Invalid filename!");
         }
         request.setFileName(ensureTsExtension(request.getFileName()));
 
-        // Prevent overlapping schedules (half-open intervals [start, end))
-        LocalDateTime newStart = timeUtils.parseStringToLocalDateTime(request.getStartTime());
-        LocalDateTime newEnd = timeUtils.parseStringToLocalDateTime(request.getEndTime());
-
-        List<RecordingSchedule> existingSchedules = (List<RecordingSchedule>) scheduleRepository.findAll();
-        for (RecordingSchedule existing : existingSchedules) {
-            if (excludeId != null && excludeId.equals(existing.getId())) {
-                continue; // Skip self when patching
-            }
-            LocalDateTime existStart = timeUtils.parseStringToLocalDateTime(existing.getStartTime());
-            LocalDateTime existEnd = timeUtils.parseStringToLocalDateTime(existing.getEndTime());
-            if (intervalsOverlapHalfOpen(newStart, newEnd, existStart, existEnd)) {
-                throw new IllegalArgumentException("Schedule overlaps with an existing schedule (" + existing.getFileName() + ")");
-            }
+        // Prevent more overlapping schedules than the provider allows streams (half-open intervals [start, end), adjacency is allowed)
+        long newStart = TimeUtils.toEpochSecond(request.getStartTime());
+        long newEnd = TimeUtils.toEpochSecond(request.getEndTime());
+        String provider = providerResolver.resolve(request.getM3uUrl());
+        String shareKey = StreamIngest.shareKey(request.getEngine(), request.getM3uUrl());
+        // The rolling buffers of other channels hold their slots all the time
+        int maxStreams = providerResolver.getMaxStreams(provider) - rollingBufferService.getPinnedSlots(provider, shareKey);
+        if (maxStreams < 1) {
+            throw new IllegalArgumentException("All streams of provider " + provider + " are held by the rolling buffers of other channels");
         }
-    }
 
-    private boolean intervalsOverlapHalfOpen(LocalDateTime s1, LocalDateTime e1, LocalDateTime s2, LocalDateTime e2) {
-        // Treat intervals as [start, end); allow adjacency at exact boundaries
-        return s1.isBefore(e2) && s2.isBefore(e1);
+        List<ScheduleIntervalIndex.Window> oversubscribed =
+            scheduleIntervalIndex.findOversubscribedWindows(provider, newStart, newEnd, excludeId, maxStreams, shareKey);
+        if (!oversubscribed.isEmpty()) {
+            String windows = oversubscribed.stream()
+                                           .map(window -> TimeUtils.formatEpochSecond(window.start()) + " - "
+                                               + TimeUtils.formatEpochSecond(window.end())
+                                               + " (" + String.join(", ", window.fileNames()) + ")")
+                                           .collect(Collectors.joining("; "));
+            throw new IllegalArgumentException("Schedule overlaps with existing schedules beyond the " + maxStreams
+                                                   + " allowed simultaneous streams of provider " + provider + " during: " + windows);
+        }
     }
 
     private boolean isValidFilename(String filename) {
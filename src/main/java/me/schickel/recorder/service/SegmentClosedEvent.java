@@ -0,0 +1,16 @@
+package me.schickel.recorder.service;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Published when ffmpeg closed a file of a recording with {@code recorder.segments} enabled. The file is complete
+ * and not written to any more, so it can be processed while the recording goes on.
+ * @param fileName   of the schedule
+ * @param part       the segment belongs to, counting from 1 like the parts of an unsegmented recording
+ * @param duration   of the segment, null if ffmpeg was stopped before it could list the segment
+ * @param remuxToMkv whether the recording ends up as an MKV
+ */
+public record SegmentClosedEvent(Long scheduleId, String fileName, Path segment, int part, int index, Duration duration,
+                                 long bytes, boolean remuxToMkv) {
+}
@@ -0,0 +1,91 @@
+package me.schickel.recorder.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Index of the closed segments of a recording with {@code recorder.segments} enabled, e.g.
+ * {@code show.manifest.json} next to {@code show.00000.ts}. Rewritten whenever a segment is closed, so that it
+ * always lists the files that are complete, in recording order, and marked complete once the recording ended.
+ */
+class SegmentManifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentManifest.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Path path;
+    private final String fileName;
+    private final List<Entry> segments = new ArrayList<>();
+    private boolean complete;
+
+    /**
+     * @param recordingPath the first part of the recording
+     */
+    SegmentManifest(Path recordingPath, String fileName) {
+        this.path = pathFor(recordingPath);
+        this.fileName = fileName;
+    }
+
+    static Path pathFor(Path recordingPath) {
+        String name = recordingPath.getFileName().toString();
+        return recordingPath.resolveSibling(name.substring(0, name.lastIndexOf('.')) + ".manifest.json");
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    synchronized void add(int part, SegmentedOutput.Segment segment, String source) {
+        segments.add(new Entry(segment.file().getFileName().toString(), part, segment.index(), segment.start(), segment.end(),
+                               segment.bytes(), source));
+        // A replacement connection closes segments of the next part while the previous one is still running
+        segments.sort(Comparator.comparingInt(Entry::part).thenComparingInt(Entry::index));
+        write();
+    }
+
+    synchronized void remove(Path segment) {
+        if (segments.removeIf(entry -> entry.file().equals(segment.getFileName().toString()))) {
+            write();
+        }
+    }
+
+    synchronized void complete() {
+        complete = true;
+        write();
+    }
+
+    synchronized List<Entry> getSegments() {
+        return List.copyOf(segments);
+    }
+
+    private void write() {
+        Path partial = path.resolveSibling(path.getFileName() + ".partial");
+        try {
+            Files.writeString(partial, objectMapper.writeValueAsString(new Content(fileName, complete, segments)));
+            // Readers never see a half written manifest
+            Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not write segment manifest {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * @param start media time of the first packet in seconds, null if unknown
+     * @param end   media time of the end in seconds, null if unknown
+     * @param source URL the segment was recorded from
+     */
+    record Entry(String file, int part, int index, Double start, Double end, long bytes, String source) {
+    }
+
+    private record Content(String fileName, boolean complete, List<Entry> segments) {
+    }
+}
@@ -0,0 +1,218 @@
+package me.schickel.recorder.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The files of one part of a recording with {@code recorder.segments} enabled. Instead of the part itself, e.g.
+ * {@code show_2.ts}, ffmpeg's segment muxer writes {@code show_2.00000.ts}, {@code show_2.00001.ts} and so on,
+ * each cut at the first keyframe after the segment duration, and appends every file it closes to
+ * {@code show_2.segments.csv}. That list is read after every progress report of the part, on a virtual thread
+ * of its own so that a slow listener does not hold up the output of other ffmpeg processes, and each newly
+ * closed segment is handed to the listener. The timestamps run on across the segments, so that they can be
+ * joined without gaps.
+ */
+class SegmentedOutput {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedOutput.class);
+    private static final Pattern SEGMENT_INDEX = Pattern.compile("\\.\\d{5}(\\.[^.]*)$");
+
+    private final Path outputPath;
+    private final Consumer<Segment> onClosed;
+    private final List<Segment> closed = new ArrayList<>();
+    // Count and size of the closed segments, read by writtenBytes without waiting for a poll
+    private volatile ClosedSize closedSize = new ClosedSize(0, 0);
+    private volatile boolean finished;
+    private final AtomicBoolean pollPending = new AtomicBoolean();
+
+    /**
+     * @param outputPath the part the segments replace, it is never written itself
+     */
+    SegmentedOutput(Path outputPath, Consumer<Segment> onClosed) {
+        this.outputPath = outputPath;
+        this.onClosed = onClosed;
+    }
+
+    Path getOutputPath() {
+        return outputPath;
+    }
+
+    static Path segmentFile(Path outputPath, int index) {
+        return withSuffix(outputPath, String.format(Locale.ROOT, ".%05d", index), extension(outputPath));
+    }
+
+    /**
+     * The part a segment belongs to, e.g. {@code show_2.ts} for {@code show_2.00003.ts}.
+     */
+    static Path partOf(Path segment) {
+        Matcher matcher = SEGMENT_INDEX.matcher(segment.getFileName().toString());
+        return matcher.find() ? segment.resolveSibling(matcher.replaceFirst("$1")) : segment;
+    }
+
+    Path listFile() {
+        return withSuffix(outputPath, ".segments", ".csv");
+    }
+
+    /**
+     * Output options of the segment muxer, in place of the output file.
+     */
+    List<String> outputArguments(Duration segmentDuration) {
+        String path = outputPath.toString();
+        int extension = path.lastIndexOf('.');
+        // The muxer reads the whole path as a pattern
+        String pattern = path.substring(0, extension).replace("%", "%%") + ".%05d" + path.substring(extension).replace("%", "%%");
+        return List.of("-f", "segment",
+                       "-segment_time", String.format(Locale.ROOT, "%.3f", segmentDuration.toMillis() / 1000.0),
+                       "-segment_format", "mpegts",
+                       "-reset_timestamps", "0",
+                       "-segment_list", listFile().toString(),
+                       "-segment_list_type", "csv",
+                       "-y", pattern);
+    }
+
+    /**
+     * Like {@link #poll}, but on a virtual thread. A call while another one has not started to read the list yet
+     * is dropped, that one reads the list afterwards.
+     */
+    void pollAsync() {
+        if (finished || !pollPending.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofVirtual().name("segments-" + outputPath.getFileName()).start(() -> {
+            pollPending.set(false);
+            poll();
+        });
+    }
+
+    /**
+     * Hands the segments closed since the last call to the listener.
+     */
+    synchronized void poll() {
+        if (finished) {
+            return;
+        }
+        List<String> lines;
+        try {
+            lines = readCompleteLines(listFile());
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            logger.warn("Could not read the segment list of {}: {}", outputPath.getFileName(), e.getMessage());
+            return;
+        }
+        for (int index = closed.size(); index < lines.size(); index++) {
+            close(index, lines.get(index));
+        }
+    }
+
+    /**
+     * Closes the remaining segments once ffmpeg exited. A segment ffmpeg did not list, because it was killed
+     * before it could, is closed without its times.
+     * @return all segments of the part in order
+     */
+    synchronized List<Segment> finish() {
+        if (!finished) {
+            poll();
+            for (int index = closed.size(); Files.exists(segmentFile(outputPath, index)); index++) {
+                close(index, null);
+            }
+            finished = true;
+            try {
+                Files.deleteIfExists(listFile());
+            } catch (IOException e) {
+                logger.warn("Could not delete segment list {}: {}", listFile(), e.getMessage());
+            }
+        }
+        return List.copyOf(closed);
+    }
+
+    private void close(int index, String line) {
+        Path file = segmentFile(outputPath, index);
+        Double start = null;
+        Double end = null;
+        if (line != null) {
+            // file name,start,end - the name may be quoted, the times never are
+            int endSeparator = line.lastIndexOf(',');
+            int startSeparator = line.lastIndexOf(',', endSeparator - 1);
+            try {
+                start = Double.valueOf(line.substring(startSeparator + 1, endSeparator));
+                end = Double.valueOf(line.substring(endSeparator + 1));
+            } catch (RuntimeException e) {
+                logger.warn("Could not read segment list entry '{}' of {}", line, outputPath.getFileName());
+            }
+        }
+        long bytes = size(file);
+        Segment segment = new Segment(file, index, start, end, bytes);
+        closed.add(segment);
+        closedSize = new ClosedSize(closed.size(), closedSize.bytes() + bytes);
+        onClosed.accept(segment);
+    }
+
+    /**
+     * Bytes written to all segments of the part so far, ffmpeg cannot tell the size of a segmented output.
+     */
+    long writtenBytes() {
+        ClosedSize closedSize = this.closedSize;
+        return closedSize.bytes() + (finished ? 0 : size(segmentFile(outputPath, closedSize.count())));
+    }
+
+    boolean hasData() {
+        return size(segmentFile(outputPath, 0)) > 0;
+    }
+
+    private static List<String> readCompleteLines(Path file) throws IOException {
+        String content = Files.readString(file);
+        // The last line may still be written
+        int complete = content.lastIndexOf('\n') + 1;
+        return content.substring(0, complete).lines().filter(line -> !line.isBlank()).toList();
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static String extension(Path path) {
+        String fileName = path.getFileName().toString();
+        return fileName.substring(fileName.lastIndexOf('.'));
+    }
+
+    private static Path withSuffix(Path path, String suffix, String extension) {
+        String fileName = path.getFileName().toString();
+        return path.resolveSibling(fileName.substring(0, fileName.lastIndexOf('.')) + suffix + extension);
+    }
+
+    private record ClosedSize(int count, long bytes) {
+    }
+
+    /**
+     * A closed segment.
+     * @param start media time of its first packet in seconds, null if ffmpeg did not list it
+     * @param end   media time of its end in seconds, null if ffmpeg did not list it
+     */
+    record Segment(Path file, int index, Double start, Double end, long bytes) {
+
+        /**
+         * @return null if unknown
+         */
+        Duration duration() {
+            return start == null || end == null ? null : Duration.ofMillis(Math.round((end - start) * 1000));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package me.schickel.recorder.service;
+
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.entity.SourceHealth;
+import me.schickel.recorder.repository.SourceHealthRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a health score per stream URL, so that a recording with fallback URLs starts with the one that delivered
+ * most reliably. Every recorded part moves the score of its URL towards 1 if it wrote data and towards 0 if it
+ * did not. URLs that were never recorded from score in between.
+ */
+@Service
+@RequiredArgsConstructor
+public class SourceHealthService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SourceHealthService.class);
+    // How far a single part moves the score towards its outcome
+    private static final double WEIGHT = 0.3;
+    static final double UNKNOWN_SCORE = 0.5;
+
+    private final SourceHealthRepository sourceHealthRepository;
+
+    /**
+     * Orders the URLs by their health, the healthiest first. URLs with the same score keep their order.
+     */
+    public List<String> rank(List<String> urls) {
+        if (urls.size() < 2) {
+            return urls;
+        }
+        Map<String, Double> scores = new HashMap<>();
+        try {
+            sourceHealthRepository.findAllById(urls).forEach(health -> scores.put(health.getUrl(), health.getScore()));
+        } catch (RuntimeException e) {
+            logger.warn("Could not read the health of the stream URLs, keeping their order: {}", e.getMessage());
+            return urls;
+        }
+        return urls.stream()
+                   .sorted(Comparator.comparingDouble((String url) -> scores.getOrDefault(url, UNKNOWN_SCORE)).reversed())
+                   .toList();
+    }
+
+    /**
+     * @param delivered whether the part recorded from the URL wrote any data
+     */
+    public void recordOutcome(String url, boolean delivered) {
+        try {
+            SourceHealth health = sourceHealthRepository.findById(url).orElseGet(() -> {
+                SourceHealth unknown = new SourceHealth();
+                unknown.setUrl(url);
+                unknown.setScore(UNKNOWN_SCORE);
+                return unknown;
+            });
+            health.setScore(health.getScore() + WEIGHT * ((delivered ? 1 : 0) - health.getScore()));
+            if (delivered) {
+                health.setSuccesses(health.getSuccesses() + 1);
+            } else {
+                health.setFailures(health.getFailures() + 1);
+            }
+            health.setUpdatedEpoch(Instant.now().getEpochSecond());
+            sourceHealthRepository.save(health);
+        } catch (RuntimeException e) {
+            logger.warn("Could not update the health of a stream URL: {}", e.getMessage());
+        }
+    }
+}
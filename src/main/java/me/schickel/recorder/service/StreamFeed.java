@@ -0,0 +1,36 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.process.Stoppable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * One connection of a recording without ffmpeg, see {@link HttpTsRecorder}: either a live {@link StreamIngest}
+ * subscriber or the buffered past of a pinned channel, see {@link RollingBufferService}.
+ */
+public interface StreamFeed extends Stoppable {
+
+    /**
+     * Starts receiving the stream.
+     */
+    void connect();
+
+    /**
+     * @return the next buffers of the stream, or null at the end of the connection
+     * @throws IllegalStateException if the source is not a plain MPEG-TS stream
+     */
+    List<ByteBuffer> next(Duration timeout) throws IOException;
+
+    /**
+     * @return true if the recording let go of the connection, as opposed to it ending or failing
+     */
+    boolean isClosed();
+
+    /**
+     * Lets this recording go of the connection.
+     */
+    void close();
+}
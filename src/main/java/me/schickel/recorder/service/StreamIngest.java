@@ -0,0 +1,406 @@
+package me.schickel.recorder.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.RecordingSchedule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pulls plain HTTP MPEG-TS streams once per URL and hands the received data to every recording of that URL,
+ * so that overlapping recordings of the same channel share one upstream connection and one stream slot.
+ * The connection is opened for the first subscriber and closed when the last one leaves. When it ends or
+ * fails, every subscriber sees the end of its data and subscribes again, which opens a new connection.
+ */
+@Service
+@RequiredArgsConstructor
+public class StreamIngest {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamIngest.class);
+    // Batches a subscriber may fall behind the connection before it is dropped and has to subscribe again
+    private static final int MAX_QUEUED_BATCHES = 4096;
+    // Marks the end of the data in a queue, compared by identity, so it must not be the shared List.of()
+    private static final List<ByteBuffer> END = new ArrayList<>();
+
+    private final RecordingServiceConfig config;
+    // Guarded by this, like the subscriber lists of the upstreams
+    private final Map<String, Upstream> upstreams = new HashMap<>();
+    private HttpClient httpClient;
+
+    @PostConstruct
+    public void start() {
+        httpClient = HttpClient.newBuilder()
+                               .version(HttpClient.Version.HTTP_1_1)
+                               .followRedirects(HttpClient.Redirect.NORMAL)
+                               .connectTimeout(config.getHttpRecorder().getConnectTimeout())
+                               .executor(Executors.newVirtualThreadPerTaskExecutor())
+                               .build();
+    }
+
+    /**
+     * @return the URL by which recordings with the given engine share their connection, or null if each of
+     * them connects on its own, i.e. when ffmpeg records it or it is an HLS playlist
+     */
+    public static String shareKey(RecordingSchedule.Engine engine, String url) {
+        if (engine != RecordingSchedule.Engine.JAVA || url == null || FfmpegService.isHlsPlaylist(url)) {
+            return null;
+        }
+        try {
+            String scheme = URI.create(url).getScheme();
+            return scheme != null && (scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https")) ? url : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public static String shareKey(RecordingSchedule schedule) {
+        return shareKey(schedule.getEngine(), schedule.getM3uUrl());
+    }
+
+    /**
+     * Creates a subscriber of the URL, which receives nothing until it is {@link Subscriber#connect connected}.
+     * @param name of the recording, for the log
+     */
+    public Subscriber subscriber(String url, String name) {
+        return new Subscriber(url, name);
+    }
+
+    /**
+     * Number of open upstream connections.
+     */
+    public synchronized int getUpstreamCount() {
+        return upstreams.size();
+    }
+
+    /**
+     * Number of recordings receiving the stream of the given URL.
+     */
+    public synchronized int getSubscriberCount(String url) {
+        Upstream upstream = upstreams.get(url);
+        return upstream == null ? 0 : upstream.subscribers.size();
+    }
+
+    private synchronized void attach(Subscriber subscriber) {
+        if (subscriber.closed) {
+            subscriber.received.offer(END);
+            return;
+        }
+        Upstream upstream = upstreams.get(subscriber.url);
+        if (upstream == null) {
+            upstream = new Upstream(subscriber.url);
+            upstreams.put(subscriber.url, upstream);
+            Thread.ofVirtual().name("ingest-" + subscriber.name).start(upstream::pump);
+        } else {
+            logger.info("{} joins the connection of {} other recordings of its stream", subscriber.name, upstream.subscribers.size());
+        }
+        upstream.subscribers.add(subscriber);
+        subscriber.upstream = upstream;
+    }
+
+    /**
+     * Removes the subscriber from its upstream and closes the connection if it was the last one.
+     */
+    private synchronized void detach(Subscriber subscriber, Throwable failure) {
+        Upstream upstream = subscriber.upstream;
+        if (upstream != null && upstream.subscribers.remove(subscriber) && upstream.subscribers.isEmpty() && !upstream.ended) {
+            upstreams.remove(upstream.url, upstream);
+            upstream.connection.stop();
+        }
+        subscriber.end(failure);
+    }
+
+    private synchronized void end(Upstream upstream, Throwable failure) {
+        upstream.ended = true;
+        upstreams.remove(upstream.url, upstream);
+        upstream.subscribers.forEach(subscriber -> subscriber.end(failure));
+        upstream.subscribers.clear();
+    }
+
+    /**
+     * The connection to one URL and the recordings it feeds. Its thread copies every received batch into the
+     * queue of each subscriber, each one gets its own view of the buffers.
+     */
+    private final class Upstream {
+
+        private final String url;
+        private final Connection connection = new Connection();
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        private boolean ended;
+
+        private Upstream(String url) {
+            this.url = url;
+        }
+
+        private void pump() {
+            RecordingServiceConfig.HttpRecorder settings = config.getHttpRecorder();
+            Throwable failure = null;
+            try {
+                connection.open(httpClient, HttpRequest.newBuilder(URI.create(url))
+                                                       .header("User-Agent", settings.getUserAgent())
+                                                       .GET()
+                                                       .build());
+                HttpResponse.ResponseInfo response = connection.awaitResponse(settings.getReadTimeout());
+                if (response.statusCode() != 200) {
+                    throw new IOException("HTTP " + response.statusCode());
+                }
+                String contentType = response.headers().firstValue("Content-Type").orElse("");
+                if (contentType.toLowerCase(Locale.ROOT).contains("mpegurl")) {
+                    throw new IllegalStateException("Source is an HLS playlist, not an MPEG-TS stream");
+                }
+                List<ByteBuffer> received;
+                while ((received = connection.next(settings.getReadTimeout())) != null) {
+                    deliver(received);
+                }
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            } finally {
+                connection.close();
+                end(this, failure);
+            }
+        }
+
+        private void deliver(List<ByteBuffer> received) {
+            boolean shared = subscribers.size() > 1;
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.received.size() >= MAX_QUEUED_BATCHES) {
+                    logger.warn("{} fell {} batches behind its stream, connecting it again", subscriber.name, MAX_QUEUED_BATCHES);
+                    detach(subscriber, new IOException("Fell behind the stream"));
+                    continue;
+                }
+                subscriber.received.offer(shared ? received.stream().map(ByteBuffer::duplicate).toList() : received);
+            }
+        }
+    }
+
+    /**
+     * One recording's share of a stream. {@link #stop} is for the watchdog: a stalled stream stalls for every
+     * recording of it, so it ends the connection and all subscribers connect again. {@link #close} only lets
+     * this recording go.
+     */
+    public final class Subscriber implements StreamFeed {
+
+        private final String url;
+        private final String name;
+        private final BlockingQueue<List<ByteBuffer>> received = new LinkedBlockingQueue<>();
+        private volatile Upstream upstream;
+        private volatile Throwable failure;
+        private volatile boolean closed;
+
+        private Subscriber(String url, String name) {
+            this.url = url;
+            this.name = name;
+        }
+
+        /**
+         * Starts receiving the stream, over the open connection of another recording of the URL if there is one.
+         */
+        @Override
+        public void connect() {
+            attach(this);
+        }
+
+        @Override
+        public List<ByteBuffer> next(Duration timeout) throws IOException {
+            List<ByteBuffer> buffers;
+            try {
+                buffers = received.poll(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading");
+            }
+            if (buffers == null) {
+                throw new IOException("No data for " + timeout.toSeconds() + "s");
+            }
+            if (buffers == END) {
+                if (failure instanceof IllegalStateException e) {
+                    throw e;
+                }
+                if (failure != null && !closed) {
+                    throw new IOException(failure.getMessage(), failure);
+                }
+                return null;
+            }
+            return buffers;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Leaves the stream, the connection stays open while other recordings receive it.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            detach(this, null);
+        }
+
+        @Override
+        public boolean stop(Duration gracePeriod) {
+            Upstream current = upstream;
+            if (current != null) {
+                current.connection.stop();
+            }
+            return true;
+        }
+
+        private void end(Throwable failure) {
+            if (this.failure == null) {
+                this.failure = failure;
+            }
+            received.offer(END);
+        }
+    }
+
+    /**
+     * One HTTP connection. The body is requested one batch of buffers at a time, so the client reads at most
+     * one batch ahead of the upstream thread. Stopping the connection cancels the request and wakes up the
+     * upstream thread if it is waiting for data.
+     */
+    private static final class Connection implements HttpResponse.BodySubscriber<Void> {
+
+        private final CompletableFuture<HttpResponse.ResponseInfo> response = new CompletableFuture<>();
+        private final CompletableFuture<Void> body = new CompletableFuture<>();
+        private final BlockingQueue<List<ByteBuffer>> received = new LinkedBlockingQueue<>();
+        private volatile Flow.Subscription subscription;
+        private volatile CompletableFuture<HttpResponse<Void>> exchange;
+        private volatile Throwable failure;
+        private volatile boolean stopped;
+
+        private void open(HttpClient httpClient, HttpRequest request) {
+            exchange = httpClient.sendAsync(request, info -> {
+                response.complete(info);
+                return this;
+            });
+            exchange.whenComplete((ignored, e) -> {
+                if (e != null) {
+                    fail(e);
+                }
+            });
+            if (stopped) {
+                close();
+            }
+        }
+
+        private HttpResponse.ResponseInfo awaitResponse(Duration timeout) throws IOException {
+            try {
+                return response.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new IOException("No response within " + timeout.toSeconds() + "s");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while connecting");
+            }
+        }
+
+        /**
+         * @return the next buffers of the body, or null at its end
+         */
+        private List<ByteBuffer> next(Duration timeout) throws IOException {
+            List<ByteBuffer> buffers;
+            try {
+                buffers = received.poll(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading");
+            }
+            if (buffers == null) {
+                throw new IOException("No data for " + timeout.toSeconds() + "s");
+            }
+            if (buffers == END) {
+                if (failure != null && !stopped) {
+                    throw new IOException(failure.getMessage(), failure);
+                }
+                return null;
+            }
+            // Lets the client read the next batch while this one is handed out
+            subscription.request(1);
+            return buffers;
+        }
+
+        private void stop() {
+            stopped = true;
+            close();
+        }
+
+        private void close() {
+            Flow.Subscription current = subscription;
+            if (current != null) {
+                current.cancel();
+            }
+            CompletableFuture<HttpResponse<Void>> pending = exchange;
+            if (pending != null) {
+                pending.cancel(true);
+            }
+            response.completeExceptionally(new IOException("Connection closed"));
+            received.offer(END);
+        }
+
+        private void fail(Throwable e) {
+            failure = e;
+            response.completeExceptionally(e);
+            received.offer(END);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (stopped) {
+                subscription.cancel();
+            } else {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            received.offer(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            fail(throwable);
+            body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            received.offer(END);
+            body.complete(null);
+        }
+
+        @Override
+        public CompletionStage<Void> getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package me.schickel.recorder.service;
+
+import java.util.List;
+
+/**
+ * What ffprobe found in a stream.
+ * @param width   of the video stream, null if unknown
+ * @param height  of the video stream, null if unknown
+ * @param bitRate overall bitrate in bits per second, null if unknown
+ * @param streams every stream in index order, see {@link Stream}, empty if unknown
+ */
+public record StreamLayout(String videoCodec, Integer width, Integer height, Long bitRate, List<String> streams) {
+
+    public StreamLayout {
+        streams = List.copyOf(streams);
+    }
+
+    /**
+     * A layout of which only the video codec is known.
+     */
+    public static StreamLayout ofVideoCodec(String videoCodec) {
+        return new StreamLayout(videoCodec, null, null, null, List.of());
+    }
+
+    /**
+     * Whether all streams are known, so that ffmpeg does not need to analyze the stream for long.
+     */
+    public boolean isComplete() {
+        return !streams.isEmpty();
+    }
+
+    /**
+     * {@link #streams} with their details read back.
+     */
+    public List<Stream> parsedStreams() {
+        return streams.stream().map(Stream::parse).toList();
+    }
+
+    /**
+     * One entry of {@link #streams}: type and codec, e.g. {@code video:h264}, followed by whatever else ffprobe
+     * reported as {@code ;key=value}, e.g. {@code audio:mp2;id=0x101;language=deu;program=1;bitRate=192000}.
+     * Entries stored before the stream details were probed only have type and codec.
+     * @param id       stream id in the container, the PID in MPEG-TS, null if unknown
+     * @param language of an audio or subtitle stream, null if unknown
+     * @param program  id of the program the stream belongs to in a multi-program stream, null if unknown
+     * @param bitRate  in bits per second, null if unknown
+     */
+    public record Stream(String type, String codec, String id, String language, Integer program, Long bitRate) {
+
+        public static Stream parse(String entry) {
+            String[] parts = entry.split(";");
+            String[] typeAndCodec = parts[0].split(":", 2);
+            String id = null;
+            String language = null;
+            Integer program = null;
+            Long bitRate = null;
+            for (int i = 1; i < parts.length; i++) {
+                String[] pair = parts[i].split("=", 2);
+                if (pair.length < 2) {
+                    continue;
+                }
+                switch (pair[0]) {
+                    case "id" -> id = pair[1];
+                    case "language" -> language = pair[1];
+                    case "program" -> program = Integer.valueOf(pair[1]);
+                    case "bitRate" -> bitRate = Long.valueOf(pair[1]);
+                    default -> {
+                        // Written by a later version
+                    }
+                }
+            }
+            return new Stream(typeAndCodec[0], typeAndCodec.length > 1 ? typeAndCodec[1] : "unknown", id, language, program, bitRate);
+        }
+
+        /**
+         * The entry as stored in {@link StreamLayout#streams}.
+         */
+        @Override
+        public String toString() {
+            StringBuilder entry = new StringBuilder(type).append(':').append(codec);
+            if (id != null) {
+                entry.append(";id=").append(id);
+            }
+            if (language != null) {
+                entry.append(";language=").append(language);
+            }
+            if (program != null) {
+                entry.append(";program=").append(program);
+            }
+            if (bitRate != null) {
+                entry.append(";bitRate=").append(bitRate);
+            }
+            return entry.toString();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package me.schickel.recorder.service;
+
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.StreamProbe;
+import me.schickel.recorder.repository.StreamProbeRepository;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the ffprobe result of each channel, so that a channel that is recorded again, or a recording resumed
+ * after a restart, does not need to be probed again. Entries are keyed by the stream URL of the schedule and
+ * expire after {@code recorder.probe-cache.ttl}. Beyond {@code max-entries} the least recently used are dropped.
+ * A recording that fails with a cached layout invalidates it, so the next one probes again.
+ */
+@Service
+@RequiredArgsConstructor
+public class StreamProbeCache {
+
+    private final RecordingServiceConfig config;
+    private final StreamProbeRepository streamProbeRepository;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public record CacheStats(long hits, long misses, long invalidations) {
+    }
+
+    /**
+     * Returns the cached probe of the URL. The resolved URL is only returned while it is younger than
+     * {@code recorder.warmup.max-age}, otherwise the original URL is returned in its place.
+     */
+    public Optional<StreamWarmupService.ProbedStream> get(String url) {
+        long now = Instant.now().getEpochSecond();
+        long ttl = config.getProbeCache().getTtl().toSeconds();
+        Optional<StreamProbe> probe = streamProbeRepository.findById(url).filter(entry -> now - entry.getProbedEpoch() <= ttl);
+        if (probe.isEmpty()) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        hits.incrementAndGet();
+        streamProbeRepository.markUsed(url, now);
+        StreamProbe entry = probe.get();
+        boolean recent = now - entry.getProbedEpoch() <= config.getWarmup().getMaxAge().toSeconds();
+        List<String> streams = entry.getStreams().isEmpty() ? List.of() : Arrays.asList(entry.getStreams().split(","));
+        return Optional.of(new StreamWarmupService.ProbedStream(
+            recent ? entry.getResolvedUrl() : url,
+            new StreamLayout(entry.getVideoCodec(), entry.getWidth(), entry.getHeight(), entry.getBitRate(), streams)));
+    }
+
+    public void put(String url, StreamWarmupService.ProbedStream stream) {
+        long now = Instant.now().getEpochSecond();
+        StreamLayout layout = stream.layout();
+        StreamProbe entry = new StreamProbe();
+        entry.setUrl(url);
+        entry.setResolvedUrl(stream.url());
+        entry.setVideoCodec(layout.videoCodec());
+        entry.setWidth(layout.width());
+        entry.setHeight(layout.height());
+        entry.setBitRate(layout.bitRate());
+        entry.setStreams(String.join(",", layout.streams()));
+        entry.setProbedEpoch(now);
+        entry.setLastUsedEpoch(now);
+        streamProbeRepository.save(entry);
+        evict(now);
+    }
+
+    /**
+     * Drops the cached probe of the URL, e.g. because the stream no longer matches it.
+     * @return false if there was none
+     */
+    public boolean invalidate(String url) {
+        if (!streamProbeRepository.existsById(url)) {
+            return false;
+        }
+        streamProbeRepository.deleteById(url);
+        invalidations.incrementAndGet();
+        return true;
+    }
+
+    public CacheStats getStats() {
+        return new CacheStats(hits.get(), misses.get(), invalidations.get());
+    }
+
+    public long size() {
+        return streamProbeRepository.count();
+    }
+
+    private void evict(long now) {
+        streamProbeRepository.deleteProbedBefore(now - config.getProbeCache().getTtl().toSeconds());
+        long excess = streamProbeRepository.count() - config.getProbeCache().getMaxEntries();
+        if (excess > 0) {
+            streamProbeRepository.deleteAll(streamProbeRepository.findByOrderByLastUsedEpochAsc(PageRequest.of(0, (int) excess)));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package me.schickel.recorder.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Which of the streams found by ffprobe go into a recording, written as a comma separated rule, e.g.
+ * {@code program=1,audio=deu|eng,subtitles=drop,data=drop}:
+ * <ul>
+ *   <li>{@code program}: only the streams of this program of a multi-program stream, all programs if not set</li>
+ *   <li>{@code audio}: only the audio tracks in these languages, the first audio track if none of them is there,
+ *   all audio tracks if not set</li>
+ *   <li>{@code subtitles}, {@code data}: {@code keep} or {@code drop}, kept if not set. Data covers every stream
+ *   that is neither video, audio nor subtitles, e.g. EPG or SCTE-35 data.</li>
+ * </ul>
+ * Video streams of the program are always kept.
+ * @param program        null for all programs
+ * @param audioLanguages empty for all audio tracks
+ */
+public record StreamSelection(Integer program, List<String> audioLanguages, boolean keepSubtitles, boolean keepData) {
+
+    public StreamSelection {
+        audioLanguages = List.copyOf(audioLanguages);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the rule cannot be read
+     */
+    public static StreamSelection parse(String rule) {
+        if (rule == null || rule.isBlank()) {
+            throw new IllegalArgumentException("Stream selection is empty");
+        }
+        Integer program = null;
+        List<String> audioLanguages = List.of();
+        boolean keepSubtitles = true;
+        boolean keepData = true;
+        for (String part : rule.split(",")) {
+            String[] pair = part.trim().split("=", 2);
+            if (pair.length < 2 || pair[1].isBlank()) {
+                throw new IllegalArgumentException("Stream selection needs key=value pairs, got '" + part.trim() + "'");
+            }
+            String value = pair[1].trim();
+            switch (pair[0].trim().toLowerCase(Locale.ROOT)) {
+                case "program" -> program = parseProgram(value);
+                case "audio" -> audioLanguages = Arrays.stream(value.split("\\|"))
+                                                       .map(language -> language.trim().toLowerCase(Locale.ROOT))
+                                                       .filter(language -> !language.isEmpty())
+                                                       .toList();
+                case "subtitles" -> keepSubtitles = parseKeep(pair[0], value);
+                case "data" -> keepData = parseKeep(pair[0], value);
+                default -> throw new IllegalArgumentException("Unknown stream selection key '" + pair[0].trim()
+                                                                  + "', expected program, audio, subtitles or data");
+            }
+        }
+        return new StreamSelection(program, audioLanguages, keepSubtitles, keepData);
+    }
+
+    private static Integer parseProgram(String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Program of the stream selection must be a number, got '" + value + "'");
+        }
+    }
+
+    private static boolean parseKeep(String key, String value) {
+        return switch (value.toLowerCase(Locale.ROOT)) {
+            case "keep" -> true;
+            case "drop" -> false;
+            default -> throw new IllegalArgumentException(key.trim() + " of the stream selection must be keep or drop, got '" + value + "'");
+        };
+    }
+
+    /**
+     * The {@code -map} options that record the selected streams of the layout, each stream by its id, which
+     * stays the same across reconnects, or by its index if the id is unknown.
+     * @return empty if the layout does not tell the streams apart well enough, e.g. because it has no program
+     * ids or the program is not part of it, in which case ffmpeg's default selection is kept
+     */
+    public List<String> mapArguments(StreamLayout layout) {
+        List<StreamLayout.Stream> streams = layout.parsedStreams();
+        boolean[] selected = select(streams);
+        if (selected == null) {
+            return List.of();
+        }
+        List<String> arguments = new ArrayList<>();
+        for (int index = 0; index < streams.size(); index++) {
+            if (selected[index]) {
+                String id = streams.get(index).id();
+                arguments.add("-map");
+                arguments.add(id != null ? "0:i:" + id : "0:" + index);
+            }
+        }
+        return arguments;
+    }
+
+    /**
+     * Bits per second of the streams left out, as far as ffprobe reported their bitrates.
+     */
+    public long droppedBitRate(StreamLayout layout) {
+        List<StreamLayout.Stream> streams = layout.parsedStreams();
+        boolean[] selected = select(streams);
+        long dropped = 0;
+        for (int index = 0; selected != null && index < streams.size(); index++) {
+            Long bitRate = streams.get(index).bitRate();
+            if (!selected[index] && bitRate != null) {
+                dropped += bitRate;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return per stream whether it is recorded, null if the selection cannot be applied to these streams
+     */
+    private boolean[] select(List<StreamLayout.Stream> streams) {
+        if (program != null && streams.stream().noneMatch(stream -> program.equals(stream.program()))) {
+            return null;
+        }
+        boolean[] selected = new boolean[streams.size()];
+        boolean languageFound = false;
+        int firstAudio = -1;
+        for (int index = 0; index < streams.size(); index++) {
+            StreamLayout.Stream stream = streams.get(index);
+            if (program != null && !program.equals(stream.program())) {
+                continue;
+            }
+            switch (stream.type()) {
+                case "video" -> selected[index] = true;
+                case "audio" -> {
+                    if (firstAudio < 0) {
+                        firstAudio = index;
+                    }
+                    boolean wanted = audioLanguages.isEmpty()
+                        || stream.language() != null && audioLanguages.contains(stream.language().toLowerCase(Locale.ROOT));
+                    selected[index] = wanted;
+                    languageFound |= wanted;
+                }
+                case "subtitle" -> selected[index] = keepSubtitles;
+                default -> selected[index] = keepData;
+            }
+        }
+        if (!languageFound && firstAudio >= 0) {
+            selected[firstAudio] = true;
+        }
+        boolean anyVideo = false;
+        for (int index = 0; index < streams.size(); index++) {
+            anyVideo |= selected[index] && streams.get(index).type().equals("video");
+        }
+        return anyVideo ? selected : null;
+    }
+}
@@ -0,0 +1,322 @@
+package me.schickel.recorder.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out upstream stream slots, with a separate budget per provider as resolved by {@link ProviderResolver}.
+ * A slot is held for the whole lifetime of a running recording, whether it was triggered or resumed, and
+ * waiting recordings are served in arrival order as soon as a slot of their provider frees up. Recordings
+ * that receive the same URL over one connection of {@link StreamIngest} share a slot, which is returned
+ * when the last of them ends.
+ */
+@Service
+public class StreamSlotManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamSlotManager.class);
+
+    private final ProviderResolver providerResolver;
+    private final Map<String, Semaphore> slotsByProvider = new ConcurrentHashMap<>();
+    // Schedule id -> provider the slot was taken from
+    private final Map<Long, String> holders = new ConcurrentHashMap<>();
+    // Schedule id -> further slots, held while a replacement or hedged connection overlaps the current one
+    private final Map<Long, ExtraSlots> extraHolders = new ConcurrentHashMap<>();
+    // Shared URL -> slot of the recordings receiving it, guarded by itself
+    private final Map<String, SharedSlot> sharedSlots = new HashMap<>();
+    // Schedule id -> shared URL it receives
+    private final Map<Long, String> sharers = new ConcurrentHashMap<>();
+    private final Map<Long, Thread> waiting = new HashMap<>();
+    // Schedules cancelled before they started to wait, guarded by waiting
+    private final Set<Long> cancelled = new HashSet<>();
+
+    public StreamSlotManager(ProviderResolver providerResolver) {
+        this.providerResolver = providerResolver;
+    }
+
+    /**
+     * Blocks until a slot of the given provider is free for the given schedule.
+     * @return false if no slot became free within {@code maxWait} or the wait was cancelled
+     */
+    public boolean acquire(String provider, Long scheduleId, Duration maxWait) {
+        if (holders.containsKey(scheduleId)) {
+            return true;
+        }
+        Semaphore slots = slotsOf(provider);
+        boolean acquired = false;
+        synchronized (waiting) {
+            if (cancelled.remove(scheduleId)) {
+                logger.info("Schedule {} was cancelled before it waited for a stream slot", scheduleId);
+                return false;
+            }
+            waiting.put(scheduleId, Thread.currentThread());
+        }
+        try {
+            acquired = slots.tryAcquire(Math.max(0, maxWait.toMillis()), TimeUnit.MILLISECONDS);
+            if (acquired) {
+                holders.put(scheduleId, provider);
+                logger.info("Schedule {} acquired a stream slot of {} ({}/{} in use)",
+                            scheduleId, provider, getOccupied(provider), getCapacity(provider));
+            }
+            return acquired;
+        } catch (InterruptedException e) {
+            // Only cancel() interrupts a waiting recording, so the interrupt is consumed here
+            logger.info("Schedule {} stopped waiting for a stream slot", scheduleId);
+            return false;
+        } finally {
+            synchronized (waiting) {
+                waiting.remove(scheduleId);
+            }
+            if (acquired) {
+                // A cancel racing with a successful acquire must not leak its interrupt into the recording
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #acquire}, but joins the slot of another running recording of the same shared URL instead of
+     * taking one, see {@link StreamIngest#shareKey}.
+     */
+    public boolean acquireShared(String provider, String url, Long scheduleId, Duration maxWait) {
+        if (join(url, scheduleId)) {
+            return true;
+        }
+        if (!acquire(provider, scheduleId, maxWait)) {
+            return false;
+        }
+        synchronized (sharedSlots) {
+            holders.remove(scheduleId);
+            SharedSlot slot = sharedSlots.get(url);
+            if (slot != null) {
+                // Another recording of the URL got its slot while this one waited
+                slotsOf(provider).release();
+                slot.schedules().add(scheduleId);
+            } else {
+                sharedSlots.put(url, new SharedSlot(provider, new HashSet<>(Set.of(scheduleId))));
+            }
+            sharers.put(scheduleId, url);
+        }
+        return true;
+    }
+
+    /**
+     * Swaps the shared slot of the given schedule for a slot of its own, before it opens a connection of its own
+     * instead of receiving the shared one. The last recording of a shared URL keeps the slot, the others wait
+     * like {@link #acquire}. Schedules that do not share a slot keep what they hold.
+     * @return false if no slot became free within {@code maxWait} or the wait was cancelled
+     */
+    public boolean acquireOwn(Long scheduleId, Duration maxWait) {
+        String provider;
+        synchronized (sharedSlots) {
+            String url = sharers.get(scheduleId);
+            if (url == null) {
+                return true;
+            }
+            provider = sharedSlots.get(url).provider();
+            if (leaveSharedSlot(scheduleId) != null) {
+                holders.put(scheduleId, provider);
+                logger.info("Schedule {} keeps the stream slot of {} it shared for a connection of its own", scheduleId, provider);
+                return true;
+            }
+        }
+        logger.info("Schedule {} left its shared stream slot of {} for a connection of its own", scheduleId, provider);
+        return acquire(provider, scheduleId, maxWait);
+    }
+
+    /**
+     * Moves the slot of the given schedule to another provider without waiting, before it records from a fallback
+     * URL of that provider. Fails when no slot is free there or other recordings are waiting for one, the schedule
+     * then keeps its current slot. Moving to the provider the schedule already holds a slot of always succeeds.
+     */
+    public synchronized boolean tryMove(Long scheduleId, String provider) {
+        String current = holders.get(scheduleId);
+        if (current == null) {
+            return false;
+        }
+        if (current.equals(provider)) {
+            return true;
+        }
+        Semaphore slots = slotsOf(provider);
+        if (slots.hasQueuedThreads() || !slots.tryAcquire()) {
+            return false;
+        }
+        holders.put(scheduleId, provider);
+        slotsOf(current).release();
+        logger.info("Schedule {} moved its stream slot from {} to {} ({}/{} in use)",
+                    scheduleId, current, provider, getOccupied(provider), getCapacity(provider));
+        return true;
+    }
+
+    private boolean join(String url, Long scheduleId) {
+        synchronized (sharedSlots) {
+            SharedSlot slot = sharedSlots.get(url);
+            if (slot == null) {
+                return false;
+            }
+            slot.schedules().add(scheduleId);
+            sharers.put(scheduleId, url);
+            logger.info("Schedule {} shares the stream slot of {} with {} other recordings of its URL",
+                        scheduleId, slot.provider(), slot.schedules().size() - 1);
+            return true;
+        }
+    }
+
+    /**
+     * Takes a second slot of the provider the given schedule already holds a slot of, without waiting.
+     * Fails when no slot is free or other recordings are waiting for one, those always take precedence.
+     */
+    public boolean tryAcquireExtra(Long scheduleId) {
+        return tryAcquireExtra(scheduleId, 1);
+    }
+
+    /**
+     * Like {@link #tryAcquireExtra(Long)}, but allows the schedule up to {@code maxExtra} further slots.
+     */
+    public synchronized boolean tryAcquireExtra(Long scheduleId, int maxExtra) {
+        String provider = holders.get(scheduleId);
+        ExtraSlots held = extraHolders.get(scheduleId);
+        // Further slots left over from before a move stay with their provider until they are released
+        if (provider == null || (held != null && (held.count() >= maxExtra || !held.provider().equals(provider)))) {
+            return false;
+        }
+        Semaphore slots = slotsOf(provider);
+        if (slots.hasQueuedThreads() || !slots.tryAcquire()) {
+            return false;
+        }
+        extraHolders.put(scheduleId, new ExtraSlots(provider, held == null ? 1 : held.count() + 1));
+        logger.debug("Schedule {} took a further stream slot of {} for an overlapping connection", scheduleId, provider);
+        return true;
+    }
+
+    /**
+     * Returns one of the further slots of the given schedule.
+     */
+    public synchronized void releaseExtra(Long scheduleId) {
+        ExtraSlots held = extraHolders.remove(scheduleId);
+        if (held != null) {
+            if (held.count() > 1) {
+                extraHolders.put(scheduleId, new ExtraSlots(held.provider(), held.count() - 1));
+            }
+            slotsOf(held.provider()).release();
+            logger.debug("Schedule {} released a further stream slot of {}", scheduleId, held.provider());
+        }
+    }
+
+    /**
+     * Returns the slots held by the given schedule. Releasing a schedule without a slot has no effect.
+     */
+    public void release(Long scheduleId) {
+        synchronized (waiting) {
+            cancelled.remove(scheduleId);
+        }
+        ExtraSlots extra;
+        synchronized (this) {
+            extra = extraHolders.remove(scheduleId);
+        }
+        if (extra != null) {
+            slotsOf(extra.provider()).release(extra.count());
+        }
+        String provider = holders.remove(scheduleId);
+        if (provider == null) {
+            provider = leaveSharedSlot(scheduleId);
+        }
+        if (provider != null) {
+            slotsOf(provider).release();
+            logger.info("Schedule {} released its stream slot of {} ({}/{} in use)",
+                        scheduleId, provider, getOccupied(provider), getCapacity(provider));
+        }
+    }
+
+    /**
+     * @return the provider whose slot is to be returned, if the schedule was the last one sharing it
+     */
+    private String leaveSharedSlot(Long scheduleId) {
+        synchronized (sharedSlots) {
+            String url = sharers.remove(scheduleId);
+            SharedSlot slot = url == null ? null : sharedSlots.get(url);
+            if (slot == null || !slot.schedules().remove(scheduleId) || !slot.schedules().isEmpty()) {
+                return null;
+            }
+            sharedSlots.remove(url);
+            return slot.provider();
+        }
+    }
+
+    /**
+     * Aborts a pending {@link #acquire} of the given schedule, or the next one if it does not wait yet.
+     * {@link #release} forgets the cancellation.
+     */
+    public void cancel(Long scheduleId) {
+        synchronized (waiting) {
+            Thread thread = waiting.get(scheduleId);
+            if (thread != null) {
+                thread.interrupt();
+            } else {
+                cancelled.add(scheduleId);
+            }
+        }
+    }
+
+    public int getCapacity(String provider) {
+        return providerResolver.getMaxStreams(provider);
+    }
+
+    public int getOccupied(String provider) {
+        int shared;
+        synchronized (sharedSlots) {
+            shared = (int) sharedSlots.values().stream().filter(slot -> slot.provider().equals(provider)).count();
+        }
+        return (int) holders.values().stream().filter(provider::equals).count() + shared
+               + extraHolders.values().stream().filter(extra -> extra.provider().equals(provider)).mapToInt(ExtraSlots::count).sum();
+    }
+
+    public int getQueued(String provider) {
+        Semaphore slots = slotsByProvider.get(provider);
+        return slots == null ? 0 : slots.getQueueLength();
+    }
+
+    /**
+     * Number of slots in use across all providers.
+     */
+    public int getOccupied() {
+        int shared;
+        synchronized (sharedSlots) {
+            shared = sharedSlots.size();
+        }
+        return holders.size() + shared + extraHolders.values().stream().mapToInt(ExtraSlots::count).sum();
+    }
+
+    /**
+     * Number of recordings waiting for a slot across all providers.
+     */
+    public int getQueued() {
+        return slotsByProvider.values().stream().mapToInt(Semaphore::getQueueLength).sum();
+    }
+
+    /**
+     * Providers that recordings have requested slots for since startup.
+     */
+    public Set<String> getProviders() {
+        return Set.copyOf(slotsByProvider.keySet());
+    }
+
+    private Semaphore slotsOf(String provider) {
+        return slotsByProvider.computeIfAbsent(provider, key -> new Semaphore(providerResolver.getMaxStreams(key), true));
+    }
+
+    private record ExtraSlots(String provider, int count) {
+    }
+
+    private record SharedSlot(String provider, Set<Long> schedules) {
+    }
+}
@@ -0,0 +1,280 @@
+package me.schickel.recorder.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.process.ProcessLauncher;
+import me.schickel.recorder.repository.ScheduleRepository;
+import me.schickel.recorder.util.TimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Probes the stream of a recording before its start, so that ffmpeg can be launched at the start time without
+ * waiting for ffprobe first. The probe follows redirects and runs ffprobe on the final URL. A failed probe is
+ * retried in the background until it succeeds or the recording ends. The result is kept on the schedule and in
+ * {@link StreamProbeCache}, a channel with a cached result is not probed again.
+ * Before the start, a probe only connects while the provider has a free stream slot, so that it never takes
+ * the connection of a running recording. From the start on it uses the slot of its own recording.
+ */
+@Service
+@RequiredArgsConstructor
+public class StreamWarmupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamWarmupService.class);
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(30);
+    // How often a recording waiting at its start time checks whether it was stopped
+    private static final Duration WAIT_SLICE = Duration.ofSeconds(1);
+
+    private final RecordingServiceConfig config;
+    private final ScheduleRepository scheduleRepository;
+    private final ProcessLauncher processLauncher;
+    private final TimeUtils timeUtils;
+    private final ProviderResolver providerResolver;
+    private final StreamSlotManager streamSlotManager;
+    private final StreamProbeCache streamProbeCache;
+    private final ConcurrentMap<Long, Warmup> warmups = new ConcurrentHashMap<>();
+    private HttpClient httpClient;
+
+    public record ProbedStream(String url, StreamLayout layout) {
+
+        public String videoCodec() {
+            return layout.videoCodec();
+        }
+    }
+
+    /**
+     * @param started counted down once the recording started and holds its stream slot
+     */
+    private record Warmup(String url, CompletableFuture<ProbedStream> result, CountDownLatch started, Thread thread) {
+    }
+
+    @PostConstruct
+    public void start() {
+        httpClient = HttpClient.newBuilder()
+                               .followRedirects(HttpClient.Redirect.NORMAL)
+                               .connectTimeout(config.getHttpRecorder().getConnectTimeout())
+                               .executor(Executors.newVirtualThreadPerTaskExecutor())
+                               .build();
+    }
+
+    public Duration getLeadTime() {
+        return config.getWarmup().getLeadTime();
+    }
+
+    /**
+     * Starts probing the stream of the schedule in the background, unless it is already being probed.
+     */
+    public void warmUp(RecordingSchedule schedule) {
+        warmupFor(schedule);
+    }
+
+    private Warmup warmupFor(RecordingSchedule schedule) {
+        Long scheduleId = schedule.getId();
+        Warmup current = warmups.get(scheduleId);
+        if (current != null && current.url().equals(schedule.getM3uUrl())) {
+            return current;
+        }
+        CompletableFuture<ProbedStream> result = new CompletableFuture<>();
+        CountDownLatch started = new CountDownLatch(1);
+        Thread thread = Thread.ofVirtual().name("warmup-" + scheduleId).unstarted(() -> probeUntilDone(schedule, result, started));
+        Warmup warmup = new Warmup(schedule.getM3uUrl(), result, started, thread);
+        Warmup replaced = warmups.put(scheduleId, warmup);
+        if (replaced != null) {
+            // The URL of the schedule changed since
+            replaced.thread().interrupt();
+        }
+        thread.start();
+        return warmup;
+    }
+
+    /**
+     * Returns the probed stream of a recording that is due, waiting for the warm-up if it has not succeeded
+     * yet, until {@code giveUpAt} or until {@code keepWaiting} turns false.
+     * @return the stream to record, or null if it could not be probed in time
+     */
+    public ProbedStream awaitStream(RecordingSchedule schedule, LocalDateTime giveUpAt, BooleanSupplier keepWaiting) {
+        Long scheduleId = schedule.getId();
+        Warmup warmup = warmups.get(scheduleId);
+        if ((warmup == null || !warmup.result().isDone()) && isFresh(schedule)) {
+            cancel(scheduleId);
+            return new ProbedStream(schedule.getResolvedUrl() != null ? schedule.getResolvedUrl() : schedule.getM3uUrl(),
+                                    StreamLayout.ofVideoCodec(schedule.getVideoCodec()));
+        }
+        warmup = warmupFor(schedule);
+        // Probes right away instead of waiting for the next retry or a free slot
+        warmup.started().countDown();
+        if (!warmup.result().isDone()) {
+            logger.info("Stream of {} has not been probed yet, waiting for it", schedule.getFileName());
+        }
+        try {
+            while (keepWaiting.getAsBoolean() && LocalDateTime.now().isBefore(giveUpAt)) {
+                try {
+                    return warmup.result().get(WAIT_SLICE.toMillis(), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Checks again whether the recording was stopped meanwhile
+                } catch (ExecutionException e) {
+                    return null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return null;
+        } finally {
+            cancel(scheduleId);
+        }
+    }
+
+    /**
+     * Stops probing the stream of the schedule and forgets its result.
+     */
+    public void cancel(Long scheduleId) {
+        Warmup warmup = warmups.remove(scheduleId);
+        if (warmup != null) {
+            warmup.thread().interrupt();
+        }
+    }
+
+    private boolean isFresh(RecordingSchedule schedule) {
+        return schedule.getVideoCodec() != null && schedule.getProbedEpoch() != null
+               && Instant.now().getEpochSecond() - schedule.getProbedEpoch() <= config.getWarmup().getMaxAge().toSeconds();
+    }
+
+    private void probeUntilDone(RecordingSchedule schedule, CompletableFuture<ProbedStream> result, CountDownLatch started) {
+        Long scheduleId = schedule.getId();
+        LocalDateTime endTime = timeUtils.parseStringToLocalDateTime(schedule.getEndTime());
+        String provider = providerResolver.resolve(schedule.getM3uUrl());
+        try {
+            Optional<ProbedStream> cached = streamProbeCache.get(schedule.getM3uUrl());
+            if (cached.isPresent()) {
+                logger.info("Using the cached probe of {}: {}", schedule.getFileName(), cached.get().videoCodec());
+                result.complete(cached.get());
+                return;
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Could not read the cached probe of {}: {}", schedule.getFileName(), e.getMessage());
+        }
+        int attempts = 0;
+        while (!Thread.currentThread().isInterrupted() && LocalDateTime.now().isBefore(endTime)) {
+            if (attempts > 0 && !scheduleRepository.existsById(scheduleId)) {
+                break;
+            }
+            if (started.getCount() > 0 && !hasFreeSlot(provider)) {
+                logger.debug("No free stream slot of {} to probe {} ahead of its start", provider, schedule.getFileName());
+                if (!sleep(config.getWarmup().getRetryInterval(), started)) {
+                    break;
+                }
+                continue;
+            }
+            attempts++;
+            try {
+                ProbedStream stream = probe(schedule.getM3uUrl());
+                scheduleRepository.saveProbeResult(scheduleId, stream.url(), stream.videoCodec(), Instant.now().getEpochSecond());
+                streamProbeCache.put(schedule.getM3uUrl(), stream);
+                logger.info("Probed stream of {}: {} at {}", schedule.getFileName(), stream.videoCodec(), stream.url());
+                result.complete(stream);
+                return;
+            } catch (IOException e) {
+                logger.warn("Probing the stream of {} failed (attempt {}), retrying in {}s: {}", schedule.getFileName(), attempts,
+                            config.getWarmup().getRetryInterval().toSeconds(), e.getMessage());
+            } catch (RuntimeException e) {
+                logger.error("Probing the stream of {} failed: {}", schedule.getFileName(), e.getMessage(), e);
+            }
+            if (!sleep(config.getWarmup().getRetryInterval(), started)) {
+                break;
+            }
+        }
+        result.completeExceptionally(new IOException("Stream of " + schedule.getFileName() + " could not be probed"));
+    }
+
+    private boolean hasFreeSlot(String provider) {
+        return streamSlotManager.getOccupied(provider) < streamSlotManager.getCapacity(provider) && streamSlotManager.getQueued(provider) == 0;
+    }
+
+    /**
+     * Waits before the next probe, or until the recording starts if it has not yet.
+     * @return false if the warm-up was cancelled meanwhile
+     */
+    private static boolean sleep(Duration delay, CountDownLatch started) {
+        try {
+            if (started.getCount() > 0) {
+                started.await(delay.toMillis(), TimeUnit.MILLISECONDS);
+            } else {
+                Thread.sleep(delay.toMillis());
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    ProbedStream probe(String url) throws IOException {
+        String resolvedUrl = resolveRedirects(url);
+        String output = processLauncher.run("ffprobe", List.of("ffprobe", "-v", "warning", "-print_format", "json", "-show_streams",
+                                                               "-show_programs", "-show_format", resolvedUrl), PROBE_TIMEOUT);
+        StreamLayout layout = output == null ? null : FfmpegService.parseStreamLayout(output);
+        if (layout == null || layout.videoCodec() == null) {
+            throw new IOException("ffprobe found no video stream");
+        }
+        return new ProbedStream(resolvedUrl, layout);
+    }
+
+    /**
+     * Follows the redirects of an HTTP URL, so that ffmpeg connects to the final server right away. Only the
+     * response headers are read.
+     */
+    private String resolveRedirects(String url) throws IOException {
+        URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            return url;
+        }
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                                         .header("User-Agent", config.getHttpRecorder().getUserAgent())
+                                         .timeout(PROBE_TIMEOUT)
+                                         .GET()
+                                         .build();
+        try {
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            // Closing the body ends the connection, a live stream would never end on its own
+            response.body().close();
+            if (response.statusCode() >= 400) {
+                throw new IOException("HTTP " + response.statusCode());
+            }
+            return response.uri().toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting");
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package me.schickel.recorder.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes an MPEG-TS byte stream to a file, or any other channel, in whole 188-byte packets. The packet boundaries are searched again
+ * at the start of every connection and whenever a packet does not start with the sync byte, so a connection
+ * that starts or ends in the middle of a packet never leaves a torn packet in the file. The PCR of the stream
+ * gives the media time written by the current connection.
+ */
+class TsPacketWriter {
+
+    static final int PACKET_SIZE = 188;
+    private static final byte SYNC_BYTE = 0x47;
+    // A boundary is trusted once this many packets in a row start with the sync byte
+    private static final int SYNC_PACKETS = 3;
+    private static final int SYNC_WINDOW = (SYNC_PACKETS - 1) * PACKET_SIZE + 1;
+    private static final long PCR_TICKS_PER_SECOND = 90_000;
+    private static final long PCR_WRAP = 1L << 33;
+    // A larger step between two PCRs is a discontinuity in the stream, not media time
+    private static final long MAX_PCR_STEP = 10 * PCR_TICKS_PER_SECOND;
+
+    private final WritableByteChannel file;
+    private final byte[] buffer;
+    private final ByteBuffer writeBuffer;
+    private int filled;
+    private boolean synced;
+    private long connectionBytes;
+    private long discardedBytes;
+    private int pcrPid = -1;
+    private long lastPcr = -1;
+    private long mediaTicks;
+
+    TsPacketWriter(WritableByteChannel file, int bufferSize) {
+        if (bufferSize < SYNC_WINDOW + PACKET_SIZE) {
+            throw new IllegalArgumentException("Buffer of " + bufferSize + " bytes cannot hold " + SYNC_PACKETS + " packets");
+        }
+        this.file = file;
+        this.buffer = new byte[bufferSize];
+        this.writeBuffer = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Starts counting a new connection, whose first bytes are not expected to continue the previous one.
+     */
+    void startConnection() {
+        discardedBytes += filled;
+        filled = 0;
+        synced = false;
+        connectionBytes = 0;
+        pcrPid = -1;
+        lastPcr = -1;
+        mediaTicks = 0;
+    }
+
+    /**
+     * Writes all whole packets received so far, the rest of {@code received} is kept for the next call.
+     */
+    void transfer(ByteBuffer received) throws IOException {
+        while (received.hasRemaining()) {
+            int length = Math.min(received.remaining(), buffer.length - filled);
+            received.get(buffer, filled, length);
+            filled += length;
+            writePackets();
+        }
+    }
+
+    private void writePackets() throws IOException {
+        // Bytes before position were looked at, whole packets from pending to position are not written yet
+        int position = 0;
+        int pending = 0;
+        while (true) {
+            if (!synced) {
+                int boundary = findBoundary(position);
+                int dropUntil = boundary >= 0 ? boundary : Math.max(position, filled - SYNC_WINDOW + 1);
+                discardedBytes += dropUntil - position;
+                position = dropUntil;
+                pending = dropUntil;
+                if (boundary < 0) {
+                    break;
+                }
+                synced = true;
+            }
+            if (filled - position < PACKET_SIZE) {
+                break;
+            }
+            if (buffer[position] != SYNC_BYTE) {
+                write(pending, position);
+                pending = position;
+                synced = false;
+                continue;
+            }
+            readPcr(position);
+            position += PACKET_SIZE;
+        }
+        write(pending, position);
+        System.arraycopy(buffer, position, buffer, 0, filled - position);
+        filled -= position;
+    }
+
+    private int findBoundary(int from) {
+        for (int start = from; start + SYNC_WINDOW <= filled; start++) {
+            boolean boundary = true;
+            for (int packet = 0; packet < SYNC_PACKETS && boundary; packet++) {
+                boundary = buffer[start + packet * PACKET_SIZE] == SYNC_BYTE;
+            }
+            if (boundary) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    private void readPcr(int packet) {
+        boolean hasAdaptationField = (buffer[packet + 3] & 0x20) != 0;
+        if (!hasAdaptationField || (buffer[packet + 4] & 0xff) < 7 || (buffer[packet + 5] & 0x10) == 0) {
+            return;
+        }
+        int pid = ((buffer[packet + 1] & 0x1f) << 8) | (buffer[packet + 2] & 0xff);
+        if (pcrPid < 0) {
+            pcrPid = pid;
+        } else if (pid != pcrPid) {
+            return;
+        }
+        // 33 bit base of the 90 kHz clock, the 27 MHz extension does not matter here
+        long pcr = ((long) (buffer[packet + 6] & 0xff) << 25)
+                   | ((long) (buffer[packet + 7] & 0xff) << 17)
+                   | ((long) (buffer[packet + 8] & 0xff) << 9)
+                   | ((long) (buffer[packet + 9] & 0xff) << 1)
+                   | ((buffer[packet + 10] & 0xff) >> 7);
+        if (lastPcr >= 0) {
+            long step = Math.floorMod(pcr - lastPcr, PCR_WRAP);
+            if (step <= MAX_PCR_STEP) {
+                mediaTicks += step;
+            }
+        }
+        lastPcr = pcr;
+    }
+
+    private void write(int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        writeBuffer.limit(to).position(from);
+        while (writeBuffer.hasRemaining()) {
+            file.write(writeBuffer);
+        }
+        connectionBytes += to - from;
+    }
+
+    /**
+     * Bytes written by the current connection, always whole packets.
+     */
+    long getConnectionBytes() {
+        return connectionBytes;
+    }
+
+    /**
+     * Bytes skipped while searching for packet boundaries, over all connections.
+     */
+    long getDiscardedBytes() {
+        return discardedBytes;
+    }
+
+    boolean hasMediaTime() {
+        return lastPcr >= 0;
+    }
+
+    /**
+     * Media time written by the current connection according to the PCR, 0 as long as there is no PCR.
+     */
+    long getMediaTimeMicros() {
+        return mediaTicks * 1_000_000 / PCR_TICKS_PER_SECOND;
+    }
+}
@@ -1,18 +1,64 @@
 package me.schickel.recorder.util;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import javax.annotation.processing.Generated;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @Generated("Spring Configuration")
 @Configuration
 public class ExecutorConfig {
 
-    @Bean
+    @Value("${spring.executor.threadpool.core-size:1}")
+    private int postProcessingCoreSize;
+
+    @Value("${spring.executor.threadpool.max-size:2}")
+    private int postProcessingMaxSize;
+
+    @Value("${spring.executor.threadpool.queue-capacity:20}")
+    private int postProcessingQueueCapacity;
+
+    /**
+     * Runs recording supervision. Each recording blocks its thread for hours while ffmpeg runs, so every
+     * recording gets its own virtual thread instead of competing for a CPU-sized pool.
+     */
+    @Bean(destroyMethod = "shutdownNow")
     public ExecutorService executorService() {
-        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("recording-", 0).factory());
+    }
+
+    /**
+     * Runs CPU and disk heavy post-processing such as remuxing. Bounded by {@code spring.executor.threadpool},
+     * when the queue is full the submitting thread blocks until there is room again.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor postProcessingExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(postProcessingCoreSize);
+        executor.setMaxPoolSize(postProcessingMaxSize);
+        executor.setQueueCapacity(postProcessingQueueCapacity);
+        executor.setThreadNamePrefix("post-processing-");
+        executor.setRejectedExecutionHandler(ExecutorConfig::waitForQueueSpace);
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(60);
+        return executor;
+    }
+
+    private static void waitForQueueSpace(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Post-processing executor has been shut down");
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for post-processing queue space", e);
+        }
     }
-}
\ No newline at end of file
+}
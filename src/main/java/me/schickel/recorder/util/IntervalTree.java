@@ -0,0 +1,185 @@
+package me.schickel.recorder.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Augmented AVL tree of half-open intervals {@code [start, end)}, each identified by an id.
+ * Every node keeps the maximum end of its subtree, so overlap queries run in O(log n + k).
+ * Not thread-safe.
+ */
+public class IntervalTree<T> {
+
+    public record Interval<T>(long id, long start, long end, T value) {
+    }
+
+    private static final class Node<T> {
+        private final Interval<T> interval;
+        private Node<T> left;
+        private Node<T> right;
+        private int height = 1;
+        private long maxEnd;
+
+        private Node(Interval<T> interval) {
+            this.interval = interval;
+            this.maxEnd = interval.end();
+        }
+    }
+
+    private final Map<Long, Interval<T>> intervalsById = new HashMap<>();
+    private Node<T> root;
+
+    /**
+     * Adds the interval, replacing any interval previously stored under the same id.
+     */
+    public void put(long id, long start, long end, T value) {
+        remove(id);
+        Interval<T> interval = new Interval<>(id, start, end, value);
+        intervalsById.put(id, interval);
+        root = insert(root, interval);
+    }
+
+    public boolean remove(long id) {
+        Interval<T> interval = intervalsById.remove(id);
+        if (interval == null) {
+            return false;
+        }
+        root = delete(root, interval);
+        return true;
+    }
+
+    public Interval<T> get(long id) {
+        return intervalsById.get(id);
+    }
+
+    public int size() {
+        return intervalsById.size();
+    }
+
+    public void clear() {
+        intervalsById.clear();
+        root = null;
+    }
+
+    /**
+     * Returns all intervals overlapping {@code [start, end)}, ordered by start. Adjacent intervals do not overlap.
+     */
+    public List<Interval<T>> findOverlapping(long start, long end) {
+        List<Interval<T>> result = new ArrayList<>();
+        collectOverlapping(root, start, end, result);
+        return result;
+    }
+
+    private void collectOverlapping(Node<T> node, long start, long end, List<Interval<T>> result) {
+        if (node == null || node.maxEnd <= start) {
+            return; // nothing in this subtree ends after the query starts
+        }
+        collectOverlapping(node.left, start, end, result);
+        if (node.interval.start() >= end) {
+            return; // this node and its right subtree start at or after the query end
+        }
+        if (node.interval.end() > start) {
+            result.add(node.interval);
+        }
+        collectOverlapping(node.right, start, end, result);
+    }
+
+    private static <T> int compare(Interval<T> a, Interval<T> b) {
+        int byStart = Long.compare(a.start(), b.start());
+        return byStart != 0 ? byStart : Long.compare(a.id(), b.id());
+    }
+
+    private Node<T> insert(Node<T> node, Interval<T> interval) {
+        if (node == null) {
+            return new Node<>(interval);
+        }
+        if (compare(interval, node.interval) < 0) {
+            node.left = insert(node.left, interval);
+        } else {
+            node.right = insert(node.right, interval);
+        }
+        return rebalance(node);
+    }
+
+    private Node<T> delete(Node<T> node, Interval<T> interval) {
+        if (node == null) {
+            return null;
+        }
+        int cmp = compare(interval, node.interval);
+        if (cmp < 0) {
+            node.left = delete(node.left, interval);
+        } else if (cmp > 0) {
+            node.right = delete(node.right, interval);
+        } else {
+            if (node.left == null) {
+                return node.right;
+            }
+            if (node.right == null) {
+                return node.left;
+            }
+            Node<T> successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            Node<T> replacement = new Node<>(successor.interval);
+            replacement.left = node.left;
+            replacement.right = delete(node.right, successor.interval);
+            node = replacement;
+        }
+        return rebalance(node);
+    }
+
+    private Node<T> rebalance(Node<T> node) {
+        update(node);
+        int balance = height(node.left) - height(node.right);
+        if (balance > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
+        }
+        if (balance < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+
+    private Node<T> rotateRight(Node<T> node) {
+        Node<T> pivot = node.left;
+        node.left = pivot.right;
+        pivot.right = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    private Node<T> rotateLeft(Node<T> node) {
+        Node<T> pivot = node.right;
+        node.right = pivot.left;
+        pivot.left = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    private void update(Node<T> node) {
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        long maxEnd = node.interval.end();
+        if (node.left != null) {
+            maxEnd = Math.max(maxEnd, node.left.maxEnd);
+        }
+        if (node.right != null) {
+            maxEnd = Math.max(maxEnd, node.right.maxEnd);
+        }
+        node.maxEnd = maxEnd;
+    }
+
+    private int height(Node<T> node) {
+        return node == null ? 0 : node.height;
+    }
+}
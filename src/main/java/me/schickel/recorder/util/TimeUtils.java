@@ -5,7 +5,9 @@ import org.springframework.stereotype.Component;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Comparator;
 import java.util.Date;
@@ -14,7 +16,7 @@ import java.util.Date;
 public class TimeUtils implements Comparator<RecordingSchedule> {
 
     private static final String DATE_TIME_FORMAT = "HH:mm dd/MM/yyyy";
-    private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(DATE_TIME_FORMAT);
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(DATE_TIME_FORMAT);
     private final SimpleDateFormat simpleDateFormatter = new SimpleDateFormat(DATE_TIME_FORMAT);
 
     public boolean isBefore(String startDate, String endDate) {
@@ -39,7 +41,19 @@ public class TimeUtils implements Comparator<RecordingSchedule> {
     }
 
     public LocalDateTime parseStringToLocalDateTime(String timeString) {
-        return LocalDateTime.parse(timeString, formatter);
+        return LocalDateTime.parse(timeString, FORMATTER);
+    }
+
+    /**
+     * Converts a schedule time string to epoch seconds in the system time zone, which is the zone the
+     * schedule times are entered in.
+     */
+    public static long toEpochSecond(String timeString) {
+        return LocalDateTime.parse(timeString, FORMATTER).atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+
+    public static String formatEpochSecond(long epochSecond) {
+        return LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault()).format(FORMATTER);
     }
 
     public String calculateTimeToRecord(LocalDateTime endTime) {
@@ -49,13 +63,13 @@ public class TimeUtils implements Comparator<RecordingSchedule> {
     }
 
     public String parseLocalDateTimeToString(LocalDateTime dateTime) {
-        return dateTime.format(formatter);
+        return dateTime.format(FORMATTER);
     }
 
     @Override
     public int compare(RecordingSchedule o1, RecordingSchedule o2) {
-        LocalDateTime startTime1 = LocalDateTime.parse(o1.getStartTime(), formatter);
-        LocalDateTime startTime2 = LocalDateTime.parse(o2.getStartTime(), formatter);
+        LocalDateTime startTime1 = LocalDateTime.parse(o1.getStartTime(), FORMATTER);
+        LocalDateTime startTime2 = LocalDateTime.parse(o2.getStartTime(), FORMATTER);
         return startTime1.compareTo(startTime2);
     }
 }
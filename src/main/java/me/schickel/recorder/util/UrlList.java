@@ -0,0 +1,31 @@
+package me.schickel.recorder.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores an ordered list of stream URLs in a single text column, one URL per line.
+ */
+public final class UrlList {
+
+    private UrlList() {
+    }
+
+    /**
+     * @return null for an empty or missing list, so that the column stays empty
+     */
+    public static String join(List<String> urls) {
+        if (urls == null) {
+            return null;
+        }
+        List<String> kept = urls.stream().filter(url -> url != null && !url.isBlank()).map(String::trim).toList();
+        return kept.isEmpty() ? null : String.join("\n", kept);
+    }
+
+    public static List<String> split(String urls) {
+        if (urls == null || urls.isBlank()) {
+            return List.of();
+        }
+        return Arrays.stream(urls.split("\n")).map(String::trim).filter(url -> !url.isEmpty()).toList();
+    }
+}
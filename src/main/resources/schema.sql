@@ -3,19 +3,33 @@ CREATE TABLE recording_schedules
     id               INTEGER PRIMARY KEY AUTOINCREMENT,
     start_time       TEXT NOT NULL,
     end_time         TEXT NOT NULL,
+    start_epoch      INTEGER,
+    end_epoch        INTEGER,
     m3u_url          TEXT NOT NULL,
     channel_name     TEXT,
+    fallback_urls    TEXT,
+    stream_selection TEXT,
     file_name        TEXT NOT NULL,
     triggered        INT  NOT NULL DEFAULT 0,
     remux_to_mkv     INT  NOT NULL DEFAULT 0,
-    keep_original_ts INT  NOT NULL DEFAULT 1
+    keep_original_ts INT  NOT NULL DEFAULT 1,
+    engine           TEXT NOT NULL DEFAULT 'FFMPEG',
+    resolved_url     TEXT,
+    video_codec      TEXT,
+    probed_epoch     INTEGER,
+    part_sources     TEXT
 );
 
+CREATE INDEX idx_recording_schedules_triggered_start ON recording_schedules (triggered, start_epoch);
+CREATE INDEX idx_recording_schedules_triggered_end ON recording_schedules (triggered, end_epoch);
+
 CREATE TABLE tvchannel_urls
 (
     id     INTEGER PRIMARY KEY AUTOINCREMENT,
-    name   TEXT NOT NULL,
-    url    TEXT NOT NULL
+    name             TEXT NOT NULL,
+    url              TEXT NOT NULL,
+    fallback_urls    TEXT,
+    stream_selection TEXT
 );
 
 CREATE TABLE past_recordings
@@ -28,5 +42,46 @@ CREATE TABLE past_recordings
     end_time     TEXT NOT NULL,
     recorded_at  TEXT NOT NULL,
     was_triggered INT NOT NULL DEFAULT 0,
-    completion_status TEXT DEFAULT 'COMPLETED'
-);
\ No newline at end of file
+    completion_status TEXT DEFAULT 'COMPLETED',
+    part_sources TEXT
+);
+
+CREATE TABLE post_processing_jobs
+(
+    id               INTEGER PRIMARY KEY AUTOINCREMENT,
+    type             TEXT NOT NULL,
+    status           TEXT NOT NULL,
+    file_name        TEXT NOT NULL,
+    parts            TEXT NOT NULL,
+    keep_original_ts INT  NOT NULL DEFAULT 1,
+    created_at       TEXT NOT NULL,
+    started_at       TEXT,
+    attempts         INT  NOT NULL DEFAULT 0,
+    last_error       TEXT
+);
+
+CREATE INDEX idx_post_processing_jobs_status ON post_processing_jobs (status, id);
+
+CREATE TABLE stream_probes
+(
+    url             TEXT PRIMARY KEY,
+    resolved_url    TEXT NOT NULL,
+    video_codec     TEXT NOT NULL,
+    width           INT,
+    height          INT,
+    bit_rate        INTEGER,
+    streams         TEXT NOT NULL,
+    probed_epoch    INTEGER NOT NULL,
+    last_used_epoch INTEGER NOT NULL
+);
+
+CREATE INDEX idx_stream_probes_last_used ON stream_probes (last_used_epoch);
+
+CREATE TABLE source_health
+(
+    url           TEXT PRIMARY KEY,
+    score         REAL    NOT NULL,
+    successes     INTEGER NOT NULL,
+    failures      INTEGER NOT NULL,
+    updated_epoch INTEGER NOT NULL
+);
@@ -0,0 +1,38 @@
+package me.schickel.recorder.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import me.schickel.recorder.service.PostProcessingQueue;
+import me.schickel.recorder.service.PostProcessingQueue.QueueStats;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class PostProcessingMetricsTest {
+
+    @Mock
+    private PostProcessingQueue postProcessingQueue;
+
+    @Test
+    void register_shouldPublishQueueDepthAndJobLatency() {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        when(postProcessingQueue.pendingCount()).thenReturn(4L);
+        when(postProcessingQueue.getStats()).thenReturn(new QueueStats(1, 5, 1, 30_000, 600_000));
+
+        new PostProcessingMetrics(meterRegistry, postProcessingQueue).register();
+
+        assertThat(meterRegistry.get("recorder.postprocessing.queued").gauge().value()).isEqualTo(4);
+        assertThat(meterRegistry.get("recorder.postprocessing.running").gauge().value()).isEqualTo(1);
+        assertThat(meterRegistry.get("recorder.postprocessing.wait").functionTimer().count()).isEqualTo(5);
+        assertThat(meterRegistry.get("recorder.postprocessing.wait").functionTimer().totalTime(TimeUnit.SECONDS)).isEqualTo(30);
+        assertThat(meterRegistry.get("recorder.postprocessing.duration").functionTimer().totalTime(TimeUnit.MINUTES)).isEqualTo(10);
+        assertThat(meterRegistry.get("recorder.postprocessing.failed").functionCounter().count()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,128 @@
+package me.schickel.recorder.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import me.schickel.recorder.process.FfmpegProgress;
+import me.schickel.recorder.service.RecordingWatchdog;
+import me.schickel.recorder.service.RecordingWatchdog.RecordingHealth;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class RecordingMetricsTest {
+
+    @Mock
+    private RecordingWatchdog recordingWatchdog;
+
+    private MeterRegistry meterRegistry;
+    private RecordingMetrics recordingMetrics;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        recordingMetrics = new RecordingMetrics(meterRegistry, recordingWatchdog);
+    }
+
+    @Test
+    void register_shouldPublishProgressOfRecording() {
+        FfmpegProgress progress = new FfmpegProgress(5_000_000, 40_000_000, 3200.5, 0.98, false);
+        when(recordingWatchdog.getHealth(1L)).thenReturn(Optional.of(new RecordingHealth(3, 1, 12.5, List.of(4.5, 8.0), 9_000_000, progress)));
+
+        recordingMetrics.register(1L, "news.ts");
+
+        assertThat(meterRegistry.get("recorder.recording.bitrate").tag("schedule", "1").gauge().value()).isEqualTo(3200.5);
+        assertThat(meterRegistry.get("recorder.recording.speed").tag("file", "news.ts").gauge().value()).isEqualTo(0.98);
+        assertThat(meterRegistry.get("recorder.recording.output").functionCounter().count()).isEqualTo(9_000_000);
+        assertThat(meterRegistry.get("recorder.recording.restarts").functionCounter().count()).isEqualTo(2);
+        assertThat(meterRegistry.get("recorder.recording.stalls").functionCounter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("recorder.recording.gap").functionCounter().count()).isEqualTo(12.5);
+    }
+
+    @Test
+    void register_shouldReportNaN_beforeFfmpegReportedProgress() {
+        recordingMetrics.register(1L, "news.ts");
+
+        assertThat(meterRegistry.get("recorder.recording.bitrate").gauge().value()).isNaN();
+        assertThat(meterRegistry.get("recorder.recording.output").functionCounter().count()).isZero();
+    }
+
+    @Test
+    void recordSegment_shouldTimeSegmentsOfRecording() {
+        recordingMetrics.register(1L, "news.ts");
+
+        recordingMetrics.recordSegment(1L, Duration.ofMinutes(20));
+        recordingMetrics.recordSegment(1L, Duration.ofMinutes(10));
+        recordingMetrics.recordSegment(2L, Duration.ofMinutes(5));
+
+        assertThat(meterRegistry.get("recorder.recording.segment").timer().count()).isEqualTo(2);
+        assertThat(meterRegistry.get("recorder.recording.segment").timer().totalTime(TimeUnit.MINUTES))
+            .isEqualTo(30.0);
+    }
+
+    @Test
+    void recordTimeToFirstByte_shouldTimeHedgedAndPlainStartsSeparately() {
+        recordingMetrics.recordTimeToFirstByte(false, Duration.ofSeconds(8));
+        recordingMetrics.recordTimeToFirstByte(true, Duration.ofMillis(900));
+        recordingMetrics.recordTimeToFirstByte(true, Duration.ofMillis(1100));
+        recordingMetrics.remove(1L);
+
+        assertThat(meterRegistry.get("recorder.recording.first.byte").tag("hedged", "false").timer().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("recorder.recording.first.byte").tag("hedged", "true").timer().totalTime(TimeUnit.MILLISECONDS))
+            .isEqualTo(2000.0);
+    }
+
+    @Test
+    void recordSelectionSavings_shouldAddUpAcrossRecordings() {
+        recordingMetrics.recordSelectionSavings(1_000);
+        recordingMetrics.recordSelectionSavings(500);
+
+        assertThat(meterRegistry.get("recorder.selection.saved").counter().count()).isEqualTo(1_500.0);
+    }
+
+    @Test
+    void recordPipeWrite_shouldCountBytes_andRecordPipeSyncTheirDuration() {
+        recordingMetrics.recordPipeWrite(1_048_576);
+        recordingMetrics.recordPipeWrite(4_096);
+        recordingMetrics.recordPipeSync(Duration.ofMillis(12));
+
+        assertThat(meterRegistry.get("recorder.pipe.written").counter().count()).isEqualTo(1_052_672.0);
+        assertThat(meterRegistry.get("recorder.pipe.sync").timer().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("recorder.pipe.sync").timer().totalTime(TimeUnit.MILLISECONDS)).isEqualTo(12.0);
+    }
+
+    @Test
+    void remove_shouldDropAllMetersOfRecording() {
+        recordingMetrics.register(1L, "news.ts");
+        recordingMetrics.register(2L, "sports.ts");
+
+        recordingMetrics.remove(1L);
+
+        assertThat(meterRegistry.find("recorder.recording.bitrate").tag("schedule", "1").gauge()).isNull();
+        assertThat(meterRegistry.getMeters()).allSatisfy(meter -> assertThat(meter.getId().getTag("schedule")).isEqualTo("2"));
+        assertThat(recordingMetrics.registeredRecordings()).isEqualTo(1);
+    }
+
+    @Test
+    void remove_shouldLeaveNoMeters_afterManyRecordings() {
+        for (long scheduleId = 1; scheduleId <= 50; scheduleId++) {
+            recordingMetrics.register(scheduleId, "recording" + scheduleId + ".ts");
+            recordingMetrics.remove(scheduleId);
+        }
+
+        assertThat(meterRegistry.getMeters()).isEmpty();
+    }
+}
@@ -0,0 +1,33 @@
+package me.schickel.recorder.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import me.schickel.recorder.service.RollingBufferService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class RollingBufferMetricsTest {
+
+    @Mock
+    private RollingBufferService rollingBufferService;
+
+    @Test
+    void register_shouldPublishMemoryAndReach() {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        when(rollingBufferService.getReservedBytes()).thenReturn(64L * 1024 * 1024);
+        when(rollingBufferService.getShortestBufferedDuration()).thenReturn(Duration.ofSeconds(290));
+
+        new RollingBufferMetrics(meterRegistry, rollingBufferService).register();
+
+        assertThat(meterRegistry.get("recorder.buffer.memory").gauge().value()).isEqualTo(64 * 1024 * 1024);
+        assertThat(meterRegistry.get("recorder.buffer.reach").gauge().value()).isEqualTo(290);
+    }
+}
@@ -0,0 +1,75 @@
+package me.schickel.recorder.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import me.schickel.recorder.service.RecordingTriggerService;
+import me.schickel.recorder.service.RecordingTriggerService.TriggerStats;
+import me.schickel.recorder.service.StreamSlotManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class SchedulerMetricsTest {
+
+    @Mock
+    private RecordingTriggerService recordingTriggerService;
+    @Mock
+    private StreamSlotManager streamSlotManager;
+
+    private MeterRegistry meterRegistry;
+    private SchedulerMetrics schedulerMetrics;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        schedulerMetrics = new SchedulerMetrics(meterRegistry, recordingTriggerService, streamSlotManager);
+        when(recordingTriggerService.getStats())
+            .thenReturn(new TriggerStats(4, 15, 40, 25.0, 100, 3, 9_000_000, 5_000_000));
+        when(recordingTriggerService.pendingCount()).thenReturn(7);
+        when(streamSlotManager.getProviders()).thenReturn(Set.of());
+    }
+
+    @Test
+    void register_shouldPublishTriggerLatenessAndTickDuration() {
+        schedulerMetrics.register();
+
+        assertThat(meterRegistry.get("recorder.trigger.lateness").functionTimer().count()).isEqualTo(4);
+        assertThat(meterRegistry.get("recorder.trigger.lateness").functionTimer().totalTime(TimeUnit.MILLISECONDS)).isEqualTo(100);
+        assertThat(meterRegistry.get("recorder.trigger.lateness.max").timeGauge().value(TimeUnit.MILLISECONDS)).isEqualTo(40);
+        assertThat(meterRegistry.get("recorder.scheduler.tick").functionTimer().count()).isEqualTo(3);
+        assertThat(meterRegistry.get("recorder.scheduler.tick").functionTimer().totalTime(TimeUnit.MILLISECONDS)).isEqualTo(9);
+        assertThat(meterRegistry.get("recorder.scheduler.tick.max").timeGauge().value(TimeUnit.MILLISECONDS)).isEqualTo(5);
+        assertThat(meterRegistry.get("recorder.trigger.pending").gauge().value()).isEqualTo(7);
+    }
+
+    @Test
+    void registerProviderGauges_shouldPublishSlotUsagePerProvider() {
+        schedulerMetrics.register();
+        when(streamSlotManager.getProviders()).thenReturn(Set.of("main", "backup"));
+        when(streamSlotManager.getCapacity("main")).thenReturn(2);
+        when(streamSlotManager.getOccupied("main")).thenReturn(2);
+        when(streamSlotManager.getQueued("main")).thenReturn(1);
+        when(streamSlotManager.getCapacity("backup")).thenReturn(1);
+
+        schedulerMetrics.registerProviderGauges();
+        schedulerMetrics.registerProviderGauges();
+
+        assertThat(meterRegistry.get("recorder.stream.slots.capacity").tag("provider", "main").gauge().value()).isEqualTo(2);
+        assertThat(meterRegistry.get("recorder.stream.slots.occupied").tag("provider", "main").gauge().value()).isEqualTo(2);
+        assertThat(meterRegistry.get("recorder.stream.slots.queued").tag("provider", "main").gauge().value()).isEqualTo(1);
+        assertThat(meterRegistry.get("recorder.stream.slots.capacity").tag("provider", "backup").gauge().value()).isEqualTo(1);
+        assertThat(meterRegistry.get("recorder.stream.slots.occupied").gauges()).hasSize(2);
+    }
+}
@@ -0,0 +1,34 @@
+package me.schickel.recorder.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import me.schickel.recorder.service.StreamProbeCache;
+import me.schickel.recorder.service.StreamProbeCache.CacheStats;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class StreamProbeMetricsTest {
+
+    @Mock
+    private StreamProbeCache streamProbeCache;
+
+    @Test
+    void register_shouldPublishHitsMissesAndSize() {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        when(streamProbeCache.getStats()).thenReturn(new CacheStats(9, 3, 1));
+        when(streamProbeCache.size()).thenReturn(12L);
+
+        new StreamProbeMetrics(meterRegistry, streamProbeCache).register();
+
+        assertThat(meterRegistry.get("recorder.probe.cache.requests").tag("result", "hit").functionCounter().count()).isEqualTo(9);
+        assertThat(meterRegistry.get("recorder.probe.cache.requests").tag("result", "miss").functionCounter().count()).isEqualTo(3);
+        assertThat(meterRegistry.get("recorder.probe.cache.invalidations").functionCounter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("recorder.probe.cache.size").gauge().value()).isEqualTo(12);
+    }
+}
@@ -0,0 +1,67 @@
+package me.schickel.recorder.process;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FfmpegProgressParserTest {
+
+    private final List<FfmpegProgress> reports = new ArrayList<>();
+    private final FfmpegProgressParser parser = new FfmpegProgressParser(reports::add);
+
+    @Test
+    void accept_shouldEmitReportAtEndOfEachBlock() {
+        feed("""
+            frame=250
+            fps=25.00
+            bitrate=4012.5kbits/s
+            total_size=5013504
+            out_time_us=10000000
+            out_time_ms=10000000
+            out_time=00:00:10.000000
+            speed=1.01x
+            progress=continue
+            """);
+
+        assertThat(reports).containsExactly(new FfmpegProgress(5013504, 10_000_000, 4012.5, 1.01, false));
+    }
+
+    @Test
+    void accept_shouldKeepPreviousValues_whenFfmpegReportsNotAvailable() {
+        feed("""
+            total_size=1000
+            out_time_us=2000000
+            bitrate=8.0kbits/s
+            speed=1x
+            progress=continue
+            total_size=N/A
+            out_time_us=N/A
+            bitrate=N/A
+            speed=N/A
+            progress=end
+            """);
+
+        assertThat(reports).hasSize(2);
+        assertThat(reports.get(1)).isEqualTo(new FfmpegProgress(1000, 2_000_000, 8.0, 1.0, true));
+    }
+
+    @Test
+    void accept_shouldReportUnknownBitrateAndSpeed_beforeFfmpegKnowsThem() {
+        feed("""
+            total_size=0
+            bitrate=N/A
+            speed=N/A
+            progress=continue
+            """);
+
+        assertThat(reports.getFirst().bitrateKbps()).isEqualTo(-1);
+        assertThat(reports.getFirst().speed()).isEqualTo(-1);
+    }
+
+    private void feed(String output) {
+        output.lines().forEach(parser);
+    }
+}
@@ -0,0 +1,116 @@
+package me.schickel.recorder.process;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DisabledOnOs(OS.WINDOWS)
+class ProcessLauncherTest {
+
+    private ProcessOutputPump processOutputPump;
+    private ProcessLauncher processLauncher;
+
+    @BeforeEach
+    void setUp() {
+        processOutputPump = new ProcessOutputPump();
+        processLauncher = new ProcessLauncher(processOutputPump);
+    }
+
+    @AfterEach
+    void tearDown() {
+        processOutputPump.stop();
+    }
+
+    @Test
+    void start_shouldHandStdoutLinesToConsumer() throws Exception {
+        List<String> lines = new CopyOnWriteArrayList<>();
+
+        ManagedProcess process = processLauncher.start("echo", List.of("sh", "-c", "printf 'first\\nsecond\\rthird'"), lines::add);
+
+        assertThat(process.onExit().get(5, TimeUnit.SECONDS)).isZero();
+        process.onOutputDrained().get(5, TimeUnit.SECONDS);
+        assertThat(lines).containsExactly("first", "second", "third");
+    }
+
+    @Test
+    void start_shouldKeepRecentErrorOutput() throws Exception {
+        ManagedProcess process = processLauncher.start("failing", List.of("sh", "-c", "echo 'broken stream' >&2; exit 3"), null);
+
+        assertThat(process.onExit().get(5, TimeUnit.SECONDS)).isEqualTo(3);
+        process.onOutputDrained().get(5, TimeUnit.SECONDS);
+        assertThat(process.getRecentErrorOutput()).containsExactly("broken stream");
+    }
+
+    @Test
+    void startPiped_shouldLeaveStdoutToCaller_andHandOnlyProgressLinesToConsumer() throws Exception {
+        List<String> progress = new CopyOnWriteArrayList<>();
+
+        ManagedProcess process = processLauncher.startPiped("piped", List.of("sh", "-c",
+            "echo '[http @ 0x1] Opening stream for reading' >&2; printf 'total_size=4\\nprogress=continue\\n' >&2; printf data"),
+            progress::add);
+
+        assertThat(process.getStdout().readAllBytes()).isEqualTo("data".getBytes());
+        assertThat(process.onExit().get(5, TimeUnit.SECONDS)).isZero();
+        process.onOutputDrained().get(5, TimeUnit.SECONDS);
+        assertThat(progress).containsExactly("total_size=4", "progress=continue");
+        assertThat(process.getRecentErrorOutput()).containsExactly("[http @ 0x1] Opening stream for reading");
+    }
+
+    @Test
+    void stop_shouldExitGracefully_whenProcessReactsToQuit() throws Exception {
+        // Exits as soon as it reads one byte from stdin, like ffmpeg does on 'q'
+        ManagedProcess process = processLauncher.start("graceful", List.of("sh", "-c", "head -c 1 > /dev/null"), null);
+
+        assertThat(process.stop(Duration.ofSeconds(3))).isTrue();
+        assertThat(process.onExit().get(1, TimeUnit.SECONDS)).isZero();
+    }
+
+    @Test
+    void stop_shouldKillProcess_whenItIgnoresQuit() throws Exception {
+        ManagedProcess process = processLauncher.start("stubborn", List.of("sleep", "30"), null);
+
+        assertThat(process.stop(Duration.ofMillis(200))).isFalse();
+        process.onExit().get(5, TimeUnit.SECONDS);
+        assertThat(process.isAlive()).isFalse();
+    }
+
+    @Test
+    void start_shouldNotAddThreadsPerProcess() throws Exception {
+        // Warm up the pump thread
+        processLauncher.start("warmup", List.of("true"), line -> { }).onOutputDrained().get(5, TimeUnit.SECONDS);
+        int threadsBefore = countThreadsExceptProcessReapers();
+
+        List<ManagedProcess> processes = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            processes.add(processLauncher.start("chatty" + i,
+                                                List.of("sh", "-c", "while true; do echo progress; echo status >&2; sleep 0.1; done"),
+                                                line -> { }));
+        }
+        Thread.sleep(500);
+        int threadsWhileRunning = countThreadsExceptProcessReapers();
+        processes.forEach(ManagedProcess::forceStop);
+        for (ManagedProcess process : processes) {
+            process.onOutputDrained().get(5, TimeUnit.SECONDS);
+        }
+
+        // The JDK keeps one small "process reaper" thread per child, everything else is shared
+        assertThat(threadsWhileRunning - threadsBefore).isLessThanOrEqualTo(2);
+        assertThat(processOutputPump.registeredStreams()).isZero();
+    }
+
+    private int countThreadsExceptProcessReapers() {
+        return (int) Thread.getAllStackTraces().keySet().stream()
+                           .filter(thread -> !thread.getName().startsWith("process reaper"))
+                           .count();
+    }
+}
@@ -35,12 +35,14 @@ class ChannelManagementServiceTest {
     private ScheduleRepository scheduleRepository;
     @Mock
     private PastRecordingService pastRecordingService;
+    @Mock
+    private ScheduleIntervalIndex scheduleIntervalIndex;
 
     private ChannelManagementService service;
 
     @BeforeEach
     void setUp() {
-        service = new ChannelManagementService(channelRepository, channelMapper, scheduleRepository, pastRecordingService);
+        service = new ChannelManagementService(channelRepository, channelMapper, scheduleRepository, pastRecordingService, scheduleIntervalIndex);
     }
 
     @Test
@@ -131,10 +133,43 @@ class ChannelManagementServiceTest {
                 .hasMessage("Channel not found: Non-existent Channel");
     }
 
+    @Test
+    void getFallbackUrlsByName_shouldReturnFallbackUrlsInOrder() {
+        ChannelUrl entity = createChannelEntity(1L, "Test Channel", "http://test.url");
+        when(entity.getFallbackUrls()).thenReturn("http://backup.url\nhttp://spare.url");
+
+        when(channelRepository.findByName("Test Channel")).thenReturn(Optional.of(entity));
+
+        List<String> result = service.getFallbackUrlsByName("Test Channel");
+
+        assertThat(result).containsExactly("http://backup.url", "http://spare.url");
+    }
+
+    @Test
+    void getFallbackUrlsByName_shouldReturnEmptyList_whenChannelHasNone() {
+        ChannelUrl entity = createChannelEntity(1L, "Test Channel", "http://test.url");
+
+        when(channelRepository.findByName("Test Channel")).thenReturn(Optional.of(entity));
+
+        assertThat(service.getFallbackUrlsByName("Test Channel")).isEmpty();
+    }
+
+    @Test
+    void createChannelLink_shouldRejectInvalidStreamSelection() {
+        ChannelRequest request = createChannelRequest("Test Channel", "http://test.url");
+        request.setStreamSelection("subtitles=maybe");
+
+        assertThatThrownBy(() -> service.createChannelLink(request))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("keep or drop");
+        verify(channelRepository, never()).save(any());
+    }
+
     @Test
     void deleteChannelLink_shouldDeleteAndReturnName_whenChannelExists() {
         ChannelUrl entity = createChannelEntity(1L, "Test Channel", "http://test.url");
         RecordingSchedule recording = mock(RecordingSchedule.class);
+        when(recording.getId()).thenReturn(5L);
         
         when(channelRepository.findById(1L)).thenReturn(Optional.of(entity));
         when(scheduleRepository.findByChannel("Test Channel")).thenReturn(List.of(recording));
@@ -143,6 +178,7 @@ class ChannelManagementServiceTest {
 
         assertThat(result).isEqualTo("Test Channel");
         verify(scheduleRepository).deleteAll(List.of(recording));
+        verify(scheduleIntervalIndex).remove(5L);
         verify(channelRepository).deleteById(1L);
     }
 
@@ -169,7 +205,10 @@ class ChannelManagementServiceTest {
     }
 
     private ChannelRequest createChannelRequest(String name, String url) {
-        return mock(ChannelRequest.class);
+        ChannelRequest request = new ChannelRequest();
+        request.setChannelName(name);
+        request.setM3uUrl(url);
+        return request;
     }
 
     private ChannelUrl createChannelEntity(Long id, String name, String url) {
@@ -1,19 +1,50 @@
 package me.schickel.recorder.service;
 
 import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.PostProcessingJob;
+import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.metrics.RecordingMetrics;
+import me.schickel.recorder.process.ManagedProcess;
+import me.schickel.recorder.process.ProcessLauncher;
 import me.schickel.recorder.repository.ScheduleRepository;
 import me.schickel.recorder.util.TimeUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
+import org.springframework.context.ApplicationEventPublisher;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -26,13 +57,52 @@ class FfmpegServiceTest {
     private TimeUtils timeUtils;
     @Mock
     private RecordingServiceConfig config;
+    @Mock
+    private PostProcessingQueue postProcessingQueue;
+    @Mock
+    private ProcessLauncher processLauncher;
+    @Mock
+    private RecordingWatchdog recordingWatchdog;
+    @Mock
+    private RecordingMetrics recordingMetrics;
+    @Mock
+    private StreamSlotManager streamSlotManager;
+    @Mock
+    private ProviderResolver providerResolver;
+    @Mock
+    private HttpTsRecorder httpTsRecorder;
+    @Mock
+    private HlsRecorder hlsRecorder;
+    @Mock
+    private StreamWarmupService streamWarmupService;
+    @Mock
+    private StreamProbeCache streamProbeCache;
+    @Mock
+    private SourceHealthService sourceHealthService;
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
 
     private FfmpegService ffmpegService;
 
     @BeforeEach
     void setUp() {
-        ffmpegService = new FfmpegService(scheduleRepository, timeUtils, config);
+        ffmpegService = new FfmpegService(scheduleRepository, timeUtils, config, postProcessingQueue, processLauncher,
+                                          recordingWatchdog, recordingMetrics, streamSlotManager, providerResolver, httpTsRecorder,
+                                          hlsRecorder, streamWarmupService, streamProbeCache, sourceHealthService, eventPublisher);
         when(config.getRecordingFolderPrefix()).thenReturn("/recordings/");
+        when(config.getProbeCache()).thenReturn(new RecordingServiceConfig.ProbeCache());
+        when(config.getHedging()).thenReturn(new RecordingServiceConfig.Hedging());
+        when(config.getWatchdog()).thenReturn(new RecordingServiceConfig.Watchdog());
+        when(config.getFailover()).thenReturn(new RecordingServiceConfig.Failover());
+        when(config.getSegments()).thenReturn(new RecordingServiceConfig.Segments());
+        when(config.getPipe()).thenReturn(new RecordingServiceConfig.Pipe());
+        when(sourceHealthService.rank(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(streamSlotManager.acquireOwn(any(), any())).thenReturn(true);
+        when(streamSlotManager.tryMove(any(), any())).thenReturn(true);
+        when(providerResolver.resolve(any())).thenAnswer(invocation -> URI.create(invocation.getArgument(0)).getHost());
+        when(streamWarmupService.awaitStream(any(), any(), any()))
+            .thenAnswer(invocation -> new StreamWarmupService.ProbedStream(invocation.<RecordingSchedule>getArgument(0).getM3uUrl(),
+                                                                     StreamLayout.ofVideoCodec("h264")));
     }
 
     @Test
@@ -64,4 +134,566 @@ class FfmpegServiceTest {
 
         assertThat(result).isEqualTo("/recordings/recording_5.mkv");
     }
-}
\ No newline at end of file
+
+    @Test
+    void parseVideoCodec_shouldReturnCodecOfFirstVideoStream() {
+        String json = """
+            {"streams": [
+              {"index": 0, "codec_name": "aac", "codec_type": "audio"},
+              {"index": 1, "codec_name": "h264", "codec_type": "video"},
+              {"index": 2, "codec_name": "hevc", "codec_type": "video"}
+            ]}
+            """;
+
+        assertThat(FfmpegService.parseVideoCodec(json)).isEqualTo("h264");
+    }
+
+    @Test
+    void parseVideoCodec_shouldReturnNull_whenNoVideoStreamOrInvalidOutput() {
+        assertThat(FfmpegService.parseVideoCodec("{\"streams\": [{\"codec_type\": \"audio\"}]}")).isNull();
+        assertThat(FfmpegService.parseVideoCodec("not json")).isNull();
+    }
+
+    @Test
+    void parseStreamLayout_shouldListAllStreams_andFallBackToStreamBitrates() {
+        String json = """
+            {"streams": [
+              {"index": 0, "codec_name": "mpeg2video", "codec_type": "video", "width": 720, "height": 576, "bit_rate": "3500000"},
+              {"index": 1, "codec_name": "mp2", "codec_type": "audio", "bit_rate": "192000"},
+              {"index": 2, "codec_name": "dvb_teletext", "codec_type": "subtitle"}
+            ],
+             "format": {"format_name": "mpegts"}}
+            """;
+
+        assertThat(FfmpegService.parseStreamLayout(json))
+            .isEqualTo(new StreamLayout("mpeg2video", 720, 576, 3_692_000L, List.of("video:mpeg2video;bitRate=3500000", "audio:mp2;bitRate=192000",
+                                                                                  "subtitle:dvb_teletext")));
+    }
+
+    @Test
+    void parseStreamLayout_shouldKeepIdsLanguagesAndProgramsOfStreams() {
+        String json = """
+            {"programs": [
+               {"program_id": 1, "streams": [{"index": 0}, {"index": 1}]},
+               {"program_id": 2, "streams": [{"index": 2}]}
+             ],
+             "streams": [
+              {"index": 0, "codec_name": "h264", "codec_type": "video", "id": "0x100", "width": 1280, "height": 720},
+              {"index": 1, "codec_name": "aac", "codec_type": "audio", "id": "0x101", "tags": {"language": "deu"}},
+              {"index": 2, "codec_name": "mp2", "codec_type": "audio", "id": "0x201", "tags": {"language": "und"}}
+            ]}
+            """;
+
+        assertThat(FfmpegService.parseStreamLayout(json).streams())
+            .containsExactly("video:h264;id=0x100;program=1", "audio:aac;id=0x101;language=deu;program=1", "audio:mp2;id=0x201;program=2");
+    }
+
+    @Test
+    void buildRecordingCommand_shouldCopyStreamForGivenDuration() {
+        List<String> command = FfmpegService.buildRecordingCommand("http://provider.test/stream", Duration.ofSeconds(10), "3600",
+                                                                   Path.of("/recordings/test.ts"));
+
+        assertThat(command).startsWith("ffmpeg");
+        assertThat(command).containsSubsequence("-i", "http://provider.test/stream", "-t", "3600", "-c", "copy", "-y", "/recordings/test.ts");
+        assertThat(command).containsSubsequence("-rw_timeout", "15000000");
+        assertThat(command).containsSubsequence("-progress", "pipe:1");
+        assertThat(command).containsSubsequence("-analyzeduration", "10000000", "-probesize");
+    }
+
+    @Test
+    void buildLiveMkvCommand_shouldFollowTsFile_intoMkv() {
+        List<String> command = FfmpegService.buildLiveMkvCommand(Path.of("/recordings/test.ts"), Path.of("/recordings/test.live.mkv"));
+
+        assertThat(command).containsSubsequence("-progress", "pipe:1", "-follow", "1", "-rw_timeout", "300000000",
+                                                "-i", "file:/recordings/test.ts", "-map", "0", "-dn", "-c", "copy", "-y", "/recordings/test.live.mkv");
+        assertThat(command).endsWith("/recordings/test.live.mkv");
+    }
+
+    @Test
+    void buildRecordingCommand_shouldMapSelectedStreams() {
+        List<String> command = FfmpegService.buildRecordingCommand("http://provider.test/stream", Duration.ofSeconds(10), "3600",
+                                                                   Path.of("/recordings/test.ts"), List.of("-map", "0:i:0x100", "-map", "0:i:0x101"));
+
+        assertThat(command).containsSubsequence("-i", "http://provider.test/stream",
+                                                "-map", "0:i:0x100", "-map", "0:i:0x101", "-t", "3600", "-c", "copy", "-y", "/recordings/test.ts");
+        assertThat(command).endsWith("/recordings/test.ts");
+    }
+
+    @Test
+    void buildSegmentedRecordingCommand_shouldWriteSegmentsAndListInsteadOfOutputFile() {
+        SegmentedOutput segmentedOutput = new SegmentedOutput(Path.of("/recordings/test_2.ts"), segment -> { });
+
+        List<String> command = FfmpegService.buildSegmentedRecordingCommand("http://provider.test/stream", Duration.ofSeconds(10), "3600",
+                                                                            segmentedOutput, Duration.ofMinutes(5), List.of());
+
+        assertThat(command).containsSubsequence("-t", "3600", "-c", "copy", "-f", "segment", "-segment_time", "300.000",
+                                                "-segment_list", "/recordings/test_2.segments.csv", "-y", "/recordings/test_2.%05d.ts");
+        assertThat(command).endsWith("/recordings/test_2.%05d.ts");
+        assertThat(command).doesNotContain("/recordings/test_2.ts");
+    }
+
+    @Test
+    void buildPipedRecordingCommand_shouldWriteTsToStdout_andProgressToStderr() {
+        List<String> command = FfmpegService.buildPipedRecordingCommand("http://provider.test/stream", Duration.ofSeconds(10), "3600",
+                                                                        List.of());
+
+        assertThat(command).containsSubsequence("-progress", "pipe:2", "-i", "http://provider.test/stream",
+                                                "-t", "3600", "-c", "copy", "-f", "mpegts", "pipe:1");
+        assertThat(command).endsWith("pipe:1");
+        assertThat(command).doesNotContainSequence("-progress", "pipe:1");
+    }
+
+    @Test
+    void savedBytes_shouldFollowBitrateOfDroppedStreams() {
+        assertThat(FfmpegService.savedBytes(2_000_000, Duration.ofMinutes(1))).isEqualTo(15_000_000);
+        assertThat(FfmpegService.savedBytes(0, Duration.ofMinutes(1))).isZero();
+    }
+
+    @Test
+    void recordingHandler_shouldRecordSelectedStreams_andCountSavedBytes(@TempDir Path recordings) throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        schedule.setRemuxToMkv(false);
+        schedule.setStreamSelection("program=1,audio=eng,data=drop");
+        when(config.getRecordingFolderPrefix()).thenReturn(recordings + "/");
+        StreamLayout layout = new StreamLayout("h264", 1280, 720, 9_000_000L,
+                                               List.of("video:h264;id=0x100;program=1;bitRate=4000000",
+                                                       "audio:aac;id=0x101;language=deu;program=1;bitRate=128000",
+                                                       "audio:aac;id=0x102;language=eng;program=1;bitRate=128000",
+                                                       "data:bin_data;id=0x103;program=1;bitRate=8000",
+                                                       "video:h264;id=0x200;program=2;bitRate=4000000"));
+        doReturn(new StreamWarmupService.ProbedStream("http://provider.test/stream", layout))
+            .when(streamWarmupService).awaitStream(any(), any(), any());
+        ManagedProcess process = mock(ManagedProcess.class);
+        when(process.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(processLauncher.start(any(), any(), any())).thenAnswer(invocation -> {
+            List<String> command = invocation.getArgument(1);
+            Files.writeString(Path.of(command.get(command.size() - 1)), "data");
+            // Long enough for the savings to add up to whole bytes
+            Thread.sleep(20);
+            return process;
+        });
+        when(scheduleRepository.existsById(1L)).thenReturn(true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher).start(any(), argThat(command -> command.containsAll(List.of("0:i:0x100", "0:i:0x102"))
+            && !command.contains("0:i:0x101") && !command.contains("0:i:0x103") && !command.contains("0:i:0x200")), any());
+        verify(recordingMetrics).recordSelectionSavings(longThat(bytes -> bytes > 0));
+    }
+
+    @Test
+    void stopRecording_shouldReturnFalse_whenNoRecordingIsActive() {
+        assertThat(ffmpegService.stopRecording(42L)).isFalse();
+    }
+
+    @Test
+    void recordingHandler_shouldRecordWithoutFfmpeg_andQueueRemux() throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        when(httpTsRecorder.record(eq(1L), eq("http://provider.test/stream"), eq(Path.of("/recordings/show.ts")), any(), any(), any()))
+            .thenReturn(true);
+
+        assertThat(ffmpegService.recordingHandler(schedule)).isEqualTo("COMPLETED");
+
+        verify(processLauncher, never()).run(any(), any(), any());
+        verify(postProcessingQueue).enqueue(PostProcessingJob.Type.REMUX_TO_MKV, "show.ts", List.of(Path.of("/recordings/show.ts")),
+                                            Map.of(), false);
+        verify(recordingWatchdog).finish(1L);
+    }
+
+    @Test
+    void recordingHandler_shouldRecordHlsPlaylistWithHlsRecorder() throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setM3uUrl("http://provider.test/live/index.M3U8?token=abc");
+        when(hlsRecorder.record(eq(1L), eq("http://provider.test/live/index.M3U8?token=abc"), eq(Path.of("/recordings/show.ts")), any(),
+                                any()))
+            .thenReturn(true);
+
+        assertThat(ffmpegService.recordingHandler(schedule)).isEqualTo("COMPLETED");
+
+        verify(httpTsRecorder, never()).record(any(), any(), any(), any(), any(), any());
+        verify(processLauncher, never()).run(any(), any(), any());
+    }
+
+    @Test
+    void recordingHandler_shouldFail_whenScheduleHasNoStreamUrl() throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        schedule.setM3uUrl(null);
+
+        assertThat(ffmpegService.recordingHandler(schedule)).isEqualTo("FAILED_NO_SOURCE");
+
+        verify(streamWarmupService, never()).awaitStream(any(), any(), any());
+        verify(processLauncher, never()).start(any(), any(), any());
+    }
+
+    @Test
+    void recordingHandler_shouldFallBackToFfmpeg_whenSourceIsNoPlainTransportStream() throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        when(httpTsRecorder.record(any(), any(), any(), any(), any(), any()))
+            .thenThrow(new IllegalStateException("Source is an HLS playlist, not an MPEG-TS stream"));
+
+        doReturn(null).when(streamWarmupService).awaitStream(any(), any(), any());
+        when(scheduleRepository.existsById(1L)).thenReturn(true);
+
+        // The stream could not be probed here, so the ffmpeg path gives up at codec detection
+        assertThat(ffmpegService.recordingHandler(schedule)).isEqualTo("FAILED_CODEC_DETECTION");
+
+        verify(streamSlotManager).acquireOwn(eq(1L), any());
+        verify(streamWarmupService).awaitStream(eq(schedule), any(), any());
+        verify(postProcessingQueue, never()).enqueue(any(), any(), any(), any(), anyBoolean());
+    }
+
+    @Test
+    void recordingHandler_shouldNotFallBackToFfmpeg_withoutSlotOfItsOwn() throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        when(httpTsRecorder.record(any(), any(), any(), any(), any(), any()))
+            .thenThrow(new IllegalStateException("Source is an HLS playlist, not an MPEG-TS stream"));
+        when(streamSlotManager.acquireOwn(eq(1L), any())).thenReturn(false);
+        when(scheduleRepository.existsById(1L)).thenReturn(true);
+
+        assertThat(ffmpegService.recordingHandler(schedule)).isEqualTo("SKIPPED_NO_STREAM_SLOT");
+
+        verify(streamWarmupService, never()).awaitStream(any(), any(), any());
+        verify(processLauncher, never()).start(any(), any(), any());
+    }
+
+    @Test
+    void recordingHandler_shouldRecordFromUrlResolvedByWarmup() throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        doReturn(new StreamWarmupService.ProbedStream("http://edge.provider.test/stream", StreamLayout.ofVideoCodec("h264")))
+            .when(streamWarmupService).awaitStream(any(), any(), any());
+        when(processLauncher.start(any(), any(), any())).thenThrow(new IOException("ffmpeg not installed"));
+        // Ends the recording loop after its first iteration
+        when(scheduleRepository.existsById(1L)).thenReturn(true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher).start(any(), argThat(command -> command.contains("http://edge.provider.test/stream")), any());
+        verify(processLauncher, never()).run(eq("ffprobe"), any(), any());
+    }
+
+    @Test
+    void recordingHandler_shouldAnalyzeKnownLayoutBriefly_andDropCachedProbeWithoutOutput() throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        StreamLayout layout = new StreamLayout("h264", 1920, 1080, 8_000_000L, List.of("video:h264", "audio:aac"));
+        doReturn(new StreamWarmupService.ProbedStream("http://provider.test/stream", layout))
+            .when(streamWarmupService).awaitStream(any(), any(), any());
+        when(processLauncher.start(any(), any(), any())).thenThrow(new IOException("ffmpeg not installed"));
+        when(streamProbeCache.invalidate("http://provider.test/stream")).thenReturn(true);
+        // Two iterations of the recording loop
+        when(scheduleRepository.existsById(1L)).thenReturn(true, true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher).start(any(), argThat(command -> Collections.indexOfSubList(command, List.of("-analyzeduration", "1000000")) >= 0), any());
+        // Reconnects analyze the stream as usual
+        verify(processLauncher).start(any(), argThat(command -> Collections.indexOfSubList(command, List.of("-analyzeduration", "10000000")) >= 0), any());
+        verify(streamProbeCache).invalidate("http://provider.test/stream");
+    }
+
+    @Test
+    void recordingHandler_shouldFinishTs_whenLiveMkvFails(@TempDir Path recordings) throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        when(config.getRecordingFolderPrefix()).thenReturn(recordings + "/");
+        when(config.isLiveMkv()).thenReturn(true);
+        CompletableFuture<Integer> tsExit = new CompletableFuture<>();
+        ManagedProcess ts = mock(ManagedProcess.class);
+        when(ts.onExit()).thenReturn(tsExit);
+        // The MKV muxer gives up right after it started
+        ManagedProcess mkv = mock(ManagedProcess.class);
+        when(mkv.onExit()).thenReturn(CompletableFuture.completedFuture(1));
+        when(processLauncher.start(any(), any(), any())).thenAnswer(invocation -> {
+            if (invocation.<String>getArgument(0).endsWith(".live.mkv")) {
+                // The TS goes on recording for a while after that
+                CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS).execute(() -> tsExit.complete(0));
+                return mkv;
+            }
+            Files.writeString(recordings.resolve("show.ts"), "data");
+            Consumer<String> stdout = invocation.getArgument(2);
+            stdout.accept("total_size=4");
+            stdout.accept("progress=continue");
+            return ts;
+        });
+        // Ends the test instead of hanging it if the MKV never starts
+        tsExit.completeOnTimeout(0, 5, TimeUnit.SECONDS);
+        when(scheduleRepository.existsById(1L)).thenReturn(true, false);
+
+        assertThat(ffmpegService.recordingHandler(schedule)).isEqualTo("COMPLETED");
+
+        verify(processLauncher).start(eq("show.ts"), argThat(command -> command.stream().noneMatch(arg -> arg.endsWith(".mkv"))), any());
+        verify(processLauncher).start(eq("show.live.mkv"),
+                                      eq(FfmpegService.buildLiveMkvCommand(recordings.resolve("show.ts"), recordings.resolve("show.live.mkv"))),
+                                      any());
+        verify(ts, never()).stop(any());
+        verify(ts, never()).forceStop();
+        assertThat(recordings.resolve("show.ts")).hasContent("data");
+        // The incomplete MKV is replaced by a remux of the TS
+        verify(postProcessingQueue).enqueue(eq(PostProcessingJob.Type.REMUX_TO_MKV), eq("show.ts"), eq(List.of(recordings.resolve("show.ts"))),
+                                            any(), anyBoolean());
+    }
+
+    @Test
+    void recordingHandler_shouldKeepHedgedConnectionThatWritesFirst(@TempDir Path recordings) throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        schedule.setRemuxToMkv(false);
+        when(config.getRecordingFolderPrefix()).thenReturn(recordings + "/");
+        RecordingServiceConfig.Hedging hedging = new RecordingServiceConfig.Hedging();
+        hedging.setEnabled(true);
+        hedging.setDelay(Duration.ofMillis(50));
+        when(config.getHedging()).thenReturn(hedging);
+        when(streamSlotManager.tryAcquireExtra(1L, 1)).thenReturn(true);
+        // The first connection never gets an answer, the hedged one writes right away and ends the segment
+        ManagedProcess slow = mock(ManagedProcess.class);
+        when(slow.onExit()).thenReturn(new CompletableFuture<>());
+        // Answers just before it is stopped, which must not end up in the kept file
+        when(slow.stop(any())).thenAnswer(invocation -> {
+            Files.writeString(recordings.resolve("show.ts"), "late");
+            return true;
+        });
+        ManagedProcess fast = mock(ManagedProcess.class);
+        when(fast.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        Path hedgePath = recordings.resolve("show.hedge2.ts");
+        when(processLauncher.start(any(), any(), any())).thenReturn(slow).thenAnswer(invocation -> {
+            Files.writeString(hedgePath, "data");
+            Consumer<String> stdout = invocation.getArgument(2);
+            stdout.accept("total_size=4");
+            stdout.accept("progress=continue");
+            return fast;
+        });
+        when(scheduleRepository.existsById(1L)).thenReturn(true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher).start(eq("show.hedge2.ts"), argThat(command -> command.contains(hedgePath.toString())), any());
+        // The losing connection is stopped before the hedged one takes over its file
+        verify(slow).stop(any());
+        verify(fast, never()).stop(any());
+        assertThat(recordings.resolve("show.ts")).hasContent("data");
+        assertThat(hedgePath).doesNotExist();
+        verify(streamSlotManager).releaseExtra(1L);
+        verify(recordingMetrics).recordTimeToFirstByte(eq(true), any());
+    }
+
+    @Test
+    void recordingHandler_shouldKeepWhatTheRecorderWrote_whenFallingBackToFfmpeg(@TempDir Path recordings) throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setRemuxToMkv(false);
+        when(config.getRecordingFolderPrefix()).thenReturn(recordings + "/");
+        when(httpTsRecorder.record(any(), any(), any(), any(), any(), any())).thenAnswer(invocation -> {
+            Files.writeString(invocation.getArgument(2), "recorder");
+            throw new IllegalStateException("Source is an HLS playlist, not an MPEG-TS stream");
+        });
+        ManagedProcess process = mock(ManagedProcess.class);
+        when(process.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(processLauncher.start(any(), any(), any())).thenAnswer(invocation -> {
+            List<String> command = invocation.getArgument(1);
+            Files.writeString(Path.of(command.get(command.size() - 1)), "ffmpeg");
+            return process;
+        });
+        when(scheduleRepository.existsById(1L)).thenReturn(true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher).start(eq("show_2.ts"), any(), any());
+        verify(processLauncher, never()).start(eq("show.ts"), any(), any());
+        assertThat(recordings.resolve("show.ts")).hasContent("recorder");
+        verify(scheduleRepository).savePartSources(eq(1L), argThat(json -> json.contains("\"show.ts\"") && json.contains("\"show_2.ts\"")));
+    }
+
+    @Test
+    void recordingHandler_shouldSwitchToFallbackUrl_afterPartsWithoutData(@TempDir Path recordings) throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        schedule.setRemuxToMkv(false);
+        schedule.setFallbackUrls("http://backup.test/stream");
+        when(config.getRecordingFolderPrefix()).thenReturn(recordings + "/");
+        // The stream URL connects but never writes, the fallback writes right away
+        ManagedProcess process = mock(ManagedProcess.class);
+        when(process.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(processLauncher.start(any(), any(), any())).thenAnswer(invocation -> {
+            List<String> command = invocation.getArgument(1);
+            if (command.contains("http://backup.test/stream")) {
+                Files.writeString(Path.of(command.get(command.size() - 1)), "data");
+            }
+            return process;
+        });
+        when(scheduleRepository.existsById(1L)).thenReturn(true, true, true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher, times(2))
+            .start(any(), argThat(command -> command.contains("http://provider.test/stream")), any());
+        verify(processLauncher).start(eq("show_3.ts"), argThat(command -> command.contains("http://backup.test/stream")), any());
+        verify(sourceHealthService, times(2)).recordOutcome("http://provider.test/stream", false);
+        verify(sourceHealthService).recordOutcome("http://backup.test/stream", true);
+        verify(scheduleRepository).savePartSources(eq(1L), argThat(json -> json.contains("\"show_3.ts\":\"http://backup.test/stream\"")));
+        verify(streamSlotManager).tryMove(1L, "backup.test");
+    }
+
+    @Test
+    void recordingHandler_shouldStayWithStreamUrl_whenProviderOfFallbackHasNoSlotFree(@TempDir Path recordings) throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        schedule.setRemuxToMkv(false);
+        schedule.setFallbackUrls("http://backup.test/stream");
+        when(config.getRecordingFolderPrefix()).thenReturn(recordings + "/");
+        when(streamSlotManager.tryMove(1L, "backup.test")).thenReturn(false);
+        // The fallback would write, but its provider is saturated
+        ManagedProcess process = mock(ManagedProcess.class);
+        when(process.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(processLauncher.start(any(), any(), any())).thenAnswer(invocation -> {
+            List<String> command = invocation.getArgument(1);
+            if (command.contains("http://backup.test/stream")) {
+                Files.writeString(Path.of(command.get(command.size() - 1)), "data");
+            }
+            return process;
+        });
+        when(scheduleRepository.existsById(1L)).thenReturn(true, true, true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher, times(3))
+            .start(any(), argThat(command -> command.contains("http://provider.test/stream")), any());
+        verify(processLauncher, never()).start(any(), argThat(command -> command.contains("http://backup.test/stream")), any());
+    }
+
+    @Test
+    void recordingHandler_shouldStartWithStreamUrl_whenHealthierFallbackHasNoSlotFree(@TempDir Path recordings) throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        schedule.setRemuxToMkv(false);
+        schedule.setFallbackUrls("http://backup.test/stream");
+        when(config.getRecordingFolderPrefix()).thenReturn(recordings + "/");
+        when(sourceHealthService.rank(any())).thenReturn(List.of("http://backup.test/stream", "http://provider.test/stream"));
+        when(streamSlotManager.tryMove(1L, "backup.test")).thenReturn(false);
+        ManagedProcess process = mock(ManagedProcess.class);
+        when(process.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(processLauncher.start(any(), any(), any())).thenReturn(process);
+        when(scheduleRepository.existsById(1L)).thenReturn(true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher).start(eq("show.ts"), argThat(command -> command.contains("http://provider.test/stream")), any());
+        verify(streamWarmupService).awaitStream(eq(schedule), any(), any());
+    }
+
+    @Test
+    void recordingHandler_shouldPublishClosedSegments_andJoinThemAtTheEnd(@TempDir Path recordings) throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        when(config.getRecordingFolderPrefix()).thenReturn(recordings + "/");
+        RecordingServiceConfig.Segments segments = new RecordingServiceConfig.Segments();
+        segments.setEnabled(true);
+        when(config.getSegments()).thenReturn(segments);
+        // ffmpeg listed the first segment and was stopped while writing the second
+        ManagedProcess process = mock(ManagedProcess.class);
+        when(process.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(processLauncher.start(any(), any(), any())).thenAnswer(invocation -> {
+            Files.writeString(recordings.resolve("show.00000.ts"), "data");
+            Files.writeString(recordings.resolve("show.00001.ts"), "more");
+            Files.writeString(recordings.resolve("show.segments.csv"), "show.00000.ts,1.400000,301.400000\n");
+            return process;
+        });
+        when(scheduleRepository.existsById(1L)).thenReturn(true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher).start(eq("show.ts"), argThat(command -> command.contains("segment")), any());
+        ArgumentCaptor<Object> events = ArgumentCaptor.forClass(Object.class);
+        verify(eventPublisher, times(2)).publishEvent(events.capture());
+        assertThat(events.getAllValues()).containsExactly(
+            new SegmentClosedEvent(1L, "show.ts", recordings.resolve("show.00000.ts"), 1, 0, Duration.ofMinutes(5), 4, true),
+            new SegmentClosedEvent(1L, "show.ts", recordings.resolve("show.00001.ts"), 1, 1, null, 4, true));
+        assertThat(Files.readString(recordings.resolve("show.manifest.json")))
+            .contains("\"complete\":true", "\"file\":\"show.00000.ts\"", "\"file\":\"show.00001.ts\"");
+        assertThat(recordings.resolve("show.segments.csv")).doesNotExist();
+        verify(postProcessingQueue).enqueue(eq(PostProcessingJob.Type.JOIN_SEGMENTS), eq("show.ts"),
+                                           eq(List.of(recordings.resolve("show.00000.ts"), recordings.resolve("show.00001.ts"))),
+                                           any(), eq(false));
+    }
+
+    @Test
+    void recordingHandler_shouldWriteFileFromStdoutOfFfmpeg_withPipeEnabled(@TempDir Path recordings) throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        schedule.setRemuxToMkv(false);
+        when(config.getRecordingFolderPrefix()).thenReturn(recordings + "/");
+        RecordingServiceConfig.Pipe pipe = new RecordingServiceConfig.Pipe();
+        pipe.setEnabled(true);
+        when(config.getPipe()).thenReturn(pipe);
+        ManagedProcess process = mock(ManagedProcess.class);
+        when(process.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(process.getStdout()).thenReturn(new ByteArrayInputStream("recorded through the pipe".getBytes()));
+        when(processLauncher.startPiped(any(), any(), any())).thenReturn(process);
+        when(scheduleRepository.existsById(1L)).thenReturn(true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher).startPiped(eq("show.ts"), argThat(command -> command.contains("pipe:1")), any());
+        verify(processLauncher, never()).start(any(), any(), any());
+        // Written completely before the part is judged
+        assertThat(recordings.resolve("show.ts")).hasContent("recorded through the pipe");
+        verify(sourceHealthService).recordOutcome("http://provider.test/stream", true);
+        verify(recordingMetrics).recordPipeWrite("recorded through the pipe".length());
+    }
+
+    @Test
+    void recordingHandler_shouldDropEmptyPartOfFailedConnect_withPipeEnabled(@TempDir Path recordings) throws Exception {
+        RecordingSchedule schedule = javaSchedule();
+        schedule.setEngine(RecordingSchedule.Engine.FFMPEG);
+        when(config.getRecordingFolderPrefix()).thenReturn(recordings + "/");
+        RecordingServiceConfig.Pipe pipe = new RecordingServiceConfig.Pipe();
+        pipe.setEnabled(true);
+        when(config.getPipe()).thenReturn(pipe);
+        // The first connect fails before ffmpeg writes anything, the second one records
+        ManagedProcess failed = mock(ManagedProcess.class);
+        when(failed.onExit()).thenReturn(CompletableFuture.completedFuture(1));
+        when(failed.getStdout()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        ManagedProcess recording = mock(ManagedProcess.class);
+        when(recording.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(recording.getStdout()).thenReturn(new ByteArrayInputStream("recorded through the pipe".getBytes()));
+        when(processLauncher.startPiped(any(), any(), any())).thenReturn(failed, recording);
+        when(scheduleRepository.existsById(1L)).thenReturn(true, true, false);
+
+        ffmpegService.recordingHandler(schedule);
+
+        verify(processLauncher, times(2)).startPiped(any(), any(), any());
+        assertThat(recordings.resolve("show.ts")).doesNotExist();
+        verify(postProcessingQueue).enqueue(eq(PostProcessingJob.Type.REMUX_TO_MKV), eq("show.ts"),
+                                           eq(List.of(recordings.resolve("show_2.ts"))), any(), eq(false));
+        verify(scheduleRepository).savePartSources(eq(1L), argThat(json -> !json.contains("\"show.ts\"")));
+    }
+
+    @Test
+    void stopRecording_shouldCloseConnectionOfRecordingWithoutFfmpeg() {
+        when(httpTsRecorder.stop(7L)).thenReturn(true);
+
+        assertThat(ffmpegService.stopRecording(7L)).isTrue();
+    }
+
+    @Test
+    void stopRecording_shouldEndHlsSessionOfRecordingWithoutFfmpeg() {
+        when(hlsRecorder.stop(7L)).thenReturn(true);
+
+        assertThat(ffmpegService.stopRecording(7L)).isTrue();
+    }
+
+    private RecordingSchedule javaSchedule() {
+        RecordingSchedule schedule = new RecordingSchedule();
+        schedule.setId(1L);
+        schedule.setFileName("show.ts");
+        schedule.setM3uUrl("http://provider.test/stream");
+        schedule.setEndTime("22:00 01/01/2030");
+        schedule.setRemuxToMkv(true);
+        schedule.setKeepOriginalTs(false);
+        schedule.setEngine(RecordingSchedule.Engine.JAVA);
+        when(timeUtils.parseStringToLocalDateTime("22:00 01/01/2030")).thenReturn(LocalDateTime.now().plusHours(1));
+        when(timeUtils.calculateTimeToRecord(any())).thenReturn("3600");
+        return schedule;
+    }
+}
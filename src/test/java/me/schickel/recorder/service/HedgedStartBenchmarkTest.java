@@ -0,0 +1,215 @@
+package me.schickel.recorder.service;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.metrics.RecordingMetrics;
+import me.schickel.recorder.process.ProcessLauncher;
+import me.schickel.recorder.process.ProcessOutputPump;
+import me.schickel.recorder.repository.ScheduleRepository;
+import me.schickel.recorder.repository.SourceHealthRepository;
+import me.schickel.recorder.repository.StreamProbeRepository;
+import me.schickel.recorder.util.TimeUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.ApplicationEventPublisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Starts recordings from a local server whose first response sometimes takes 5 to 10 seconds, once with a
+ * single connection and once with hedged connections, and compares the time to the first written bytes.
+ * Needs ffmpeg on the PATH. Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@EnabledIf("me.schickel.recorder.service.RecordingWatchdogFreezingStreamTest#ffmpegAvailable")
+class HedgedStartBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(HedgedStartBenchmarkTest.class);
+
+    private static final int SOURCE_SECONDS = 60;
+    private static final int STARTS = 20;
+    private static final double SLOW_ANSWERS = 0.3;
+    private static final int PACKET_SIZE = 188;
+
+    @TempDir
+    Path tempDir;
+
+    private byte[] stream;
+    private HttpServer server;
+    private ExecutorService connections;
+    private final CountDownLatch shutdown = new CountDownLatch(1);
+    private ProcessOutputPump processOutputPump;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path source = tempDir.resolve("source.ts");
+        Process generator = new ProcessBuilder("ffmpeg", "-hide_banner", "-loglevel", "error",
+                                               "-f", "lavfi", "-i", "testsrc=size=320x240:rate=25",
+                                               "-t", String.valueOf(SOURCE_SECONDS), "-c:v", "mpeg2video", "-b:v", "500k", "-g", "25",
+                                               "-f", "mpegts", source.toString())
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        assertThat(generator.waitFor(120, TimeUnit.SECONDS)).isTrue();
+        stream = Files.readAllBytes(source);
+        processOutputPump = new ProcessOutputPump();
+    }
+
+    @AfterEach
+    void tearDown() {
+        shutdown.countDown();
+        stopServer();
+        processOutputPump.stop();
+    }
+
+    @Test
+    void hedging_shouldCutTailOfTimeToFirstByte() throws Exception {
+        List<Double> plain = timeToFirstByte(false);
+        List<Double> hedged = timeToFirstByte(true);
+
+        logger.info("single connection: {}", describe(plain));
+        logger.info("hedged:            {}", describe(hedged));
+        assertThat(percentile(hedged, 0.99)).isLessThan(percentile(plain, 0.99));
+    }
+
+    /**
+     * @return the time to first byte of every start in seconds
+     */
+    private List<Double> timeToFirstByte(boolean hedging) throws Exception {
+        startServer(new Random(42));
+        RecordingServiceConfig config = new RecordingServiceConfig();
+        Path recordings = Files.createDirectories(tempDir.resolve(hedging ? "hedged" : "single"));
+        config.setRecordingFolderPrefix(recordings + "/");
+        config.getHedging().setEnabled(hedging);
+        config.getHedging().setMaxConnections(3);
+
+        ProviderResolver providerResolver = new ProviderResolver(4, config);
+        StreamSlotManager streamSlotManager = new StreamSlotManager(providerResolver);
+        RecordingWatchdog watchdog = new RecordingWatchdog(config);
+        watchdog.start();
+        List<Double> seconds = new CopyOnWriteArrayList<>();
+        RecordingMetrics recordingMetrics = new RecordingMetrics(new SimpleMeterRegistry(), watchdog) {
+            @Override
+            public void recordTimeToFirstByte(boolean hedged, Duration duration) {
+                seconds.add(duration.toNanos() / 1e9);
+            }
+        };
+        ScheduleRepository scheduleRepository = mock(ScheduleRepository.class);
+        when(scheduleRepository.existsById(any())).thenReturn(true);
+        ProcessLauncher processLauncher = new ProcessLauncher(processOutputPump);
+        StreamProbeCache streamProbeCache = new StreamProbeCache(config, mock(StreamProbeRepository.class));
+        StreamWarmupService streamWarmupService = new StreamWarmupService(config, scheduleRepository, processLauncher, new TimeUtils(),
+                                                                          providerResolver, streamSlotManager, streamProbeCache);
+        streamWarmupService.start();
+        FfmpegService ffmpegService = new FfmpegService(scheduleRepository, new TimeUtils(), config, mock(PostProcessingQueue.class),
+                                                        processLauncher, watchdog, recordingMetrics, streamSlotManager, providerResolver,
+                                                        mock(HttpTsRecorder.class), mock(HlsRecorder.class), streamWarmupService,
+                                                        streamProbeCache, new SourceHealthService(mock(SourceHealthRepository.class)),
+                                                        mock(ApplicationEventPublisher.class));
+
+        RecordingSchedule schedule = new RecordingSchedule();
+        schedule.setId(1L);
+        schedule.setM3uUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/live");
+        schedule.setEndTime(LocalDateTime.now().plusMinutes(30).format(DateTimeFormatter.ofPattern("HH:mm dd/MM/yyyy")));
+        // Known codec, so that the starts are not held up by probing
+        schedule.setVideoCodec("mpeg2video");
+        assertThat(streamSlotManager.acquire(providerResolver.resolve(schedule.getM3uUrl()), 1L, Duration.ZERO)).isTrue();
+
+        for (int start = 1; start <= STARTS; start++) {
+            schedule.setFileName("start" + start + ".ts");
+            schedule.setProbedEpoch(System.currentTimeMillis() / 1000);
+            int started = start;
+            Thread recording = Thread.ofVirtual().start(() -> ffmpegService.recordingHandler(schedule));
+            await().atMost(Duration.ofSeconds(30)).until(() -> seconds.size() >= started);
+            // Retried until the recording registered its connection
+            await().atMost(Duration.ofSeconds(5)).until(() -> ffmpegService.stopRecording(1L));
+            recording.join();
+        }
+
+        watchdog.stop();
+        stopServer();
+        return seconds;
+    }
+
+    /**
+     * Every connection gets the live stream from its current position, a share of them only after 5 to 10 seconds.
+     */
+    private void startServer(Random random) throws IOException {
+        long startedAt = System.nanoTime();
+        int bytesPerSecond = stream.length / SOURCE_SECONDS;
+        connections = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(connections);
+        server.createContext("/live", exchange -> {
+            long answerAfterMillis;
+            synchronized (random) {
+                answerAfterMillis = random.nextDouble() < SLOW_ANSWERS ? 5000 + random.nextInt(5001) : 100 + random.nextInt(201);
+            }
+            try (OutputStream body = exchange.getResponseBody()) {
+                Thread.sleep(answerAfterMillis);
+                exchange.getResponseHeaders().add("Content-Type", "video/mp2t");
+                exchange.sendResponseHeaders(200, 0);
+                int chunk = bytesPerSecond / 10 / PACKET_SIZE * PACKET_SIZE;
+                while (shutdown.getCount() > 0) {
+                    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                    // The source loops, like a channel that is always on
+                    int position = (int) (elapsedMillis * bytesPerSecond / 1000 % (stream.length - chunk)) / PACKET_SIZE * PACKET_SIZE;
+                    body.write(stream, position, chunk);
+                    body.flush();
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The recorder closed the connection
+            }
+        });
+        server.start();
+    }
+
+    private void stopServer() {
+        if (server != null) {
+            server.stop(0);
+            connections.shutdownNow();
+            server = null;
+        }
+    }
+
+    private static String describe(List<Double> seconds) {
+        return String.format("%d starts, p50 %.2f s, p99 %.2f s, max %.2f s",
+                             seconds.size(), percentile(seconds, 0.5), percentile(seconds, 0.99), percentile(seconds, 1.0));
+    }
+
+    private static double percentile(List<Double> values, double fraction) {
+        List<Double> sorted = values.stream().sorted().toList();
+        return sorted.get((int) Math.ceil(fraction * sorted.size()) - 1);
+    }
+}
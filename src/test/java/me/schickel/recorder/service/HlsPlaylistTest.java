@@ -0,0 +1,79 @@
+package me.schickel.recorder.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class HlsPlaylistTest {
+
+    private static final URI BASE = URI.create("http://provider.test/live/channel/index.m3u8?token=abc");
+
+    @Test
+    void parse_shouldNumberSegmentsFromMediaSequence_andResolveRelativeUris() {
+        HlsPlaylist playlist = HlsPlaylist.parse(BASE, """
+            #EXTM3U
+            #EXT-X-VERSION:3
+            #EXT-X-TARGETDURATION:6
+            #EXT-X-MEDIA-SEQUENCE:1041
+            #EXTINF:6.006,
+            segment1041.ts
+            #EXTINF:5.5,title
+            /other/segment1042.ts
+            #EXTINF:6,
+            http://cdn.test/segment1043.ts
+            """);
+
+        assertThat(playlist.isMaster()).isFalse();
+        assertThat(playlist.endList()).isFalse();
+        assertThat(playlist.targetDuration()).isEqualTo(Duration.ofSeconds(6));
+        assertThat(playlist.segments()).containsExactly(
+            new HlsPlaylist.Segment(1041, URI.create("http://provider.test/live/channel/segment1041.ts"), Duration.ofMillis(6006)),
+            new HlsPlaylist.Segment(1042, URI.create("http://provider.test/other/segment1042.ts"), Duration.ofMillis(5500)),
+            new HlsPlaylist.Segment(1043, URI.create("http://cdn.test/segment1043.ts"), Duration.ofSeconds(6)));
+    }
+
+    @Test
+    void bestVariant_shouldPickHighestBandwidth() {
+        HlsPlaylist playlist = HlsPlaylist.parse(BASE, """
+            #EXTM3U
+            #EXT-X-STREAM-INF:AVERAGE-BANDWIDTH=9000000,BANDWIDTH=1280000,RESOLUTION=640x360
+            low.m3u8
+            #EXT-X-STREAM-INF:BANDWIDTH=5000000,CODECS="avc1.640028,mp4a.40.2",RESOLUTION=1920x1080
+            high.m3u8
+            """);
+
+        assertThat(playlist.isMaster()).isTrue();
+        assertThat(playlist.bestVariant().uri()).isEqualTo(URI.create("http://provider.test/live/channel/high.m3u8"));
+    }
+
+    @Test
+    void parse_shouldRecognizeEndOfPlaylist() {
+        HlsPlaylist playlist = HlsPlaylist.parse(BASE, "#EXTM3U\n#EXT-X-TARGETDURATION:10\n#EXTINF:10,\na.ts\n#EXT-X-ENDLIST\n");
+
+        assertThat(playlist.endList()).isTrue();
+        assertThat(playlist.segments()).extracting(HlsPlaylist.Segment::sequence).containsExactly(0L);
+    }
+
+    @Test
+    void parse_shouldRefusePlaylistsThatCannotBeAppendedToTransportStream() {
+        assertThatThrownBy(() -> HlsPlaylist.parse(BASE, "#EXTM3U\n#EXT-X-TARGETDURATION:6\n#EXT-X-KEY:METHOD=AES-128,URI=\"key\"\n"))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("Encrypted");
+        assertThatThrownBy(() -> HlsPlaylist.parse(BASE, "#EXTM3U\n#EXT-X-TARGETDURATION:6\n#EXT-X-MAP:URI=\"init.mp4\"\n"))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("fMP4");
+        assertThatThrownBy(() -> HlsPlaylist.parse(BASE, "<html>Forbidden</html>"))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void parse_shouldAcceptKeyWithoutEncryption() {
+        HlsPlaylist playlist = HlsPlaylist.parse(BASE, "#EXTM3U\n#EXT-X-TARGETDURATION:6\n#EXT-X-KEY:METHOD=NONE\n#EXTINF:6,\na.ts\n");
+
+        assertThat(playlist.segments()).hasSize(1);
+    }
+}
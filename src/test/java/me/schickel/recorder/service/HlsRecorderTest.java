@@ -0,0 +1,252 @@
+package me.schickel.recorder.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.metrics.RecordingMetrics;
+import me.schickel.recorder.process.Stoppable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static me.schickel.recorder.service.TsPacketWriter.PACKET_SIZE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class HlsRecorderTest {
+
+    private static final Duration SEGMENT_DURATION = Duration.ofMillis(250);
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private ExecutorService requests;
+    // Latency of single segments, all others are answered right away
+    private final Map<Long, Duration> latencies = new ConcurrentHashMap<>();
+    private final CountDownLatch released = new CountDownLatch(1);
+    // Counted down when the segment is requested
+    private final Map<Long, CountDownLatch> requested = new ConcurrentHashMap<>();
+    private RecordingServiceConfig config;
+    private RecordingWatchdog recordingWatchdog;
+    private HlsRecorder hlsRecorder;
+
+    @BeforeEach
+    void setUp() {
+        config = new RecordingServiceConfig();
+        config.getHls().setParallelDownloads(3);
+        config.getHls().setLiveStartSegments(3);
+        config.getHls().setSegmentTimeout(Duration.ofSeconds(5));
+        recordingWatchdog = mock(RecordingWatchdog.class);
+        hlsRecorder = new HlsRecorder(config, recordingWatchdog, mock(RecordingMetrics.class));
+        hlsRecorder.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        released.countDown();
+        if (server != null) {
+            server.stop(0);
+            requests.shutdownNow();
+        }
+    }
+
+    @Test
+    void record_shouldKeepUpWithLiveEdge_whileOneSegmentIsSlow() throws Exception {
+        AtomicLong firstRequestAt = new AtomicLong();
+        // A new segment every 250ms from the first request on, the playlist shows the last eight
+        startServer(request -> {
+            firstRequestAt.compareAndSet(0, System.nanoTime());
+            long newest = 10 + (System.nanoTime() - firstRequestAt.get()) / SEGMENT_DURATION.toNanos();
+            return mediaPlaylist(newest - 7, newest, false);
+        });
+        // Takes six times as long as the segment lasts, fetched one at a time this would lose segments
+        latencies.put(12L, Duration.ofMillis(1500));
+        Path output = tempDir.resolve("show.ts");
+
+        boolean wroteData = hlsRecorder.record(1L, url("/live/index.m3u8"), output, LocalDateTime.now().plusSeconds(4), () -> true);
+
+        assertThat(wroteData).isTrue();
+        List<Long> recorded = recordedSequences(output);
+        assertThat(recorded.getFirst()).isEqualTo(8L);
+        assertThat(recorded).contains(12L).hasSizeGreaterThan(10);
+        for (int i = 1; i < recorded.size(); i++) {
+            assertThat(recorded.get(i)).isEqualTo(recorded.get(i - 1) + 1);
+        }
+        verify(recordingWatchdog).watch(eq(1L), eq("show.ts"), any(Stoppable.class), eq(Duration.ofSeconds(1)));
+        verify(recordingWatchdog, never()).reportLoss(any(), any());
+    }
+
+    @Test
+    void record_shouldReportSegmentsThatLeftPlaylistOrFailed_andStopAtEndOfPlaylist() throws Exception {
+        AtomicInteger playlistRequests = new AtomicInteger();
+        startServer(request -> {
+            if (request.endsWith("/master.m3u8")) {
+                return """
+                    #EXTM3U
+                    #EXT-X-STREAM-INF:BANDWIDTH=800000
+                    low/index.m3u8
+                    #EXT-X-STREAM-INF:BANDWIDTH=4000000
+                    high/index.m3u8
+                    """;
+            }
+            // Segments 3 to 7 leave the playlist between the first and the second load
+            return playlistRequests.incrementAndGet() == 1 ? mediaPlaylist(0, 2, false) : mediaPlaylist(8, 10, true);
+        });
+        latencies.put(9L, Duration.ofDays(1));
+        config.getHls().setSegmentTimeout(Duration.ofSeconds(1));
+        Path output = tempDir.resolve("show.ts");
+
+        long startedAt = System.nanoTime();
+        boolean wroteData = hlsRecorder.record(1L, url("/live/master.m3u8"), output, LocalDateTime.now().plusSeconds(30), () -> true);
+
+        assertThat(wroteData).isTrue();
+        assertThat(Duration.ofNanos(System.nanoTime() - startedAt)).isLessThan(Duration.ofSeconds(10));
+        assertThat(recordedSequences(output)).containsExactly(0L, 1L, 2L, 8L, 10L);
+        // The missed segments and segment 9, which took longer than the segment timeout
+        verify(recordingWatchdog, times(2)).reportLoss(eq(1L), any());
+        verify(recordingWatchdog).reportLoss(1L, SEGMENT_DURATION);
+    }
+
+    @Test
+    void stop_shouldEndSessionThatIsWaitingForSegment() throws Exception {
+        startServer(request -> mediaPlaylist(0, 2, false));
+        latencies.put(0L, Duration.ofDays(1));
+        CountDownLatch waitingForSegment = new CountDownLatch(1);
+        requested.put(0L, waitingForSegment);
+        AtomicBoolean stopped = new AtomicBoolean();
+        AtomicBoolean endedSession = new AtomicBoolean();
+        Thread stopper = Thread.ofVirtual().start(() -> {
+            try {
+                waitingForSegment.await();
+                // Like FfmpegService, which marks the recording as stopped before ending its session
+                stopped.set(true);
+                endedSession.set(hlsRecorder.stop(1L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        long startedAt = System.nanoTime();
+        boolean wroteData = hlsRecorder.record(1L, url("/live/index.m3u8"), tempDir.resolve("show.ts"), LocalDateTime.now().plusMinutes(1),
+                                               () -> !stopped.get());
+        stopper.join();
+
+        // Well below the segment timeout of 5 seconds
+        assertThat(Duration.ofNanos(System.nanoTime() - startedAt)).isLessThan(Duration.ofSeconds(3));
+        assertThat(wroteData).isFalse();
+        assertThat(endedSession).isTrue();
+        verify(recordingWatchdog, atLeastOnce()).endSegment(1L);
+    }
+
+    @Test
+    void record_shouldRefuseEncryptedPlaylist() throws Exception {
+        startServer(request -> "#EXTM3U\n#EXT-X-TARGETDURATION:1\n#EXT-X-KEY:METHOD=AES-128,URI=\"key\"\n#EXTINF:1,\n0.ts\n");
+
+        assertThatThrownBy(() -> hlsRecorder.record(1L, url("/live/index.m3u8"), tempDir.resolve("show.ts"),
+                                                    LocalDateTime.now().plusMinutes(1), () -> true))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("Encrypted");
+    }
+
+    /**
+     * Serves the playlists from {@code playlists} and every {@code <sequence>.ts} as two TS packets that
+     * carry the sequence number, after the latency set for it. Counts down the latch in {@link #requested}
+     * for the segment when it is requested.
+     */
+    private void startServer(Function<String, String> playlists) throws IOException {
+        requests = Executors.newVirtualThreadPerTaskExecutor();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(requests);
+        server.createContext("/live", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith(".m3u8")) {
+                respond(exchange, "application/vnd.apple.mpegurl", playlists.apply(path).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            long sequence = Long.parseLong(path.substring(path.lastIndexOf('/') + 1, path.length() - ".ts".length()));
+            CountDownLatch request = requested.get(sequence);
+            if (request != null) {
+                request.countDown();
+            }
+            try {
+                released.await(latencies.getOrDefault(sequence, Duration.ZERO).toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, "video/mp2t", segment(sequence));
+        });
+        server.start();
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        } catch (IOException e) {
+            // The recorder gave up on the segment
+        }
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private static String mediaPlaylist(long first, long last, boolean endList) {
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:1\n#EXT-X-MEDIA-SEQUENCE:" + first + "\n");
+        for (long sequence = first; sequence <= last; sequence++) {
+            playlist.append("#EXTINF:0.25,\n").append(sequence).append(".ts\n");
+        }
+        return endList ? playlist.append("#EXT-X-ENDLIST\n").toString() : playlist.toString();
+    }
+
+    private static byte[] segment(long sequence) {
+        ByteBuffer segment = ByteBuffer.allocate(2 * PACKET_SIZE);
+        for (int packet = 0; packet < 2; packet++) {
+            segment.put(packet * PACKET_SIZE, (byte) 0x47);
+            segment.putLong(packet * PACKET_SIZE + 4, sequence);
+        }
+        return segment.array();
+    }
+
+    private static List<Long> recordedSequences(Path output) throws IOException {
+        ByteBuffer recorded = ByteBuffer.wrap(Files.readAllBytes(output));
+        assertThat(recorded.remaining() % (2 * PACKET_SIZE)).isZero();
+        List<Long> sequences = new ArrayList<>();
+        for (int position = 0; position < recorded.limit(); position += 2 * PACKET_SIZE) {
+            sequences.add(recorded.getLong(position + 4));
+        }
+        return sequences;
+    }
+}
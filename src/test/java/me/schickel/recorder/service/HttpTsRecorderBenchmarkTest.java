@@ -0,0 +1,242 @@
+package me.schickel.recorder.service;
+
+import com.sun.management.OperatingSystemMXBean;
+import com.sun.net.httpserver.HttpServer;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.metrics.RecordingMetrics;
+import me.schickel.recorder.process.ProcessLauncher;
+import me.schickel.recorder.process.ProcessOutputPump;
+import me.schickel.recorder.repository.ScheduleRepository;
+import me.schickel.recorder.repository.SourceHealthRepository;
+import me.schickel.recorder.repository.StreamProbeRepository;
+import me.schickel.recorder.util.TimeUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.ApplicationEventPublisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Records the same live stream from a local server several times at once, first with ffmpeg and then without,
+ * and compares CPU time and resident memory per stream. ffmpeg is measured from its processes plus this JVM,
+ * which runs the server and reads ffmpeg's progress; the Java engine from this JVM alone. Needs ffmpeg on the
+ * PATH. Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@EnabledIf("me.schickel.recorder.service.RecordingWatchdogFreezingStreamTest#ffmpegAvailable")
+class HttpTsRecorderBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpTsRecorderBenchmarkTest.class);
+
+    private static final int SOURCE_SECONDS = 120;
+    private static final int STREAMS = 4;
+    private static final Duration RECORDING_LENGTH = Duration.ofSeconds(60);
+    private static final int PACKET_SIZE = 188;
+
+    @TempDir
+    Path tempDir;
+
+    private byte[] stream;
+    private HttpServer server;
+    private ExecutorService connections;
+    private final CountDownLatch shutdown = new CountDownLatch(1);
+    private ProcessOutputPump processOutputPump;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path source = tempDir.resolve("source.ts");
+        Process generator = new ProcessBuilder("ffmpeg", "-hide_banner", "-loglevel", "error",
+                                               "-f", "lavfi", "-i", "testsrc=size=1280x720:rate=25",
+                                               "-t", String.valueOf(SOURCE_SECONDS), "-c:v", "mpeg2video", "-b:v", "4M", "-g", "25",
+                                               "-f", "mpegts", source.toString())
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        assertThat(generator.waitFor(300, TimeUnit.SECONDS)).isTrue();
+        stream = Files.readAllBytes(source);
+        processOutputPump = new ProcessOutputPump();
+        startServer();
+    }
+
+    @AfterEach
+    void tearDown() {
+        shutdown.countDown();
+        server.stop(0);
+        connections.shutdownNow();
+        processOutputPump.stop();
+    }
+
+    @Test
+    void javaEngine_shouldNeedLessCpuPerStreamThanFfmpeg() throws Exception {
+        Usage ffmpeg = record(RecordingSchedule.Engine.FFMPEG);
+        Usage java = record(RecordingSchedule.Engine.JAVA);
+
+        logger.info("ffmpeg: {}", ffmpeg);
+        logger.info("java:   {}", java);
+        assertThat(java.recordedBytes()).isGreaterThan(ffmpeg.recordedBytes() / 2);
+        assertThat(java.cpuMillisPerStream()).isLessThan(ffmpeg.cpuMillisPerStream());
+    }
+
+    private Usage record(RecordingSchedule.Engine engine) throws Exception {
+        RecordingServiceConfig config = new RecordingServiceConfig();
+        Path recordings = Files.createDirectories(tempDir.resolve(engine.name().toLowerCase()));
+        config.setRecordingFolderPrefix(recordings + "/");
+        RecordingWatchdog watchdog = new RecordingWatchdog(config);
+        watchdog.start();
+        StreamIngest streamIngest = new StreamIngest(config);
+        streamIngest.start();
+        HttpTsRecorder httpTsRecorder = new HttpTsRecorder(config, watchdog, mock(RecordingMetrics.class), streamIngest,
+                                                           mock(RollingBufferService.class));
+        ScheduleRepository scheduleRepository = mock(ScheduleRepository.class);
+        when(scheduleRepository.existsById(any())).thenReturn(true);
+        ProcessLauncher processLauncher = new ProcessLauncher(processOutputPump);
+        StreamProbeCache streamProbeCache = new StreamProbeCache(config, mock(StreamProbeRepository.class));
+        ProviderResolver providerResolver = new ProviderResolver(STREAMS, config);
+        StreamSlotManager streamSlotManager = new StreamSlotManager(providerResolver);
+        StreamWarmupService streamWarmupService = new StreamWarmupService(config, scheduleRepository, processLauncher, new TimeUtils(),
+                                                                          providerResolver, streamSlotManager, streamProbeCache);
+        streamWarmupService.start();
+        FfmpegService ffmpegService = new FfmpegService(scheduleRepository, new TimeUtils(), config, mock(PostProcessingQueue.class),
+                                                        processLauncher, watchdog, mock(RecordingMetrics.class), streamSlotManager, providerResolver,
+                                                        httpTsRecorder, mock(HlsRecorder.class), streamWarmupService,
+                                                        streamProbeCache, new SourceHealthService(mock(SourceHealthRepository.class)),
+                                                        mock(ApplicationEventPublisher.class));
+
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long jvmCpuBefore = os.getProcessCpuTime();
+        long jvmRssBefore = residentKilobytes(ProcessHandle.current().pid());
+        List<Thread> recorders = new ArrayList<>();
+        for (long id = 1; id <= STREAMS; id++) {
+            RecordingSchedule schedule = schedule(id, engine);
+            recorders.add(Thread.ofVirtual().start(() -> ffmpegService.recordingHandler(schedule)));
+        }
+
+        // Child processes are gone after the recording, so they are sampled while they run
+        Map<Long, Long> ffmpegCpuNanos = new ConcurrentHashMap<>();
+        Map<Long, Long> ffmpegRssKilobytes = new ConcurrentHashMap<>();
+        long jvmRssPeak = jvmRssBefore;
+        long until = System.nanoTime() + RECORDING_LENGTH.toNanos();
+        while (System.nanoTime() < until) {
+            Thread.sleep(1000);
+            ProcessHandle.current().descendants()
+                         .filter(process -> process.info().command().map(command -> command.endsWith("ffmpeg")).orElse(false))
+                         .forEach(process -> {
+                             process.info().totalCpuDuration()
+                                    .ifPresent(cpu -> ffmpegCpuNanos.merge(process.pid(), cpu.toNanos(), Math::max));
+                             ffmpegRssKilobytes.merge(process.pid(), residentKilobytes(process.pid()), Math::max);
+                         });
+            jvmRssPeak = Math.max(jvmRssPeak, residentKilobytes(ProcessHandle.current().pid()));
+        }
+        for (long id = 1; id <= STREAMS; id++) {
+            ffmpegService.stopRecording(id);
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        long jvmCpuNanos = os.getProcessCpuTime() - jvmCpuBefore;
+        watchdog.stop();
+
+        long childCpuNanos = ffmpegCpuNanos.values().stream().mapToLong(Long::longValue).sum();
+        long rssKilobytes = engine == RecordingSchedule.Engine.FFMPEG
+                            ? ffmpegRssKilobytes.values().stream().mapToLong(Long::longValue).sum()
+                            : jvmRssPeak - jvmRssBefore;
+        long recordedBytes;
+        try (var files = Files.list(recordings)) {
+            recordedBytes = files.mapToLong(file -> file.toFile().length()).sum();
+        }
+        return new Usage(TimeUnit.NANOSECONDS.toMillis(jvmCpuNanos + childCpuNanos) / STREAMS, rssKilobytes / STREAMS, recordedBytes);
+    }
+
+    private RecordingSchedule schedule(long id, RecordingSchedule.Engine engine) {
+        RecordingSchedule schedule = new RecordingSchedule();
+        schedule.setId(id);
+        schedule.setFileName("benchmark" + id + ".ts");
+        schedule.setM3uUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/live/" + id);
+        schedule.setEndTime(LocalDateTime.now().plusMinutes(10).format(DateTimeFormatter.ofPattern("HH:mm dd/MM/yyyy")));
+        schedule.setEngine(engine);
+        return schedule;
+    }
+
+    /**
+     * Every connection starts at the current live position and receives the stream in real time, looping at its end.
+     */
+    private void startServer() throws IOException {
+        long startedAt = System.nanoTime();
+        int bytesPerSecond = stream.length / SOURCE_SECONDS;
+        connections = Executors.newVirtualThreadPerTaskExecutor();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(connections);
+        server.createContext("/live", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "video/mp2t");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                int position = (int) (elapsedMillis * bytesPerSecond / 1000 % stream.length) / PACKET_SIZE * PACKET_SIZE;
+                int chunk = bytesPerSecond / 10 / PACKET_SIZE * PACKET_SIZE;
+                while (shutdown.getCount() > 0) {
+                    if (position + chunk > stream.length) {
+                        position = 0;
+                    }
+                    body.write(stream, position, chunk);
+                    body.flush();
+                    position += chunk;
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The recorder closed the connection
+            }
+        });
+        server.start();
+    }
+
+    private static long residentKilobytes(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // The process exited in the meantime
+        }
+        return 0;
+    }
+
+    private record Usage(long cpuMillisPerStream, long rssKilobytesPerStream, long recordedBytes) {
+        @Override
+        public String toString() {
+            return String.format("%d ms CPU per stream, %d MB resident per stream, %d MB recorded",
+                                 cpuMillisPerStream, rssKilobytesPerStream / 1024, recordedBytes / 1024 / 1024);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package me.schickel.recorder.service;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.metrics.RecordingMetrics;
+import me.schickel.recorder.process.FfmpegProgress;
+import me.schickel.recorder.process.Stoppable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static me.schickel.recorder.service.TsPacketWriter.PACKET_SIZE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class HttpTsRecorderTest {
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final CountDownLatch released = new CountDownLatch(1);
+    private RecordingWatchdog recordingWatchdog;
+    private StreamIngest streamIngest;
+    private ChannelManagementService channelManagementService;
+    private RollingBufferService rollingBufferService;
+    private HttpTsRecorder httpTsRecorder;
+
+    @BeforeEach
+    void setUp() {
+        RecordingServiceConfig config = new RecordingServiceConfig();
+        config.getHttpRecorder().setReadTimeout(Duration.ofSeconds(5));
+        config.getRollingBuffer().setEnabled(true);
+        config.getRollingBuffer().setChannels(List.of("News"));
+        config.getRollingBuffer().setMaxMemory(DataSize.ofMegabytes(1));
+        recordingWatchdog = mock(RecordingWatchdog.class);
+        streamIngest = new StreamIngest(config);
+        streamIngest.start();
+        channelManagementService = mock(ChannelManagementService.class);
+        ProviderResolver providerResolver = new ProviderResolver(1, config);
+        rollingBufferService = new RollingBufferService(config, streamIngest, channelManagementService,
+                                                        new StreamSlotManager(providerResolver), providerResolver);
+        httpTsRecorder = new HttpTsRecorder(config, recordingWatchdog, mock(RecordingMetrics.class), streamIngest, rollingBufferService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        rollingBufferService.stop();
+        released.countDown();
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void record_shouldReconnect_andAppendWholePacketsToSameFile() throws Exception {
+        startServer("video/mp2t", exchange -> {
+            try (OutputStream body = exchange.getResponseBody()) {
+                if (connections.incrementAndGet() == 1) {
+                    // Ends in the middle of a packet
+                    body.write(packets(10));
+                    body.write(packets(1), 0, 50);
+                } else {
+                    // Joins the stream in the middle of a packet
+                    body.write(packets(1), 120, 68);
+                    body.write(packets(10));
+                }
+            }
+        });
+        Path output = tempDir.resolve("show.ts");
+
+        boolean wroteData = httpTsRecorder.record(1L, url(), output, LocalDateTime.now().plusMinutes(1), () -> connections.get() < 2);
+
+        assertThat(wroteData).isTrue();
+        byte[] recorded = Files.readAllBytes(output);
+        assertThat(recorded).hasSize(20 * PACKET_SIZE);
+        for (int packet = 0; packet < recorded.length; packet += PACKET_SIZE) {
+            assertThat(recorded[packet]).isEqualTo((byte) 0x47);
+        }
+        verify(recordingWatchdog, times(2)).watch(eq(1L), eq("show.ts"), any(Stoppable.class));
+        verify(recordingWatchdog, times(2)).endSegment(1L);
+        verify(recordingWatchdog, times(2)).onProgress(eq(1L), argThat((FfmpegProgress progress) ->
+            progress.ended() && progress.totalSizeBytes() == 10L * PACKET_SIZE));
+    }
+
+    @Test
+    void stop_shouldCloseConnectionThatIsWaitingForData() throws Exception {
+        startServer("video/mp2t", exchange -> {
+            connections.incrementAndGet();
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(packets(10));
+                body.flush();
+                released.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Path output = tempDir.resolve("show.ts");
+        AtomicBoolean stopped = new AtomicBoolean();
+        AtomicBoolean closedConnection = new AtomicBoolean();
+        Thread stopper = Thread.ofVirtual().start(() -> {
+            try {
+                while (Files.notExists(output) || Files.size(output) < 10L * PACKET_SIZE) {
+                    Thread.sleep(20);
+                }
+                // Like FfmpegService, which marks the recording as stopped before closing its connection
+                stopped.set(true);
+                closedConnection.set(httpTsRecorder.stop(1L));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        long startedAt = System.nanoTime();
+        httpTsRecorder.record(1L, url(), output, LocalDateTime.now().plusMinutes(1), () -> !stopped.get());
+        stopper.join();
+
+        // Well below the read timeout of 5 seconds
+        assertThat(Duration.ofNanos(System.nanoTime() - startedAt)).isLessThan(Duration.ofSeconds(3));
+        assertThat(closedConnection).isTrue();
+        assertThat(connections.get()).isEqualTo(1);
+        verify(recordingWatchdog, atLeastOnce()).endSegment(1L);
+    }
+
+    @Test
+    void record_shouldShareOneConnection_betweenRecordingsOfSameUrl() throws Exception {
+        startServer("video/mp2t", exchange -> {
+            connections.incrementAndGet();
+            try (OutputStream body = exchange.getResponseBody()) {
+                while (released.getCount() > 0) {
+                    body.write(packets(10));
+                    body.flush();
+                    Thread.sleep(10);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The last recording left the stream
+            }
+        });
+        Path evening = tempDir.resolve("evening.ts");
+        Path show = tempDir.resolve("show.ts");
+        AtomicBoolean eveningStopped = new AtomicBoolean();
+        AtomicBoolean showStopped = new AtomicBoolean();
+        Thread eveningRecording = Thread.ofVirtual().start(() -> record(1L, evening, eveningStopped));
+        awaitSize(evening, 10L * PACKET_SIZE);
+
+        Thread showRecording = Thread.ofVirtual().start(() -> record(2L, show, showStopped));
+        awaitSize(show, 10L * PACKET_SIZE);
+        assertThat(streamIngest.getSubscriberCount(url())).isEqualTo(2);
+        showStopped.set(true);
+        assertThat(httpTsRecorder.stop(2L)).isTrue();
+        showRecording.join();
+
+        // The other recording keeps receiving the stream
+        long eveningSize = Files.size(evening);
+        awaitSize(evening, eveningSize + 10L * PACKET_SIZE);
+        eveningStopped.set(true);
+        httpTsRecorder.stop(1L);
+        eveningRecording.join();
+
+        assertThat(connections.get()).isEqualTo(1);
+        assertThat(streamIngest.getUpstreamCount()).isZero();
+        assertThat(Files.size(show) % PACKET_SIZE).isZero();
+    }
+
+    @Test
+    void record_shouldRefuseHlsPlaylist() throws Exception {
+        startServer("application/vnd.apple.mpegurl", exchange -> {
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write("#EXTM3U\n".getBytes());
+            }
+        });
+
+        assertThatThrownBy(() -> httpTsRecorder.record(1L, url(), tempDir.resolve("show.ts"), LocalDateTime.now().plusMinutes(1), () -> true))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("HLS");
+    }
+
+    @Test
+    void record_shouldKeepRecording_whenSourceTurnsIntoHlsPlaylistAfterData() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/live", exchange -> {
+            // The second connection is answered with a playlist
+            boolean playlist = connections.incrementAndGet() == 2;
+            exchange.getResponseHeaders().add("Content-Type", playlist ? "application/vnd.apple.mpegurl" : "video/mp2t");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(playlist ? "#EXTM3U\n".getBytes() : packets(10));
+            }
+        });
+        server.start();
+        Path output = tempDir.resolve("show.ts");
+
+        boolean wroteData = httpTsRecorder.record(1L, url(), output, LocalDateTime.now().plusMinutes(1), () -> connections.get() < 3);
+
+        assertThat(wroteData).isTrue();
+        assertThat(connections.get()).isEqualTo(3);
+        assertThat(Files.size(output)).isEqualTo(20L * PACKET_SIZE);
+    }
+
+    @Test
+    void record_shouldRefuseStreamWithoutPacketBoundaries() throws Exception {
+        startServer("application/octet-stream", exchange -> {
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(new byte[2 * 1024 * 1024]);
+            }
+        });
+
+        assertThatThrownBy(() -> httpTsRecorder.record(1L, url(), tempDir.resolve("show.ts"), LocalDateTime.now().plusMinutes(1), () -> true))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("not an MPEG-TS stream");
+    }
+
+    @Test
+    void record_shouldStartWithBufferedStream_whenStartTimeIsInThePast() throws Exception {
+        startServer("video/mp2t", exchange -> {
+            connections.incrementAndGet();
+            try (OutputStream body = exchange.getResponseBody()) {
+                for (int packet = 0; released.getCount() > 0; packet++) {
+                    body.write(numberedPacket(packet));
+                    if (packet % 10 == 9) {
+                        body.flush();
+                        Thread.sleep(10);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The buffer closed the connection
+            }
+        });
+        when(channelManagementService.getUrlByName("News")).thenReturn(url());
+        rollingBufferService.start();
+        // The show started before the recording was scheduled
+        Thread.sleep(500);
+
+        Path output = tempDir.resolve("news.ts");
+        AtomicBoolean stopped = new AtomicBoolean();
+        Thread recording = Thread.ofVirtual().start(() -> {
+            try {
+                httpTsRecorder.record(1L, url(), output, LocalDateTime.now().minusMinutes(1), LocalDateTime.now().plusMinutes(1),
+                                      () -> !stopped.get());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        awaitSize(output, 100L * PACKET_SIZE);
+        stopped.set(true);
+        httpTsRecorder.stop(1L);
+        recording.join();
+
+        // From the first packet the buffer received on, without a gap, over the buffer's connection
+        byte[] recorded = Files.readAllBytes(output);
+        assertThat(recorded.length % PACKET_SIZE).isZero();
+        for (int packet = 0; packet < recorded.length / PACKET_SIZE; packet++) {
+            assertThat(ByteBuffer.wrap(recorded, packet * PACKET_SIZE + 4, 4).getInt()).isEqualTo(packet);
+        }
+        assertThat(connections.get()).isEqualTo(1);
+    }
+
+    private void record(Long scheduleId, Path output, AtomicBoolean stopped) {
+        try {
+            httpTsRecorder.record(scheduleId, url(), output, LocalDateTime.now().plusMinutes(1), () -> !stopped.get());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitSize(Path file, long size) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (Files.notExists(file) || Files.size(file) < size) {
+            assertThat(System.nanoTime()).isLessThan(deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private void startServer(String contentType, HttpHandler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/live", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, 0);
+            handler.handle(exchange);
+        });
+        server.start();
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/live";
+    }
+
+    private static byte[] numberedPacket(int number) {
+        byte[] packet = packets(1);
+        ByteBuffer.wrap(packet, 4, 4).putInt(number);
+        return packet;
+    }
+
+    private static byte[] packets(int count) {
+        byte[] packets = new byte[count * PACKET_SIZE];
+        for (int packet = 0; packet < count; packet++) {
+            packets[packet * PACKET_SIZE] = 0x47;
+            packets[packet * PACKET_SIZE + 3] = 0x10;
+        }
+        return packets;
+    }
+}
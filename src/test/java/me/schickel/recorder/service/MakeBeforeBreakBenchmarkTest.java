@@ -0,0 +1,209 @@
+package me.schickel.recorder.service;
+
+import com.sun.net.httpserver.HttpServer;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.metrics.RecordingMetrics;
+import me.schickel.recorder.process.ProcessLauncher;
+import me.schickel.recorder.process.ProcessOutputPump;
+import me.schickel.recorder.repository.ScheduleRepository;
+import me.schickel.recorder.repository.SourceHealthRepository;
+import me.schickel.recorder.repository.StreamProbeRepository;
+import me.schickel.recorder.util.TimeUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.ApplicationEventPublisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Records from a local server that behaves like a live channel whose connections freeze after a few seconds,
+ * once with the classic restart and once with make-before-break, and compares the gaps between segments.
+ * Needs ffmpeg on the PATH. Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@EnabledIf("me.schickel.recorder.service.RecordingWatchdogFreezingStreamTest#ffmpegAvailable")
+class MakeBeforeBreakBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MakeBeforeBreakBenchmarkTest.class);
+
+    private static final int SOURCE_SECONDS = 300;
+    private static final Duration RECORDING_LENGTH = Duration.ofSeconds(90);
+    private static final int PACKET_SIZE = 188;
+
+    @TempDir
+    Path tempDir;
+
+    private byte[] stream;
+    private HttpServer server;
+    private ExecutorService connections;
+    private final CountDownLatch shutdown = new CountDownLatch(1);
+    private ProcessOutputPump processOutputPump;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path source = tempDir.resolve("source.ts");
+        Process generator = new ProcessBuilder("ffmpeg", "-hide_banner", "-loglevel", "error",
+                                               "-f", "lavfi", "-i", "testsrc=size=320x240:rate=25",
+                                               "-t", String.valueOf(SOURCE_SECONDS), "-c:v", "mpeg2video", "-b:v", "500k", "-g", "25",
+                                               "-f", "mpegts", source.toString())
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        assertThat(generator.waitFor(120, TimeUnit.SECONDS)).isTrue();
+        stream = Files.readAllBytes(source);
+        processOutputPump = new ProcessOutputPump();
+    }
+
+    @AfterEach
+    void tearDown() {
+        shutdown.countDown();
+        stopServer();
+        processOutputPump.stop();
+    }
+
+    @Test
+    void makeBeforeBreak_shouldShortenGapsBetweenSegments() throws Exception {
+        List<Double> classicGaps = recordFromFreezingServer(false);
+        List<Double> overlappingGaps = recordFromFreezingServer(true);
+
+        assertThat(classicGaps).isNotEmpty();
+        assertThat(overlappingGaps).isNotEmpty();
+        logger.info("classic restart:   {}", describe(classicGaps));
+        logger.info("make-before-break: {}", describe(overlappingGaps));
+        assertThat(percentile(overlappingGaps, 0.5)).isLessThan(percentile(classicGaps, 0.5));
+    }
+
+    private List<Double> recordFromFreezingServer(boolean makeBeforeBreak) throws Exception {
+        startServer(new Random(42));
+        RecordingServiceConfig config = new RecordingServiceConfig();
+        Path recordings = Files.createDirectories(tempDir.resolve(makeBeforeBreak ? "make-before-break" : "classic"));
+        config.setRecordingFolderPrefix(recordings + "/");
+        config.getWatchdog().setStallTimeout(Duration.ofSeconds(5));
+        config.getWatchdog().setStartupGracePeriod(Duration.ofSeconds(15));
+        config.getWatchdog().setReplacementAfter(Duration.ofSeconds(2));
+        config.getWatchdog().setMakeBeforeBreak(makeBeforeBreak);
+
+        ProviderResolver providerResolver = new ProviderResolver(2, config);
+        StreamSlotManager streamSlotManager = new StreamSlotManager(providerResolver);
+        RecordingWatchdog watchdog = new RecordingWatchdog(config);
+        watchdog.start();
+        ScheduleRepository scheduleRepository = mock(ScheduleRepository.class);
+        when(scheduleRepository.existsById(any())).thenReturn(true);
+        ProcessLauncher processLauncher = new ProcessLauncher(processOutputPump);
+        StreamProbeCache streamProbeCache = new StreamProbeCache(config, mock(StreamProbeRepository.class));
+        StreamWarmupService streamWarmupService = new StreamWarmupService(config, scheduleRepository, processLauncher, new TimeUtils(),
+                                                                          providerResolver, streamSlotManager, streamProbeCache);
+        streamWarmupService.start();
+        FfmpegService ffmpegService = new FfmpegService(scheduleRepository, new TimeUtils(), config, mock(PostProcessingQueue.class),
+                                                        processLauncher, watchdog,
+                                                        mock(RecordingMetrics.class), streamSlotManager, providerResolver, mock(HttpTsRecorder.class),
+                                                        mock(HlsRecorder.class), streamWarmupService,
+                                                        streamProbeCache, new SourceHealthService(mock(SourceHealthRepository.class)),
+                                                        mock(ApplicationEventPublisher.class));
+
+        RecordingSchedule schedule = new RecordingSchedule();
+        schedule.setId(1L);
+        schedule.setFileName("benchmark.ts");
+        schedule.setM3uUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/live");
+        schedule.setEndTime(LocalDateTime.now().plusMinutes(10).format(DateTimeFormatter.ofPattern("HH:mm dd/MM/yyyy")));
+        assertThat(streamSlotManager.acquire(providerResolver.resolve(schedule.getM3uUrl()), 1L, Duration.ZERO)).isTrue();
+
+        AtomicReference<List<Double>> gaps = new AtomicReference<>();
+        Thread stopper = Thread.ofVirtual().start(() -> {
+            try {
+                Thread.sleep(RECORDING_LENGTH.toMillis());
+                gaps.set(watchdog.getHealth(1L).orElseThrow().gapSeconds());
+                ffmpegService.stopRecording(1L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        ffmpegService.recordingHandler(schedule);
+        stopper.join();
+
+        watchdog.stop();
+        stopServer();
+        return gaps.get();
+    }
+
+    /**
+     * Every connection starts at the current live position and freezes after 6 to 12 seconds without being closed.
+     */
+    private void startServer(Random random) throws IOException {
+        long startedAt = System.nanoTime();
+        int bytesPerSecond = stream.length / SOURCE_SECONDS;
+        connections = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(connections);
+        server.createContext("/live", exchange -> {
+            int freezeAfterChunks;
+            synchronized (random) {
+                freezeAfterChunks = 60 + random.nextInt(61);
+            }
+            exchange.getResponseHeaders().add("Content-Type", "video/mp2t");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                int position = (int) (elapsedMillis * bytesPerSecond / 1000) / PACKET_SIZE * PACKET_SIZE;
+                int chunk = bytesPerSecond / 10 / PACKET_SIZE * PACKET_SIZE;
+                for (int sent = 0; sent < freezeAfterChunks && position + chunk <= stream.length; sent++) {
+                    body.write(stream, position, chunk);
+                    body.flush();
+                    position += chunk;
+                    Thread.sleep(100);
+                }
+                shutdown.await(RECORDING_LENGTH.toSeconds() * 3, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The recorder closed the connection
+            }
+        });
+        server.start();
+    }
+
+    private void stopServer() {
+        if (server != null) {
+            server.stop(0);
+            connections.shutdownNow();
+            server = null;
+        }
+    }
+
+    private static String describe(List<Double> gaps) {
+        return String.format("%d gaps, median %.1f s, p90 %.1f s, max %.1f s, %.1f s lost in total",
+                             gaps.size(), percentile(gaps, 0.5), percentile(gaps, 0.9), percentile(gaps, 1.0),
+                             gaps.stream().mapToDouble(Double::doubleValue).sum());
+    }
+
+    private static double percentile(List<Double> values, double fraction) {
+        List<Double> sorted = values.stream().sorted().toList();
+        return sorted.get((int) Math.ceil(fraction * sorted.size()) - 1);
+    }
+}
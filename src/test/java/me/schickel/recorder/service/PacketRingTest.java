@@ -0,0 +1,130 @@
+package me.schickel.recorder.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static me.schickel.recorder.service.TsPacketWriter.PACKET_SIZE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PacketRingTest {
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+
+    @Test
+    void read_shouldReturnPacketsInOrder_acrossTheWrapAround() throws Exception {
+        PacketRing ring = new PacketRing(8, Duration.ofMinutes(1), clock::get);
+        ring.write(packets(0, 6));
+        ring.write(packets(6, 6));
+
+        // Packets 0 to 3 were overwritten, a reader at 2 starts at the oldest one
+        ByteBuffer target = ByteBuffer.allocate(20 * PACKET_SIZE);
+        assertThat(ring.read(2, target, 0, () -> false)).isEqualTo(4);
+
+        assertThat(numbers(target)).containsExactly(4, 5, 6, 7, 8, 9, 10, 11);
+    }
+
+    @Test
+    void read_shouldCopyAtMostWhatFitsIntoTarget() throws Exception {
+        PacketRing ring = new PacketRing(8, Duration.ofMinutes(1), clock::get);
+        ring.write(packets(0, 5));
+
+        ByteBuffer target = ByteBuffer.allocate(2 * PACKET_SIZE + 100);
+        assertThat(ring.read(1, target, 0, () -> false)).isEqualTo(1);
+
+        assertThat(numbers(target)).containsExactly(1, 2);
+    }
+
+    @Test
+    void sequenceAt_shouldStartAtFirstPacketReceivedAtThatTime() {
+        PacketRing ring = new PacketRing(100, Duration.ofMinutes(1), clock::get);
+        ring.write(packets(0, 10));
+        clock.addAndGet(1000);
+        ring.write(packets(10, 10));
+        clock.addAndGet(1000);
+        ring.write(packets(20, 10));
+
+        assertThat(ring.sequenceAt(clock.get() - 1000)).isEqualTo(10);
+        assertThat(ring.sequenceAt(clock.get() - 500)).isEqualTo(10);
+        assertThat(ring.sequenceAt(clock.get() - 60_000)).isZero();
+        assertThat(ring.bufferedDuration()).isEqualTo(Duration.ofSeconds(2));
+    }
+
+    @Test
+    void read_shouldSkipPacketsOlderThanRetention_evenIfTheyStillFit() throws Exception {
+        PacketRing ring = new PacketRing(100, Duration.ofSeconds(10), clock::get);
+        ring.write(packets(0, 10));
+        clock.addAndGet(8000);
+        ring.write(packets(10, 10));
+        clock.addAndGet(5000);
+
+        ByteBuffer target = ByteBuffer.allocate(100 * PACKET_SIZE);
+        assertThat(ring.read(0, target, 0, () -> false)).isEqualTo(10);
+        assertThat(ring.sequenceAt(0)).isEqualTo(10);
+    }
+
+    @Test
+    void read_shouldWaitForNextPacket_untilCancelled() throws Exception {
+        PacketRing ring = new PacketRing(8, Duration.ofMinutes(1), clock::get);
+        ring.write(packets(0, 2));
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ByteBuffer target = ByteBuffer.allocate(8 * PACKET_SIZE);
+
+        Thread writer = Thread.ofVirtual().start(() -> {
+            sleep(100);
+            ring.write(packets(2, 1));
+        });
+        assertThat(ring.read(2, target, 10_000, cancelled::get)).isEqualTo(2);
+        assertThat(numbers(target)).containsExactly(2);
+        writer.join();
+
+        target.clear();
+        Thread canceller = Thread.ofVirtual().start(() -> {
+            sleep(100);
+            cancelled.set(true);
+            ring.wakeUp();
+        });
+        long startedAt = System.nanoTime();
+        ring.read(3, target, 10_000, cancelled::get);
+        assertThat(target.position()).isZero();
+        assertThat(System.nanoTime() - startedAt).isLessThan(Duration.ofSeconds(5).toNanos());
+        canceller.join();
+    }
+
+    @Test
+    void write_shouldRejectTornPackets() {
+        PacketRing ring = new PacketRing(8, Duration.ofMinutes(1), clock::get);
+
+        assertThatThrownBy(() -> ring.write(ByteBuffer.allocate(PACKET_SIZE + 1)))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static ByteBuffer packets(int first, int count) {
+        ByteBuffer packets = ByteBuffer.allocate(count * PACKET_SIZE);
+        for (int packet = 0; packet < count; packet++) {
+            packets.put(packet * PACKET_SIZE, (byte) 0x47);
+            packets.putInt(packet * PACKET_SIZE + 4, first + packet);
+        }
+        return packets;
+    }
+
+    private static int[] numbers(ByteBuffer target) {
+        int[] numbers = new int[target.position() / PACKET_SIZE];
+        for (int packet = 0; packet < numbers.length; packet++) {
+            numbers[packet] = target.getInt(packet * PACKET_SIZE + 4);
+        }
+        return numbers;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -15,6 +15,7 @@ import org.mockito.quality.Strictness;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
@@ -50,6 +51,19 @@ class PastRecordingServiceTest {
         verify(pastRecordingRepository).save(any(PastRecording.class));
     }
 
+    @Test
+    void getAllPastRecordings_shouldListSourceOfEachPart() {
+        PastRecording entity = createPastRecording(1L, "Test Channel");
+        when(entity.getPartSources()).thenReturn("{\"test.ts\":\"http://test.url\",\"test_2.ts\":\"http://backup.url\"}");
+
+        when(pastRecordingRepository.findAllByOrderByRecordedAtDesc()).thenReturn(List.of(entity));
+
+        List<PastRecordingResponse> result = service.getAllPastRecordings();
+
+        assertThat(result.get(0).getPartSources())
+            .containsExactly(Map.entry("test.ts", "http://test.url"), Map.entry("test_2.ts", "http://backup.url"));
+    }
+
     @Test
     void getAllPastRecordings_shouldReturnAllRecordings() {
         List<PastRecording> entities = List.of(
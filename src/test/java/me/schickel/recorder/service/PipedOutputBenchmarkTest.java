@@ -0,0 +1,178 @@
+package me.schickel.recorder.service;
+
+import com.sun.management.OperatingSystemMXBean;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.metrics.RecordingMetrics;
+import me.schickel.recorder.process.ManagedProcess;
+import me.schickel.recorder.process.ProcessLauncher;
+import me.schickel.recorder.process.ProcessOutputPump;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Copies the same recording from a local server as fast as ffmpeg can read it, once with ffmpeg writing the
+ * file and once through {@link PipedOutput}, and compares throughput and CPU time. CPU time is that of ffmpeg
+ * plus this JVM, which runs the server in both cases. Needs ffmpeg on the PATH. Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@EnabledIf("me.schickel.recorder.service.RecordingWatchdogFreezingStreamTest#ffmpegAvailable")
+class PipedOutputBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipedOutputBenchmarkTest.class);
+
+    private static final int SOURCE_SECONDS = 240;
+    private static final int ROUNDS = 3;
+    private static final Duration ANALYZE_DURATION = Duration.ofSeconds(1);
+
+    @TempDir
+    Path tempDir;
+
+    private byte[] stream;
+    private HttpServer server;
+    private ExecutorService connections;
+    private ProcessOutputPump processOutputPump;
+    private ProcessLauncher processLauncher;
+    private RecordingMetrics recordingMetrics;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path source = tempDir.resolve("source.ts");
+        Process generator = new ProcessBuilder("ffmpeg", "-hide_banner", "-loglevel", "error",
+                                               "-f", "lavfi", "-i", "testsrc=size=1280x720:rate=25",
+                                               "-t", String.valueOf(SOURCE_SECONDS), "-c:v", "mpeg2video", "-b:v", "8M", "-g", "25",
+                                               "-f", "mpegts", source.toString())
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        assertThat(generator.waitFor(600, TimeUnit.SECONDS)).isTrue();
+        stream = Files.readAllBytes(source);
+        processOutputPump = new ProcessOutputPump();
+        processLauncher = new ProcessLauncher(processOutputPump);
+        recordingMetrics = new RecordingMetrics(new SimpleMeterRegistry(), mock(RecordingWatchdog.class));
+        startServer();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        connections.shutdownNow();
+        processOutputPump.stop();
+    }
+
+    @Test
+    void pipedOutput_shouldKeepUpWithFfmpegWritingTheFile() throws Exception {
+        // Warms up the JIT, the page cache and the server
+        copy(false);
+        copy(true);
+        Usage direct = new Usage(0, 0, 0);
+        Usage piped = new Usage(0, 0, 0);
+        for (int round = 0; round < ROUNDS; round++) {
+            direct = direct.plus(copy(false));
+            piped = piped.plus(copy(true));
+        }
+
+        logger.info("direct: {}", direct);
+        logger.info("piped:  {}", piped);
+        assertThat(piped.bytes()).isCloseTo(direct.bytes(), withinPercentage(1));
+        assertThat(piped.megabytesPerSecond()).isGreaterThan(direct.megabytesPerSecond() / 2);
+        assertThat(piped.cpuNanos()).isLessThan(direct.cpuNanos() * 2);
+    }
+
+    private Usage copy(boolean piped) throws Exception {
+        Path output = tempDir.resolve(piped ? "piped.ts" : "direct.ts");
+        Files.deleteIfExists(output);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/recording";
+        RecordingServiceConfig.Pipe pipe = new RecordingServiceConfig().getPipe();
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long jvmCpuBefore = os.getProcessCpuTime();
+        long startedAt = System.nanoTime();
+        ManagedProcess process;
+        PipedOutput pipedOutput = null;
+        if (piped) {
+            pipedOutput = new PipedOutput(output, pipe.getBufferSize(), pipe.getSyncInterval(), recordingMetrics);
+            process = processLauncher.startPiped(output.getFileName().toString(),
+                                                 FfmpegService.buildPipedRecordingCommand(url, ANALYZE_DURATION, "3600", List.of()),
+                                                 line -> { });
+            pipedOutput.start(process.getStdout());
+        } else {
+            process = processLauncher.start(output.getFileName().toString(),
+                                            FfmpegService.buildRecordingCommand(url, ANALYZE_DURATION, "3600", output),
+                                            line -> { });
+        }
+
+        // The CPU time of a child process can only be read while it runs
+        ProcessHandle ffmpeg = ProcessHandle.of(process.pid()).orElseThrow();
+        long ffmpegCpuNanos = 0;
+        while (!process.onExit().isDone()) {
+            ffmpegCpuNanos = Math.max(ffmpegCpuNanos, ffmpeg.info().totalCpuDuration().map(Duration::toNanos).orElse(0L));
+            Thread.sleep(20);
+        }
+        assertThat(process.onExit().get()).isZero();
+        if (pipedOutput != null) {
+            pipedOutput.awaitClosed();
+        }
+        long wallNanos = System.nanoTime() - startedAt;
+        long jvmCpuNanos = os.getProcessCpuTime() - jvmCpuBefore;
+        return new Usage(Files.size(output), wallNanos, ffmpegCpuNanos + jvmCpuNanos);
+    }
+
+    /**
+     * Sends the whole recording as fast as the connection takes it.
+     */
+    private void startServer() throws IOException {
+        connections = Executors.newVirtualThreadPerTaskExecutor();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(connections);
+        server.createContext("/recording", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "video/mp2t");
+            exchange.sendResponseHeaders(200, stream.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(stream);
+            } catch (IOException e) {
+                // ffmpeg closed the connection
+            }
+        });
+        server.start();
+    }
+
+    private record Usage(long bytes, long wallNanos, long cpuNanos) {
+
+        Usage plus(Usage other) {
+            return new Usage(bytes + other.bytes, wallNanos + other.wallNanos, cpuNanos + other.cpuNanos);
+        }
+
+        double megabytesPerSecond() {
+            return bytes / 1024.0 / 1024.0 / (wallNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d MB in %d ms, %.0f MB/s, %d ms CPU", bytes / 1024 / 1024, TimeUnit.NANOSECONDS.toMillis(wallNanos),
+                                 megabytesPerSecond(), TimeUnit.NANOSECONDS.toMillis(cpuNanos));
+        }
+    }
+}
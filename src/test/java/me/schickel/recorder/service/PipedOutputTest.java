@@ -0,0 +1,97 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.metrics.RecordingMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class PipedOutputTest {
+
+    @Mock
+    private RecordingMetrics recordingMetrics;
+
+    @TempDir
+    Path recordings;
+
+    @Test
+    void start_shouldWriteEverythingFromPipe_andChecksumIt() throws Exception {
+        byte[] stream = new byte[300_000];
+        new Random(42).nextBytes(stream);
+        Path file = Files.writeString(recordings.resolve("show.ts"), "left over from an earlier run");
+        PipedOutput output = new PipedOutput(file, 64 * 1024, Duration.ZERO, recordingMetrics);
+
+        output.start(new ByteArrayInputStream(stream));
+        output.awaitClosed();
+
+        assertThat(Files.readAllBytes(file)).isEqualTo(stream);
+        assertThat(output.writtenBytes()).isEqualTo(stream.length);
+        CRC32C checksum = new CRC32C();
+        checksum.update(stream);
+        assertThat(output.checksum()).isEqualTo(String.format("%08x", checksum.getValue()));
+        ArgumentCaptor<Long> written = ArgumentCaptor.forClass(Long.class);
+        verify(recordingMetrics, atLeastOnce()).recordPipeWrite(written.capture());
+        assertThat(written.getAllValues()).allMatch(bytes -> bytes <= 64 * 1024);
+        assertThat(written.getAllValues().stream().mapToLong(Long::longValue).sum()).isEqualTo(stream.length);
+        // Synced once at the end without an interval
+        verify(recordingMetrics).recordPipeSync(any());
+    }
+
+    @Test
+    void start_shouldKeepWhatWasWritten_whenPipeBreaks() throws Exception {
+        Path file = recordings.resolve("show.ts");
+        PipedOutput output = new PipedOutput(file, 1024, Duration.ofSeconds(10), recordingMetrics);
+        InputStream failing = new InputStream() {
+            private int read;
+
+            @Override
+            public int read() throws IOException {
+                if (read == 10) {
+                    throw new IOException("Stream closed");
+                }
+                read++;
+                return 'x';
+            }
+        };
+
+        output.start(failing);
+        output.awaitClosed();
+
+        assertThat(Files.readString(file)).isEqualTo("x".repeat(10));
+        assertThat(output.writtenBytes()).isEqualTo(10);
+    }
+
+    @Test
+    void start_shouldFail_whenFileCannotBeOpened() {
+        PipedOutput output = new PipedOutput(recordings.resolve("missing/show.ts"), 1024, Duration.ZERO, recordingMetrics);
+
+        assertThatThrownBy(() -> output.start(new ByteArrayInputStream(new byte[1]))).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void constructor_shouldRejectEmptyBuffer() {
+        assertThatThrownBy(() -> new PipedOutput(recordings.resolve("show.ts"), 0, Duration.ZERO, recordingMetrics))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,220 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.PostProcessingJob;
+import me.schickel.recorder.entity.PostProcessingJob.Status;
+import me.schickel.recorder.entity.PostProcessingJob.Type;
+import me.schickel.recorder.repository.PostProcessingJobRepository;
+import me.schickel.recorder.util.ExecutorConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class PostProcessingQueueTest {
+
+    @Mock
+    private PostProcessingJobRepository jobRepository;
+    @Mock
+    private PostProcessingService postProcessingService;
+    @Mock
+    private ExecutorConfig executorConfig;
+    @Mock
+    private ThreadPoolTaskExecutor postProcessingExecutor;
+
+    private PostProcessingQueue postProcessingQueue;
+
+    @BeforeEach
+    void setUp() {
+        postProcessingQueue = new PostProcessingQueue(jobRepository, postProcessingService, executorConfig, new RecordingServiceConfig());
+        when(executorConfig.postProcessingExecutor()).thenReturn(postProcessingExecutor);
+        when(jobRepository.findByStatus(Status.RUNNING)).thenReturn(List.of());
+        when(jobRepository.findFirstByStatusOrderByIdAsc(Status.PENDING)).thenReturn(Optional.empty());
+    }
+
+    @Test
+    void enqueue_shouldOnlyPersistJob_beforeStartup() {
+        postProcessingQueue.enqueue(Type.REMUX_TO_MKV, "show.ts", List.of(Path.of("/recordings/show.ts")), Map.of(), false);
+
+        ArgumentCaptor<PostProcessingJob> saved = ArgumentCaptor.forClass(PostProcessingJob.class);
+        verify(jobRepository).save(saved.capture());
+        assertThat(saved.getValue().getStatus()).isEqualTo(Status.PENDING);
+        assertThat(saved.getValue().getParts()).contains("/recordings/show.ts");
+        verify(postProcessingExecutor, never()).execute(any());
+    }
+
+    @Test
+    void start_shouldResumeInterruptedJobs_andGiveUpAfterRepeatedInterruptions() {
+        PostProcessingJob resumed = job(1L, Status.RUNNING, 1);
+        PostProcessingJob givenUp = job(2L, Status.RUNNING, 3);
+        when(jobRepository.findByStatus(Status.RUNNING)).thenReturn(List.of(resumed, givenUp));
+
+        postProcessingQueue.start();
+
+        assertThat(resumed.getStatus()).isEqualTo(Status.PENDING);
+        assertThat(givenUp.getStatus()).isEqualTo(Status.FAILED);
+        verify(jobRepository).saveAll(List.of(resumed, givenUp));
+    }
+
+    @Test
+    void dispatch_shouldRunOneJobAtATime_inQueueOrder() {
+        PostProcessingJob first = job(1L, Status.PENDING, 0);
+        PostProcessingJob second = job(2L, Status.PENDING, 0);
+        when(jobRepository.findFirstByStatusOrderByIdAsc(Status.PENDING))
+            .thenReturn(Optional.of(first)).thenReturn(Optional.of(second)).thenReturn(Optional.empty());
+        when(postProcessingService.finishMkv(anyList(), anyMap(), anyBoolean())).thenReturn(true);
+        ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+
+        postProcessingQueue.start();
+
+        verify(postProcessingExecutor).execute(tasks.capture());
+        assertThat(first.getStatus()).isEqualTo(Status.RUNNING);
+        assertThat(first.getAttempts()).isEqualTo(1);
+        assertThat(second.getStatus()).isEqualTo(Status.PENDING);
+        assertThat(postProcessingQueue.getStats().running()).isEqualTo(1);
+
+        tasks.getValue().run();
+
+        verify(jobRepository).delete(first);
+        verify(postProcessingExecutor, times(2)).execute(tasks.capture());
+        assertThat(second.getStatus()).isEqualTo(Status.RUNNING);
+        tasks.getValue().run();
+        assertThat(postProcessingQueue.getStats().finished()).isEqualTo(2);
+        assertThat(postProcessingQueue.getStats().running()).isZero();
+    }
+
+    @Test
+    void dispatch_shouldHoldBackJobsOfRecordingWithRunningJob() {
+        RecordingServiceConfig config = new RecordingServiceConfig();
+        config.getPostProcessing().setMaxParallel(2);
+        postProcessingQueue = new PostProcessingQueue(jobRepository, postProcessingService, executorConfig, config);
+        PostProcessingJob remux = job(1L, Status.PENDING, 0);
+        remux.setType(Type.REMUX_SEGMENT);
+        remux.setFileName("show.ts");
+        remux.setParts("[{\"path\":\"/recordings/show.00000.ts\"}]");
+        PostProcessingJob join = job(2L, Status.PENDING, 0);
+        join.setType(Type.JOIN_SEGMENTS);
+        join.setFileName("show.ts");
+        when(jobRepository.findFirstByStatusOrderByIdAsc(Status.PENDING)).thenReturn(Optional.of(remux)).thenReturn(Optional.of(join));
+        when(jobRepository.findFirstByStatusAndFileNameNotInOrderByIdAsc(Status.PENDING, List.of("show.ts")))
+            .thenReturn(Optional.empty());
+        when(postProcessingService.remuxSegment(any())).thenReturn(true);
+        ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+
+        postProcessingQueue.start();
+
+        // A slot is free, but the join would write the same files as the remux
+        verify(postProcessingExecutor).execute(tasks.capture());
+        assertThat(join.getStatus()).isEqualTo(Status.PENDING);
+
+        tasks.getValue().run();
+
+        verify(postProcessingExecutor, times(2)).execute(tasks.capture());
+        assertThat(join.getStatus()).isEqualTo(Status.RUNNING);
+    }
+
+    @Test
+    void run_shouldKeepFailedJob_withError() {
+        PostProcessingJob job = job(1L, Status.PENDING, 0);
+        when(jobRepository.findFirstByStatusOrderByIdAsc(Status.PENDING)).thenReturn(Optional.of(job)).thenReturn(Optional.empty());
+        when(postProcessingService.finishMkv(anyList(), anyMap(), anyBoolean())).thenThrow(new IllegalStateException("disk full"));
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+
+        postProcessingQueue.start();
+        verify(postProcessingExecutor).execute(task.capture());
+        task.getValue().run();
+
+        assertThat(job.getStatus()).isEqualTo(Status.FAILED);
+        assertThat(job.getLastError()).isEqualTo("disk full");
+        verify(jobRepository, never()).delete(any());
+        assertThat(postProcessingQueue.getStats().failed()).isEqualTo(1);
+    }
+
+    @Test
+    void run_shouldPassPartsAndOverlapsToPostProcessing() throws Exception {
+        Path first = Path.of("/recordings/show.ts");
+        Path second = Path.of("/recordings/show_2.ts");
+        PostProcessingJob job = job(1L, Status.PENDING, 0);
+        job.setParts(PostProcessingQueue.encodeParts(List.of(first, second), Map.of(first, Duration.ofMillis(4500))));
+        when(jobRepository.findFirstByStatusOrderByIdAsc(Status.PENDING)).thenReturn(Optional.of(job)).thenReturn(Optional.empty());
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+
+        postProcessingQueue.start();
+        verify(postProcessingExecutor).execute(task.capture());
+        task.getValue().run();
+
+        verify(postProcessingService).finishMkv(eq(List.of(first, second)), eq(Map.of(first, Duration.ofMillis(4500))), eq(true));
+    }
+
+    @Test
+    void onSegmentClosed_shouldQueueRemuxOfSegment_onlyForMkvRecordings() {
+        Path segment = Path.of("/recordings/show.00002.ts");
+
+        postProcessingQueue.onSegmentClosed(new SegmentClosedEvent(1L, "show.ts", segment, 1, 2, Duration.ofMinutes(5), 1000, true));
+        postProcessingQueue.onSegmentClosed(new SegmentClosedEvent(2L, "other.ts", segment, 1, 2, Duration.ofMinutes(5), 1000, false));
+
+        ArgumentCaptor<PostProcessingJob> saved = ArgumentCaptor.forClass(PostProcessingJob.class);
+        verify(jobRepository).save(saved.capture());
+        assertThat(saved.getValue().getType()).isEqualTo(Type.REMUX_SEGMENT);
+        assertThat(saved.getValue().getFileName()).isEqualTo("show.ts");
+        assertThat(saved.getValue().getParts()).contains("/recordings/show.00002.ts");
+    }
+
+    @Test
+    void run_shouldJoinSegmentsOfSegmentedRecording() throws Exception {
+        Path first = Path.of("/recordings/show.00000.ts");
+        Path last = Path.of("/recordings/show.00001.ts");
+        PostProcessingJob job = job(1L, Status.PENDING, 0);
+        job.setType(Type.JOIN_SEGMENTS);
+        job.setParts(PostProcessingQueue.encodeParts(List.of(first, last), Map.of()));
+        when(jobRepository.findFirstByStatusOrderByIdAsc(Status.PENDING)).thenReturn(Optional.of(job)).thenReturn(Optional.empty());
+        when(postProcessingService.joinSegments(anyList(), anyMap(), anyBoolean())).thenReturn(true);
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+
+        postProcessingQueue.start();
+        verify(postProcessingExecutor).execute(task.capture());
+        task.getValue().run();
+
+        verify(postProcessingService).joinSegments(eq(List.of(first, last)), eq(Map.of()), eq(true));
+        verify(postProcessingService, never()).finishMkv(anyList(), anyMap(), anyBoolean());
+        verify(jobRepository).delete(job);
+    }
+
+    private static PostProcessingJob job(Long id, Status status, int attempts) {
+        PostProcessingJob job = new PostProcessingJob();
+        job.setId(id);
+        job.setType(Type.REMUX_TO_MKV);
+        job.setStatus(status);
+        job.setFileName("show" + id + ".ts");
+        job.setParts("[]");
+        job.setKeepOriginalTs(true);
+        job.setCreatedAt(LocalDateTime.now().minusMinutes(1));
+        job.setAttempts(attempts);
+        return job;
+    }
+}
@@ -0,0 +1,232 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.process.ManagedProcess;
+import me.schickel.recorder.process.ProcessLauncher;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class PostProcessingServiceTest {
+
+    @Mock
+    private ProcessLauncher processLauncher;
+
+    private RecordingServiceConfig config;
+    private PostProcessingService postProcessingService;
+
+    @BeforeEach
+    void setUp() {
+        config = new RecordingServiceConfig();
+        postProcessingService = new PostProcessingService(processLauncher, config);
+    }
+
+    @Test
+    void buildConcatList_shouldQuotePartsAndCutOverlaps() {
+        String list = PostProcessingService.buildConcatList(List.of(Path.of("/recordings/it's on.ts"), Path.of("/recordings/it's on_2.ts")),
+                                                    Map.of(Path.of("/recordings/it's on.ts"), Duration.ofMillis(1_412_345)));
+
+        assertThat(list).isEqualTo("""
+            ffconcat version 1.0
+            file '/recordings/it'\\''s on.ts'
+            outpoint 1412.345
+            file '/recordings/it'\\''s on_2.ts'
+            """);
+    }
+
+    @Test
+    void buildConcatCommand_shouldCopyAllStreamsButDataIntoOneFile() {
+        List<String> command = PostProcessingService.buildConcatCommand(Path.of("/recordings/show.concat.txt"), Path.of("/recordings/show.mkv"));
+
+        assertThat(command).containsSubsequence("-f", "concat", "-safe", "0", "-i", "/recordings/show.concat.txt",
+                                                "-map", "0", "-dn", "-c", "copy", "-y", "/recordings/show.mkv");
+    }
+
+    @Test
+    void parseFormatTime_shouldReadTimeOfContainer() {
+        assertThat(PostProcessingService.parseFormatTime("{\"format\": {\"start_time\": \"1.400000\"}}", "start_time"))
+            .isEqualTo(Duration.ofMillis(1400));
+        assertThat(PostProcessingService.parseFormatTime("{\"format\": {\"duration\": \"N/A\"}}", "duration")).isNull();
+        assertThat(PostProcessingService.parseFormatTime("{\"format\": {}}", "duration")).isNull();
+        assertThat(PostProcessingService.parseFormatTime("not json", "duration")).isNull();
+    }
+
+    @Test
+    void finishMkv_shouldKeepLiveMkv_whenItIsComplete(@TempDir Path recordings) throws Exception {
+        Path ts = Files.writeString(recordings.resolve("show.ts"), "ts");
+        Files.writeString(recordings.resolve("show.live.mkv"), "mkv");
+        probeDurations(ts, "3600.2", "3599.8");
+
+        assertThat(postProcessingService.finishMkv(List.of(ts), Map.of(), false)).isTrue();
+
+        verify(processLauncher, never()).start(any(), any(), any());
+        assertThat(Files.readString(recordings.resolve("show.mkv"))).isEqualTo("mkv");
+        assertThat(recordings.resolve("show.live.mkv")).doesNotExist();
+        assertThat(ts).doesNotExist();
+    }
+
+    @Test
+    void finishMkv_shouldRemuxTs_whenLiveMkvIsIncomplete(@TempDir Path recordings) throws Exception {
+        Path ts = Files.writeString(recordings.resolve("show.ts"), "ts");
+        Files.writeString(recordings.resolve("show.live.mkv"), "mkv");
+        probeDurations(ts, "3600.2", "1200.0");
+        ManagedProcess process = mock(ManagedProcess.class);
+        when(process.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(processLauncher.start(any(), any(), any())).thenReturn(process);
+
+        assertThat(postProcessingService.finishMkv(List.of(ts), Map.of(), true)).isTrue();
+
+        verify(processLauncher).start(eq("show.mkv"), argThat(command -> command.contains(ts.toString())), any());
+        assertThat(recordings.resolve("show.live.mkv")).doesNotExist();
+        assertThat(ts).exists();
+    }
+
+    @Test
+    void concatToMkv_shouldJoinPartsInOnePassAndDeleteThem(@TempDir Path recordings) throws Exception {
+        Path first = Files.writeString(recordings.resolve("show.ts"), "first");
+        Path second = Files.writeString(recordings.resolve("show_2.ts"), "second");
+        ManagedProcess process = mock(ManagedProcess.class);
+        when(process.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(processLauncher.start(any(), any(), any())).thenReturn(process);
+
+        assertThat(postProcessingService.concatToMkv(List.of(first, second), Map.of(), false)).isTrue();
+
+        verify(processLauncher).start(eq("show.mkv"), argThat(command -> command.contains("concat")), any());
+        assertThat(first).doesNotExist();
+        assertThat(second).doesNotExist();
+        assertThat(recordings.resolve("show.concat.txt")).doesNotExist();
+    }
+
+    @Test
+    void concatToMkv_shouldRemuxPartsSeparately_whenJoiningFails(@TempDir Path recordings) throws Exception {
+        Path first = Files.writeString(recordings.resolve("show.ts"), "first");
+        Path second = Files.writeString(recordings.resolve("show_2.ts"), "second");
+        ManagedProcess failed = mock(ManagedProcess.class);
+        when(failed.onExit()).thenReturn(CompletableFuture.completedFuture(1));
+        ManagedProcess remuxed = mock(ManagedProcess.class);
+        when(remuxed.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(processLauncher.start(any(), any(), any())).thenReturn(failed, remuxed);
+
+        assertThat(postProcessingService.concatToMkv(List.of(first, second), Map.of(), true)).isTrue();
+
+        // The failed join and the remux of the first part both write show.mkv
+        ArgumentCaptor<List<String>> commands = ArgumentCaptor.captor();
+        verify(processLauncher, times(2)).start(eq("show.mkv"), commands.capture(), any());
+        verify(processLauncher).start(eq("show_2.mkv"), commands.capture(), any());
+        assertThat(commands.getAllValues().get(0)).contains("concat");
+        assertThat(commands.getAllValues().get(1)).contains(first.toString()).doesNotContain("concat");
+        assertThat(commands.getAllValues().get(2)).contains(second.toString()).doesNotContain("concat");
+        assertThat(first).exists();
+        assertThat(second).exists();
+    }
+
+    @Test
+    void concatToMkv_shouldOnlyDeleteRemainingParts_whenJoinWasInterruptedWhileDeleting(@TempDir Path recordings) throws Exception {
+        Path first = recordings.resolve("show.ts");
+        Path second = Files.writeString(recordings.resolve("show_2.ts"), "second");
+        Files.writeString(recordings.resolve("show.mkv"), "joined");
+
+        assertThat(postProcessingService.concatToMkv(List.of(first, second), Map.of(), false)).isTrue();
+
+        verify(processLauncher, never()).start(any(), any(), any());
+        assertThat(second).doesNotExist();
+        assertThat(recordings.resolve("show.mkv")).exists();
+    }
+
+    @Test
+    void remuxSegment_shouldMoveRemuxedSegmentIntoPlaceWhenDone(@TempDir Path recordings) throws Exception {
+        Path segment = Files.writeString(recordings.resolve("show.00003.ts"), "ts");
+        writeLastArgumentOnStart();
+
+        assertThat(postProcessingService.remuxSegment(segment)).isTrue();
+
+        verify(processLauncher).start(eq("show.00003.ts"), argThat(command -> command.contains(segment.toString())
+                                                                        && Collections.indexOfSubList(command, List.of("-map", "0", "-dn")) >= 0), any());
+        assertThat(Files.readString(recordings.resolve("show.00003.live.mkv"))).isEqualTo("mkv");
+        assertThat(recordings.resolve("show.00003.partial.mkv")).doesNotExist();
+        assertThat(segment).exists();
+    }
+
+    @Test
+    void joinSegments_shouldOnlyRemuxSegmentsLeftOver_andDeleteSegmentsAndManifest(@TempDir Path recordings) throws Exception {
+        Path first = Files.writeString(recordings.resolve("show.00000.ts"), "first");
+        Files.writeString(recordings.resolve("show.00000.live.mkv"), "remuxed while recording");
+        Path last = Files.writeString(recordings.resolve("show.00001.ts"), "last");
+        Path manifest = Files.writeString(recordings.resolve("show.manifest.json"), "{}");
+        writeLastArgumentOnStart();
+
+        assertThat(postProcessingService.joinSegments(List.of(first, last), Map.of(), false)).isTrue();
+
+        verify(processLauncher, never()).start(eq("show.00000.ts"), any(), any());
+        verify(processLauncher).start(eq("show.00001.ts"), any(), any());
+        verify(processLauncher).start(eq("show.mkv"), argThat(command -> command.contains("concat")), any());
+        assertThat(recordings.resolve("show.mkv")).exists();
+        assertThat(first).doesNotExist();
+        assertThat(last).doesNotExist();
+        assertThat(recordings.resolve("show.00000.live.mkv")).doesNotExist();
+        assertThat(recordings.resolve("show.00001.live.mkv")).doesNotExist();
+        assertThat(manifest).doesNotExist();
+    }
+
+    private void writeLastArgumentOnStart() throws Exception {
+        ManagedProcess process = mock(ManagedProcess.class);
+        when(process.onExit()).thenReturn(CompletableFuture.completedFuture(0));
+        when(processLauncher.start(any(), any(), any())).thenAnswer(invocation -> {
+            List<String> command = invocation.getArgument(1);
+            Files.writeString(Path.of(command.get(command.size() - 1)), "mkv");
+            return process;
+        });
+    }
+
+    private void probeDurations(Path ts, String tsSeconds, String liveMkvSeconds) {
+        doReturn("{\"format\": {\"duration\": \"" + tsSeconds + "\"}}")
+            .when(processLauncher).run(eq("ffprobe"), argThat(command -> command.contains(ts.toString())), any());
+        doReturn("{\"format\": {\"duration\": \"" + liveMkvSeconds + "\"}}")
+            .when(processLauncher).run(eq("ffprobe"), argThat(command -> command.contains(PostProcessingService.liveMkvFor(ts).toString())), any());
+    }
+
+    @Test
+    void withLowPriority_shouldPrefixNiceAndIonice() {
+        assumeTrue(PostProcessingService.isOnPath("nice") && PostProcessingService.isOnPath("ionice"));
+
+        List<String> command = postProcessingService.withLowPriority(List.of("ffmpeg", "-i", "show.ts"));
+
+        assertThat(command).containsExactly("nice", "-n", "10", "ionice", "-c", "2", "-n", "7", "ffmpeg", "-i", "show.ts");
+    }
+
+    @Test
+    void withLowPriority_shouldLeaveCommandUnchanged_whenDisabled() {
+        config.getPostProcessing().setNiceness(0);
+        config.getPostProcessing().setIoClass(0);
+
+        assertThat(postProcessingService.withLowPriority(List.of("ffmpeg", "-i", "show.ts"))).containsExactly("ffmpeg", "-i", "show.ts");
+    }
+}
@@ -0,0 +1,65 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.config.RecordingServiceConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ProviderResolverTest {
+
+    private ProviderResolver providerResolver;
+
+    @BeforeEach
+    void setUp() {
+        RecordingServiceConfig.Provider provider = new RecordingServiceConfig.Provider();
+        provider.setName("family");
+        provider.setUrlPrefixes(List.of("http://iptv.example:8080/family/"));
+        provider.setMaxStreams(4);
+        RecordingServiceConfig config = new RecordingServiceConfig();
+        config.setProviders(List.of(provider));
+        providerResolver = new ProviderResolver(1, config);
+    }
+
+    @Test
+    void resolve_shouldUseConfiguredProvider_whenUrlMatchesPrefix() {
+        assertThat(providerResolver.resolve("http://iptv.example:8080/family/secret/123")).isEqualTo("family");
+        assertThat(providerResolver.getMaxStreams("family")).isEqualTo(4);
+    }
+
+    @Test
+    void resolve_shouldKeyByHostAndUser_forXtreamCodesUrls() {
+        assertThat(providerResolver.resolve("http://IPTV.example:8080/live/alice/secret/123.ts")).isEqualTo("iptv.example:8080/alice");
+        assertThat(providerResolver.resolve("http://iptv.example:8080/bob/secret/123")).isEqualTo("iptv.example:8080/bob");
+        assertThat(providerResolver.resolve("http://iptv.example/get.php?username=carol&password=secret")).isEqualTo("iptv.example/carol");
+    }
+
+    @Test
+    void resolve_shouldKeyByHost_whenUrlHasNoCredentials() {
+        assertThat(providerResolver.resolve("https://cdn.example/hls/index.m3u8")).isEqualTo("cdn.example");
+    }
+
+    @Test
+    void resolve_shouldKeyByHost_forOtherPathsWithThreeSegments() {
+        assertThat(providerResolver.resolve("https://cdn.example/hls/ch1/index.m3u8")).isEqualTo("cdn.example");
+        assertThat(providerResolver.resolve("https://cdn.example/live/ch1/index.m3u8")).isEqualTo("cdn.example");
+    }
+
+    @Test
+    void resolve_shouldNeverIncludePassword() {
+        assertThat(providerResolver.resolve("http://iptv.example/live/alice/secret/123.ts")).doesNotContain("secret");
+    }
+
+    @Test
+    void resolve_shouldFallBackToUnknown_forMissingOrInvalidUrls() {
+        assertThat(providerResolver.resolve(null)).isEqualTo(ProviderResolver.UNKNOWN_PROVIDER);
+        assertThat(providerResolver.resolve("not a url")).isEqualTo(ProviderResolver.UNKNOWN_PROVIDER);
+    }
+
+    @Test
+    void getMaxStreams_shouldUseDefault_forUnconfiguredProviders() {
+        assertThat(providerResolver.getMaxStreams("iptv.example/alice")).isEqualTo(1);
+    }
+}
@@ -0,0 +1,64 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.process.FfmpegProgress;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecordingSegmentTest {
+
+    private static final Instant START = Instant.parse("2025-01-01T10:00:00Z");
+
+    private final RecordingSegment segment = new RecordingSegment(Path.of("/recordings/test_2.ts"));
+
+    @Test
+    void attach_shouldReplayFirstOutputAndLatestProgress() {
+        segment.onProgress(progress(0, 0), START);
+        segment.onProgress(progress(100_000, 1), START.plusSeconds(1));
+        segment.onProgress(progress(200_000, 2), START.plusSeconds(2));
+        List<Instant> reportedAt = new ArrayList<>();
+
+        segment.attach((progress, at) -> reportedAt.add(at));
+        segment.onProgress(progress(300_000, 3), START.plusSeconds(3));
+
+        assertThat(reportedAt).containsExactly(START.plusSeconds(1), START.plusSeconds(2), START.plusSeconds(3));
+        assertThat(segment.onFirstOutput()).isCompleted();
+    }
+
+    @Test
+    void onFirstOutput_shouldWaitForData() {
+        segment.onProgress(progress(0, 0), START);
+
+        assertThat(segment.hasOutput()).isFalse();
+        assertThat(segment.onFirstOutput()).isNotDone();
+    }
+
+    @Test
+    void lengthWithoutOverlap_shouldCutAtHandOver_whenSegmentKeptWriting() {
+        segment.onProgress(progress(100_000, 10), START);
+        segment.markHandedOver();
+        segment.onProgress(progress(150_000, 13.5), START.plusSeconds(1));
+
+        assertThat(segment.lengthWithoutOverlap()).isEqualTo(Duration.ofSeconds(10));
+    }
+
+    @Test
+    void lengthWithoutOverlap_shouldKeepWholeSegment_withoutNotableOverlap() {
+        segment.onProgress(progress(100_000, 10), START);
+        assertThat(segment.lengthWithoutOverlap()).isNull();
+
+        segment.markHandedOver();
+        segment.onProgress(progress(101_000, 10.2), START.plusSeconds(1));
+        assertThat(segment.lengthWithoutOverlap()).isNull();
+    }
+
+    private FfmpegProgress progress(long totalSize, double outTimeSeconds) {
+        return new FfmpegProgress(totalSize, (long) (outTimeSeconds * 1_000_000), 800, 1.0, false);
+    }
+}
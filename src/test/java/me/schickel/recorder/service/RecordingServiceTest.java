@@ -1,5 +1,6 @@
 package me.schickel.recorder.service;
 
+import me.schickel.recorder.config.RecordingServiceConfig;
 import me.schickel.recorder.entity.RecordingSchedule;
 import me.schickel.recorder.repository.ScheduleRepository;
 import me.schickel.recorder.util.ExecutorConfig;
@@ -7,14 +8,17 @@ import me.schickel.recorder.util.TimeUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.test.util.ReflectionTestUtils;
 
-import java.time.LocalDateTime;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -27,30 +31,31 @@ class RecordingServiceTest {
     @Mock
     private ExecutorConfig executorConfig;
     @Mock
-    private TimeUtils timeUtils;
-    @Mock
     private FfmpegService ffmpegService;
     @Mock
     private PastRecordingService pastRecordingService;
     @Mock
+    private ScheduleIntervalIndex scheduleIntervalIndex;
+    @Mock
     private ExecutorService executorService;
 
+    private StreamSlotManager streamSlotManager;
     private RecordingService recordingService;
 
     @BeforeEach
     void setUp() {
-        recordingService = new RecordingService(scheduleRepository, executorConfig, timeUtils, ffmpegService, pastRecordingService);
-        ReflectionTestUtils.setField(recordingService, "allowedSimultaneousStreams", 2);
+        ProviderResolver providerResolver = new ProviderResolver(2, new RecordingServiceConfig());
+        streamSlotManager = new StreamSlotManager(providerResolver);
+        recordingService = new RecordingService(scheduleRepository, executorConfig, ffmpegService, pastRecordingService,
+                                                scheduleIntervalIndex, streamSlotManager, providerResolver);
         when(executorConfig.executorService()).thenReturn(executorService);
     }
 
     @Test
     void resumeOngoingRecordings_shouldResumeValidRecordings() {
         RecordingSchedule recording = createRecording("test.mkv");
-        LocalDateTime futureEndTime = LocalDateTime.now().plusHours(1);
-        
-        when(scheduleRepository.findByTriggeredTrue()).thenReturn(List.of(recording));
-        when(timeUtils.parseStringToLocalDateTime(recording.getEndTime())).thenReturn(futureEndTime);
+
+        when(scheduleRepository.findByTriggeredTrueAndEndEpochGreaterThan(anyLong())).thenReturn(List.of(recording));
 
         recordingService.resumeOngoingRecordings();
 
@@ -58,27 +63,21 @@ class RecordingServiceTest {
     }
 
     @Test
-    void resumeOngoingRecordings_shouldSkipExpiredRecordings() {
-        RecordingSchedule recording = createRecording("test.mkv");
-        LocalDateTime pastEndTime = LocalDateTime.now().minusHours(1);
-        
-        when(scheduleRepository.findByTriggeredTrue()).thenReturn(List.of(recording));
-        when(timeUtils.parseStringToLocalDateTime(recording.getEndTime())).thenReturn(pastEndTime);
+    void resumeOngoingRecordings_shouldOnlyQueryRecordingsThatHaveNotEnded() {
+        long before = Instant.now().getEpochSecond();
+        when(scheduleRepository.findByTriggeredTrueAndEndEpochGreaterThan(anyLong())).thenReturn(List.of());
 
         recordingService.resumeOngoingRecordings();
 
+        verify(scheduleRepository).findByTriggeredTrueAndEndEpochGreaterThan(longThat(now -> now >= before));
         verify(executorService, never()).submit(any(Runnable.class));
     }
 
     @Test
-    void triggerUpcomingRecordings_shouldTriggerUpcomingRecordings() {
+    void triggerRecordings_shouldTriggerGivenRecordings() {
         RecordingSchedule recording = createRecording("test.mkv");
-        LocalDateTime startTime = LocalDateTime.now().plusSeconds(15);
-        
-        when(scheduleRepository.findByTriggeredFalse()).thenReturn(List.of(recording));
-        when(timeUtils.parseStringToLocalDateTime(recording.getStartTime())).thenReturn(startTime);
 
-        recordingService.triggerUpcomingRecordings();
+        recordingService.triggerRecordings(List.of(recording));
 
         verify(recording).setTriggered(true);
         verify(scheduleRepository).saveAll(List.of(recording));
@@ -86,59 +85,125 @@ class RecordingServiceTest {
     }
 
     @Test
-    void triggerUpcomingRecordings_shouldLimitSimultaneousStreams() {
+    void triggerRecordings_shouldStartAllDueRecordings_evenBeyondStreamLimit() {
         RecordingSchedule recording1 = createRecording("test1.mkv");
         RecordingSchedule recording2 = createRecording("test2.mkv");
         RecordingSchedule recording3 = createRecording("test3.mkv");
-        LocalDateTime startTime = LocalDateTime.now().plusSeconds(15);
-        
-        when(scheduleRepository.findByTriggeredFalse()).thenReturn(List.of(recording1, recording2, recording3));
-        when(timeUtils.parseStringToLocalDateTime(anyString())).thenReturn(startTime);
 
-        recordingService.triggerUpcomingRecordings();
+        recordingService.triggerRecordings(List.of(recording1, recording2, recording3));
 
-        verify(scheduleRepository).saveAll(argThat(recordings -> ((java.util.Collection<?>) recordings).size() == 2));
-        verify(executorService, times(2)).submit(any(Runnable.class));
+        // The third recording waits for a stream slot instead of being dropped
+        verify(scheduleRepository).saveAll(List.of(recording1, recording2, recording3));
+        verify(executorService, times(3)).submit(any(Runnable.class));
     }
 
     @Test
-    void triggerUpcomingRecordings_shouldHandleOngoingRecordings() {
-        RecordingSchedule recording = createRecording("test.mkv");
-        LocalDateTime startTime = LocalDateTime.now().minusMinutes(30);
-        LocalDateTime endTime = LocalDateTime.now().plusMinutes(30);
-        
-        when(scheduleRepository.findByTriggeredFalse()).thenReturn(List.of(recording));
-        when(timeUtils.parseStringToLocalDateTime(recording.getStartTime())).thenReturn(startTime);
-        when(timeUtils.parseStringToLocalDateTime(recording.getEndTime())).thenReturn(endTime);
+    void triggeredRecording_shouldHoldStreamSlotWhileRecording() {
+        RecordingSchedule recording = createRecording(1L, "test.mkv", Instant.now().plusSeconds(3600));
+        when(scheduleRepository.existsById(1L)).thenReturn(true);
+        when(ffmpegService.recordingHandler(recording)).thenAnswer(invocation -> {
+            assertThat(streamSlotManager.getOccupied()).isEqualTo(1);
+            return "COMPLETED";
+        });
+
+        recordingService.triggerRecordings(List.of(recording));
+        submittedTask().run();
+
+        verify(ffmpegService).recordingHandler(recording);
+        assertThat(streamSlotManager.getOccupied()).isZero();
+        verify(pastRecordingService, never()).saveRecordingHistory(any(), any());
+    }
 
-        recordingService.triggerUpcomingRecordings();
+    @Test
+    void triggeredRecording_shouldBeSkipped_whenNoSlotFreesUpBeforeItsEnd() {
+        streamSlotManager.acquire("provider.test", 100L, Duration.ZERO);
+        streamSlotManager.acquire("provider.test", 101L, Duration.ZERO);
+        RecordingSchedule recording = createRecording(1L, "test.mkv", Instant.now().minusSeconds(1));
+        when(scheduleRepository.existsById(1L)).thenReturn(true);
+
+        recordingService.triggerRecordings(List.of(recording));
+        submittedTask().run();
+
+        verify(ffmpegService, never()).recordingHandler(any());
+        verify(pastRecordingService).saveRecordingHistory(recording, "SKIPPED_NO_STREAM_SLOT");
+        verify(scheduleRepository).deleteById(1L);
+        verify(scheduleIntervalIndex).remove(1L);
+    }
 
-        verify(recording).setTriggered(true);
-        verify(scheduleRepository).saveAll(List.of(recording));
-        verify(executorService).submit(any(Runnable.class));
+    @Test
+    void triggeredRecording_shouldNotStart_whenDeletedWhileWaitingForSlot() {
+        RecordingSchedule recording = createRecording(1L, "test.mkv", Instant.now().plusSeconds(3600));
+        when(scheduleRepository.existsById(1L)).thenReturn(false);
+
+        recordingService.triggerRecordings(List.of(recording));
+        submittedTask().run();
+
+        verify(ffmpegService, never()).recordingHandler(any());
+        assertThat(streamSlotManager.getOccupied()).isZero();
+    }
+
+    @Test
+    void resumedRecording_shouldOccupyStreamSlot() {
+        RecordingSchedule recording = createRecording(1L, "test.mkv", Instant.now().plusSeconds(3600));
+        when(scheduleRepository.findByTriggeredTrueAndEndEpochGreaterThan(anyLong())).thenReturn(List.of(recording));
+        when(scheduleRepository.existsById(1L)).thenReturn(true);
+        when(ffmpegService.recordingHandler(recording)).thenAnswer(invocation -> {
+            assertThat(streamSlotManager.getOccupied()).isEqualTo(1);
+            return "FAILED";
+        });
+
+        recordingService.resumeOngoingRecordings();
+        submittedTask().run();
+
+        verify(pastRecordingService).saveRecordingHistory(recording, "FAILED");
+        assertThat(streamSlotManager.getOccupied()).isZero();
+    }
+
+    @Test
+    void forceStopRecording_shouldLeaveSlotToRecordingThread_untilItEnded() {
+        RecordingSchedule recording = createRecording(1L, "test.mkv", Instant.now().plusSeconds(3600));
+        when(recording.isTriggered()).thenReturn(true);
+        when(scheduleRepository.findById(1L)).thenReturn(Optional.of(recording));
+        when(scheduleRepository.existsById(1L)).thenReturn(true);
+        when(ffmpegService.recordingHandler(recording)).thenAnswer(invocation -> {
+            recordingService.forceStopRecording(1L);
+            // Still closing its connections
+            assertThat(streamSlotManager.getOccupied()).isEqualTo(1);
+            return "COMPLETED";
+        });
+
+        recordingService.triggerRecordings(List.of(recording));
+        submittedTask().run();
+
+        verify(ffmpegService).stopRecording(1L);
+        verify(pastRecordingService).saveRecordingHistory(recording, "STOPPED_BY_USER");
+        assertThat(streamSlotManager.getOccupied()).isZero();
+    }
+
+    @Test
+    void triggerRecordings_shouldDoNothing_whenNoRecordingsAreDue() {
+        recordingService.triggerRecordings(List.of());
+
+        verify(scheduleRepository, never()).saveAll(any());
+        verify(executorService, never()).submit(any(Runnable.class));
     }
 
     @Test
     void removeTriggeredRecordings_shouldRemoveExpiredRecordings() {
         RecordingSchedule recording = createRecording("test.mkv");
-        LocalDateTime pastEndTime = LocalDateTime.now().minusHours(1);
-        
-        when(scheduleRepository.findByTriggeredTrue()).thenReturn(List.of(recording));
-        when(timeUtils.parseStringToLocalDateTime(recording.getEndTime())).thenReturn(pastEndTime);
+
+        when(scheduleRepository.findByTriggeredTrueAndEndEpochLessThan(anyLong())).thenReturn(List.of(recording));
 
         recordingService.removeTriggeredRecordings();
 
         verify(pastRecordingService).saveRecordingHistory(recording, "COMPLETED");
+        verify(scheduleIntervalIndex).remove(recording.getId());
         verify(scheduleRepository).deleteAll(List.of(recording));
     }
 
     @Test
     void removeTriggeredRecordings_shouldKeepActiveRecordings() {
-        RecordingSchedule recording = createRecording("test.mkv");
-        LocalDateTime futureEndTime = LocalDateTime.now().plusHours(1);
-        
-        when(scheduleRepository.findByTriggeredTrue()).thenReturn(List.of(recording));
-        when(timeUtils.parseStringToLocalDateTime(recording.getEndTime())).thenReturn(futureEndTime);
+        when(scheduleRepository.findByTriggeredTrueAndEndEpochLessThan(anyLong())).thenReturn(List.of());
 
         recordingService.removeTriggeredRecordings();
 
@@ -152,4 +217,18 @@ class RecordingServiceTest {
         when(recording.getEndTime()).thenReturn("12:00 01/01/2025");
         return recording;
     }
+
+    private RecordingSchedule createRecording(Long id, String fileName, Instant endTime) {
+        RecordingSchedule recording = createRecording(fileName);
+        when(recording.getId()).thenReturn(id);
+        when(recording.getM3uUrl()).thenReturn("http://provider.test/stream" + id);
+        when(recording.getEndTime()).thenReturn(TimeUtils.formatEpochSecond(endTime.getEpochSecond()));
+        return recording;
+    }
+
+    private Runnable submittedTask() {
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(executorService).submit(task.capture());
+        return task.getValue();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.repository.ScheduleRepository;
+import me.schickel.recorder.util.TimeUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class RecordingTriggerServiceTest {
+
+    @Mock
+    private ScheduleRepository scheduleRepository;
+    @Mock
+    private RecordingService recordingService;
+    @Mock
+    private TimeUtils timeUtils;
+    @Mock
+    private StreamWarmupService streamWarmupService;
+
+    private RecordingTriggerService triggerService;
+
+    @BeforeEach
+    void setUp() {
+        triggerService = new RecordingTriggerService(scheduleRepository, recordingService, timeUtils, streamWarmupService);
+        when(streamWarmupService.getLeadTime()).thenReturn(Duration.ZERO);
+        // Schedules in this test use ISO timestamps so that start times can have sub-minute precision
+        when(timeUtils.parseStringToLocalDateTime(anyString()))
+            .thenAnswer(invocation -> LocalDateTime.parse(invocation.getArgument(0)));
+    }
+
+    @AfterEach
+    void tearDown() {
+        triggerService.stop();
+    }
+
+    @Test
+    void schedule_shouldIgnoreUnsavedSchedules() {
+        RecordingSchedule schedule = createSchedule(null, LocalDateTime.now().plusHours(1));
+
+        triggerService.schedule(schedule);
+
+        assertThat(triggerService.pendingCount()).isZero();
+    }
+
+    @Test
+    void schedule_shouldReplaceExistingTrigger() {
+        triggerService.schedule(createSchedule(1L, LocalDateTime.now().plusHours(1)));
+        triggerService.schedule(createSchedule(1L, LocalDateTime.now().plusHours(2)));
+
+        assertThat(triggerService.pendingCount()).isEqualTo(1);
+    }
+
+    @Test
+    void schedule_shouldRemoveTrigger_whenScheduleIsAlreadyTriggered() {
+        RecordingSchedule schedule = createSchedule(1L, LocalDateTime.now().plusHours(1));
+        triggerService.schedule(schedule);
+
+        schedule.setTriggered(true);
+        triggerService.schedule(schedule);
+
+        assertThat(triggerService.pendingCount()).isZero();
+    }
+
+    @Test
+    void schedule_shouldSkipSchedulesThatAlreadyEnded() {
+        RecordingSchedule schedule = createSchedule(1L, LocalDateTime.now().minusHours(2));
+
+        triggerService.schedule(schedule);
+
+        assertThat(triggerService.pendingCount()).isZero();
+    }
+
+    @Test
+    void cancel_shouldRemovePendingTrigger() {
+        triggerService.schedule(createSchedule(1L, LocalDateTime.now().plusHours(1)));
+
+        triggerService.cancel(1L);
+
+        assertThat(triggerService.pendingCount()).isZero();
+    }
+
+    @Test
+    void start_shouldFireRecordingAtItsStartTime() {
+        RecordingSchedule schedule = createSchedule(1L, LocalDateTime.now().plusNanos(300_000_000));
+        when(scheduleRepository.findByTriggeredFalseAndEndEpochGreaterThanOrderByStartEpochAsc(anyLong())).thenReturn(List.of(schedule));
+        when(scheduleRepository.findById(1L)).thenReturn(Optional.of(schedule));
+
+        triggerService.start();
+
+        verify(recordingService, timeout(2000)).triggerRecordings(List.of(schedule));
+        assertThat(triggerService.pendingCount()).isZero();
+        assertThat(triggerService.getStats().fired()).isEqualTo(1);
+        assertThat(triggerService.getStats().maxLatenessMillis()).isLessThan(1000);
+        // The tick is recorded once the dispatcher returns from triggering
+        await().atMost(1, TimeUnit.SECONDS).until(() -> triggerService.getStats().ticks() == 1);
+    }
+
+    @Test
+    void start_shouldFireOnTime_withTenThousandFutureSchedules() {
+        List<RecordingSchedule> schedules = new ArrayList<>();
+        LocalDateTime now = LocalDateTime.now();
+        for (long id = 1; id <= 10_000; id++) {
+            schedules.add(createSchedule(id, now.plusMinutes(10 + id)));
+        }
+        RecordingSchedule due = createSchedule(10_001L, now.plusNanos(500_000_000));
+        schedules.add(due);
+        when(scheduleRepository.findByTriggeredFalseAndEndEpochGreaterThanOrderByStartEpochAsc(anyLong())).thenReturn(schedules);
+        when(scheduleRepository.findById(10_001L)).thenReturn(Optional.of(due));
+
+        triggerService.start();
+
+        verify(recordingService, timeout(3000)).triggerRecordings(List.of(due));
+        assertThat(triggerService.pendingCount()).isEqualTo(10_000);
+        assertThat(triggerService.getStats().maxLatenessMillis()).isLessThan(1000);
+    }
+
+    @Test
+    void start_shouldNotFireCancelledSchedules() throws InterruptedException {
+        RecordingSchedule schedule = createSchedule(1L, LocalDateTime.now().plusNanos(300_000_000));
+        when(scheduleRepository.findByTriggeredFalseAndEndEpochGreaterThanOrderByStartEpochAsc(anyLong())).thenReturn(List.of(schedule));
+
+        triggerService.start();
+        triggerService.cancel(1L);
+        Thread.sleep(600);
+
+        verify(recordingService, never()).triggerRecordings(any());
+        verify(scheduleRepository, never()).findById(anyLong());
+    }
+
+    @Test
+    void start_shouldWarmUpStreamLeadTimeBeforeStart() {
+        when(streamWarmupService.getLeadTime()).thenReturn(Duration.ofMinutes(1));
+        RecordingSchedule schedule = createSchedule(1L, LocalDateTime.now().plusSeconds(60).plusNanos(300_000_000));
+        when(scheduleRepository.findByTriggeredFalseAndEndEpochGreaterThanOrderByStartEpochAsc(anyLong())).thenReturn(List.of(schedule));
+        when(scheduleRepository.findById(1L)).thenReturn(Optional.of(schedule));
+
+        triggerService.start();
+
+        verify(streamWarmupService, timeout(2000)).warmUp(schedule);
+        verify(recordingService, never()).triggerRecordings(any());
+        assertThat(triggerService.pendingCount()).isEqualTo(1);
+        assertThat(triggerService.getStats().ticks()).isZero();
+    }
+
+    @Test
+    void schedule_shouldWarmUpRightAway_whenStartIsWithinLeadTime() {
+        when(streamWarmupService.getLeadTime()).thenReturn(Duration.ofMinutes(1));
+        RecordingSchedule schedule = createSchedule(1L, LocalDateTime.now().plusSeconds(30));
+
+        triggerService.schedule(schedule);
+
+        verify(streamWarmupService).warmUp(schedule);
+    }
+
+    @Test
+    void cancel_shouldCancelWarmup() {
+        when(streamWarmupService.getLeadTime()).thenReturn(Duration.ofMinutes(1));
+        triggerService.schedule(createSchedule(1L, LocalDateTime.now().plusHours(1)));
+
+        triggerService.cancel(1L);
+
+        verify(streamWarmupService).cancel(1L);
+    }
+
+    private RecordingSchedule createSchedule(Long id, LocalDateTime startTime) {
+        RecordingSchedule schedule = new RecordingSchedule();
+        schedule.setId(id);
+        schedule.setFileName("recording" + id + ".ts");
+        schedule.setStartTime(startTime.toString());
+        schedule.setEndTime(startTime.plusHours(1).toString());
+        return schedule;
+    }
+}
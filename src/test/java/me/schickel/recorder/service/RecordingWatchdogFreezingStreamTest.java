@@ -0,0 +1,138 @@
+package me.schickel.recorder.service;
+
+import com.sun.net.httpserver.HttpServer;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.process.FfmpegProgressParser;
+import me.schickel.recorder.process.ManagedProcess;
+import me.schickel.recorder.process.ProcessLauncher;
+import me.schickel.recorder.process.ProcessOutputPump;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Records from a local HTTP server that serves a few seconds of a transport stream in real time and then
+ * stops sending without closing the connection. Needs ffmpeg on the PATH.
+ */
+@EnabledIf("ffmpegAvailable")
+class RecordingWatchdogFreezingStreamTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordingWatchdogFreezingStreamTest.class);
+
+    private static final int STREAM_SECONDS = 20;
+    private static final int SECONDS_BEFORE_FREEZE = 6;
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private ProcessOutputPump processOutputPump;
+    private RecordingWatchdog watchdog;
+    private final CountDownLatch releaseFrozenConnection = new CountDownLatch(1);
+    private volatile long frozenAtNanos;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path source = tempDir.resolve("source.ts");
+        Process generator = new ProcessBuilder("ffmpeg", "-hide_banner", "-loglevel", "error",
+                                               "-f", "lavfi", "-i", "testsrc=size=320x240:rate=25",
+                                               "-t", String.valueOf(STREAM_SECONDS), "-c:v", "mpeg2video", "-b:v", "500k",
+                                               "-f", "mpegts", source.toString())
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        assertThat(generator.waitFor(60, TimeUnit.SECONDS)).isTrue();
+        byte[] stream = Files.readAllBytes(source);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/stream", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "video/mp2t");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                serveInRealTimeThenFreeze(stream, body);
+            }
+        });
+        server.start();
+
+        RecordingServiceConfig config = new RecordingServiceConfig();
+        config.getWatchdog().setStallTimeout(Duration.ofSeconds(3));
+        config.getWatchdog().setStartupGracePeriod(Duration.ofSeconds(15));
+        watchdog = new RecordingWatchdog(config);
+        watchdog.start();
+        processOutputPump = new ProcessOutputPump();
+    }
+
+    @AfterEach
+    void tearDown() {
+        releaseFrozenConnection.countDown();
+        server.stop(0);
+        watchdog.stop();
+        processOutputPump.stop();
+    }
+
+    @Test
+    void watchdog_shouldRestartSegmentWithinSeconds_whenUpstreamFreezes() throws Exception {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/stream";
+        Path output = tempDir.resolve("recording.ts");
+        ProcessLauncher processLauncher = new ProcessLauncher(processOutputPump);
+
+        ManagedProcess process = processLauncher.start("recording.ts", FfmpegService.buildRecordingCommand(url, FfmpegService.DEFAULT_ANALYZE_DURATION, "60", output),
+                                                       new FfmpegProgressParser(progress -> watchdog.onProgress(1L, progress)));
+        watchdog.watch(1L, "recording.ts", process);
+        process.onExit().get(30, TimeUnit.SECONDS);
+        long exitedAtNanos = System.nanoTime();
+        watchdog.endSegment(1L);
+
+        long secondsFrozen = TimeUnit.NANOSECONDS.toSeconds(exitedAtNanos - frozenAtNanos);
+        RecordingWatchdog.RecordingHealth health = watchdog.finish(1L);
+        logger.info("ffmpeg stopped {} s after the upstream froze, {} s lost", secondsFrozen, String.format("%.1f", health.lostSeconds()));
+
+        assertThat(health.stalls()).isEqualTo(1);
+        // Well before ffmpeg's own 15 s read timeout
+        assertThat(secondsFrozen).isLessThan(8);
+        assertThat(Files.size(output)).isPositive();
+    }
+
+    private void serveInRealTimeThenFreeze(byte[] stream, OutputStream body) throws IOException {
+        int bytesPerSecond = stream.length / STREAM_SECONDS;
+        int chunk = bytesPerSecond / 10;
+        try {
+            for (int sent = 0; sent < bytesPerSecond * SECONDS_BEFORE_FREEZE; sent += chunk) {
+                body.write(stream, sent, chunk);
+                body.flush();
+                Thread.sleep(100);
+            }
+            frozenAtNanos = System.nanoTime();
+            releaseFrozenConnection.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static boolean ffmpegAvailable() {
+        try {
+            Process process = new ProcessBuilder("ffmpeg", "-version")
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            return process.waitFor(10, TimeUnit.SECONDS) && process.exitValue() == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+}
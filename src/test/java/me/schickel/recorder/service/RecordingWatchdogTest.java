@@ -0,0 +1,217 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.process.FfmpegProgress;
+import me.schickel.recorder.process.ManagedProcess;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class RecordingWatchdogTest {
+
+    private static final Instant START = Instant.parse("2025-01-01T10:00:00Z");
+
+    @Mock
+    private ManagedProcess process;
+
+    private RecordingWatchdog watchdog;
+
+    @BeforeEach
+    void setUp() {
+        RecordingServiceConfig config = new RecordingServiceConfig();
+        config.getWatchdog().setStallTimeout(Duration.ofSeconds(5));
+        config.getWatchdog().setStartupGracePeriod(Duration.ofSeconds(20));
+        config.getWatchdog().setMinSpeed(0.5);
+        config.getWatchdog().setSpeedWindow(Duration.ofSeconds(10));
+        watchdog = new RecordingWatchdog(config);
+        watchdog.watch(1L, "test.ts", process, START);
+    }
+
+    @Test
+    void check_shouldLeaveHealthyRecordingAlone() {
+        for (int second = 1; second <= 30; second++) {
+            watchdog.onProgress(1L, progress(second * 100_000L, second), at(second));
+            watchdog.check(at(second));
+        }
+
+        verify(process, never()).stop(any());
+        assertThat(watchdog.getHealth(1L)).hasValueSatisfying(health -> assertThat(health.stalls()).isZero());
+    }
+
+    @Test
+    void onProgress_shouldKeepOnlySamplesOfSpeedWindow_withoutStallCheck() {
+        for (int second = 1; second <= 300; second++) {
+            watchdog.onProgress(1L, progress(second * 100_000L, second), at(second));
+        }
+
+        // The 10s window plus the reference sample at its start
+        assertThat(watchdog.bufferedSamples(1L)).isEqualTo(11);
+    }
+
+    @Test
+    void check_shouldStopSegment_whenOutputSizeStaysFlat() {
+        watchdog.onProgress(1L, progress(100_000, 1), at(1));
+        watchdog.onProgress(1L, progress(100_000, 1), at(4));
+        watchdog.check(at(5));
+        verify(process, never()).stop(any());
+
+        watchdog.onProgress(1L, progress(100_000, 1), at(6));
+        watchdog.check(at(7));
+
+        verify(process, timeout(1000)).stop(any());
+        assertThat(watchdog.getHealth(1L).orElseThrow().stalls()).isEqualTo(1);
+    }
+
+    @Test
+    void check_shouldStopSegment_whenSpeedDropsFarBelowRealTime() {
+        for (int second = 1; second <= 10; second++) {
+            watchdog.onProgress(1L, progress(second * 100_000L, second), at(second));
+        }
+        // Data still trickles in, but only a tenth of real time
+        for (int second = 11; second <= 21; second++) {
+            watchdog.onProgress(1L, progress(second * 100_000L, 10 + (second - 10) * 0.1), at(second));
+            watchdog.check(at(second));
+        }
+
+        verify(process, timeout(1000)).stop(any());
+    }
+
+    @Test
+    void check_shouldStopSegment_whenNothingWasWrittenAfterStartupGracePeriod() {
+        watchdog.check(at(19));
+        verify(process, never()).stop(any());
+
+        watchdog.check(at(21));
+
+        verify(process, timeout(1000)).stop(any());
+    }
+
+    @Test
+    void onProgress_shouldReportLostSeconds_whenNextSegmentReceivesData() {
+        watchdog.onProgress(1L, progress(100_000, 1), at(1));
+        watchdog.check(at(7));
+        watchdog.endSegment(1L);
+
+        watchdog.watch(1L, "test.ts", process, at(8));
+        watchdog.onProgress(1L, progress(50_000, 1), at(10));
+
+        RecordingWatchdog.RecordingHealth health = watchdog.finish(1L, at(20));
+        assertThat(health.segments()).isEqualTo(2);
+        assertThat(health.restarts()).isEqualTo(1);
+        assertThat(health.stalls()).isEqualTo(1);
+        assertThat(health.lostSeconds()).isEqualTo(9.0);
+        assertThat(health.outputBytes()).isEqualTo(150_000);
+    }
+
+    @Test
+    void finish_shouldCountOpenGap_whenRecordingNeverRecovered() {
+        watchdog.onProgress(1L, progress(100_000, 1), at(1));
+        watchdog.check(at(7));
+        watchdog.endSegment(1L);
+
+        RecordingWatchdog.RecordingHealth health = watchdog.finish(1L, at(31));
+
+        assertThat(health.lostSeconds()).isEqualTo(30.0);
+    }
+
+    @Test
+    void finish_shouldNotCountLostTime_forRecordingEndingNormally() {
+        watchdog.onProgress(1L, progress(100_000, 1), at(1));
+        watchdog.onProgress(1L, progress(200_000, 2), at(2));
+        watchdog.endSegment(1L);
+
+        RecordingWatchdog.RecordingHealth health = watchdog.finish(1L, at(3));
+
+        assertThat(health.lostSeconds()).isZero();
+        assertThat(health.restarts()).isZero();
+        assertThat(watchdog.getHealth(1L)).isEmpty();
+    }
+
+    @Test
+    void check_shouldStartReplacementOnce_beforeStoppingStalledSegment() {
+        Runnable startReplacement = mock(Runnable.class);
+        watchdog.watch(1L, "test.ts", process, startReplacement, START);
+        watchdog.onProgress(1L, progress(100_000, 1), at(1));
+
+        watchdog.check(at(4));
+        verify(startReplacement, never()).run();
+
+        watchdog.check(at(5));
+        watchdog.check(at(6));
+        verify(startReplacement, timeout(1000)).run();
+        verify(process, never()).stop(any());
+
+        watchdog.check(at(7));
+        verify(process, timeout(1000)).stop(any());
+        verify(startReplacement, times(1)).run();
+    }
+
+    @Test
+    void onProgress_shouldCountNoLostTime_whenReplacementOverlappedPreviousSegment() {
+        watchdog.onProgress(1L, progress(100_000, 1), at(1));
+        watchdog.onProgress(1L, progress(200_000, 2), at(5));
+        watchdog.endSegment(1L);
+
+        // The replacement wrote its first data at 4s, before the previous segment was retired
+        watchdog.watch(1L, "test_2.ts", process, at(6));
+        watchdog.onProgress(1L, progress(50_000, 1), at(4));
+
+        RecordingWatchdog.RecordingHealth health = watchdog.finish(1L, at(10));
+        assertThat(health.lostSeconds()).isZero();
+        assertThat(health.gapSeconds()).containsExactly(0.0);
+    }
+
+    @Test
+    void check_shouldTolerateOutputInterval_ofSourceWritingOneMediaSegmentAtATime() {
+        ManagedProcess hlsSession = mock(ManagedProcess.class);
+        watchdog.watch(2L, "hls.ts", hlsSession, null, Duration.ofSeconds(10), START);
+        // One 10 second segment every 10 seconds, longer than the stall timeout and the speed window
+        for (int second = 10; second <= 70; second += 10) {
+            watchdog.onProgress(2L, progress(second * 100_000L, second), at(second));
+            for (int check = second; check < second + 10; check++) {
+                watchdog.check(at(check));
+            }
+        }
+        verify(hlsSession, never()).stop(any());
+
+        // Flat for longer than the interval plus the stall timeout
+        watchdog.check(at(86));
+
+        verify(hlsSession, timeout(1000)).stop(any());
+    }
+
+    @Test
+    void reportLoss_shouldCountLostTime_withoutGapBetweenSegments() {
+        watchdog.onProgress(1L, progress(100_000, 1), at(1));
+        watchdog.reportLoss(1L, Duration.ofSeconds(12));
+        watchdog.onProgress(1L, progress(200_000, 2), at(2));
+
+        RecordingWatchdog.RecordingHealth health = watchdog.finish(1L, at(3));
+
+        assertThat(health.lostSeconds()).isEqualTo(12.0);
+        assertThat(health.gapSeconds()).containsExactly(12.0);
+        assertThat(health.restarts()).isZero();
+    }
+
+    private FfmpegProgress progress(long totalSize, double outTimeSeconds) {
+        return new FfmpegProgress(totalSize, (long) (outTimeSeconds * 1_000_000), 800, 1.0, false);
+    }
+
+    private Instant at(int second) {
+        return START.plusSeconds(second);
+    }
+}
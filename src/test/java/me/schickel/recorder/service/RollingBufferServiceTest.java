@@ -0,0 +1,86 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.config.RecordingServiceConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class RollingBufferServiceTest {
+
+    private static final long UNLIMITED = Long.MAX_VALUE;
+
+    @Mock
+    private StreamIngest streamIngest;
+    @Mock
+    private ChannelManagementService channelManagementService;
+    @Mock
+    private StreamSlotManager streamSlotManager;
+
+    private RecordingServiceConfig config;
+    private RollingBufferService rollingBufferService;
+
+    @BeforeEach
+    void setUp() {
+        config = new RecordingServiceConfig();
+        rollingBufferService = new RollingBufferService(config, streamIngest, channelManagementService, streamSlotManager,
+                                                        new ProviderResolver(2, config));
+    }
+
+    @Test
+    void capacityPerChannel_shouldHoldDurationAtBitRate() {
+        // 5 minutes at 8 Mbit/s are 300 MB
+        assertThat(RollingBufferService.capacityPerChannel(config.getRollingBuffer(), 1, UNLIMITED)).isEqualTo(1_595_745);
+    }
+
+    @Test
+    void capacityPerChannel_shouldShareMemoryBudgetBetweenChannels() {
+        // 512 MB for 4 channels, less the marks of each one
+        assertThat(RollingBufferService.capacityPerChannel(config.getRollingBuffer(), 4, UNLIMITED)).isEqualTo(713_872);
+    }
+
+    @Test
+    void capacityPerChannel_shouldStayWithinAvailableDirectMemory() {
+        assertThat(RollingBufferService.capacityPerChannel(config.getRollingBuffer(), 2, 10L * 1024 * 1024)).isEqualTo(27_836);
+        assertThat(RollingBufferService.capacityPerChannel(config.getRollingBuffer(), 2, 0)).isZero();
+    }
+
+    @Test
+    void start_shouldSkipUnknownChannelsAndHlsStreams() {
+        config.getRollingBuffer().setEnabled(true);
+        config.getRollingBuffer().setChannels(List.of("Gone", "Sports"));
+        when(channelManagementService.getUrlByName("Gone")).thenThrow(new IllegalArgumentException("Channel not found: Gone"));
+        when(channelManagementService.getUrlByName("Sports")).thenReturn("http://provider.test/sports/index.m3u8");
+
+        rollingBufferService.start();
+
+        assertThat(rollingBufferService.getReservedBytes()).isZero();
+        assertThat(rollingBufferService.getPinnedSlots("provider.test", null)).isZero();
+        assertThat(rollingBufferService.open("http://provider.test/sports/index.m3u8", LocalDateTime.now().minusMinutes(1), "show.ts"))
+            .isEmpty();
+        verify(streamSlotManager, never()).acquireShared(any(), any(), any(), any());
+    }
+
+    @Test
+    void start_shouldDoNothing_whenDisabled() {
+        config.getRollingBuffer().setChannels(List.of("News"));
+
+        rollingBufferService.start();
+
+        verify(channelManagementService, never()).getUrlByName(any());
+    }
+}
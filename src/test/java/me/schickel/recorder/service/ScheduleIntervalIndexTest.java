@@ -0,0 +1,144 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.repository.ScheduleRepository;
+import me.schickel.recorder.util.TimeUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ScheduleIntervalIndexTest {
+
+    private static final String PROVIDER = "provider.test";
+
+    @Mock
+    private ScheduleRepository scheduleRepository;
+
+    private ScheduleIntervalIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new ScheduleIntervalIndex(scheduleRepository, new ProviderResolver(1, new RecordingServiceConfig()));
+    }
+
+    @Test
+    void load_shouldIndexAllStoredSchedules() {
+        when(scheduleRepository.findAll()).thenReturn(List.of(
+            createSchedule(1L, "10:00 01/01/2025", "11:00 01/01/2025"),
+            createSchedule(2L, "12:00 01/01/2025", "13:00 01/01/2025")));
+
+        index.load();
+
+        assertThat(index.size()).isEqualTo(2);
+    }
+
+    @Test
+    void findOverlapping_shouldExcludeGivenSchedule() {
+        index.put(createSchedule(1L, "10:00 01/01/2025", "11:00 01/01/2025"));
+
+        assertThat(index.findOverlapping(PROVIDER, epoch("10:30 01/01/2025"), epoch("10:45 01/01/2025"), 1L)).isEmpty();
+        assertThat(index.findOverlapping(PROVIDER, epoch("10:30 01/01/2025"), epoch("10:45 01/01/2025"), null)).hasSize(1);
+    }
+
+    @Test
+    void findOversubscribedWindows_shouldReturnNothing_whenPeakStaysWithinCapacity() {
+        index.put(createSchedule(1L, "10:00 01/01/2025", "11:00 01/01/2025"));
+        index.put(createSchedule(2L, "11:00 01/01/2025", "12:00 01/01/2025"));
+
+        List<ScheduleIntervalIndex.Window> windows =
+            index.findOversubscribedWindows(PROVIDER, epoch("10:30 01/01/2025"), epoch("11:30 01/01/2025"), null, 2);
+
+        assertThat(windows).isEmpty();
+    }
+
+    @Test
+    void findOversubscribedWindows_shouldReturnExactWindowsAbovePeak() {
+        index.put(createSchedule(1L, "09:00 01/01/2025", "12:00 01/01/2025"));
+        index.put(createSchedule(2L, "10:00 01/01/2025", "10:30 01/01/2025"));
+        index.put(createSchedule(3L, "11:00 01/01/2025", "13:00 01/01/2025"));
+        index.put(createSchedule(4L, "11:15 01/01/2025", "11:45 01/01/2025"));
+
+        List<ScheduleIntervalIndex.Window> windows =
+            index.findOversubscribedWindows(PROVIDER, epoch("09:30 01/01/2025"), epoch("12:30 01/01/2025"), null, 2);
+
+        assertThat(windows).hasSize(2);
+        assertThat(windows.get(0).start()).isEqualTo(epoch("10:00 01/01/2025"));
+        assertThat(windows.get(0).end()).isEqualTo(epoch("10:30 01/01/2025"));
+        assertThat(windows.get(0).peakConcurrency()).isEqualTo(3);
+        assertThat(windows.get(1).start()).isEqualTo(epoch("11:00 01/01/2025"));
+        assertThat(windows.get(1).end()).isEqualTo(epoch("12:00 01/01/2025"));
+        assertThat(windows.get(1).peakConcurrency()).isEqualTo(4);
+        assertThat(windows.get(1).fileNames()).containsExactly("schedule1", "schedule3", "schedule4");
+    }
+
+    @Test
+    void findOversubscribedWindows_shouldOnlyCountSchedulesOfSameProvider() {
+        index.put(createSchedule(1L, "10:00 01/01/2025", "11:00 01/01/2025"));
+        RecordingSchedule otherProvider = createSchedule(2L, "10:00 01/01/2025", "11:00 01/01/2025");
+        otherProvider.setM3uUrl("http://other.test/live/user/pass/1.ts");
+        index.put(otherProvider);
+
+        assertThat(index.findOversubscribedWindows(PROVIDER, epoch("10:00 01/01/2025"), epoch("11:00 01/01/2025"), null, 2)).isEmpty();
+        assertThat(index.findOversubscribedWindows("other.test/user", epoch("10:00 01/01/2025"), epoch("11:00 01/01/2025"), null, 1))
+            .hasSize(1);
+    }
+
+    @Test
+    void findOversubscribedWindows_shouldCountSchedulesSharingConnectionOnce() {
+        String url = "http://" + PROVIDER + "/channel7";
+        RecordingSchedule evening = createSchedule(1L, "18:00 01/01/2025", "23:00 01/01/2025");
+        evening.setM3uUrl(url);
+        evening.setEngine(RecordingSchedule.Engine.JAVA);
+        RecordingSchedule news = createSchedule(2L, "19:00 01/01/2025", "19:30 01/01/2025");
+        news.setM3uUrl(url);
+        news.setEngine(RecordingSchedule.Engine.JAVA);
+        index.put(evening);
+        index.put(news);
+
+        // A third recording of the channel joins their connection, another channel needs a stream of its own
+        assertThat(index.findOversubscribedWindows(PROVIDER, epoch("20:00 01/01/2025"), epoch("21:00 01/01/2025"), null, 1, url))
+            .isEmpty();
+        assertThat(index.findOversubscribedWindows(PROVIDER, epoch("18:30 01/01/2025"), epoch("19:15 01/01/2025"), null, 2, null))
+            .isEmpty();
+        List<ScheduleIntervalIndex.Window> windows =
+            index.findOversubscribedWindows(PROVIDER, epoch("18:30 01/01/2025"), epoch("19:15 01/01/2025"), null, 1, null);
+        assertThat(windows).hasSize(1);
+        assertThat(windows.get(0).peakConcurrency()).isEqualTo(2);
+    }
+
+    @Test
+    void put_shouldMoveSchedule_whenProviderChanges() {
+        RecordingSchedule schedule = createSchedule(1L, "10:00 01/01/2025", "11:00 01/01/2025");
+        index.put(schedule);
+
+        schedule.setM3uUrl("http://other.test/stream");
+        index.put(schedule);
+
+        assertThat(index.size()).isEqualTo(1);
+        assertThat(index.findOverlapping(PROVIDER, epoch("10:00 01/01/2025"), epoch("11:00 01/01/2025"), null)).isEmpty();
+        assertThat(index.findOverlapping("other.test", epoch("10:00 01/01/2025"), epoch("11:00 01/01/2025"), null)).hasSize(1);
+    }
+
+    private long epoch(String time) {
+        return TimeUtils.toEpochSecond(time);
+    }
+
+    private RecordingSchedule createSchedule(Long id, String startTime, String endTime) {
+        RecordingSchedule schedule = new RecordingSchedule();
+        schedule.setId(id);
+        schedule.setStartTime(startTime);
+        schedule.setEndTime(endTime);
+        schedule.setFileName("schedule" + id);
+        schedule.setM3uUrl("http://" + PROVIDER + "/stream" + id);
+        return schedule;
+    }
+}
@@ -1,5 +1,6 @@
 package me.schickel.recorder.service;
 
+import me.schickel.recorder.config.RecordingServiceConfig;
 import me.schickel.recorder.dto.request.RecordingScheduleRequest;
 import me.schickel.recorder.dto.response.RecordingScheduleResponse;
 import me.schickel.recorder.entity.RecordingSchedule;
@@ -13,7 +14,6 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
-import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -37,21 +37,35 @@ class ScheduleManagementServiceTest {
     private MiscUtils miscUtils;
     @Mock
     private PastRecordingService pastRecordingService;
+    @Mock
+    private RecordingTriggerService recordingTriggerService;
+    @Mock
+    private RollingBufferService rollingBufferService;
+    @Mock
+    private StreamSlotManager streamSlotManager;
 
+    private ScheduleIntervalIndex scheduleIntervalIndex;
     private ScheduleManagementService service;
 
     @BeforeEach
     void setUp() {
-        service = new ScheduleManagementService(scheduleRepository, timeUtils, recordingMapper, channelManagementService, miscUtils, pastRecordingService);
+        createService(1, List.of());
+    }
+
+    private void createService(int defaultMaxStreams, List<RecordingServiceConfig.Provider> providers) {
+        RecordingServiceConfig config = new RecordingServiceConfig();
+        config.setProviders(providers);
+        ProviderResolver providerResolver = new ProviderResolver(defaultMaxStreams, config);
+        scheduleIntervalIndex = new ScheduleIntervalIndex(scheduleRepository, providerResolver);
+        service = new ScheduleManagementService(scheduleRepository, timeUtils, recordingMapper, channelManagementService, miscUtils,
+                                                pastRecordingService, recordingTriggerService, scheduleIntervalIndex, providerResolver,
+                                                rollingBufferService, streamSlotManager);
     }
 
     @Test
     void saveSchedule_shouldSaveValidSchedule() {
         RecordingScheduleRequest request = createValidRequest();
         RecordingSchedule entity = new RecordingSchedule();
-        when(scheduleRepository.findAll()).thenReturn(List.of());
-        when(timeUtils.parseStringToLocalDateTime("10:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,10,0));
-        when(timeUtils.parseStringToLocalDateTime("11:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,11,0));
 
         when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
         when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
@@ -61,6 +75,7 @@ class ScheduleManagementServiceTest {
         service.saveSchedule(request);
 
         verify(scheduleRepository).save(entity);
+        verify(recordingTriggerService).schedule(entity);
         assertThat(request.getFileName()).endsWith(".ts");
     }
 
@@ -85,12 +100,87 @@ class ScheduleManagementServiceTest {
                 .hasMessage("End time should be in the future!");
     }
 
+    @Test
+    void saveSchedule_shouldTakeUrlAndFallbackUrlsFromChannel() {
+        RecordingScheduleRequest request = createValidRequest();
+        request.setChannel("Test Channel");
+        RecordingSchedule entity = new RecordingSchedule();
+
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(channelManagementService.existsInChannelLinks("Test Channel")).thenReturn(true);
+        when(channelManagementService.getUrlByName("Test Channel")).thenReturn("http://primary.url");
+        when(channelManagementService.getFallbackUrlsByName("Test Channel")).thenReturn(List.of("http://backup.url"));
+        when(miscUtils.isValidUrl("http://backup.url")).thenReturn(true);
+        when(recordingMapper.toEntity(request)).thenReturn(entity);
+
+        service.saveSchedule(request);
+
+        assertThat(request.getM3uUrl()).isEqualTo("http://primary.url");
+        assertThat(request.getFallbackUrls()).containsExactly("http://backup.url");
+        verify(scheduleRepository).save(entity);
+    }
+
+    @Test
+    void saveSchedule_shouldThrowException_whenFallbackUrlIsInvalid() {
+        RecordingScheduleRequest request = createValidRequest();
+        request.setFallbackUrls(List.of("not a url"));
+
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
+        when(miscUtils.isValidUrl("not a url")).thenReturn(false);
+
+        assertThatThrownBy(() -> service.saveSchedule(request))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("Invalid fallback URL!");
+        verify(scheduleRepository, never()).save(any());
+    }
+
+    @Test
+    void saveSchedule_shouldTakeStreamSelectionFromChannel_unlessScheduleHasOne() {
+        RecordingScheduleRequest request = createValidRequest();
+        request.setChannel("Test Channel");
+        RecordingScheduleRequest ownSelection = createValidRequest();
+        ownSelection.setChannel("Test Channel");
+        ownSelection.setStreamSelection("audio=eng");
+
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(channelManagementService.existsInChannelLinks("Test Channel")).thenReturn(true);
+        when(channelManagementService.getUrlByName("Test Channel")).thenReturn("http://primary.url");
+        when(channelManagementService.getFallbackUrlsByName("Test Channel")).thenReturn(List.of());
+        when(channelManagementService.getStreamSelectionByName("Test Channel")).thenReturn("program=1,audio=deu");
+        when(recordingMapper.toEntity(any(RecordingScheduleRequest.class))).thenReturn(new RecordingSchedule());
+
+        service.saveSchedule(request);
+        service.saveSchedule(ownSelection);
+
+        assertThat(request.getStreamSelection()).isEqualTo("program=1,audio=deu");
+        assertThat(ownSelection.getStreamSelection()).isEqualTo("audio=eng");
+    }
+
+    @Test
+    void saveSchedule_shouldThrowException_whenStreamSelectionIsInvalid() {
+        RecordingScheduleRequest request = createValidRequest();
+        request.setStreamSelection("audio=deu,video=none");
+
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
+
+        assertThatThrownBy(() -> service.saveSchedule(request))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("video");
+        verify(scheduleRepository, never()).save(any());
+    }
+
     @Test
     void getAllSchedules_shouldReturnSortedSchedules() {
         List<RecordingSchedule> schedules = new ArrayList<>(List.of(new RecordingSchedule(), new RecordingSchedule()));
         List<RecordingScheduleResponse> responses = List.of(new RecordingScheduleResponse(), new RecordingScheduleResponse());
         
-        when(scheduleRepository.findAll()).thenReturn(schedules);
+        when(scheduleRepository.findAllByOrderByStartEpochAsc()).thenReturn(schedules);
         when(recordingMapper.toResponse(any(RecordingSchedule.class))).thenReturn(responses.get(0), responses.get(1));
 
         List<RecordingScheduleResponse> result = service.getAllSchedules();
@@ -98,6 +188,43 @@ class ScheduleManagementServiceTest {
         assertThat(result).hasSize(2);
     }
 
+    @Test
+    void patchSchedule_shouldIgnoreItself_whenCheckingForOverlaps() {
+        RecordingScheduleRequest request = createValidRequest();
+        RecordingSchedule existing = new RecordingSchedule();
+        existing.setId(1L);
+        existing.setStartTime(request.getStartTime());
+        existing.setEndTime(request.getEndTime());
+        existing.setFileName("test.ts");
+        existing.setM3uUrl("http://valid.url");
+        scheduleIntervalIndex.put(existing);
+        RecordingSchedule entity = new RecordingSchedule();
+        entity.setStartTime(request.getStartTime());
+        entity.setEndTime(request.getEndTime());
+        when(scheduleRepository.existsById(1L)).thenReturn(true);
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
+        when(recordingMapper.toEntity(request)).thenReturn(entity);
+
+        service.patchSchedule(1L, request);
+
+        verify(scheduleRepository).save(entity);
+    }
+
+    @Test
+    void backfillEpochColumns_shouldFillMissingEpochs() {
+        RecordingSchedule legacy = new RecordingSchedule();
+        legacy.setStartTime("10:00 01/01/2025");
+        legacy.setEndTime("11:00 01/01/2025");
+        when(scheduleRepository.findByStartEpochIsNullOrEndEpochIsNull()).thenReturn(List.of(legacy));
+
+        service.backfillEpochColumns();
+
+        assertThat(legacy.getEndEpoch() - legacy.getStartEpoch()).isEqualTo(3600);
+        verify(scheduleRepository).saveAll(List.of(legacy));
+    }
+
     @Test
     void deleteSchedule_shouldDeleteExistingSchedule() {
         RecordingSchedule schedule = new RecordingSchedule();
@@ -107,6 +234,20 @@ class ScheduleManagementServiceTest {
 
         verify(pastRecordingService).saveRecordingHistory(schedule, "DELETED_BY_USER");
         verify(scheduleRepository).deleteById(1L);
+        assertThat(scheduleIntervalIndex.size()).isZero();
+        verify(recordingTriggerService).cancel(1L);
+        verify(streamSlotManager, never()).cancel(any());
+    }
+
+    @Test
+    void deleteSchedule_shouldCancelWaitForStreamSlot_ofTriggeredSchedule() {
+        RecordingSchedule schedule = new RecordingSchedule();
+        schedule.setTriggered(true);
+        when(scheduleRepository.findById(1L)).thenReturn(java.util.Optional.of(schedule));
+
+        service.deleteSchedule(1L);
+
+        verify(streamSlotManager).cancel(1L);
     }
 
     @Test
@@ -122,10 +263,9 @@ class ScheduleManagementServiceTest {
     void patchSchedule_shouldUpdateExistingSchedule() {
         RecordingScheduleRequest request = createValidRequest();
         RecordingSchedule entity = new RecordingSchedule();
+        entity.setStartTime(request.getStartTime());
+        entity.setEndTime(request.getEndTime());
         when(scheduleRepository.existsById(1L)).thenReturn(true);
-        when(scheduleRepository.findAll()).thenReturn(List.of());
-        when(timeUtils.parseStringToLocalDateTime("10:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,10,0));
-        when(timeUtils.parseStringToLocalDateTime("11:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,11,0));
         when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
         when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
         when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
@@ -134,7 +274,9 @@ class ScheduleManagementServiceTest {
         service.patchSchedule(1L, request);
 
         assertThat(entity.getId()).isEqualTo(1L);
+        assertThat(scheduleIntervalIndex.size()).isEqualTo(1);
         verify(scheduleRepository).save(entity);
+        verify(recordingTriggerService).schedule(entity);
     }
 
     @Test
@@ -152,9 +294,6 @@ class ScheduleManagementServiceTest {
     void saveSchedule_shouldKeepTsExtension() {
         RecordingScheduleRequest request = createValidRequest();
         request.setFileName("test.ts");
-        when(scheduleRepository.findAll()).thenReturn(List.of());
-        when(timeUtils.parseStringToLocalDateTime("10:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,10,0));
-        when(timeUtils.parseStringToLocalDateTime("11:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,11,0));
 
         when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
         when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
@@ -170,9 +309,6 @@ class ScheduleManagementServiceTest {
     void saveSchedule_shouldAddTsExtension_whenNoExtension() {
         RecordingScheduleRequest request = createValidRequest();
         request.setFileName("test");
-        when(scheduleRepository.findAll()).thenReturn(List.of());
-        when(timeUtils.parseStringToLocalDateTime("10:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,10,0));
-        when(timeUtils.parseStringToLocalDateTime("11:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,11,0));
 
         when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
         when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
@@ -216,8 +352,10 @@ class ScheduleManagementServiceTest {
         RecordingSchedule existing = new RecordingSchedule();
         existing.setStartTime("10:00 01/01/2025");
         existing.setEndTime("11:00 01/01/2025");
+        existing.setId(2L);
         existing.setFileName("existing");
-        when(scheduleRepository.findAll()).thenReturn(List.of(existing));
+        existing.setM3uUrl("http://valid.url");
+        scheduleIntervalIndex.put(existing);
 
         // New schedule 10:30 - 11:30 (overlaps)
         RecordingScheduleRequest request = new RecordingScheduleRequest();
@@ -230,14 +368,52 @@ class ScheduleManagementServiceTest {
         when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
         when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
 
-        when(timeUtils.parseStringToLocalDateTime("10:30 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,10,30));
-        when(timeUtils.parseStringToLocalDateTime("11:30 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,11,30));
-        when(timeUtils.parseStringToLocalDateTime("10:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,10,0));
-        when(timeUtils.parseStringToLocalDateTime("11:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,11,0));
-
         assertThatThrownBy(() -> service.saveSchedule(request))
                 .isInstanceOf(IllegalArgumentException.class)
-                .hasMessageContaining("overlaps");
+                .hasMessageContaining("overlaps")
+                .hasMessageContaining("existing");
+    }
+
+    @Test
+    void saveSchedule_shouldAllowOverlap_whenBothShareConnectionOfSameUrl() {
+        // Existing schedule 09:00 - 12:00, recorded without ffmpeg
+        RecordingSchedule existing = createExisting(2L, "09:00 01/01/2025", "12:00 01/01/2025", "evening");
+        existing.setEngine(RecordingSchedule.Engine.JAVA);
+        scheduleIntervalIndex.put(existing);
+
+        // New schedule 10:00 - 11:00 of the same URL, also without ffmpeg
+        RecordingScheduleRequest request = createValidRequest();
+        request.setEngine(RecordingSchedule.Engine.JAVA);
+        RecordingSchedule entity = new RecordingSchedule();
+
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
+        when(recordingMapper.toEntity(request)).thenReturn(entity);
+
+        service.saveSchedule(request);
+
+        verify(scheduleRepository).save(entity);
+    }
+
+    @Test
+    void saveSchedule_shouldRejectOverlap_whenRollingBufferHoldsOneOfTheStreams() {
+        createService(2, List.of());
+        // Existing schedule 09:00 - 12:00 of another channel
+        RecordingSchedule existing = createExisting(2L, "09:00 01/01/2025", "12:00 01/01/2025", "evening");
+        existing.setM3uUrl("http://valid.url/other");
+        scheduleIntervalIndex.put(existing);
+
+        RecordingScheduleRequest request = createValidRequest();
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
+        when(rollingBufferService.getPinnedSlots(any(), any())).thenReturn(1);
+
+        assertThatThrownBy(() -> service.saveSchedule(request))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("beyond the 1 allowed simultaneous streams");
+        verify(scheduleRepository, never()).save(any());
     }
 
     @Test
@@ -246,8 +422,10 @@ class ScheduleManagementServiceTest {
         RecordingSchedule existing = new RecordingSchedule();
         existing.setStartTime("09:30 01/01/2025");
         existing.setEndTime("10:00 01/01/2025");
+        existing.setId(2L);
         existing.setFileName("existing");
-        when(scheduleRepository.findAll()).thenReturn(List.of(existing));
+        existing.setM3uUrl("http://valid.url");
+        scheduleIntervalIndex.put(existing);
 
         // New schedule 10:00 - 11:00 (adjacent, no overlap)
         RecordingScheduleRequest request = createValidRequest(); // 10:00 - 11:00
@@ -258,15 +436,94 @@ class ScheduleManagementServiceTest {
         when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
         when(recordingMapper.toEntity(request)).thenReturn(entity);
 
-        when(timeUtils.parseStringToLocalDateTime("10:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,10,0));
-        when(timeUtils.parseStringToLocalDateTime("11:00 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,11,0));
-        when(timeUtils.parseStringToLocalDateTime("09:30 01/01/2025")).thenReturn(LocalDateTime.of(2025,1,1,9,30));
+        service.saveSchedule(request);
+
+        verify(scheduleRepository).save(entity);
+    }
+
+    @Test
+    void saveSchedule_shouldAllowOverlap_whenWithinAllowedStreams() {
+        createService(2, List.of());
+        scheduleIntervalIndex.put(createExisting(2L, "10:30 01/01/2025", "11:30 01/01/2025", "existing"));
+        RecordingScheduleRequest request = createValidRequest(); // 10:00 - 11:00
+        RecordingSchedule entity = new RecordingSchedule();
+
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
+        when(recordingMapper.toEntity(request)).thenReturn(entity);
 
         service.saveSchedule(request);
 
         verify(scheduleRepository).save(entity);
     }
 
+    @Test
+    void saveSchedule_shouldReportOversubscribedWindows_whenExceedingAllowedStreams() {
+        createService(2, List.of());
+        scheduleIntervalIndex.put(createExisting(2L, "09:00 01/01/2025", "10:30 01/01/2025", "first"));
+        scheduleIntervalIndex.put(createExisting(3L, "10:15 01/01/2025", "12:00 01/01/2025", "second"));
+        RecordingScheduleRequest request = createValidRequest(); // 10:00 - 11:00
+
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
+
+        assertThatThrownBy(() -> service.saveSchedule(request))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("2 allowed simultaneous streams of provider valid.url")
+                .hasMessageContaining("10:15 01/01/2025 - 10:30 01/01/2025 (first, second)");
+    }
+
+    @Test
+    void saveSchedule_shouldAllowOverlap_whenExistingScheduleUsesAnotherProvider() {
+        RecordingSchedule other = createExisting(2L, "10:00 01/01/2025", "11:00 01/01/2025", "other");
+        other.setM3uUrl("http://other.provider/user/pass/1");
+        scheduleIntervalIndex.put(other);
+        RecordingScheduleRequest request = createValidRequest(); // 10:00 - 11:00
+        RecordingSchedule entity = new RecordingSchedule();
+
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
+        when(recordingMapper.toEntity(request)).thenReturn(entity);
+
+        service.saveSchedule(request);
+
+        verify(scheduleRepository).save(entity);
+    }
+
+    @Test
+    void saveSchedule_shouldUseConfiguredProviderBudget() {
+        RecordingServiceConfig.Provider provider = new RecordingServiceConfig.Provider();
+        provider.setName("main");
+        provider.setUrlPrefixes(List.of("http://valid.url"));
+        provider.setMaxStreams(2);
+        createService(1, List.of(provider));
+        scheduleIntervalIndex.put(createExisting(2L, "10:30 01/01/2025", "11:30 01/01/2025", "first"));
+        scheduleIntervalIndex.put(createExisting(3L, "10:45 01/01/2025", "11:30 01/01/2025", "second"));
+        RecordingScheduleRequest request = createValidRequest(); // 10:00 - 11:00
+
+        when(timeUtils.isBefore(request.getStartTime(), request.getEndTime())).thenReturn(true);
+        when(timeUtils.isInPast(request.getEndTime())).thenReturn(false);
+        when(miscUtils.isValidUrl(request.getM3uUrl())).thenReturn(true);
+
+        assertThatThrownBy(() -> service.saveSchedule(request))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("2 allowed simultaneous streams of provider main")
+                .hasMessageContaining("10:45 01/01/2025 - 11:00 01/01/2025 (first, second)");
+    }
+
+    private RecordingSchedule createExisting(Long id, String startTime, String endTime, String fileName) {
+        RecordingSchedule existing = new RecordingSchedule();
+        existing.setId(id);
+        existing.setStartTime(startTime);
+        existing.setEndTime(endTime);
+        existing.setFileName(fileName);
+        existing.setM3uUrl("http://valid.url");
+        return existing;
+    }
+
     private RecordingScheduleRequest createValidRequest() {
         RecordingScheduleRequest request = new RecordingScheduleRequest();
         request.setStartTime("10:00 01/01/2025");
@@ -0,0 +1,98 @@
+package me.schickel.recorder.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class SegmentedOutputTest {
+
+    @Test
+    void outputArguments_shouldEscapePercentSignsOfPath() {
+        SegmentedOutput output = new SegmentedOutput(Path.of("/recordings/50% off_2.ts"), segment -> { });
+
+        assertThat(output.outputArguments(Duration.ofSeconds(90)))
+            .containsSubsequence("-f", "segment", "-segment_time", "90.000", "-reset_timestamps", "0")
+            .containsSubsequence("-segment_list", "/recordings/50% off_2.segments.csv", "-segment_list_type", "csv")
+            .endsWith("-y", "/recordings/50%% off_2.%05d.ts");
+    }
+
+    @Test
+    void partOf_shouldStripSegmentIndex() {
+        assertThat(SegmentedOutput.segmentFile(Path.of("/recordings/show_2.ts"), 3)).isEqualTo(Path.of("/recordings/show_2.00003.ts"));
+        assertThat(SegmentedOutput.partOf(Path.of("/recordings/show_2.00003.ts"))).isEqualTo(Path.of("/recordings/show_2.ts"));
+        assertThat(SegmentedOutput.partOf(Path.of("/recordings/show_2.ts"))).isEqualTo(Path.of("/recordings/show_2.ts"));
+    }
+
+    @Test
+    void poll_shouldCloseEachListedSegmentOnce_andSkipLineStillBeingWritten(@TempDir Path recordings) throws Exception {
+        List<SegmentedOutput.Segment> closed = new ArrayList<>();
+        SegmentedOutput output = new SegmentedOutput(recordings.resolve("show.ts"), closed::add);
+        Files.writeString(recordings.resolve("show.00000.ts"), "first");
+        Files.writeString(recordings.resolve("show.00001.ts"), "second");
+
+        output.poll();
+        Files.writeString(recordings.resolve("show.segments.csv"), "\"show.00000.ts\",1.400000,301.400000\nshow.00001.ts,301.4");
+        output.poll();
+        output.poll();
+
+        assertThat(closed).containsExactly(new SegmentedOutput.Segment(recordings.resolve("show.00000.ts"), 0, 1.4, 301.4, 5));
+        assertThat(closed.get(0).duration()).isEqualTo(Duration.ofMinutes(5));
+        assertThat(output.writtenBytes()).isEqualTo(11);
+    }
+
+    @Test
+    void pollAsync_shouldHandClosedSegmentsToListener_withoutBlockingCaller(@TempDir Path recordings) throws Exception {
+        CountDownLatch listenerReleased = new CountDownLatch(1);
+        List<Thread> listenerThreads = new CopyOnWriteArrayList<>();
+        SegmentedOutput output = new SegmentedOutput(recordings.resolve("show.ts"), segment -> {
+            listenerThreads.add(Thread.currentThread());
+            try {
+                listenerReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Files.writeString(recordings.resolve("show.00000.ts"), "first");
+        Files.writeString(recordings.resolve("show.00001.ts"), "second");
+        Files.writeString(recordings.resolve("show.segments.csv"), "show.00000.ts,0.000000,300.000000\n");
+
+        output.pollAsync();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> listenerThreads.size() == 1);
+        // The size is known while the listener still runs
+        assertThat(output.writtenBytes()).isEqualTo(11);
+        listenerReleased.countDown();
+
+        assertThat(listenerThreads.get(0)).isNotSameAs(Thread.currentThread());
+        assertThat(listenerThreads.get(0).isVirtual()).isTrue();
+    }
+
+    @Test
+    void finish_shouldCloseSegmentsFfmpegDidNotList_andRemoveList(@TempDir Path recordings) throws Exception {
+        List<SegmentedOutput.Segment> closed = new ArrayList<>();
+        SegmentedOutput output = new SegmentedOutput(recordings.resolve("show.ts"), closed::add);
+        Files.writeString(recordings.resolve("show.00000.ts"), "first");
+        Files.writeString(recordings.resolve("show.00001.ts"), "killed");
+        Files.writeString(recordings.resolve("show.segments.csv"), "show.00000.ts,0.000000,300.000000\n");
+
+        List<SegmentedOutput.Segment> segments = output.finish();
+
+        assertThat(segments).extracting(SegmentedOutput.Segment::file)
+                            .containsExactly(recordings.resolve("show.00000.ts"), recordings.resolve("show.00001.ts"));
+        assertThat(segments.get(1).duration()).isNull();
+        assertThat(output.finish()).isEqualTo(segments);
+        assertThat(closed).isEqualTo(segments);
+        assertThat(recordings.resolve("show.segments.csv")).doesNotExist();
+        assertThat(output.hasData()).isTrue();
+    }
+}
@@ -0,0 +1,92 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.entity.SourceHealth;
+import me.schickel.recorder.repository.SourceHealthRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class SourceHealthServiceTest {
+
+    private static final String PRIMARY = "http://provider.test/live/7.ts";
+    private static final String BACKUP = "http://backup.test/live/7.ts";
+    private static final String SPARE = "http://spare.test/live/7.ts";
+
+    @Mock
+    private SourceHealthRepository sourceHealthRepository;
+
+    private SourceHealthService sourceHealthService;
+
+    @BeforeEach
+    void setUp() {
+        sourceHealthService = new SourceHealthService(sourceHealthRepository);
+    }
+
+    @Test
+    void rank_shouldPutHealthiestFirst_andKeepOrderOfEqualScores() {
+        when(sourceHealthRepository.findAllById(List.of(PRIMARY, BACKUP, SPARE)))
+            .thenReturn(List.of(health(PRIMARY, 0.2), health(SPARE, 0.9)));
+
+        // The backup was never recorded from and ranks in between
+        assertThat(sourceHealthService.rank(List.of(PRIMARY, BACKUP, SPARE))).containsExactly(SPARE, BACKUP, PRIMARY);
+    }
+
+    @Test
+    void rank_shouldKeepSingleUrl_withoutReadingScores() {
+        assertThat(sourceHealthService.rank(List.of(PRIMARY))).containsExactly(PRIMARY);
+
+        verify(sourceHealthRepository, never()).findAllById(any());
+    }
+
+    @Test
+    void rank_shouldKeepOrder_whenScoresCannotBeRead() {
+        when(sourceHealthRepository.findAllById(any())).thenThrow(new IllegalStateException("database is locked"));
+
+        assertThat(sourceHealthService.rank(List.of(PRIMARY, BACKUP))).containsExactly(PRIMARY, BACKUP);
+    }
+
+    @Test
+    void recordOutcome_shouldMoveScoreTowardsOutcome_andCountIt() {
+        SourceHealth primary = health(PRIMARY, 1.0);
+        when(sourceHealthRepository.findById(PRIMARY)).thenReturn(Optional.of(primary));
+        when(sourceHealthRepository.findById(BACKUP)).thenReturn(Optional.empty());
+
+        sourceHealthService.recordOutcome(PRIMARY, false);
+        sourceHealthService.recordOutcome(BACKUP, true);
+
+        assertThat(primary.getScore()).isCloseTo(0.7, within(1e-9));
+        assertThat(primary.getFailures()).isEqualTo(1);
+        ArgumentCaptor<SourceHealth> saved = ArgumentCaptor.forClass(SourceHealth.class);
+        verify(sourceHealthRepository, times(2)).save(saved.capture());
+        SourceHealth backup = saved.getAllValues().get(1);
+        assertThat(backup.getUrl()).isEqualTo(BACKUP);
+        assertThat(backup.getScore()).isCloseTo(SourceHealthService.UNKNOWN_SCORE + 0.3 * (1 - SourceHealthService.UNKNOWN_SCORE),
+                                                within(1e-9));
+        assertThat(backup.getSuccesses()).isEqualTo(1);
+    }
+
+    private static SourceHealth health(String url, double score) {
+        SourceHealth health = new SourceHealth();
+        health.setUrl(url);
+        health.setScore(score);
+        return health;
+    }
+}
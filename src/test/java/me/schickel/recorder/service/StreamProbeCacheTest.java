@@ -0,0 +1,124 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.StreamProbe;
+import me.schickel.recorder.repository.StreamProbeRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.data.domain.PageRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class StreamProbeCacheTest {
+
+    private static final String URL = "http://provider.test/live/user/pass/7.ts";
+    private static final StreamLayout LAYOUT = new StreamLayout("h264", 1280, 720, 4_000_000L, List.of("video:h264", "audio:mp2"));
+
+    @Mock
+    private StreamProbeRepository streamProbeRepository;
+
+    private RecordingServiceConfig config;
+    private StreamProbeCache streamProbeCache;
+
+    @BeforeEach
+    void setUp() {
+        config = new RecordingServiceConfig();
+        config.getProbeCache().setMaxEntries(2);
+        streamProbeCache = new StreamProbeCache(config, streamProbeRepository);
+    }
+
+    @Test
+    void get_shouldReturnCachedLayoutAndResolvedUrl_whileRecent() {
+        when(streamProbeRepository.findById(URL)).thenReturn(Optional.of(entry(Duration.ofMinutes(5))));
+
+        Optional<StreamWarmupService.ProbedStream> cached = streamProbeCache.get(URL);
+
+        assertThat(cached).contains(new StreamWarmupService.ProbedStream("http://edge.provider.test/7.ts", LAYOUT));
+        verify(streamProbeRepository).markUsed(eq(URL), anyLong());
+        assertThat(streamProbeCache.getStats()).isEqualTo(new StreamProbeCache.CacheStats(1, 0, 0));
+    }
+
+    @Test
+    void get_shouldReturnOriginalUrl_whenResolvedUrlIsOlderThanWarmupMaxAge() {
+        when(streamProbeRepository.findById(URL)).thenReturn(Optional.of(entry(Duration.ofDays(2))));
+
+        Optional<StreamWarmupService.ProbedStream> cached = streamProbeCache.get(URL);
+
+        assertThat(cached).contains(new StreamWarmupService.ProbedStream(URL, LAYOUT));
+    }
+
+    @Test
+    void get_shouldMiss_whenEntryIsOlderThanTtl() {
+        when(streamProbeRepository.findById(URL)).thenReturn(Optional.of(entry(Duration.ofDays(8))));
+        when(streamProbeRepository.findById("http://provider.test/other")).thenReturn(Optional.empty());
+
+        assertThat(streamProbeCache.get(URL)).isEmpty();
+        assertThat(streamProbeCache.get("http://provider.test/other")).isEmpty();
+
+        verify(streamProbeRepository, never()).markUsed(any(), anyLong());
+        assertThat(streamProbeCache.getStats()).isEqualTo(new StreamProbeCache.CacheStats(0, 2, 0));
+    }
+
+    @Test
+    void put_shouldStoreLayout_andDropLeastRecentlyUsedBeyondMaxEntries() {
+        StreamProbe oldest = entry(Duration.ofDays(1));
+        when(streamProbeRepository.count()).thenReturn(3L);
+        when(streamProbeRepository.findByOrderByLastUsedEpochAsc(PageRequest.of(0, 1))).thenReturn(List.of(oldest));
+
+        streamProbeCache.put(URL, new StreamWarmupService.ProbedStream("http://edge.provider.test/7.ts", LAYOUT));
+
+        ArgumentCaptor<StreamProbe> saved = ArgumentCaptor.forClass(StreamProbe.class);
+        verify(streamProbeRepository).save(saved.capture());
+        assertThat(saved.getValue().getUrl()).isEqualTo(URL);
+        assertThat(saved.getValue().getResolvedUrl()).isEqualTo("http://edge.provider.test/7.ts");
+        assertThat(saved.getValue().getStreams()).isEqualTo("video:h264,audio:mp2");
+        assertThat(saved.getValue().getBitRate()).isEqualTo(4_000_000L);
+        verify(streamProbeRepository).deleteProbedBefore(anyLong());
+        verify(streamProbeRepository).deleteAll(List.of(oldest));
+    }
+
+    @Test
+    void invalidate_shouldDeleteEntry_andCountIt() {
+        when(streamProbeRepository.existsById(URL)).thenReturn(true);
+
+        assertThat(streamProbeCache.invalidate(URL)).isTrue();
+        assertThat(streamProbeCache.invalidate("http://provider.test/other")).isFalse();
+
+        verify(streamProbeRepository).deleteById(URL);
+        assertThat(streamProbeCache.getStats().invalidations()).isEqualTo(1);
+    }
+
+    private static StreamProbe entry(Duration age) {
+        long probedEpoch = Instant.now().minus(age).getEpochSecond();
+        StreamProbe entry = new StreamProbe();
+        entry.setUrl(URL);
+        entry.setResolvedUrl("http://edge.provider.test/7.ts");
+        entry.setVideoCodec("h264");
+        entry.setWidth(1280);
+        entry.setHeight(720);
+        entry.setBitRate(4_000_000L);
+        entry.setStreams("video:h264,audio:mp2");
+        entry.setProbedEpoch(probedEpoch);
+        entry.setLastUsedEpoch(probedEpoch);
+        return entry;
+    }
+}
@@ -0,0 +1,67 @@
+package me.schickel.recorder.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StreamSelectionTest {
+
+    private static final StreamLayout TWO_PROGRAMS = new StreamLayout("h264", 1280, 720, null, List.of(
+        "video:h264;id=0x100;program=1;bitRate=4000000",
+        "audio:aac;id=0x101;language=deu;program=1;bitRate=128000",
+        "audio:ac3;id=0x102;language=eng;program=1;bitRate=384000",
+        "subtitle:dvb_subtitle;id=0x103;language=deu;program=1",
+        "data:bin_data;id=0x104;program=1;bitRate=16000",
+        "video:h264;id=0x200;program=2;bitRate=3000000",
+        "audio:aac;id=0x201;language=deu;program=2;bitRate=128000"));
+
+    @Test
+    void parse_shouldReadAllKeys() {
+        assertThat(StreamSelection.parse("program=2, audio=DEU|eng, subtitles=drop, data=keep"))
+            .isEqualTo(new StreamSelection(2, List.of("deu", "eng"), false, true));
+        assertThat(StreamSelection.parse("data=drop")).isEqualTo(new StreamSelection(null, List.of(), true, false));
+    }
+
+    @Test
+    void parse_shouldRejectUnreadableRules() {
+        assertThatThrownBy(() -> StreamSelection.parse(" ")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> StreamSelection.parse("program=first")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> StreamSelection.parse("audio")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> StreamSelection.parse("data=maybe")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> StreamSelection.parse("video=drop")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void mapArguments_shouldKeepVideoAndChosenAudioOfProgram_andDropTheRest() {
+        StreamSelection selection = StreamSelection.parse("program=1,audio=eng,subtitles=drop,data=drop");
+
+        assertThat(selection.mapArguments(TWO_PROGRAMS)).containsExactly("-map", "0:i:0x100", "-map", "0:i:0x102");
+        assertThat(selection.droppedBitRate(TWO_PROGRAMS)).isEqualTo(128_000 + 16_000 + 3_000_000 + 128_000);
+    }
+
+    @Test
+    void mapArguments_shouldFallBackToFirstAudio_whenNoneIsInChosenLanguage() {
+        StreamSelection selection = StreamSelection.parse("program=2,audio=fra");
+
+        assertThat(selection.mapArguments(TWO_PROGRAMS)).containsExactly("-map", "0:i:0x200", "-map", "0:i:0x201");
+    }
+
+    @Test
+    void mapArguments_shouldMapByIndex_whenStreamIdsAreUnknown() {
+        StreamLayout layout = new StreamLayout("mpeg2video", null, null, null, List.of("video:mpeg2video", "audio:mp2", "subtitle:dvb_teletext"));
+
+        assertThat(StreamSelection.parse("subtitles=drop").mapArguments(layout)).containsExactly("-map", "0:0", "-map", "0:1");
+    }
+
+    @Test
+    void mapArguments_shouldLeaveSelectionToFfmpeg_whenLayoutDoesNotFit() {
+        StreamSelection selection = StreamSelection.parse("program=3");
+
+        assertThat(selection.mapArguments(TWO_PROGRAMS)).isEmpty();
+        assertThat(selection.droppedBitRate(TWO_PROGRAMS)).isZero();
+        assertThat(StreamSelection.parse("data=drop").mapArguments(StreamLayout.ofVideoCodec("h264"))).isEmpty();
+    }
+}
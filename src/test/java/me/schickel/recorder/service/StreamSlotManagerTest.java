@@ -0,0 +1,236 @@
+package me.schickel.recorder.service;
+
+import me.schickel.recorder.config.RecordingServiceConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class StreamSlotManagerTest {
+
+    private static final String PROVIDER = "provider.test";
+
+    private StreamSlotManager slotManager;
+
+    @BeforeEach
+    void setUp() {
+        slotManager = new StreamSlotManager(new ProviderResolver(2, new RecordingServiceConfig()));
+    }
+
+    @Test
+    void acquire_shouldGrantSlotsUpToCapacity() {
+        assertThat(slotManager.acquire(PROVIDER, 1L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.acquire(PROVIDER, 2L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.acquire(PROVIDER, 3L, Duration.ofMillis(50))).isFalse();
+
+        assertThat(slotManager.getOccupied()).isEqualTo(2);
+    }
+
+    @Test
+    void acquire_shouldNotTakeSecondSlot_forScheduleAlreadyHoldingOne() {
+        slotManager.acquire(PROVIDER, 1L, Duration.ZERO);
+
+        assertThat(slotManager.acquire(PROVIDER, 1L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.getOccupied()).isEqualTo(1);
+    }
+
+    @Test
+    void acquire_shouldNotBeBlocked_bySaturatedOtherProvider() {
+        slotManager.acquire(PROVIDER, 1L, Duration.ZERO);
+        slotManager.acquire(PROVIDER, 2L, Duration.ZERO);
+
+        assertThat(slotManager.acquire("other.test", 3L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.getOccupied(PROVIDER)).isEqualTo(2);
+        assertThat(slotManager.getOccupied("other.test")).isEqualTo(1);
+        assertThat(slotManager.getOccupied()).isEqualTo(3);
+    }
+
+    @Test
+    void acquireShared_shouldShareOneSlot_untilLastRecordingOfUrlEnds() {
+        String url = "http://provider.test/live/7.ts";
+        assertThat(slotManager.acquireShared(PROVIDER, url, 1L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.acquireShared(PROVIDER, url, 2L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.acquire(PROVIDER, 3L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.getOccupied(PROVIDER)).isEqualTo(2);
+
+        slotManager.release(1L);
+        assertThat(slotManager.getOccupied(PROVIDER)).isEqualTo(2);
+        slotManager.release(2L);
+        assertThat(slotManager.getOccupied(PROVIDER)).isEqualTo(1);
+        assertThat(slotManager.acquire(PROVIDER, 4L, Duration.ZERO)).isTrue();
+    }
+
+    @Test
+    void acquireOwn_shouldLeaveSharedSlot_andTakeOneOfItsOwn() {
+        String url = "http://provider.test/live/7.ts";
+        slotManager.acquireShared(PROVIDER, url, 1L, Duration.ZERO);
+        slotManager.acquireShared(PROVIDER, url, 2L, Duration.ZERO);
+
+        assertThat(slotManager.acquireOwn(1L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.getOccupied(PROVIDER)).isEqualTo(2);
+        // The last recording of the URL keeps the shared slot
+        assertThat(slotManager.acquireOwn(2L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.getOccupied(PROVIDER)).isEqualTo(2);
+        assertThat(slotManager.acquire(PROVIDER, 3L, Duration.ZERO)).isFalse();
+
+        slotManager.release(1L);
+        slotManager.release(2L);
+        assertThat(slotManager.getOccupied()).isZero();
+    }
+
+    @Test
+    void acquireOwn_shouldFail_whenNoSlotIsFree() {
+        String url = "http://provider.test/live/7.ts";
+        slotManager.acquireShared(PROVIDER, url, 1L, Duration.ZERO);
+        slotManager.acquireShared(PROVIDER, url, 2L, Duration.ZERO);
+        slotManager.acquire(PROVIDER, 3L, Duration.ZERO);
+
+        assertThat(slotManager.acquireOwn(1L, Duration.ofMillis(50))).isFalse();
+        assertThat(slotManager.getOccupied(PROVIDER)).isEqualTo(2);
+    }
+
+    @Test
+    void release_shouldBeIdempotent() {
+        slotManager.acquire(PROVIDER, 1L, Duration.ZERO);
+
+        slotManager.release(1L);
+        slotManager.release(1L);
+        slotManager.release(99L);
+
+        assertThat(slotManager.getOccupied()).isZero();
+        assertThat(slotManager.acquire(PROVIDER, 2L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.acquire(PROVIDER, 3L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.acquire(PROVIDER, 4L, Duration.ZERO)).isFalse();
+    }
+
+    @Test
+    void acquire_shouldServeWaitingSchedulesInArrivalOrder() {
+        slotManager.acquire(PROVIDER, 1L, Duration.ZERO);
+        slotManager.acquire(PROVIDER, 2L, Duration.ZERO);
+        List<Long> granted = new CopyOnWriteArrayList<>();
+
+        CompletableFuture<Void> first = waitForSlot(3L, granted);
+        await().atMost(2, TimeUnit.SECONDS).until(() -> slotManager.getQueued() == 1);
+        CompletableFuture<Void> second = waitForSlot(4L, granted);
+        await().atMost(2, TimeUnit.SECONDS).until(() -> slotManager.getQueued() == 2);
+
+        slotManager.release(1L);
+        first.join();
+        slotManager.release(2L);
+        second.join();
+
+        assertThat(granted).containsExactly(3L, 4L);
+    }
+
+    @Test
+    void cancel_shouldAbortWaitingAcquire() {
+        slotManager.acquire(PROVIDER, 1L, Duration.ZERO);
+        slotManager.acquire(PROVIDER, 2L, Duration.ZERO);
+        CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> slotManager.acquire(PROVIDER, 3L, Duration.ofMinutes(1)));
+        await().atMost(2, TimeUnit.SECONDS).until(() -> slotManager.getQueued() == 1);
+
+        slotManager.cancel(3L);
+
+        assertThat(waiting.join()).isFalse();
+        assertThat(slotManager.getOccupied()).isEqualTo(2);
+        assertThat(slotManager.getQueued()).isZero();
+    }
+
+    @Test
+    void cancel_shouldAbortAcquire_thatHasNotStartedWaitingYet() {
+        slotManager.cancel(1L);
+
+        assertThat(slotManager.acquire(PROVIDER, 1L, Duration.ofMinutes(1))).isFalse();
+        assertThat(slotManager.getOccupied()).isZero();
+        assertThat(slotManager.acquire(PROVIDER, 1L, Duration.ZERO)).isTrue();
+    }
+
+    @Test
+    void tryAcquireExtra_shouldTakeSpareSlotOfSameProvider() {
+        slotManager.acquire(PROVIDER, 1L, Duration.ZERO);
+
+        assertThat(slotManager.tryAcquireExtra(1L)).isTrue();
+        assertThat(slotManager.tryAcquireExtra(1L)).isFalse();
+        assertThat(slotManager.getOccupied(PROVIDER)).isEqualTo(2);
+
+        slotManager.releaseExtra(1L);
+        assertThat(slotManager.getOccupied(PROVIDER)).isEqualTo(1);
+    }
+
+    @Test
+    void tryAcquireExtra_shouldFail_whenProviderIsSaturatedOrScheduleHoldsNoSlot() {
+        slotManager.acquire(PROVIDER, 1L, Duration.ZERO);
+        slotManager.acquire(PROVIDER, 2L, Duration.ZERO);
+
+        assertThat(slotManager.tryAcquireExtra(1L)).isFalse();
+        assertThat(slotManager.tryAcquireExtra(3L)).isFalse();
+    }
+
+    @Test
+    void tryAcquireExtra_shouldAllowSeveralSlots_upToGivenLimit() {
+        StreamSlotManager wide = new StreamSlotManager(new ProviderResolver(4, new RecordingServiceConfig()));
+        wide.acquire(PROVIDER, 1L, Duration.ZERO);
+
+        assertThat(wide.tryAcquireExtra(1L, 2)).isTrue();
+        assertThat(wide.tryAcquireExtra(1L, 2)).isTrue();
+        assertThat(wide.tryAcquireExtra(1L, 2)).isFalse();
+        assertThat(wide.getOccupied(PROVIDER)).isEqualTo(3);
+
+        wide.releaseExtra(1L);
+        assertThat(wide.getOccupied(PROVIDER)).isEqualTo(2);
+        wide.release(1L);
+        assertThat(wide.getOccupied()).isZero();
+    }
+
+    @Test
+    void release_shouldAlsoReturnExtraSlot() {
+        slotManager.acquire(PROVIDER, 1L, Duration.ZERO);
+        slotManager.tryAcquireExtra(1L);
+
+        slotManager.release(1L);
+
+        assertThat(slotManager.getOccupied()).isZero();
+        assertThat(slotManager.acquire(PROVIDER, 2L, Duration.ZERO)).isTrue();
+        assertThat(slotManager.acquire(PROVIDER, 3L, Duration.ZERO)).isTrue();
+    }
+
+    @Test
+    void tryMove_shouldTakeSlotOfOtherProvider_andReturnTheOldOne() {
+        slotManager.acquire(PROVIDER, 1L, Duration.ZERO);
+
+        assertThat(slotManager.tryMove(1L, "other.test")).isTrue();
+        assertThat(slotManager.getOccupied(PROVIDER)).isZero();
+        assertThat(slotManager.getOccupied("other.test")).isEqualTo(1);
+
+        slotManager.release(1L);
+        assertThat(slotManager.getOccupied()).isZero();
+    }
+
+    @Test
+    void tryMove_shouldKeepCurrentSlot_whenOtherProviderIsSaturated() {
+        slotManager.acquire(PROVIDER, 1L, Duration.ZERO);
+        slotManager.acquire("other.test", 2L, Duration.ZERO);
+        slotManager.acquire("other.test", 3L, Duration.ZERO);
+
+        assertThat(slotManager.tryMove(1L, "other.test")).isFalse();
+        assertThat(slotManager.tryMove(1L, PROVIDER)).isTrue();
+        assertThat(slotManager.tryMove(4L, PROVIDER)).isFalse();
+        assertThat(slotManager.getOccupied(PROVIDER)).isEqualTo(1);
+        assertThat(slotManager.getOccupied("other.test")).isEqualTo(2);
+    }
+
+    private CompletableFuture<Void> waitForSlot(Long scheduleId, List<Long> granted) {
+        return CompletableFuture.runAsync(() -> {
+            if (slotManager.acquire(PROVIDER, scheduleId, Duration.ofSeconds(5))) {
+                granted.add(scheduleId);
+            }
+        });
+    }
+}
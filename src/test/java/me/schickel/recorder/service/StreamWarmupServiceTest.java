@@ -0,0 +1,199 @@
+package me.schickel.recorder.service;
+
+import com.sun.net.httpserver.HttpServer;
+import me.schickel.recorder.config.RecordingServiceConfig;
+import me.schickel.recorder.entity.RecordingSchedule;
+import me.schickel.recorder.process.ProcessLauncher;
+import me.schickel.recorder.repository.ScheduleRepository;
+import me.schickel.recorder.util.TimeUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class StreamWarmupServiceTest {
+
+    private static final StreamLayout LAYOUT = new StreamLayout("hevc", 1920, 1080, 6_000_000L, List.of("video:hevc", "audio:aac;bitRate=128000"));
+    private static final String FFPROBE_OUTPUT = """
+        {"streams": [
+          {"index": 0, "codec_name": "hevc", "codec_type": "video", "width": 1920, "height": 1080},
+          {"index": 1, "codec_name": "aac", "codec_type": "audio", "bit_rate": "128000"}
+        ],
+         "format": {"bit_rate": "6000000"}}
+        """;
+
+    private HttpServer server;
+    private ScheduleRepository scheduleRepository;
+    private ProcessLauncher processLauncher;
+    private ProviderResolver providerResolver;
+    private StreamSlotManager streamSlotManager;
+    private StreamProbeCache streamProbeCache;
+    private StreamWarmupService streamWarmupService;
+
+    @BeforeEach
+    void setUp() {
+        RecordingServiceConfig config = new RecordingServiceConfig();
+        config.getWarmup().setRetryInterval(Duration.ofMillis(100));
+        scheduleRepository = mock(ScheduleRepository.class);
+        when(scheduleRepository.existsById(any())).thenReturn(true);
+        processLauncher = mock(ProcessLauncher.class);
+        TimeUtils timeUtils = mock(TimeUtils.class);
+        when(timeUtils.parseStringToLocalDateTime(anyString())).thenAnswer(invocation -> LocalDateTime.parse(invocation.getArgument(0)));
+        providerResolver = new ProviderResolver(1, config);
+        streamSlotManager = new StreamSlotManager(providerResolver);
+        streamProbeCache = mock(StreamProbeCache.class);
+        when(streamProbeCache.get(any())).thenReturn(Optional.empty());
+        streamWarmupService = new StreamWarmupService(config, scheduleRepository, processLauncher, timeUtils, providerResolver,
+                                                      streamSlotManager, streamProbeCache);
+        streamWarmupService.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        streamWarmupService.cancel(1L);
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void probe_shouldFollowRedirects_andProbeFinalUrl() throws Exception {
+        startServer();
+        when(processLauncher.run(eq("ffprobe"), any(), any())).thenReturn(FFPROBE_OUTPUT);
+
+        StreamWarmupService.ProbedStream stream = streamWarmupService.probe(url("/channel/7"));
+
+        assertThat(stream).isEqualTo(new StreamWarmupService.ProbedStream(url("/edge/7"), LAYOUT));
+        verify(processLauncher).run(eq("ffprobe"), argThat(command -> command.contains(url("/edge/7"))), any());
+    }
+
+    @Test
+    void warmUp_shouldRetryFailedProbe_andStoreResultOnSchedule() {
+        when(processLauncher.run(eq("ffprobe"), any(), any())).thenReturn(null, "{\"streams\": []}", FFPROBE_OUTPUT);
+        RecordingSchedule schedule = schedule("udp://239.0.0.1:1234");
+
+        streamWarmupService.warmUp(schedule);
+        StreamWarmupService.ProbedStream stream = streamWarmupService.awaitStream(schedule, LocalDateTime.now().plusSeconds(5), () -> true);
+
+        assertThat(stream).isEqualTo(new StreamWarmupService.ProbedStream("udp://239.0.0.1:1234", LAYOUT));
+        verify(processLauncher, times(3)).run(eq("ffprobe"), any(), any());
+        verify(scheduleRepository).saveProbeResult(eq(1L), eq("udp://239.0.0.1:1234"), eq("hevc"), anyLong());
+        verify(streamProbeCache).put("udp://239.0.0.1:1234", stream);
+    }
+
+    @Test
+    void awaitStream_shouldUseFreshProbeResultOfSchedule() {
+        RecordingSchedule schedule = schedule("http://provider.test/channel/7");
+        schedule.setResolvedUrl("http://edge.provider.test/7");
+        schedule.setVideoCodec("h264");
+        schedule.setProbedEpoch(Instant.now().minusSeconds(30).getEpochSecond());
+
+        StreamWarmupService.ProbedStream stream = streamWarmupService.awaitStream(schedule, LocalDateTime.now().plusSeconds(5), () -> true);
+
+        assertThat(stream.url()).isEqualTo("http://edge.provider.test/7");
+        assertThat(stream.layout()).isEqualTo(StreamLayout.ofVideoCodec("h264"));
+        verify(processLauncher, never()).run(any(), any(), any());
+    }
+
+    @Test
+    void warmUp_shouldWaitForFreeSlotBeforeStart_andProbeOnceRecordingStarts() {
+        when(processLauncher.run(eq("ffprobe"), any(), any())).thenReturn(FFPROBE_OUTPUT);
+        RecordingSchedule schedule = schedule("udp://239.0.0.1:1234");
+        // A running recording holds the only slot of the provider
+        assertThat(streamSlotManager.acquire(providerResolver.resolve(schedule.getM3uUrl()), 2L, Duration.ZERO)).isTrue();
+
+        streamWarmupService.warmUp(schedule);
+
+        verify(processLauncher, after(500).never()).run(any(), any(), any());
+        StreamWarmupService.ProbedStream stream = streamWarmupService.awaitStream(schedule, LocalDateTime.now().plusSeconds(5), () -> true);
+        assertThat(stream.videoCodec()).isEqualTo("hevc");
+    }
+
+    @Test
+    void warmUp_shouldUseCachedProbe_withoutConnecting() {
+        StreamWarmupService.ProbedStream cached = new StreamWarmupService.ProbedStream("http://edge.provider.test/7", LAYOUT);
+        when(streamProbeCache.get("http://provider.test/channel/7")).thenReturn(Optional.of(cached));
+        RecordingSchedule schedule = schedule("http://provider.test/channel/7");
+        // Even while the only slot of the provider is taken
+        assertThat(streamSlotManager.acquire(providerResolver.resolve(schedule.getM3uUrl()), 2L, Duration.ZERO)).isTrue();
+
+        streamWarmupService.warmUp(schedule);
+        StreamWarmupService.ProbedStream stream = streamWarmupService.awaitStream(schedule, LocalDateTime.now().plusSeconds(5), () -> true);
+
+        assertThat(stream).isEqualTo(cached);
+        verify(processLauncher, never()).run(any(), any(), any());
+        verify(streamProbeCache, never()).put(any(), any());
+    }
+
+    @Test
+    void awaitStream_shouldGiveUp_whenRecordingIsStopped() {
+        when(processLauncher.run(eq("ffprobe"), any(), any())).thenReturn(null);
+        RecordingSchedule schedule = schedule("udp://239.0.0.1:1234");
+
+        long startedAt = System.nanoTime();
+        StreamWarmupService.ProbedStream stream = streamWarmupService.awaitStream(schedule, LocalDateTime.now().plusMinutes(5), () -> false);
+
+        assertThat(stream).isNull();
+        assertThat(Duration.ofNanos(System.nanoTime() - startedAt)).isLessThan(Duration.ofSeconds(2));
+    }
+
+    /**
+     * Redirects {@code /channel/<id>} to {@code /edge/<id>}, which answers with an endless stream.
+     */
+    private void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/channel", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            exchange.getResponseHeaders().add("Location", "/edge/" + path.substring(path.lastIndexOf('/') + 1));
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/edge", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "video/mp2t");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                while (true) {
+                    out.write(new byte[188]);
+                }
+            } catch (IOException e) {
+                // The warm-up closed the connection after the headers
+            }
+        });
+        server.start();
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private static RecordingSchedule schedule(String url) {
+        RecordingSchedule schedule = new RecordingSchedule();
+        schedule.setId(1L);
+        schedule.setFileName("show.ts");
+        schedule.setM3uUrl(url);
+        schedule.setStartTime(LocalDateTime.now().plusMinutes(1).toString());
+        schedule.setEndTime(LocalDateTime.now().plusHours(1).toString());
+        return schedule;
+    }
+}
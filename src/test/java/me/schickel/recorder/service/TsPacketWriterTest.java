@@ -0,0 +1,163 @@
+package me.schickel.recorder.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static me.schickel.recorder.service.TsPacketWriter.PACKET_SIZE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TsPacketWriterTest {
+
+    // Smallest buffer that works, so that packets are split across transfers
+    private static final int BUFFER_SIZE = 3 * PACKET_SIZE + 1;
+
+    @TempDir
+    Path tempDir;
+
+    private Path output;
+    private FileChannel file;
+    private TsPacketWriter writer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        output = tempDir.resolve("show.ts");
+        file = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        writer = new TsPacketWriter(file, BUFFER_SIZE);
+        writer.startConnection();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        file.close();
+    }
+
+    @Test
+    void transfer_shouldSkipToFirstPacketBoundary_andKeepTornLastPacketOutOfFile() throws IOException {
+        transferAll(stream(garbage(50), packets(5, -1), garbage(100)));
+
+        assertThat(Files.size(output)).isEqualTo(5L * PACKET_SIZE);
+        assertThat(writer.getConnectionBytes()).isEqualTo(5L * PACKET_SIZE);
+        assertAligned();
+    }
+
+    @Test
+    void startConnection_shouldAlignAppendedDataOnNextPacketBoundary() throws IOException {
+        transferAll(stream(packets(5, -1), new byte[] {0x47, 1, 2, 3}));
+
+        writer.startConnection();
+        transferAll(stream(garbage(7), packets(4, -1)));
+
+        assertThat(Files.size(output)).isEqualTo(9L * PACKET_SIZE);
+        assertThat(writer.getConnectionBytes()).isEqualTo(4L * PACKET_SIZE);
+        assertThat(writer.getDiscardedBytes()).isEqualTo(4 + 7);
+        assertAligned();
+    }
+
+    @Test
+    void transfer_shouldResync_whenStreamLosesPacketBoundary() throws IOException {
+        transferAll(stream(packets(3, -1), garbage(10), packets(4, -1)));
+
+        assertThat(Files.size(output)).isEqualTo(7L * PACKET_SIZE);
+        assertThat(writer.getDiscardedBytes()).isEqualTo(10);
+        assertAligned();
+    }
+
+    @Test
+    void transfer_shouldDiscardEverything_whenThereIsNoPacketBoundary() throws IOException {
+        transferAll(stream(garbage(10_000)));
+
+        assertThat(Files.size(output)).isZero();
+        assertThat(writer.getDiscardedBytes()).isGreaterThan(10_000 - 3L * PACKET_SIZE);
+    }
+
+    @Test
+    void getMediaTimeMicros_shouldFollowPcr_acrossWrap() throws IOException {
+        long wrap = 1L << 33;
+        transferAll(stream(pcrPacket(wrap - 45_000), packets(2, -1), pcrPacket(45_000), pcrPacket(90_000)));
+
+        assertThat(writer.hasMediaTime()).isTrue();
+        assertThat(writer.getMediaTimeMicros()).isEqualTo(1_500_000);
+    }
+
+    @Test
+    void getMediaTimeMicros_shouldIgnoreDiscontinuities_andResetPerConnection() throws IOException {
+        transferAll(stream(pcrPacket(90_000), pcrPacket(180_000), pcrPacket(90_000 * 3600), pcrPacket(90_000 * 3600 + 90_000)));
+        assertThat(writer.getMediaTimeMicros()).isEqualTo(2_000_000);
+
+        writer.startConnection();
+        transferAll(stream(packets(3, -1)));
+        assertThat(writer.hasMediaTime()).isFalse();
+        assertThat(writer.getMediaTimeMicros()).isZero();
+    }
+
+    /**
+     * Hands the stream over in pieces that do not line up with the packets, like the network does.
+     */
+    private void transferAll(byte[] stream) throws IOException {
+        for (int position = 0; position < stream.length; position += 100) {
+            writer.transfer(ByteBuffer.wrap(stream, position, Math.min(100, stream.length - position)));
+        }
+    }
+
+    private void assertAligned() throws IOException {
+        byte[] written = Files.readAllBytes(output);
+        for (int packet = 0; packet < written.length; packet += PACKET_SIZE) {
+            assertThat(written[packet]).as("sync byte at %d", packet).isEqualTo((byte) 0x47);
+        }
+    }
+
+    private static byte[] stream(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bytes.writeBytes(part);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] garbage(int length) {
+        byte[] garbage = new byte[length];
+        for (int i = 0; i < length; i++) {
+            garbage[i] = (byte) (i % 0x40);
+        }
+        return garbage;
+    }
+
+    /**
+     * Payload-only packets on PID 0x100, or with a PCR if {@code pcr} is not negative.
+     */
+    private static byte[] packets(int count, long pcr) {
+        byte[] packets = new byte[count * PACKET_SIZE];
+        for (int packet = 0; packet < count; packet++) {
+            int start = packet * PACKET_SIZE;
+            packets[start] = 0x47;
+            packets[start + 1] = 0x01;
+            packets[start + 2] = 0x00;
+            packets[start + 3] = 0x10;
+            if (pcr >= 0) {
+                packets[start + 3] = 0x30;
+                packets[start + 4] = 7;
+                packets[start + 5] = 0x10;
+                packets[start + 6] = (byte) (pcr >> 25);
+                packets[start + 7] = (byte) (pcr >> 17);
+                packets[start + 8] = (byte) (pcr >> 9);
+                packets[start + 9] = (byte) (pcr >> 1);
+                packets[start + 10] = (byte) ((pcr & 1) << 7);
+            }
+        }
+        return packets;
+    }
+
+    private static byte[] pcrPacket(long pcr) {
+        return packets(1, pcr);
+    }
+}
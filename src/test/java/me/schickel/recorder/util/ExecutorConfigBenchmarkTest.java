@@ -0,0 +1,143 @@
+package me.schickel.recorder.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Simulates many recordings that each block their thread on a long running ffmpeg process, followed by a
+ * short CPU-bound remux. Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class ExecutorConfigBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExecutorConfigBenchmarkTest.class);
+
+    private static final int RECORDINGS = 64;
+    private static final long RECORDING_MILLIS = 2_000;
+    private static final long REMUX_MILLIS = 50;
+
+    private ExecutorConfig executorConfig;
+    private ExecutorService recordingExecutor;
+    private ThreadPoolTaskExecutor postProcessingExecutor;
+    // Stands in for ffmpeg processes exiting
+    private ScheduledExecutorService processExits;
+
+    @BeforeEach
+    void setUp() {
+        executorConfig = new ExecutorConfig();
+        ReflectionTestUtils.setField(executorConfig, "postProcessingCoreSize", 2);
+        ReflectionTestUtils.setField(executorConfig, "postProcessingMaxSize", 3);
+        ReflectionTestUtils.setField(executorConfig, "postProcessingQueueCapacity", 20);
+        recordingExecutor = executorConfig.executorService();
+        postProcessingExecutor = executorConfig.postProcessingExecutor();
+        postProcessingExecutor.initialize();
+        processExits = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        recordingExecutor.shutdownNow();
+        postProcessingExecutor.shutdown();
+        processExits.shutdownNow();
+    }
+
+    @Test
+    void virtualThreadExecutor_shouldRunAllSimulatedRecordingsConcurrently() throws InterruptedException {
+        long started = System.nanoTime();
+        Result result = simulate(recordingExecutor);
+        long startupMillis = TimeUnit.NANOSECONDS.toMillis(result.allStartedAt() - started);
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis(result.allFinishedAt() - started);
+
+        logger.info("virtual threads: {} recordings, all started after {} ms, peak {} running, finished after {} ms, "
+                    + "peak {} post-processing threads",
+                    RECORDINGS, startupMillis, result.peakRunning(), totalMillis, result.peakPostProcessing());
+
+        assertThat(result.peakRunning()).isEqualTo(RECORDINGS);
+        assertThat(startupMillis).isLessThan(500);
+        // Remuxes run 3 at a time: 64 * 50 ms / 3 on top of the recording time, plus some slack
+        assertThat(totalMillis).isLessThan(RECORDING_MILLIS + RECORDINGS * REMUX_MILLIS / 3 + 2_000);
+        assertThat(result.peakPostProcessing()).isLessThanOrEqualTo(3);
+    }
+
+    @Test
+    void fixedPool_shouldStarveRecordings_forComparison() throws InterruptedException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        ExecutorService fixedPool = Executors.newFixedThreadPool(processors);
+        try {
+            AtomicInteger running = new AtomicInteger();
+            for (int i = 0; i < RECORDINGS; i++) {
+                fixedPool.submit(() -> {
+                    running.incrementAndGet();
+                    simulatedRecording().join();
+                });
+            }
+            Thread.sleep(500);
+
+            logger.info("fixed pool of {} threads: {} of {} recordings running after 500 ms",
+                        processors, running.get(), RECORDINGS);
+            assertThat(running.get()).isLessThanOrEqualTo(processors);
+        } finally {
+            fixedPool.shutdownNow();
+        }
+    }
+
+    private Result simulate(ExecutorService executor) throws InterruptedException {
+        CountDownLatch allStarted = new CountDownLatch(RECORDINGS);
+        CountDownLatch allFinished = new CountDownLatch(RECORDINGS);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peakRunning = new AtomicInteger();
+        AtomicInteger postProcessing = new AtomicInteger();
+        AtomicInteger peakPostProcessing = new AtomicInteger();
+
+        for (int i = 0; i < RECORDINGS; i++) {
+            executor.submit(() -> {
+                peakRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                allStarted.countDown();
+                simulatedRecording().join();
+                running.decrementAndGet();
+                postProcessingExecutor.execute(() -> {
+                    peakPostProcessing.accumulateAndGet(postProcessing.incrementAndGet(), Math::max);
+                    busyWait(REMUX_MILLIS);
+                    postProcessing.decrementAndGet();
+                    allFinished.countDown();
+                });
+            });
+        }
+        assertThat(allStarted.await(10, TimeUnit.SECONDS)).isTrue();
+        long allStartedAt = System.nanoTime();
+        assertThat(allFinished.await(30, TimeUnit.SECONDS)).isTrue();
+        return new Result(allStartedAt, System.nanoTime(), peakRunning.get(), peakPostProcessing.get());
+    }
+
+    private CompletableFuture<Void> simulatedRecording() {
+        CompletableFuture<Void> process = new CompletableFuture<>();
+        processExits.schedule(() -> process.complete(null), RECORDING_MILLIS, TimeUnit.MILLISECONDS);
+        return process;
+    }
+
+    private void busyWait(long millis) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (System.nanoTime() < until) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private record Result(long allStartedAt, long allFinishedAt, int peakRunning, int peakPostProcessing) {
+    }
+}
@@ -0,0 +1,109 @@
+package me.schickel.recorder.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IntervalTreeTest {
+
+    private IntervalTree<String> tree;
+
+    @BeforeEach
+    void setUp() {
+        tree = new IntervalTree<>();
+    }
+
+    @Test
+    void findOverlapping_shouldReturnOverlappingIntervals() {
+        tree.put(1, 100, 200, "a");
+        tree.put(2, 150, 250, "b");
+        tree.put(3, 300, 400, "c");
+
+        List<IntervalTree.Interval<String>> result = tree.findOverlapping(180, 320);
+
+        assertThat(result).extracting(IntervalTree.Interval::value).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    void findOverlapping_shouldTreatAdjacentIntervalsAsNonOverlapping() {
+        tree.put(1, 100, 200, "a");
+        tree.put(2, 300, 400, "b");
+
+        List<IntervalTree.Interval<String>> result = tree.findOverlapping(200, 300);
+
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    void put_shouldReplaceIntervalWithSameId() {
+        tree.put(1, 100, 200, "a");
+        tree.put(1, 500, 600, "a");
+
+        assertThat(tree.size()).isEqualTo(1);
+        assertThat(tree.findOverlapping(100, 200)).isEmpty();
+        assertThat(tree.findOverlapping(550, 560)).hasSize(1);
+    }
+
+    @Test
+    void remove_shouldReturnFalse_whenIdIsUnknown() {
+        tree.put(1, 100, 200, "a");
+
+        assertThat(tree.remove(2)).isFalse();
+        assertThat(tree.remove(1)).isTrue();
+        assertThat(tree.findOverlapping(0, 1000)).isEmpty();
+    }
+
+    @Test
+    void findOverlapping_shouldMatchLinearCheck_onRandomizedData() {
+        Random random = new Random(42);
+        Map<Long, long[]> reference = new HashMap<>();
+
+        for (int operation = 0; operation < 20_000; operation++) {
+            long id = random.nextInt(2_000);
+            if (random.nextInt(4) == 0) {
+                assertThat(tree.remove(id)).isEqualTo(reference.remove(id) != null);
+            } else {
+                long start = random.nextInt(100_000);
+                long end = start + 1 + random.nextInt(5_000);
+                tree.put(id, start, end, "schedule" + id);
+                reference.put(id, new long[]{start, end});
+            }
+
+            if (operation % 50 == 0) {
+                long queryStart = random.nextInt(100_000);
+                long queryEnd = queryStart + 1 + random.nextInt(10_000);
+                assertThat(ids(tree.findOverlapping(queryStart, queryEnd)))
+                    .isEqualTo(linearOverlapping(reference, queryStart, queryEnd));
+            }
+        }
+        assertThat(tree.size()).isEqualTo(reference.size());
+    }
+
+    private List<Long> ids(List<IntervalTree.Interval<String>> intervals) {
+        return intervals.stream().map(IntervalTree.Interval::id).toList();
+    }
+
+    // Same half-open check the schedule validation used before the tree existed
+    private List<Long> linearOverlapping(Map<Long, long[]> reference, long start, long end) {
+        List<Map.Entry<Long, long[]>> overlapping = new ArrayList<>();
+        for (Map.Entry<Long, long[]> entry : reference.entrySet()) {
+            long[] interval = entry.getValue();
+            if (start < interval[1] && interval[0] < end) {
+                overlapping.add(entry);
+            }
+        }
+        return overlapping.stream()
+                          .sorted(Comparator.comparingLong((Map.Entry<Long, long[]> entry) -> entry.getValue()[0])
+                                            .thenComparingLong(Map.Entry::getKey))
+                          .map(Map.Entry::getKey)
+                          .toList();
+    }
+}
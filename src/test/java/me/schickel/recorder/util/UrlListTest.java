@@ -0,0 +1,30 @@
+package me.schickel.recorder.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UrlListTest {
+
+    @Test
+    void join_shouldKeepOrder_andSkipBlankUrls() {
+        String joined = UrlList.join(Arrays.asList(" http://a.test/1 ", "", null, "http://b.test/2"));
+
+        assertThat(joined).isEqualTo("http://a.test/1\nhttp://b.test/2");
+    }
+
+    @Test
+    void join_shouldReturnNull_whenNoUrlIsLeft() {
+        assertThat(UrlList.join(null)).isNull();
+        assertThat(UrlList.join(List.of(" "))).isNull();
+    }
+
+    @Test
+    void split_shouldReturnUrlsInOrder() {
+        assertThat(UrlList.split("http://a.test/1\n\nhttp://b.test/2\n")).containsExactly("http://a.test/1", "http://b.test/2");
+        assertThat(UrlList.split(null)).isEmpty();
+    }
+}